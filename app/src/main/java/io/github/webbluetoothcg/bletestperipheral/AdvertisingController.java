@@ -0,0 +1,444 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.AdvertisingPacker;
+
+/**
+ * Advertises the peripheral with settings that can be changed while it runs, and measures for
+ * every setting how long advertising takes to start and the first device takes to connect.
+ *
+ * A device can't be seen discovering the peripheral, so the time from advertising starting to the
+ * first connection stands in for the discovery latency.
+ *
+ * The advertised fields are packed with {@link AdvertisingPacker}, so advertising doesn't fail
+ * because they are too large. Its cache is shared by every peripheral the app runs.
+ *
+ * Everything but {@link #onConnected()} and the statistics must be used on the UI thread, where
+ * the advertise callbacks are delivered.
+ */
+public class AdvertisingController {
+  private static final String TAG = AdvertisingController.class.getCanonicalName();
+
+  /**
+   * Longest timeout {@link AdvertiseSettings.Builder#setTimeout(int)} accepts.
+   */
+  public static final int MAX_TIMEOUT_MILLIS = 180000;
+
+  /**
+   * Mode, TX power and connectability to advertise with, and how long to advertise for.
+   */
+  public static final class Settings {
+    private final int mMode;
+    private final int mTxPowerLevel;
+    private final boolean mConnectable;
+    private final int mTimeoutMillis;
+
+    /**
+     * @param mode One of the ADVERTISE_MODE_ constants of {@link AdvertiseSettings}.
+     * @param txPowerLevel One of the ADVERTISE_TX_POWER_ constants of {@link AdvertiseSettings}.
+     * @param timeoutMillis Up to {@link #MAX_TIMEOUT_MILLIS}, or 0 to advertise until stopped.
+     */
+    public Settings(int mode, int txPowerLevel, boolean connectable, int timeoutMillis) {
+      if (mode < AdvertiseSettings.ADVERTISE_MODE_LOW_POWER
+          || mode > AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY) {
+        throw new IllegalArgumentException("Unknown advertise mode: " + mode);
+      }
+      if (txPowerLevel < AdvertiseSettings.ADVERTISE_TX_POWER_ULTRA_LOW
+          || txPowerLevel > AdvertiseSettings.ADVERTISE_TX_POWER_HIGH) {
+        throw new IllegalArgumentException("Unknown TX power level: " + txPowerLevel);
+      }
+      if (timeoutMillis < 0 || timeoutMillis > MAX_TIMEOUT_MILLIS) {
+        throw new IllegalArgumentException("Timeout out of range: " + timeoutMillis);
+      }
+      mMode = mode;
+      mTxPowerLevel = txPowerLevel;
+      mConnectable = connectable;
+      mTimeoutMillis = timeoutMillis;
+    }
+
+    public int getMode() {
+      return mMode;
+    }
+
+    public int getTxPowerLevel() {
+      return mTxPowerLevel;
+    }
+
+    public boolean isConnectable() {
+      return mConnectable;
+    }
+
+    public int getTimeoutMillis() {
+      return mTimeoutMillis;
+    }
+
+    public Settings withMode(int mode) {
+      return new Settings(mode, mTxPowerLevel, mConnectable, mTimeoutMillis);
+    }
+
+    public Settings withTxPowerLevel(int txPowerLevel) {
+      return new Settings(mMode, txPowerLevel, mConnectable, mTimeoutMillis);
+    }
+
+    public Settings withConnectable(boolean connectable) {
+      return new Settings(mMode, mTxPowerLevel, connectable, mTimeoutMillis);
+    }
+
+    public Settings withTimeoutMillis(int timeoutMillis) {
+      return new Settings(mMode, mTxPowerLevel, mConnectable, timeoutMillis);
+    }
+
+    /**
+     * @return The settings that affect how fast the peripheral is found, e.g.
+     * "balanced/medium/connectable". The timeout doesn't, so it is left out.
+     */
+    public String getKey() {
+      return MODE_NAMES[mMode] + "/" + TX_POWER_LEVEL_NAMES[mTxPowerLevel] + "/"
+          + (mConnectable ? "connectable" : "nonConnectable");
+    }
+
+    private AdvertiseSettings build() {
+      return new AdvertiseSettings.Builder()
+          .setAdvertiseMode(mMode)
+          .setTxPowerLevel(mTxPowerLevel)
+          .setConnectable(mConnectable)
+          .setTimeout(mTimeoutMillis)
+          .build();
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "/" + mTimeoutMillis + "ms";
+    }
+  }
+
+  /**
+   * Statistics of advertising with one {@link Settings#getKey()}.
+   */
+  public static class Stats {
+    private final String mKey;
+    private long mStarts;
+    private long mFailures;
+    private long mTimeouts;
+    // From startAdvertising() to onStartSuccess().
+    private final LatencyHistogram mStartLatency = new LatencyHistogram();
+    // From onStartSuccess() to the first device connecting.
+    private final LatencyHistogram mConnectLatency = new LatencyHistogram();
+
+    private Stats(String key) {
+      mKey = key;
+    }
+
+    public String getKey() {
+      return mKey;
+    }
+
+    public synchronized long getStarts() {
+      return mStarts;
+    }
+
+    public synchronized long getFailures() {
+      return mFailures;
+    }
+
+    public synchronized long getTimeouts() {
+      return mTimeouts;
+    }
+
+    public LatencyHistogram getStartLatency() {
+      return mStartLatency;
+    }
+
+    public LatencyHistogram getConnectLatency() {
+      return mConnectLatency;
+    }
+
+    private synchronized void onStarted(long startNanos) {
+      mStarts++;
+      mStartLatency.recordNanos(startNanos);
+    }
+
+    private synchronized void onFailed() {
+      mFailures++;
+    }
+
+    private synchronized void onTimedOut() {
+      mTimeouts++;
+    }
+
+    private synchronized void writeJson(JsonWriter writer) throws IOException {
+      writer.beginObject();
+      writer.name("settings").value(mKey);
+      writer.name("starts").value(mStarts);
+      writer.name("failures").value(mFailures);
+      writer.name("timeouts").value(mTimeouts);
+      writer.name("startLatency");
+      mStartLatency.writeJson(writer);
+      writer.name("connectLatency");
+      mConnectLatency.writeJson(writer);
+      writer.endObject();
+    }
+  }
+
+  /**
+   * Called on the UI thread when advertising started or stopped by itself.
+   */
+  public interface Listener {
+    void onAdvertisingStarted(Settings settings);
+
+    /**
+     * @param errorCode One of the ADVERTISE_FAILED_ constants of {@link AdvertiseCallback}.
+     */
+    void onAdvertisingFailed(int errorCode);
+
+    void onAdvertisingTimedOut();
+  }
+
+  // Indexed by the ADVERTISE_MODE_ and ADVERTISE_TX_POWER_ constants.
+  private static final String[] MODE_NAMES = {"lowPower", "balanced", "lowLatency"};
+  private static final String[] TX_POWER_LEVEL_NAMES = {"ultraLow", "low", "medium", "high"};
+
+  private static final AdvertisingPacker sPacker = new AdvertisingPacker();
+
+  private final Listener mListener;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private Settings mSettings;
+  private BluetoothLeAdvertiser mAdvertiser;
+  private List<AdvertisingPacker.Field> mFields;
+  // The callback of the current start, so the callbacks of earlier ones are ignored.
+  private AdvertiseCallback mCallback;
+  private boolean mAdvertising;
+  // Guarded by this, since devices connect on the GATT event loop.
+  private final Map<String, Stats> mStats = new LinkedHashMap<>();
+  private Stats mCurrentStats;
+  private long mStartNanos;
+  private long mStartedNanos;
+  private boolean mWaitingForConnection;
+
+  private final Runnable mTimeoutRunnable = new Runnable() {
+    @Override
+    public void run() {
+      // The advertiser stops by itself without calling back.
+      Log.v(TAG, "Advertising timed out: " + mSettings);
+      mAdvertising = false;
+      synchronized (AdvertisingController.this) {
+        mWaitingForConnection = false;
+        mCurrentStats.onTimedOut();
+      }
+      mListener.onAdvertisingTimedOut();
+    }
+  };
+
+  public AdvertisingController(Settings settings, Listener listener) {
+    mSettings = settings;
+    mListener = listener;
+  }
+
+  public Settings getSettings() {
+    return mSettings;
+  }
+
+  /**
+   * Advertises with new settings, restarting advertising if it is running.
+   */
+  public void setSettings(Settings settings) {
+    mSettings = settings;
+    if (mCallback != null) {
+      BluetoothLeAdvertiser advertiser = mAdvertiser;
+      stop();
+      start(advertiser, mFields);
+    }
+  }
+
+  /**
+   * @return Whether advertising started and hasn't stopped or timed out since.
+   */
+  public boolean isAdvertising() {
+    return mAdvertising;
+  }
+
+  /**
+   * @param fields The fields to advertise in priority order, highest first. The ones that don't
+   * fit are left out.
+   */
+  public void start(BluetoothLeAdvertiser advertiser, List<AdvertisingPacker.Field> fields) {
+    if (mCallback != null) {
+      stop();
+    }
+    mAdvertiser = advertiser;
+    mFields = fields;
+    final Settings settings = mSettings;
+    AdvertisingPacker.Layout layout = sPacker.pack(fields, settings.isConnectable());
+    if (!layout.getDropped().isEmpty()) {
+      Log.w(TAG, "Not advertising fields that don't fit: " + layout.getDropped());
+    }
+    Log.v(TAG, "Advertising " + layout);
+    mCallback = new AdvertiseCallback() {
+      @Override
+      public void onStartFailure(int errorCode) {
+        super.onStartFailure(errorCode);
+        if (mCallback != this) {
+          return;
+        }
+        Log.e(TAG, "Not broadcasting: " + errorCode);
+        synchronized (AdvertisingController.this) {
+          mCurrentStats.onFailed();
+        }
+        mListener.onAdvertisingFailed(errorCode);
+      }
+
+      @Override
+      public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+        super.onStartSuccess(settingsInEffect);
+        if (mCallback != this) {
+          return;
+        }
+        long now = System.nanoTime();
+        Log.v(TAG, "Broadcasting: " + settings);
+        mAdvertising = true;
+        synchronized (AdvertisingController.this) {
+          mStartedNanos = now;
+          mWaitingForConnection = settings.isConnectable();
+          mCurrentStats.onStarted(now - mStartNanos);
+        }
+        if (settings.getTimeoutMillis() > 0) {
+          mHandler.postDelayed(mTimeoutRunnable, settings.getTimeoutMillis());
+        }
+        mListener.onAdvertisingStarted(settings);
+      }
+    };
+    synchronized (this) {
+      mCurrentStats = getStats(settings.getKey());
+      mWaitingForConnection = false;
+      mStartNanos = System.nanoTime();
+    }
+    mAdvertiser.startAdvertising(settings.build(), buildData(layout.getAdvertisement()),
+        buildData(layout.getScanResponse()), mCallback);
+  }
+
+  public void stop() {
+    if (mCallback == null) {
+      return;
+    }
+    mHandler.removeCallbacks(mTimeoutRunnable);
+    try {
+      mAdvertiser.stopAdvertising(mCallback);
+    } catch (IllegalStateException e) {
+      // Turning Bluetooth off already stopped advertising.
+      Log.w(TAG, "Couldn't stop advertising", e);
+    }
+    mCallback = null;
+    mAdvertising = false;
+    synchronized (this) {
+      mWaitingForConnection = false;
+    }
+  }
+
+  /**
+   * Records how long the first device to connect since advertising started took. Can be called
+   * from any thread.
+   */
+  public synchronized void onConnected() {
+    if (mWaitingForConnection) {
+      mWaitingForConnection = false;
+      mCurrentStats.getConnectLatency().recordNanos(System.nanoTime() - mStartedNanos);
+    }
+  }
+
+  /**
+   * @return The statistics of the current settings, which may have no samples yet.
+   */
+  public synchronized Stats getCurrentStats() {
+    return getStats(mSettings.getKey());
+  }
+
+  /**
+   * @return The statistics of every setting advertised with, in the order they were first used.
+   */
+  public synchronized List<Stats> getAllStats() {
+    return new ArrayList<>(mStats.values());
+  }
+
+  public synchronized void reset() {
+    mStats.clear();
+    if (mCurrentStats != null) {
+      mCurrentStats = getStats(mCurrentStats.getKey());
+    }
+  }
+
+  /**
+   * Writes the statistics of every setting as a JSON array.
+   */
+  public void writeJson(JsonWriter writer) throws IOException {
+    writer.beginArray();
+    for (Stats stats : getAllStats()) {
+      stats.writeJson(writer);
+    }
+    writer.endArray();
+  }
+
+  private static AdvertiseData buildData(List<AdvertisingPacker.Field> fields) {
+    AdvertiseData.Builder builder = new AdvertiseData.Builder();
+    for (AdvertisingPacker.Field field : fields) {
+      switch (field.getType()) {
+        case TX_POWER_LEVEL:
+          builder.setIncludeTxPowerLevel(true);
+          break;
+        case SERVICE_UUID:
+          builder.addServiceUuid(new ParcelUuid(field.getUuid()));
+          break;
+        case SERVICE_DATA:
+          builder.addServiceData(new ParcelUuid(field.getUuid()), field.getData());
+          break;
+        case MANUFACTURER_DATA:
+          builder.addManufacturerData(field.getManufacturerId(), field.getData());
+          break;
+        case DEVICE_NAME:
+          builder.setIncludeDeviceName(true);
+          break;
+      }
+    }
+    return builder.build();
+  }
+
+  private synchronized Stats getStats(String key) {
+    Stats stats = mStats.get(key);
+    if (stats == null) {
+      stats = new Stats(key);
+      mStats.put(key, stats);
+    }
+    return stats;
+  }
+}
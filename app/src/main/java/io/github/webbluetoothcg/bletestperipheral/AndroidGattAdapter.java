@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.AttributeDatabase;
+import io.github.webbluetoothcg.bletestperipheral.gatt.GattTransport;
+
+/**
+ * Connects the platform independent GATT server in the gatt module to
+ * {@link android.bluetooth.BluetoothGattServer}.
+ *
+ * Builds an {@link AttributeDatabase} that mirrors the services of the fragments, translates
+ * between the Android attributes and the {@link Attribute}s and sends the responses and
+ * notifications of the {@link io.github.webbluetoothcg.bletestperipheral.gatt.GattRequestHandler}
+ * through the Android GATT server.
+ */
+public class AndroidGattAdapter implements GattTransport<BluetoothDevice> {
+  private final AttributeDatabase mDatabase;
+  // Built in the constructor and only read afterwards, so they can be used from any thread.
+  private final IdentityHashMap<Object, Attribute> mAttributes = new IdentityHashMap<>();
+  private final HashMap<Attribute, BluetoothGattCharacteristic> mCharacteristics =
+      new HashMap<>();
+  private volatile BluetoothGattServer mGattServer;
+
+  public AndroidGattAdapter(List<BluetoothGattService> services) {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    for (BluetoothGattService service : services) {
+      mAttributes.put(service, builder.addService(service.getUuid()));
+      for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+        // The value of characteristics stays in the BluetoothGattCharacteristic, where the
+        // fragments update it.
+        Attribute attribute = builder.addCharacteristic(characteristic.getUuid(),
+            characteristic.getProperties(), /* value */ null);
+        mAttributes.put(characteristic, attribute);
+        mCharacteristics.put(attribute, characteristic);
+        for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+          mAttributes.put(descriptor, builder.addDescriptor(descriptor.getUuid(),
+              descriptor.getValue()));
+        }
+      }
+    }
+    mDatabase = builder.build();
+  }
+
+  public AttributeDatabase getDatabase() {
+    return mDatabase;
+  }
+
+  /**
+   * @param gattServer The server to send responses and notifications through, or null once it
+   * is closed.
+   */
+  public void setGattServer(BluetoothGattServer gattServer) {
+    mGattServer = gattServer;
+  }
+
+  /**
+   * @return The attribute of the service, or null if it isn't in the database.
+   */
+  public Attribute getAttribute(BluetoothGattService service) {
+    return mAttributes.get(service);
+  }
+
+  /**
+   * @return The attribute of the characteristic, or null if it isn't in the database.
+   */
+  public Attribute getAttribute(BluetoothGattCharacteristic characteristic) {
+    return mAttributes.get(characteristic);
+  }
+
+  /**
+   * @return The attribute of the descriptor, or null if it isn't in the database.
+   */
+  public Attribute getAttribute(BluetoothGattDescriptor descriptor) {
+    return mAttributes.get(descriptor);
+  }
+
+  public BluetoothGattCharacteristic getCharacteristic(Attribute characteristic) {
+    return mCharacteristics.get(characteristic);
+  }
+
+  @Override
+  public void sendResponse(BluetoothDevice device, int requestId, int status, int offset,
+      byte[] value) {
+    BluetoothGattServer gattServer = mGattServer;
+    if (gattServer != null) {
+      gattServer.sendResponse(device, requestId, status, offset, value);
+    }
+  }
+
+  @Override
+  public boolean notifyCharacteristicChanged(BluetoothDevice device, Attribute characteristic,
+      byte[] value, boolean confirm) {
+    // BluetoothGattServer only sends the current value of the characteristic. The values are
+    // replaced rather than modified, so it is the value read unless a new one was set since.
+    BluetoothGattServer gattServer = mGattServer;
+    return gattServer != null && gattServer.notifyCharacteristicChanged(device,
+        mCharacteristics.get(characteristic), confirm);
+  }
+}
@@ -189,7 +189,7 @@ public class BatteryServiceFragment extends ServiceFragment {
     if (indicate) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsEnabled, Toast.LENGTH_SHORT)
@@ -203,7 +203,7 @@ public class BatteryServiceFragment extends ServiceFragment {
     if (characteristic.getUuid() != BATTERY_LEVEL_UUID) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsNotEnabled, Toast.LENGTH_SHORT)
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueCodec;
+
+/**
+ * Reads traces in the compact binary format, 8 bytes per sample, little endian:
+ *
+ * Header: "BLTR" (4 bytes) + Version (uint8) = 5 bytes
+ * Sample: Time since the previous sample in microseconds (uint32) + Value (IEEE-754 float32)
+ *
+ * The first sample's time is since the start of the trace.
+ */
+public class BinaryTraceReader implements TraceReader {
+  public static final byte[] MAGIC = {'B', 'L', 'T', 'R'};
+  public static final int VERSION = 1;
+  public static final int HEADER_LENGTH = MAGIC.length + ValueCodec.UINT8_LENGTH;
+  public static final int SAMPLE_LENGTH = ValueCodec.UINT32_LENGTH + ValueCodec.UINT32_LENGTH;
+
+  private final DataInputStream mInput;
+  // Reused for every sample.
+  private final byte[] mSample = new byte[SAMPLE_LENGTH];
+  private long mTimestampMicros;
+  private double mValue;
+
+  /**
+   * Reads the header.
+   *
+   * @param input Buffered stream positioned at the start of the trace.
+   * @throws IOException if it isn't a binary trace of a supported version.
+   */
+  public BinaryTraceReader(InputStream input) throws IOException {
+    mInput = new DataInputStream(input);
+    byte[] header = new byte[HEADER_LENGTH];
+    try {
+      mInput.readFully(header);
+    } catch (EOFException e) {
+      throw new IOException("Truncated binary trace header");
+    }
+    if (!isBinaryTrace(header)) {
+      throw new IOException("Not a binary trace");
+    }
+    int version = ValueCodec.getUint8(header, MAGIC.length);
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary trace version " + version);
+    }
+  }
+
+  /**
+   * @return true if header starts with the magic of binary traces.
+   */
+  public static boolean isBinaryTrace(byte[] header) {
+    return header.length >= MAGIC.length
+        && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC);
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    int first = mInput.read();
+    if (first < 0) {
+      return false;
+    }
+    mSample[0] = (byte) first;
+    try {
+      mInput.readFully(mSample, 1, SAMPLE_LENGTH - 1);
+    } catch (EOFException e) {
+      throw new IOException("Truncated sample in binary trace");
+    }
+    mTimestampMicros += ValueCodec.getUint32(mSample, 0);
+    mValue = Float.intBitsToFloat((int) ValueCodec.getUint32(mSample, ValueCodec.UINT32_LENGTH));
+    return true;
+  }
+
+  @Override
+  public long getTimestampMicros() {
+    return mTimestampMicros;
+  }
+
+  @Override
+  public double getValue() {
+    return mValue;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mInput.close();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.ControlSession;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ControlTarget;
+
+/**
+ * Serves the control protocol on a local socket in the abstract namespace, which a test harness
+ * on the computer reaches with {@code adb forward tcp:<port> localabstract:<name>}.
+ *
+ * Every connection is served by a {@link ControlSession} on its own thread.
+ */
+public class ControlSocketServer {
+  private static final String TAG = ControlSocketServer.class.getCanonicalName();
+
+  private final String mName;
+  private final ControlTarget mTarget;
+  private LocalServerSocket mServerSocket;
+  private Thread mAcceptThread;
+  private volatile boolean mStopped;
+  // Connections being served, to close them when the server stops.
+  private final ArrayList<LocalSocket> mConnections = new ArrayList<>();
+
+  public ControlSocketServer(String name, ControlTarget target) {
+    mName = name;
+    mTarget = target;
+  }
+
+  /**
+   * @throws IOException If the socket can't be created, e.g. because another peripheral is
+   * serving one with the same name.
+   */
+  public void start() throws IOException {
+    mServerSocket = new LocalServerSocket(mName);
+    mAcceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "ControlSocketServer");
+    mAcceptThread.start();
+    Log.i(TAG, "Serving control connections on localabstract:" + mName);
+  }
+
+  /**
+   * Stops accepting connections and closes the open ones.
+   */
+  public void stop() {
+    if (mServerSocket == null) {
+      return;
+    }
+    mStopped = true;
+    // Closing a LocalServerSocket doesn't wake up accept(), so connect to it once.
+    try (LocalSocket wakeUp = new LocalSocket()) {
+      wakeUp.connect(new LocalSocketAddress(mName));
+    } catch (IOException e) {
+      // The accept thread already ended.
+    }
+    try {
+      mAcceptThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    closeQuietly(mServerSocket);
+    synchronized (mConnections) {
+      for (LocalSocket connection : mConnections) {
+        closeQuietly(connection);
+      }
+      mConnections.clear();
+    }
+    mServerSocket = null;
+  }
+
+  private void accept() {
+    while (!mStopped) {
+      final LocalSocket connection;
+      try {
+        connection = mServerSocket.accept();
+      } catch (IOException e) {
+        if (!mStopped) {
+          Log.e(TAG, "Failed to accept a control connection", e);
+        }
+        return;
+      }
+      if (mStopped) {
+        closeQuietly(connection);
+        return;
+      }
+      synchronized (mConnections) {
+        mConnections.add(connection);
+      }
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          serve(connection);
+        }
+      }, "ControlSession").start();
+    }
+  }
+
+  private void serve(LocalSocket connection) {
+    Log.d(TAG, "Control connection opened");
+    long requests = 0;
+    try {
+      ControlSession session = new ControlSession(mTarget, connection.getInputStream(),
+          connection.getOutputStream());
+      try {
+        session.serve();
+      } finally {
+        requests = session.getRequestCount();
+      }
+    } catch (IOException e) {
+      if (!mStopped) {
+        Log.w(TAG, "Control connection failed", e);
+      }
+    } finally {
+      synchronized (mConnections) {
+        mConnections.remove(connection);
+      }
+      closeQuietly(connection);
+    }
+    Log.d(TAG, "Control connection closed after " + requests + " requests");
+  }
+
+  private static void closeQuietly(LocalSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+  }
+
+  private static void closeQuietly(LocalServerSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads traces with one sample per line: a timestamp in milliseconds and a value, separated by a
+ * comma, e.g. "1500.5,72". Other columns are ignored. Empty lines, lines starting with '#' and a
+ * header as the first other line are skipped.
+ */
+public class CsvTraceReader implements TraceReader {
+  private final BufferedReader mReader;
+  private int mLineNumber;
+  // Whether a line other than an empty line or a comment was read.
+  private boolean mContentRead;
+  private long mTimestampMicros;
+  private double mValue;
+
+  public CsvTraceReader(Reader reader) {
+    mReader = new BufferedReader(reader);
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    String line;
+    while ((line = mReader.readLine()) != null) {
+      mLineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.charAt(0) == '#') {
+        continue;
+      }
+      boolean firstContentLine = !mContentRead;
+      mContentRead = true;
+      int timestampEnd = line.indexOf(',');
+      if (timestampEnd < 0) {
+        throw new IOException("Line " + mLineNumber + ": expected timestamp,value");
+      }
+      int valueEnd = line.indexOf(',', timestampEnd + 1);
+      if (valueEnd < 0) {
+        valueEnd = line.length();
+      }
+      try {
+        double timestampMillis = Double.parseDouble(line.substring(0, timestampEnd).trim());
+        mValue = Double.parseDouble(line.substring(timestampEnd + 1, valueEnd).trim());
+        mTimestampMicros = Math.round(timestampMillis * 1000);
+        return true;
+      } catch (NumberFormatException e) {
+        if (firstContentLine) {
+          // Header line.
+          continue;
+        }
+        throw new IOException("Line " + mLineNumber + ": " + e.getMessage());
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public long getTimestampMicros() {
+    return mTimestampMicros;
+  }
+
+  @Override
+  public double getValue() {
+    return mValue;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mReader.close();
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.util.Log;
+
+/**
+ * In-memory log of the GATT events, cheap enough to leave in the callbacks.
+ *
+ * An event is recorded only if its priority is at least the level of the log, which can be
+ * changed at runtime. A disabled event costs a volatile read and allocates nothing. A recorded
+ * event keeps references to its device and attribute and copies the first bytes of its value into
+ * preallocated arrays. Nothing is formatted until the log is dumped to logcat.
+ *
+ * The log keeps the latest {@code capacity} events.
+ */
+public class EventLog {
+  /**
+   * Level that disables every event.
+   */
+  public static final int LEVEL_OFF = Integer.MAX_VALUE;
+  /**
+   * Bytes of each value kept with the event.
+   */
+  public static final int MAX_VALUE_BYTES = 32;
+
+  public static final int CONNECTED = 0;
+  public static final int DISCONNECTED = 1;
+  public static final int SERVICE_ADDED = 2;
+  public static final int READ_CHARACTERISTIC = 3;
+  public static final int WRITE_CHARACTERISTIC = 4;
+  public static final int READ_DESCRIPTOR = 5;
+  public static final int WRITE_DESCRIPTOR = 6;
+  public static final int EXECUTE_WRITE = 7;
+  public static final int NOTIFICATION_SENT = 8;
+  public static final int MTU_CHANGED = 9;
+  private static final String[] EVENT_NAMES = {"Connected", "Disconnected", "Service added",
+      "Read characteristic", "Write characteristic", "Read descriptor", "Write descriptor",
+      "Execute write", "Notification sent", "MTU changed"};
+
+  private final String mTag;
+  private volatile int mLevel;
+  // Ring of events, oldest first from mStart.
+  private final long[] mTimestampsNanos;
+  private final int[] mPriorities;
+  private final int[] mEvents;
+  private final Object[] mDevices;
+  private final Object[] mAttributes;
+  private final int[] mArguments;
+  private final int[] mValueLengths;
+  private final byte[] mValues;
+  private int mStart;
+  private int mCount;
+  private long mOverwritten;
+
+  /**
+   * @param level Initial level, a priority of {@link Log} or LEVEL_OFF.
+   */
+  public EventLog(String tag, int capacity, int level) {
+    mTag = tag;
+    mLevel = level;
+    mTimestampsNanos = new long[capacity];
+    mPriorities = new int[capacity];
+    mEvents = new int[capacity];
+    mDevices = new Object[capacity];
+    mAttributes = new Object[capacity];
+    mArguments = new int[capacity];
+    mValueLengths = new int[capacity];
+    mValues = new byte[capacity * MAX_VALUE_BYTES];
+  }
+
+  /**
+   * @return The most verbose level enabled for tag with {@code adb shell setprop log.tag.<tag>},
+   * or LEVEL_OFF.
+   */
+  public static int getLoggableLevel(String tag) {
+    for (int priority = Log.VERBOSE; priority <= Log.ASSERT; priority++) {
+      if (Log.isLoggable(tag, priority)) {
+        return priority;
+      }
+    }
+    return LEVEL_OFF;
+  }
+
+  public void setLevel(int level) {
+    mLevel = level;
+  }
+
+  public int getLevel() {
+    return mLevel;
+  }
+
+  public boolean isLoggable(int priority) {
+    return priority >= mLevel;
+  }
+
+  /**
+   * Records the event if priority is enabled. Can be called from any thread.
+   *
+   * @param device Device of the event, or null.
+   * @param attribute Attribute of the event, e.g. its UUID, or null.
+   * @param argument Offset, status or MTU of the event, depending on the event.
+   * @param value Value of the event, or null. Copied up to MAX_VALUE_BYTES.
+   */
+  public void log(int priority, int event, Object device, Object attribute, int argument,
+      byte[] value) {
+    if (priority < mLevel) {
+      return;
+    }
+    long timestampNanos = System.nanoTime();
+    synchronized (this) {
+      int capacity = mEvents.length;
+      int index;
+      if (mCount < capacity) {
+        index = (mStart + mCount) % capacity;
+        mCount++;
+      } else {
+        index = mStart;
+        mStart = (mStart + 1) % capacity;
+        mOverwritten++;
+      }
+      mTimestampsNanos[index] = timestampNanos;
+      mPriorities[index] = priority;
+      mEvents[index] = event;
+      mDevices[index] = device;
+      mAttributes[index] = attribute;
+      mArguments[index] = argument;
+      if (value == null) {
+        mValueLengths[index] = -1;
+      } else {
+        mValueLengths[index] = value.length;
+        System.arraycopy(value, 0, mValues, index * MAX_VALUE_BYTES,
+            Math.min(value.length, MAX_VALUE_BYTES));
+      }
+    }
+  }
+
+  /**
+   * Formats the recorded events to logcat, oldest first, and clears them.
+   *
+   * @return The number of events written.
+   */
+  public synchronized int dump() {
+    int capacity = mEvents.length;
+    if (mOverwritten > 0) {
+      Log.i(mTag, mOverwritten + " older events were overwritten");
+    }
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < mCount; i++) {
+      int index = (mStart + i) % capacity;
+      builder.setLength(0);
+      builder.append(mTimestampsNanos[index] / 1000).append("us ")
+          .append(EVENT_NAMES[mEvents[index]]);
+      if (mDevices[index] != null) {
+        builder.append(" device: ").append(mDevices[index]);
+      }
+      if (mAttributes[index] != null) {
+        builder.append(" attribute: ").append(mAttributes[index]);
+      }
+      builder.append(" argument: ").append(mArguments[index]);
+      int valueLength = mValueLengths[index];
+      if (valueLength >= 0) {
+        builder.append(" value (").append(valueLength).append(" bytes): ");
+        int offset = index * MAX_VALUE_BYTES;
+        for (int j = 0; j < Math.min(valueLength, MAX_VALUE_BYTES); j++) {
+          byte b = mValues[offset + j];
+          builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+              .append(Character.forDigit(b & 0xf, 16));
+        }
+        if (valueLength > MAX_VALUE_BYTES) {
+          builder.append("...");
+        }
+      }
+      Log.println(mPriorities[index], mTag, builder.toString());
+      mDevices[index] = null;
+      mAttributes[index] = null;
+    }
+    int count = mCount;
+    mStart = 0;
+    mCount = 0;
+    mOverwritten = 0;
+    return count;
+  }
+}
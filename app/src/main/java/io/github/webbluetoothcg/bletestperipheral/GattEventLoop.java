@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Moves the handling of GATT server callbacks off the binder thread.
+ *
+ * Pass this to {@link android.bluetooth.BluetoothManager#openGattServer}; every callback is
+ * forwarded, in order, to the wrapped callback on a dedicated thread. Handling is serialized, so
+ * the wrapped callback never runs concurrently with itself, and the binder thread is released
+ * immediately.
+ */
+public class GattEventLoop extends BluetoothGattServerCallback {
+  private final BluetoothGattServerCallback mCallback;
+  private final HandlerThread mThread;
+  private final Handler mHandler;
+
+  public GattEventLoop(BluetoothGattServerCallback callback) {
+    mCallback = callback;
+    mThread = new HandlerThread("GattEventLoop", Process.THREAD_PRIORITY_FOREGROUND);
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+  }
+
+  /**
+   * Runs the runnable on the event loop after the callbacks received so far.
+   */
+  public boolean post(Runnable runnable) {
+    return mHandler.post(runnable);
+  }
+
+  public boolean isCurrentThread() {
+    return Looper.myLooper() == mThread.getLooper();
+  }
+
+  /**
+   * Stops the event loop once the callbacks received so far are handled.
+   */
+  public void quit() {
+    mThread.quitSafely();
+  }
+
+  @Override
+  public void onConnectionStateChange(final BluetoothDevice device, final int status,
+      final int newState) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onConnectionStateChange(device, status, newState);
+      }
+    });
+  }
+
+  @Override
+  public void onServiceAdded(final int status, final BluetoothGattService service) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onServiceAdded(status, service);
+      }
+    });
+  }
+
+  @Override
+  public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId,
+      final int offset, final BluetoothGattCharacteristic characteristic) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+      }
+    });
+  }
+
+  @Override
+  public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId,
+      final BluetoothGattCharacteristic characteristic, final boolean preparedWrite,
+      final boolean responseNeeded, final int offset, final byte[] value) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
+            responseNeeded, offset, value);
+      }
+    });
+  }
+
+  @Override
+  public void onDescriptorReadRequest(final BluetoothDevice device, final int requestId,
+      final int offset, final BluetoothGattDescriptor descriptor) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onDescriptorReadRequest(device, requestId, offset, descriptor);
+      }
+    });
+  }
+
+  @Override
+  public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId,
+      final BluetoothGattDescriptor descriptor, final boolean preparedWrite,
+      final boolean responseNeeded, final int offset, final byte[] value) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite,
+            responseNeeded, offset, value);
+      }
+    });
+  }
+
+  @Override
+  public void onExecuteWrite(final BluetoothDevice device, final int requestId,
+      final boolean execute) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onExecuteWrite(device, requestId, execute);
+      }
+    });
+  }
+
+  @Override
+  public void onNotificationSent(final BluetoothDevice device, final int status) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onNotificationSent(device, status);
+      }
+    });
+  }
+
+  @Override
+  public void onMtuChanged(final BluetoothDevice device, final int mtu) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mCallback.onMtuChanged(device, mtu);
+      }
+    });
+  }
+}
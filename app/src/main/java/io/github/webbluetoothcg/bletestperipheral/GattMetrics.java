@@ -0,0 +1,462 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.GattStatus;
+
+/**
+ * Counters per attribute and per device, latency histograms, and the timeline of the last
+ * connections, of the requests and notifications handled by the GATT server.
+ *
+ * Every method can be called from any thread. Recording is a few atomic increments, plus one
+ * map insertion the first time an attribute or device is seen.
+ */
+public class GattMetrics {
+  /**
+   * Number of connections whose timeline is kept.
+   */
+  private static final int MAX_CONNECTIONS = 16;
+
+  /**
+   * Timeline of one connection: when the ATT_MTU changed and when each attribute was first
+   * requested, in microseconds since the device connected.
+   *
+   * The Bluetooth stack answers the discovery requests of the central without the app seeing
+   * them, so the first requests for the attributes are the closest the app gets to seeing
+   * discovery progress; the first request for any attribute marks the end of the discovery the
+   * central needed to make it.
+   */
+  private static class Connection {
+    private final String mDevice;
+    private final long mConnectedMillis = System.currentTimeMillis();
+    private final long mConnectedNanos = System.nanoTime();
+    private int mMtu;
+    private long mMtuMicros = -1;
+    private long mDisconnectedMicros = -1;
+    // In the order the attributes were first requested.
+    private final LinkedHashMap<Attribute, Long> mFirstRequestMicros = new LinkedHashMap<>();
+
+    Connection(String device) {
+      mDevice = device;
+    }
+
+    synchronized void onMtuChanged(int mtu) {
+      mMtu = mtu;
+      mMtuMicros = getMicros(System.nanoTime());
+    }
+
+    synchronized void onRequest(Attribute attribute, long startNanos) {
+      if (!mFirstRequestMicros.containsKey(attribute)) {
+        mFirstRequestMicros.put(attribute, getMicros(startNanos));
+      }
+    }
+
+    synchronized void onDisconnected() {
+      mDisconnectedMicros = getMicros(System.nanoTime());
+    }
+
+    synchronized boolean isDisconnected() {
+      return mDisconnectedMicros >= 0;
+    }
+
+    synchronized void writeJson(JsonWriter writer) throws IOException {
+      writer.beginObject();
+      writer.name("address").value(mDevice);
+      writer.name("connectedMillis").value(mConnectedMillis);
+      if (mMtuMicros >= 0) {
+        writer.name("mtu").value(mMtu);
+        writer.name("mtuMicros").value(mMtuMicros);
+      }
+      if (mDisconnectedMicros >= 0) {
+        writer.name("disconnectedMicros").value(mDisconnectedMicros);
+      }
+      writer.name("firstRequests");
+      writer.beginArray();
+      for (Map.Entry<Attribute, Long> entry : mFirstRequestMicros.entrySet()) {
+        Attribute attribute = entry.getKey();
+        writer.beginObject();
+        writer.name("uuid").value(attribute.getUuid().toString());
+        writer.name("type").value(attribute.getType().name());
+        writer.name("handle").value(attribute.getValueHandle());
+        writer.name("micros").value(entry.getValue());
+        writer.endObject();
+      }
+      writer.endArray();
+      writer.endObject();
+    }
+
+    private long getMicros(long nanos) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos - mConnectedNanos);
+    }
+  }
+
+  /**
+   * Counters of one attribute or one device.
+   */
+  public static class Counters {
+    private final AtomicLong mReads = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mNotifyRequests = new AtomicLong();
+    private final AtomicLong mNotifications = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mBytesNotified = new AtomicLong();
+
+    public long getReads() {
+      return mReads.get();
+    }
+
+    public long getWrites() {
+      return mWrites.get();
+    }
+
+    public long getNotifications() {
+      return mNotifications.get();
+    }
+
+    public long getErrors() {
+      return mErrors.get();
+    }
+
+    public long getBytes() {
+      return mBytesRead.get() + mBytesWritten.get() + mBytesNotified.get();
+    }
+
+    private void addRead(int length, boolean error) {
+      mReads.incrementAndGet();
+      mBytesRead.addAndGet(length);
+      if (error) {
+        mErrors.incrementAndGet();
+      }
+    }
+
+    private void addWrite(int length, boolean error) {
+      mWrites.incrementAndGet();
+      mBytesWritten.addAndGet(length);
+      if (error) {
+        mErrors.incrementAndGet();
+      }
+    }
+
+    private void addNotification(int length) {
+      mNotifications.incrementAndGet();
+      mBytesNotified.addAndGet(length);
+    }
+
+    private void reset() {
+      mReads.set(0);
+      mWrites.set(0);
+      mNotifyRequests.set(0);
+      mNotifications.set(0);
+      mErrors.set(0);
+      mBytesRead.set(0);
+      mBytesWritten.set(0);
+      mBytesNotified.set(0);
+    }
+
+    private void writeJson(JsonWriter writer) throws IOException {
+      writer.name("reads").value(mReads.get());
+      writer.name("writes").value(mWrites.get());
+      writer.name("notifyRequests").value(mNotifyRequests.get());
+      writer.name("notifications").value(mNotifications.get());
+      writer.name("errors").value(mErrors.get());
+      writer.name("bytesRead").value(mBytesRead.get());
+      writer.name("bytesWritten").value(mBytesWritten.get());
+      writer.name("bytesNotified").value(mBytesNotified.get());
+    }
+  }
+
+  private final ConcurrentHashMap<Attribute, Counters> mAttributeCounters =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Counters> mDeviceCounters = new ConcurrentHashMap<>();
+  // Time the last notification was handed to the stack, per device. The notification queue only
+  // sends the next notification to a device once the previous one is reported as sent.
+  private final ConcurrentHashMap<String, AtomicLong> mNotificationStartNanos =
+      new ConcurrentHashMap<>();
+  // Connection of each connected device, and the last MAX_CONNECTIONS connections, oldest first,
+  // guarded by itself.
+  private final ConcurrentHashMap<String, Connection> mOpenConnections =
+      new ConcurrentHashMap<>();
+  private final ArrayDeque<Connection> mConnections = new ArrayDeque<>();
+  private final LatencyHistogram mResponseLatency = new LatencyHistogram();
+  private final LatencyHistogram mNotificationLatency = new LatencyHistogram();
+  private final Counters mTotal = new Counters();
+  private volatile long mStartMillis = System.currentTimeMillis();
+
+  /**
+   * Starts the timeline of a connection.
+   */
+  public void onConnected(String device) {
+    Connection connection = new Connection(device);
+    mOpenConnections.put(device, connection);
+    synchronized (mConnections) {
+      if (mConnections.size() == MAX_CONNECTIONS) {
+        mConnections.removeFirst();
+      }
+      mConnections.addLast(connection);
+    }
+  }
+
+  public void onDisconnected(String device) {
+    Connection connection = mOpenConnections.remove(device);
+    if (connection != null) {
+      connection.onDisconnected();
+    }
+  }
+
+  public void onMtuChanged(String device, int mtu) {
+    Connection connection = mOpenConnections.get(device);
+    if (connection != null) {
+      connection.onMtuChanged(mtu);
+    }
+  }
+
+  /**
+   * Records the arrival of a read or write request in the timeline of the connection.
+   *
+   * @param startNanos {@link System#nanoTime()} when the request arrived.
+   */
+  public void onRequest(String device, Attribute attribute, long startNanos) {
+    Connection connection = mOpenConnections.get(device);
+    if (connection != null) {
+      connection.onRequest(attribute, startNanos);
+    }
+  }
+
+  /**
+   * Records a read served with a response of value.
+   *
+   * @param latencyNanos From the start of handling the request to the response.
+   */
+  public void onRead(String device, Attribute attribute, int status, byte[] value,
+      long latencyNanos) {
+    int length = value == null ? 0 : value.length;
+    boolean error = status != GattStatus.SUCCESS;
+    mTotal.addRead(length, error);
+    getDeviceCounters(device).addRead(length, error);
+    getAttributeCounters(attribute).addRead(length, error);
+    mResponseLatency.recordNanos(latencyNanos);
+  }
+
+  /**
+   * Records a write of value.
+   *
+   * @param latencyNanos From the start of handling the request to the response, or -1 if there
+   * was no response.
+   */
+  public void onWrite(String device, Attribute attribute, int status, byte[] value,
+      long latencyNanos) {
+    int length = value == null ? 0 : value.length;
+    boolean error = status != GattStatus.SUCCESS;
+    mTotal.addWrite(length, error);
+    getDeviceCounters(device).addWrite(length, error);
+    getAttributeCounters(attribute).addWrite(length, error);
+    if (latencyNanos >= 0) {
+      mResponseLatency.recordNanos(latencyNanos);
+    }
+  }
+
+  /**
+   * Records a request to notify the subscribers of characteristic.
+   */
+  public void onNotifyRequested(Attribute characteristic) {
+    getAttributeCounters(characteristic).mNotifyRequests.incrementAndGet();
+    mTotal.mNotifyRequests.incrementAndGet();
+  }
+
+  /**
+   * Records a notification handed to the stack.
+   */
+  public void onNotificationStarted(String device, Attribute characteristic, int length) {
+    mTotal.addNotification(length);
+    getDeviceCounters(device).addNotification(length);
+    getAttributeCounters(characteristic).addNotification(length);
+    AtomicLong startNanos = mNotificationStartNanos.get(device);
+    if (startNanos == null) {
+      AtomicLong newStartNanos = new AtomicLong();
+      startNanos = mNotificationStartNanos.putIfAbsent(device, newStartNanos);
+      if (startNanos == null) {
+        startNanos = newStartNanos;
+      }
+    }
+    startNanos.set(System.nanoTime());
+  }
+
+  /**
+   * Records that the stack reported the last notification to device as sent.
+   */
+  public void onNotificationSent(String device, int status) {
+    AtomicLong startNanos = mNotificationStartNanos.get(device);
+    if (startNanos != null) {
+      long start = startNanos.getAndSet(0);
+      if (start != 0) {
+        mNotificationLatency.recordNanos(System.nanoTime() - start);
+      }
+    }
+    if (status != GattStatus.SUCCESS) {
+      getDeviceCounters(device).mErrors.incrementAndGet();
+      mTotal.mErrors.incrementAndGet();
+    }
+  }
+
+  public Counters getTotal() {
+    return mTotal;
+  }
+
+  /**
+   * @return From the start of handling a read or write request to its response.
+   */
+  public LatencyHistogram getResponseLatency() {
+    return mResponseLatency;
+  }
+
+  /**
+   * @return From handing a notification to the stack to the stack reporting it as sent.
+   */
+  public LatencyHistogram getNotificationLatency() {
+    return mNotificationLatency;
+  }
+
+  public void reset() {
+    mAttributeCounters.clear();
+    mDeviceCounters.clear();
+    mNotificationStartNanos.clear();
+    // The devices still connected keep their timeline, so their requests are still recorded.
+    synchronized (mConnections) {
+      Iterator<Connection> connections = mConnections.iterator();
+      while (connections.hasNext()) {
+        if (connections.next().isDisconnected()) {
+          connections.remove();
+        }
+      }
+    }
+    mResponseLatency.reset();
+    mNotificationLatency.reset();
+    mTotal.reset();
+    mStartMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Writes a snapshot of the metrics as a JSON object.
+   */
+  public void writeJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writeJsonFields(writer);
+    writer.endObject();
+  }
+
+  /**
+   * Writes a snapshot of the metrics as the fields of the JSON object being written, so other
+   * fields can be added to it.
+   */
+  public void writeJsonFields(JsonWriter writer) throws IOException {
+    writer.name("startMillis").value(mStartMillis);
+    writer.name("snapshotMillis").value(System.currentTimeMillis());
+    writer.name("total");
+    writer.beginObject();
+    mTotal.writeJson(writer);
+    writer.endObject();
+
+    writer.name("attributes");
+    writer.beginArray();
+    List<Map.Entry<Attribute, Counters>> attributes = new ArrayList<>(
+        mAttributeCounters.entrySet());
+    Collections.sort(attributes, new Comparator<Map.Entry<Attribute, Counters>>() {
+      @Override
+      public int compare(Map.Entry<Attribute, Counters> a, Map.Entry<Attribute, Counters> b) {
+        return a.getKey().getHandle() - b.getKey().getHandle();
+      }
+    });
+    for (Map.Entry<Attribute, Counters> entry : attributes) {
+      Attribute attribute = entry.getKey();
+      writer.beginObject();
+      writer.name("uuid").value(attribute.getUuid().toString());
+      writer.name("type").value(attribute.getType().name());
+      writer.name("handle").value(attribute.getValueHandle());
+      entry.getValue().writeJson(writer);
+      writer.endObject();
+    }
+    writer.endArray();
+
+    writer.name("devices");
+    writer.beginArray();
+    for (Map.Entry<String, Counters> entry : mDeviceCounters.entrySet()) {
+      writer.beginObject();
+      writer.name("address").value(entry.getKey());
+      entry.getValue().writeJson(writer);
+      writer.endObject();
+    }
+    writer.endArray();
+
+    writer.name("connections");
+    writer.beginArray();
+    ArrayList<Connection> connections;
+    synchronized (mConnections) {
+      connections = new ArrayList<>(mConnections);
+    }
+    for (Connection connection : connections) {
+      connection.writeJson(writer);
+    }
+    writer.endArray();
+
+    writer.name("responseLatency");
+    mResponseLatency.writeJson(writer);
+    writer.name("notificationLatency");
+    mNotificationLatency.writeJson(writer);
+  }
+
+  private Counters getAttributeCounters(Attribute attribute) {
+    Counters counters = mAttributeCounters.get(attribute);
+    if (counters == null) {
+      Counters newCounters = new Counters();
+      counters = mAttributeCounters.putIfAbsent(attribute, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    return counters;
+  }
+
+  private Counters getDeviceCounters(String device) {
+    Counters counters = mDeviceCounters.get(device);
+    if (counters == null) {
+      Counters newCounters = new Counters();
+      counters = mDeviceCounters.putIfAbsent(device, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    return counters;
+  }
+}
@@ -23,6 +23,7 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.os.Bundle;
 import android.os.ParcelUuid;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,11 +36,14 @@ import android.widget.Toast;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Measurements;
 
 public class HealthThermometerServiceFragment extends ServiceFragment {
+  private static final String TAG = HealthThermometerServiceFragment.class.getCanonicalName();
+
   /**
    * See <a href="https://developer.bluetooth.org/gatt/services/Pages/ServiceViewer.aspx?u=org.bluetooth.service.health_thermometer.xml">
    * Health Thermometer Service</a>
@@ -68,12 +72,7 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
    */
   private static final UUID TEMPERATURE_MEASUREMENT_UUID = UUID
       .fromString("00002A1C-0000-1000-8000-00805f9b34fb");
-  private static final int TEMPERATURE_MEASUREMENT_VALUE_FORMAT = BluetoothGattCharacteristic.FORMAT_FLOAT;
   private static final float INITIAL_TEMPERATURE_MEASUREMENT_VALUE = 37.0f;
-  private static final int EXPONENT_MASK = 0x7f800000;
-  private static final int EXPONENT_SHIFT = 23;
-  private static final int MANTISSA_MASK = 0x007fffff;
-  private static final int MANTISSA_SHIFT = 0;
   private static final String TEMPERATURE_MEASUREMENT_DESCRIPTION = "This characteristic is used " +
       "to send a temperature measurement.";
 
@@ -97,7 +96,38 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
 
   private ServiceFragmentDelegate mDelegate;
 
-  private Timer mTimer;
+  // Measurements are encoded here and published as a copy, so the GATT event loop never reads a
+  // value while the UI or replay thread rewrites it. Guarded by this, like the temperature they
+  // encode.
+  private final byte[] mTemperatureMeasurementBuffer =
+      new byte[Measurements.TEMPERATURE_MEASUREMENT_LENGTH];
+  private float mTemperatureMeasurementValue;
+
+  // Replays recorded temperatures.
+  private final TraceReplayPanel mTraceReplayPanel = new TraceReplayPanel(this,
+      new TraceReplayer.Sink() {
+        @Override
+        public void onSample(double value) {
+          ValueSources sources = getValueSources();
+          if (sources == null) {
+            return;
+          }
+          final float temperature = (float) value;
+          setTemperatureMeasurementValue(temperature);
+          sources.sendNotificationToDevices(mTemperatureMeasurementCharacteristic);
+          ServiceFragmentDelegate delegate = mDelegate;
+          if (delegate == null) {
+            // The activity is being recreated.
+            return;
+          }
+          delegate.postUiUpdate(mEditTextTemperatureMeasurement, new Runnable() {
+            @Override
+            public void run() {
+              mEditTextTemperatureMeasurement.setText(Float.toString(temperature));
+            }
+          });
+        }
+      });
 
   private EditText mEditTextTemperatureMeasurement;
   private final OnEditorActionListener mOnEditorActionListenerTemperatureMeasurement = new OnEditorActionListener() {
@@ -170,6 +200,11 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
         BluetoothGattService.SERVICE_TYPE_PRIMARY);
     mHealthThermometerService.addCharacteristic(mTemperatureMeasurementCharacteristic);
     mHealthThermometerService.addCharacteristic(mMeasurementIntervalCharacteristic);
+
+    setTemperatureMeasurementValue(INITIAL_TEMPERATURE_MEASUREMENT_VALUE);
+    mMeasurementIntervalCharacteristic.setValue(INITIAL_MEASUREMENT_INTERVAL,
+        MEASUREMENT_INTERVAL_FORMAT,
+        /* offset */ 0);
   }
 
 
@@ -187,16 +222,16 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
     mEditTextMeasurementInterval
         .setOnEditorActionListener(mOnEditorActionListenerMeasurementInterval);
 
-    mEditTextTemperatureMeasurement.setText(Float.toString(INITIAL_TEMPERATURE_MEASUREMENT_VALUE));
-    setTemperatureMeasurementValue(INITIAL_TEMPERATURE_MEASUREMENT_VALUE);
-
-    mMeasurementIntervalCharacteristic.setValue(INITIAL_MEASUREMENT_INTERVAL,
-        MEASUREMENT_INTERVAL_FORMAT,
-        /* offset */ 0);
-    mEditTextMeasurementInterval.setText(Integer.toString(INITIAL_MEASUREMENT_INTERVAL));
+    // The fragment is retained and the indications keep running while the activity is recreated,
+    // so show the state being served rather than the initial one.
+    mEditTextTemperatureMeasurement.setText(Float.toString(getTemperatureMeasurementValue()));
+    mEditTextMeasurementInterval.setText(Integer.toString(getMeasurementInterval()));
 
     mTextViewNotifications = (TextView) view.findViewById(R.id.textView_notifications);
-    mTextViewNotifications.setText(R.string.notificationsNotEnabled);
+    mTextViewNotifications.setText(isTimerRunning() ? R.string.notificationsEnabled
+        : R.string.notificationsNotEnabled);
+
+    mTraceReplayPanel.onCreateView(view);
 
     return view;
   }
@@ -219,9 +254,10 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public void onStop() {
-    super.onStop();
-    cancelTimer();
+  public void onDestroy() {
+    super.onDestroy();
+    // Retained, so only destroyed once the activity is gone for good.
+    mTraceReplayPanel.stop();
   }
 
   @Override
@@ -234,51 +270,58 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
     return new ParcelUuid(HEALTH_THERMOMETER_SERVICE_UUID);
   }
 
-  private void setTemperatureMeasurementValue(float temperatureMeasurementValue) {
-
-    /* Set the org.bluetooth.characteristic.temperature_measurement
-     * characteristic to a byte array of size 5 so
-     * we can use setValue(value, format, offset);
-     *
-     * Flags (8bit) + Temperature Measurement Value (float) = 5 bytes
-     *
-     * Flags:
-     *   Temperature Units Flag (0) -> Celsius
-     *   Time Stamp Flag (0) -> Time Stamp field not present
-     *   Temperature Type Flag (0) -> Temperature Type field not present
-     *   Unused (00000)
-     */
-    mTemperatureMeasurementCharacteristic.setValue(new byte[]{0b00000000, 0, 0, 0, 0});
-    // Characteristic Value: [flags, 0, 0, 0, 0]
-
-    int bits = Float.floatToIntBits(temperatureMeasurementValue);
-    int exponent = (bits & EXPONENT_MASK) >>> EXPONENT_SHIFT;
-    int mantissa = (bits & MANTISSA_MASK) >>> MANTISSA_SHIFT;
-
-    mTemperatureMeasurementCharacteristic.setValue(mantissa, exponent,
-        TEMPERATURE_MEASUREMENT_VALUE_FORMAT,
-        /* offset */ 1);
+  private synchronized void setTemperatureMeasurementValue(float temperatureMeasurementValue) {
     // Characteristic Value: [flags, temperature measurement value]
+    Measurements.temperatureMeasurement(mTemperatureMeasurementBuffer,
+        temperatureMeasurementValue);
+    mTemperatureMeasurementCharacteristic.setValue(mTemperatureMeasurementBuffer.clone());
+    mTemperatureMeasurementValue = temperatureMeasurementValue;
+  }
+
+  private synchronized float getTemperatureMeasurementValue() {
+    return mTemperatureMeasurementValue;
+  }
+
+  private int getMeasurementInterval() {
+    return mMeasurementIntervalCharacteristic.getIntValue(MEASUREMENT_INTERVAL_FORMAT,
+        /* offset */ 0);
   }
 
   private void setTemperatureMeasurementTimerInterval(int measurementIntervalValueSeconds) {
-    mTimer = new Timer();
-    mTimer.scheduleAtFixedRate(new TimerTask() {
+    scheduleMeasurements(TimeUnit.SECONDS.toMillis(measurementIntervalValueSeconds));
+  }
+
+  /**
+   * Indicates the Temperature Measurement every intervalMillis, from the scheduler of the value
+   * sources, whether an activity shows it or not.
+   */
+  private void scheduleMeasurements(long intervalMillis) {
+    final ValueSources sources = getValueSources();
+    if (sources == null) {
+      return;
+    }
+    sources.start(mTemperatureMeasurementCharacteristic, new Runnable() {
       @Override
       public void run() {
-        getActivity().runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            mDelegate.sendNotificationToDevices(mTemperatureMeasurementCharacteristic);
-          }
-        });
+        sources.sendNotificationToDevices(mTemperatureMeasurementCharacteristic);
       }
-    }, 0 /* delay */, measurementIntervalValueSeconds * 1000);
+    }, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean isTimerRunning() {
+    ValueSources sources = getValueSources();
+    return sources != null && sources.get(mTemperatureMeasurementCharacteristic) != null;
   }
 
   private void cancelTimer() {
-    if (mTimer != null) {
-      mTimer.cancel();
+    ValueSources sources = getValueSources();
+    PeriodicScheduler.Task task = sources == null ? null
+        : sources.stop(mTemperatureMeasurementCharacteristic);
+    if (task != null) {
+      LatencyHistogram jitter = task.getJitter();
+      Log.d(TAG, "Measurement indications: " + jitter.getCount() + " ticks, jitter p99 "
+          + jitter.getPercentileMicros(99) + "us, max " + jitter.getMaxMicros() + "us, skipped "
+          + task.getSkippedTicks());
     }
   }
 
@@ -301,7 +344,8 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+  public int checkCharacteristicWrite(BluetoothGattCharacteristic characteristic, int offset,
+      byte[] value) {
     if (offset != 0) {
       return BluetoothGatt.GATT_INVALID_OFFSET;
     }
@@ -309,21 +353,34 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
     if (value.length != 2) {
       return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
     }
+    if (!isValidMeasurementIntervalValue(getMeasurementInterval(value))) {
+      return BluetoothGatt.GATT_FAILURE;
+    }
+    return BluetoothGatt.GATT_SUCCESS;
+  }
+
+  private static int getMeasurementInterval(byte[] value) {
     ByteBuffer byteBuffer = ByteBuffer.wrap(value);
     byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-    final int newMeasurementIntervalValue = byteBuffer.getShort();
-    if (!isValidMeasurementIntervalValue(newMeasurementIntervalValue)) {
-      return BluetoothGatt.GATT_FAILURE;
+    return byteBuffer.getShort();
+  }
+
+  @Override
+  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+    int status = checkCharacteristicWrite(characteristic, offset, value);
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      return status;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    final int newMeasurementIntervalValue = getMeasurementInterval(value);
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         mMeasurementIntervalCharacteristic.setValue(newMeasurementIntervalValue,
             MEASUREMENT_INTERVAL_FORMAT,
             /* offset */ 0);
-        if (mMeasurementIntervalCCCDescriptor.getValue() == BluetoothGattDescriptor.ENABLE_INDICATION_VALUE) {
+        mEditTextMeasurementInterval.setText(Integer.toString(newMeasurementIntervalValue));
+        if (isTimerRunning()) {
           resetTimer(newMeasurementIntervalValue);
-          mTextViewNotifications.setText(R.string.notificationsEnabled);
         }
       }
     });
@@ -336,7 +393,7 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
       return;
     }
     cancelTimer();
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         mTextViewNotifications.setText(R.string.notificationsNotEnabled);
@@ -352,18 +409,12 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
     if (!indicate) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        int newMeasurementInterval = Integer.parseInt(mEditTextMeasurementInterval.getText()
-            .toString());
-        if (isValidMeasurementIntervalValue(newMeasurementInterval)) {
-          mMeasurementIntervalCharacteristic.setValue(newMeasurementInterval,
-              MEASUREMENT_INTERVAL_FORMAT,
-            /* offset */ 0);
-          resetTimer(newMeasurementInterval);
-          mTextViewNotifications.setText(R.string.notificationsEnabled);
-        }
+        // The interval being served, which the editor may not show yet.
+        resetTimer(getMeasurementInterval());
+        mTextViewNotifications.setText(R.string.notificationsEnabled);
       }
     });
   }
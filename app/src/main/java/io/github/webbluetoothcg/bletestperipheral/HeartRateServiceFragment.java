@@ -23,7 +23,6 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.os.Bundle;
 import android.os.ParcelUuid;
-import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -33,14 +32,20 @@ import android.view.inputmethod.EditorInfo;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.Spinner;
+import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
 
-import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Measurements;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueCodec;
 
 public class HeartRateServiceFragment extends ServiceFragment {
   private static final String TAG = HeartRateServiceFragment.class.getCanonicalName();
@@ -67,6 +72,12 @@ public class HeartRateServiceFragment extends ServiceFragment {
   private static final String HEART_RATE_MEASUREMENT_DESCRIPTION = "Used to send a heart rate " +
       "measurement";
 
+  // Streaming of synthetic Heart Rate Measurements.
+  private static final int MIN_STREAM_RATE = 1;
+  private static final int MAX_STREAM_RATE = 200;
+  private static final int INITIAL_STREAM_RATE = 50;
+  private static final long STREAM_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
   /**
    * See <a href="https://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.body_sensor_location.xml">
    * Body Sensor Location</a>
@@ -89,6 +100,11 @@ public class HeartRateServiceFragment extends ServiceFragment {
 
   private ServiceFragmentDelegate mDelegate;
 
+  // Measurements are encoded here and published as a copy, so the GATT event loop never reads a
+  // value while the UI, stream or replay thread rewrites it. Guarded by this.
+  private final byte[] mHeartRateMeasurementBuffer =
+      new byte[Measurements.HEART_RATE_MEASUREMENT_LENGTH];
+
   private EditText mEditTextHeartRateMeasurement;
   private final OnEditorActionListener mOnEditorActionListenerHeartRateMeasurement = new OnEditorActionListener() {
     @Override
@@ -98,9 +114,7 @@ public class HeartRateServiceFragment extends ServiceFragment {
         if (isValidCharacteristicValue(newHeartRateMeasurementValueString,
             HEART_RATE_MEASUREMENT_VALUE_FORMAT)) {
           int newHeartRateMeasurementValue = Integer.parseInt(newHeartRateMeasurementValueString);
-          mHeartRateMeasurementCharacteristic.setValue(newHeartRateMeasurementValue,
-              HEART_RATE_MEASUREMENT_VALUE_FORMAT,
-              /* offset */ 1);
+          publishHeartRateMeasurement(newHeartRateMeasurementValue, getEnergyExpended());
         } else {
           Toast.makeText(getActivity(), R.string.heartRateMeasurementValueInvalid,
               Toast.LENGTH_SHORT).show();
@@ -118,9 +132,7 @@ public class HeartRateServiceFragment extends ServiceFragment {
         if (isValidCharacteristicValue(newEnergyExpendedString,
             EXPENDED_ENERGY_FORMAT)) {
           int newEnergyExpended = Integer.parseInt(newEnergyExpendedString);
-          mHeartRateMeasurementCharacteristic.setValue(newEnergyExpended,
-              EXPENDED_ENERGY_FORMAT,
-              /* offset */ 2);
+          publishHeartRateMeasurement(getHeartRate(), newEnergyExpended);
         } else {
           Toast.makeText(getActivity(), R.string.energyExpendedInvalid,
               Toast.LENGTH_SHORT).show();
@@ -151,6 +163,54 @@ public class HeartRateServiceFragment extends ServiceFragment {
     }
   };
 
+  private EditText mEditTextStreamRate;
+  private TextView mTextViewStreamRate;
+  private Switch mSwitchStream;
+  private final OnCheckedChangeListener mStreamSwitchListener = new OnCheckedChangeListener() {
+    @Override
+    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+      if (!isChecked) {
+        stopStream();
+        return;
+      }
+      String streamRateString = mEditTextStreamRate.getText().toString();
+      if (isValidStreamRate(streamRateString)) {
+        if (!startStream(Integer.parseInt(streamRateString))) {
+          buttonView.setChecked(false);
+        }
+      } else {
+        Toast.makeText(getActivity(), R.string.streamRateInvalid, Toast.LENGTH_SHORT).show();
+        buttonView.setChecked(false);
+      }
+    }
+  };
+
+  // Replays recorded heart rates, keeping the current energy expended.
+  private final TraceReplayPanel mTraceReplayPanel = new TraceReplayPanel(this,
+      new TraceReplayer.Sink() {
+        @Override
+        public void onSample(double value) {
+          ValueSources sources = getValueSources();
+          if (sources == null) {
+            return;
+          }
+          final int heartRate = (int) Math.max(MIN_UINT, Math.min(MAX_UINT8, Math.round(value)));
+          publishHeartRateMeasurement(heartRate, getEnergyExpended());
+          sources.sendNotificationToDevices(mHeartRateMeasurementCharacteristic);
+          ServiceFragmentDelegate delegate = mDelegate;
+          if (delegate == null) {
+            // The activity is being recreated.
+            return;
+          }
+          delegate.postUiUpdate(mEditTextHeartRateMeasurement, new Runnable() {
+            @Override
+            public void run() {
+              mEditTextHeartRateMeasurement.setText(Integer.toString(heartRate));
+            }
+          });
+        }
+      });
+
   public HeartRateServiceFragment() {
     mHeartRateMeasurementCharacteristic =
         new BluetoothGattCharacteristic(HEART_RATE_MEASUREMENT_UUID,
@@ -178,6 +238,9 @@ public class HeartRateServiceFragment extends ServiceFragment {
     mHeartRateService.addCharacteristic(mHeartRateMeasurementCharacteristic);
     mHeartRateService.addCharacteristic(mBodySensorLocationCharacteristic);
     mHeartRateService.addCharacteristic(mHeartRateControlPoint);
+
+    publishHeartRateMeasurement(INITIAL_HEART_RATE_MEASUREMENT_VALUE, INITIAL_EXPENDED_ENERGY);
+    mBodySensorLocationCharacteristic.setValue(new byte[]{LOCATION_OTHER});
   }
 
 
@@ -198,10 +261,27 @@ public class HeartRateServiceFragment extends ServiceFragment {
         .setOnEditorActionListener(mOnEditorActionListenerEnergyExpended);
     Button notifyButton = (Button) view.findViewById(R.id.button_heartRateMeasurementNotify);
     notifyButton.setOnClickListener(mNotifyButtonListener);
+    mEditTextStreamRate = (EditText) view.findViewById(R.id.editText_streamRate);
+    mTextViewStreamRate = (TextView) view.findViewById(R.id.textView_streamRate);
+    mSwitchStream = (Switch) view.findViewById(R.id.switch_stream);
+    // The fragment is retained and the stream keeps running while the activity is recreated, so
+    // show the state being served rather than the initial one.
+    PeriodicScheduler.Task streamTask = getValueSources() == null ? null
+        : getValueSources().get(mHeartRateMeasurementCharacteristic);
+    if (streamTask == null) {
+      mEditTextStreamRate.setText(Integer.toString(INITIAL_STREAM_RATE));
+    } else {
+      mEditTextStreamRate.setText(
+          Long.toString(TimeUnit.SECONDS.toNanos(1) / streamTask.getPeriodNanos()));
+      mEditTextStreamRate.setEnabled(false);
+      mSwitchStream.setChecked(true);
+    }
+    mSwitchStream.setOnCheckedChangeListener(mStreamSwitchListener);
+    mTraceReplayPanel.onCreateView(view);
 
-    setHeartRateMeasurementValue(INITIAL_HEART_RATE_MEASUREMENT_VALUE,
-        INITIAL_EXPENDED_ENERGY);
-    setBodySensorLocationValue(LOCATION_OTHER);
+    mEditTextHeartRateMeasurement.setText(Integer.toString(getHeartRate()));
+    mEditTextEnergyExpended.setText(Integer.toString(getEnergyExpended()));
+    mSpinnerBodySensorLocation.setSelection(mBodySensorLocationCharacteristic.getValue()[0]);
     return view;
   }
 
@@ -222,6 +302,13 @@ public class HeartRateServiceFragment extends ServiceFragment {
     mDelegate = null;
   }
 
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    // Retained, so only destroyed once the activity is gone for good.
+    mTraceReplayPanel.stop();
+  }
+
   @Override
   public BluetoothGattService getBluetoothGattService() {
     return mHeartRateService;
@@ -232,40 +319,127 @@ public class HeartRateServiceFragment extends ServiceFragment {
     return new ParcelUuid(HEART_RATE_SERVICE_UUID);
   }
 
-  private void setHeartRateMeasurementValue(int heartRateMeasurementValue, int expendedEnergy) {
-
-    Log.d(TAG, Arrays.toString(mHeartRateMeasurementCharacteristic.getValue()));
-    /* Set the org.bluetooth.characteristic.heart_rate_measurement
-     * characteristic to a byte array of size 4 so
-     * we can use setValue(value, format, offset);
-     *
-     * Flags (8bit) + Heart Rate Measurement Value (uint8) + Energy Expended (uint16) = 4 bytes
-     *
-     * Flags = 1 << 3:
-     *   Heart Rate Format (0) -> UINT8
-     *   Sensor Contact Status (00) -> Not Supported
-     *   Energy Expended (1) -> Field Present
-     *   RR-Interval (0) -> Field not pressent
-     *   Unused (000)
-     */
-    mHeartRateMeasurementCharacteristic.setValue(new byte[]{0b00001000, 0, 0, 0});
-    // Characteristic Value: [flags, 0, 0, 0]
-    mHeartRateMeasurementCharacteristic.setValue(heartRateMeasurementValue,
-        HEART_RATE_MEASUREMENT_VALUE_FORMAT,
-        /* offset */ 1);
-    // Characteristic Value: [flags, heart rate value, 0, 0]
-    mEditTextHeartRateMeasurement.setText(Integer.toString(heartRateMeasurementValue));
-    mHeartRateMeasurementCharacteristic.setValue(expendedEnergy,
-        EXPENDED_ENERGY_FORMAT,
-        /* offset */ 2);
+  /**
+   * Replaces the Heart Rate Measurement value. The characteristic gets a new array every time,
+   * so a value read by the GATT event loop is never modified afterwards.
+   */
+  private synchronized void publishHeartRateMeasurement(int heartRate, int energyExpended) {
     // Characteristic Value: [flags, heart rate value, energy expended (LSB), energy expended (MSB)]
-    mEditTextEnergyExpended.setText(Integer.toString(expendedEnergy));
+    Measurements.heartRateMeasurement(mHeartRateMeasurementBuffer, heartRate, energyExpended);
+    mHeartRateMeasurementCharacteristic.setValue(mHeartRateMeasurementBuffer.clone());
+  }
+
+  private synchronized int getHeartRate() {
+    return ValueCodec.getUint8(mHeartRateMeasurementBuffer, /* offset */ 1);
+  }
+
+  private synchronized int getEnergyExpended() {
+    return ValueCodec.getUint16(mHeartRateMeasurementBuffer, /* offset */ 2);
+  }
+
+  /**
+   * Starts the stream on the value sources, in place of the stream that was running, if any.
+   *
+   * @return False if the fragment isn't attached to PeripheralService yet.
+   */
+  private boolean startStream(int rate) {
+    ValueSources sources = getValueSources();
+    if (sources == null) {
+      return false;
+    }
+    mEditTextStreamRate.setEnabled(false);
+    HeartRateStream stream = new HeartRateStream(sources, rate);
+    stream.mTask = sources.start(mHeartRateMeasurementCharacteristic, stream,
+        TimeUnit.SECONDS.toNanos(1) / rate, TimeUnit.NANOSECONDS);
+    return true;
   }
+
+  private void stopStream() {
+    ValueSources sources = getValueSources();
+    if (sources != null) {
+      sources.stop(mHeartRateMeasurementCharacteristic);
+    }
+    mEditTextStreamRate.setEnabled(true);
+  }
+
+  /**
+   * Generates a Heart Rate Measurement per tick and sends it to the subscribed devices. The
+   * heart rate follows a slow drift plus a faster respiratory oscillation so centrals receive
+   * changing values, and the energy expended accumulates with the heart rate.
+   *
+   * Runs on the scheduler of the value sources, whether an activity shows it or not. Once per
+   * second it reports the achieved rate, the jitter of the ticks and the latest values to the UI.
+   */
+  private class HeartRateStream implements Runnable {
+    private final ValueSources mSources;
+    private final int mRequestedRate;
+    // Set once scheduled, so it can be null on the first tick.
+    volatile PeriodicScheduler.Task mTask;
+    private final long mStartNanos = System.nanoTime();
+    private long mReportStartNanos = mStartNanos;
+    private int mReportSampleCount;
+    private double mEnergyExpended;
+
+    HeartRateStream(ValueSources sources, int requestedRate) {
+      mSources = sources;
+      mRequestedRate = requestedRate;
+    }
+
+    @Override
+    public void run() {
+      long now = System.nanoTime();
+      double seconds = (now - mStartNanos) / 1e9;
+      final int heartRate = (int) Math.round(INITIAL_HEART_RATE_MEASUREMENT_VALUE
+          + 15 * Math.sin(2 * Math.PI * seconds / 30)
+          + 5 * Math.sin(2 * Math.PI * seconds / 4));
+      // Roughly 0.1 kJ per beat.
+      mEnergyExpended += heartRate / 600.0 / mRequestedRate;
+      final int energyExpended = (int) mEnergyExpended & MAX_UINT16;
+
+      publishHeartRateMeasurement(heartRate, energyExpended);
+      mSources.sendNotificationToDevices(mHeartRateMeasurementCharacteristic);
+
+      mReportSampleCount++;
+      long elapsedNanos = now - mReportStartNanos;
+      if (elapsedNanos < STREAM_REPORT_INTERVAL_NANOS) {
+        return;
+      }
+      final double achievedRate = mReportSampleCount * 1e9 / elapsedNanos;
+      mReportStartNanos = now;
+      mReportSampleCount = 0;
+      PeriodicScheduler.Task task = mTask;
+      final long jitterP99Micros = task == null ? 0 : task.getJitter().getPercentileMicros(99);
+      ServiceFragmentDelegate delegate = mDelegate;
+      if (delegate == null) {
+        // The activity is being recreated.
+        return;
+      }
+      delegate.postUiUpdate(mTextViewStreamRate, new Runnable() {
+        @Override
+        public void run() {
+          mTextViewStreamRate.setText(getString(R.string.status_streamRate, achievedRate,
+              mRequestedRate, jitterP99Micros));
+          mEditTextHeartRateMeasurement.setText(Integer.toString(heartRate));
+          mEditTextEnergyExpended.setText(Integer.toString(energyExpended));
+        }
+      });
+    }
+  }
+
   private void setBodySensorLocationValue(int location) {
     mBodySensorLocationCharacteristic.setValue(new byte[]{(byte) location});
     mSpinnerBodySensorLocation.setSelection(location);
   }
 
+  private boolean isValidStreamRate(String s) {
+    try {
+      int value = Integer.parseInt(s);
+      return (value >= MIN_STREAM_RATE) && (value <= MAX_STREAM_RATE);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
   private boolean isValidCharacteristicValue(String s, int format) {
     try {
       int value = Integer.parseInt(s);
@@ -282,7 +456,8 @@ public class HeartRateServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+  public int checkCharacteristicWrite(BluetoothGattCharacteristic characteristic, int offset,
+      byte[] value) {
     if (offset != 0) {
       return BluetoothGatt.GATT_INVALID_OFFSET;
     }
@@ -290,12 +465,20 @@ public class HeartRateServiceFragment extends ServiceFragment {
     if (value.length != 1) {
       return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
     }
+    return BluetoothGatt.GATT_SUCCESS;
+  }
+
+  @Override
+  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+    int status = checkCharacteristicWrite(characteristic, offset, value);
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      return status;
+    }
     if ((value[0] & 1) == 1) {
-      getActivity().runOnUiThread(new Runnable() {
+      runOnUiThread(new Runnable() {
         @Override
         public void run() {
-          mHeartRateMeasurementCharacteristic.setValue(INITIAL_EXPENDED_ENERGY,
-              EXPENDED_ENERGY_FORMAT, /* offset */ 2);
+          publishHeartRateMeasurement(getHeartRate(), INITIAL_EXPENDED_ENERGY);
           mEditTextEnergyExpended.setText(Integer.toString(INITIAL_EXPENDED_ENERGY));
         }
       });
@@ -311,7 +494,7 @@ public class HeartRateServiceFragment extends ServiceFragment {
     if (indicate) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsEnabled, Toast.LENGTH_SHORT)
@@ -325,7 +508,7 @@ public class HeartRateServiceFragment extends ServiceFragment {
     if (characteristic.getUuid() != HEART_RATE_MEASUREMENT_UUID) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsNotEnabled, Toast.LENGTH_SHORT)
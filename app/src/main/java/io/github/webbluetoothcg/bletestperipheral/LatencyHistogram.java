@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.util.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Histogram of durations with power of two buckets in microseconds.
+ *
+ * Bucket 0 counts durations under 1us and bucket i counts durations in [2^(i-1), 2^i) us, so
+ * recording a value never allocates and percentiles are accurate to a factor of two.
+ */
+public class LatencyHistogram {
+  // The last bucket, [2^38, 2^39) us, is about 8.7 years long.
+  public static final int BUCKET_COUNT = 40;
+
+  private final long[] mBuckets = new long[BUCKET_COUNT];
+  private long mCount;
+  private long mSumMicros;
+  private long mMinMicros = Long.MAX_VALUE;
+  private long mMaxMicros;
+
+  public synchronized void recordNanos(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    mBuckets[getBucket(micros)]++;
+    mCount++;
+    mSumMicros += micros;
+    mMinMicros = Math.min(mMinMicros, micros);
+    mMaxMicros = Math.max(mMaxMicros, micros);
+  }
+
+  public static int getBucket(long micros) {
+    return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+  }
+
+  /**
+   * @return The smallest duration, in microseconds, that is not in a bucket after bucket.
+   */
+  public static long getBucketUpperBoundMicros(int bucket) {
+    return 1L << bucket;
+  }
+
+  public synchronized long getCount() {
+    return mCount;
+  }
+
+  public synchronized double getMeanMicros() {
+    return mCount == 0 ? 0 : (double) mSumMicros / mCount;
+  }
+
+  public synchronized long getMinMicros() {
+    return mCount == 0 ? 0 : mMinMicros;
+  }
+
+  public synchronized long getMaxMicros() {
+    return mMaxMicros;
+  }
+
+  /**
+   * @param percentile Between 0 and 100.
+   * @return Upper bound of the bucket containing the percentile, capped to the maximum recorded
+   * duration.
+   */
+  public synchronized long getPercentileMicros(double percentile) {
+    if (mCount == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100 * mCount);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      seen += mBuckets[bucket];
+      if (seen >= rank && seen > 0) {
+        return Math.min(getBucketUpperBoundMicros(bucket), mMaxMicros);
+      }
+    }
+    return mMaxMicros;
+  }
+
+  /**
+   * @return A copy of the bucket counts.
+   */
+  public synchronized long[] getBuckets() {
+    return mBuckets.clone();
+  }
+
+  /**
+   * Writes a snapshot of the histogram as a JSON object.
+   */
+  public synchronized void writeJson(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("count").value(getCount());
+    writer.name("meanMicros").value(getMeanMicros());
+    writer.name("minMicros").value(getMinMicros());
+    writer.name("p50Micros").value(getPercentileMicros(50));
+    writer.name("p90Micros").value(getPercentileMicros(90));
+    writer.name("p99Micros").value(getPercentileMicros(99));
+    writer.name("maxMicros").value(getMaxMicros());
+    // Non-empty buckets, keyed by their upper bound.
+    writer.name("buckets");
+    writer.beginArray();
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      if (mBuckets[bucket] == 0) {
+        continue;
+      }
+      writer.beginObject();
+      writer.name("upperBoundMicros").value(getBucketUpperBoundMicros(bucket));
+      writer.name("count").value(mBuckets[bucket]);
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.endObject();
+  }
+
+  /**
+   * Adds the durations recorded by the other histogram, e.g. to combine the histograms of several
+   * devices.
+   */
+  public void add(LatencyHistogram other) {
+    long[] buckets;
+    long count;
+    long sumMicros;
+    long minMicros;
+    long maxMicros;
+    // Copied first so that the two locks are never held together.
+    synchronized (other) {
+      buckets = other.mBuckets.clone();
+      count = other.mCount;
+      sumMicros = other.mSumMicros;
+      minMicros = other.mMinMicros;
+      maxMicros = other.mMaxMicros;
+    }
+    synchronized (this) {
+      for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+        mBuckets[bucket] += buckets[bucket];
+      }
+      mCount += count;
+      mSumMicros += sumMicros;
+      mMinMicros = Math.min(mMinMicros, minMicros);
+      mMaxMicros = Math.max(mMaxMicros, maxMicros);
+    }
+  }
+
+  public synchronized void reset() {
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      mBuckets[bucket] = 0;
+    }
+    mCount = 0;
+    mSumMicros = 0;
+    mMinMicros = Long.MAX_VALUE;
+    mMaxMicros = 0;
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs periodic tasks, such as the notifications of the services, at a fixed rate on one shared
+ * thread.
+ *
+ * Deadlines are computed from the start of the task on the monotonic clock, start + n * period,
+ * so they don't drift however late a tick runs. A tick that is late by more than a period is
+ * skipped rather than run in a burst. How late each tick runs is recorded in the jitter
+ * histogram of its task.
+ *
+ * Tasks run on the scheduler thread, never on the UI thread, so they must be short and must post
+ * their UI updates.
+ */
+public class PeriodicScheduler {
+  private static final String TAG = PeriodicScheduler.class.getCanonicalName();
+
+  private final ReentrantLock mLock = new ReentrantLock();
+  private final Condition mQueueChanged = mLock.newCondition();
+  // Ordered by next deadline. Guarded by mLock.
+  private final PriorityQueue<Task> mQueue = new PriorityQueue<>();
+  private final Thread mThread;
+  // Guarded by mLock.
+  private boolean mShutdown;
+
+  public PeriodicScheduler() {
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+        loop();
+      }
+    }, "PeriodicScheduler");
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  /**
+   * Runs the task every period, starting now.
+   *
+   * @return The scheduled task, to cancel it and read its jitter.
+   */
+  public Task schedule(Runnable runnable, long period, TimeUnit unit) {
+    long periodNanos = unit.toNanos(period);
+    if (periodNanos <= 0) {
+      throw new IllegalArgumentException("Period must be positive: " + period + " " + unit);
+    }
+    Task task = new Task(runnable, periodNanos, System.nanoTime());
+    mLock.lock();
+    try {
+      if (mShutdown) {
+        throw new IllegalStateException("Scheduler is shut down");
+      }
+      mQueue.add(task);
+      mQueueChanged.signal();
+    } finally {
+      mLock.unlock();
+    }
+    return task;
+  }
+
+  /**
+   * Cancels every task and stops the thread. A task that is running finishes its tick.
+   */
+  public void shutdown() {
+    mLock.lock();
+    try {
+      mShutdown = true;
+      for (Task task : mQueue) {
+        task.mCancelled = true;
+      }
+      mQueue.clear();
+      mQueueChanged.signal();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  private void cancel(Task task) {
+    mLock.lock();
+    try {
+      task.mCancelled = true;
+      if (mQueue.remove(task)) {
+        mQueueChanged.signal();
+      }
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  private void loop() {
+    while (true) {
+      Task task;
+      mLock.lock();
+      try {
+        while (true) {
+          if (mShutdown) {
+            return;
+          }
+          task = mQueue.peek();
+          if (task == null) {
+            mQueueChanged.awaitUninterruptibly();
+            continue;
+          }
+          long waitNanos = task.mNextDeadlineNanos - System.nanoTime();
+          if (waitNanos <= 0) {
+            break;
+          }
+          try {
+            mQueueChanged.awaitNanos(waitNanos);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        mQueue.poll();
+      } finally {
+        mLock.unlock();
+      }
+
+      long nowNanos = System.nanoTime();
+      task.mJitter.recordNanos(nowNanos - task.mNextDeadlineNanos);
+      try {
+        task.mRunnable.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Periodic task failed, cancelling it", e);
+        task.mCancelled = true;
+      }
+      task.advance(System.nanoTime());
+
+      mLock.lock();
+      try {
+        if (!task.mCancelled && !mShutdown) {
+          mQueue.add(task);
+        }
+      } finally {
+        mLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * A task scheduled at a fixed rate.
+   */
+  public class Task implements Comparable<Task> {
+    private final Runnable mRunnable;
+    private final long mPeriodNanos;
+    private final long mStartNanos;
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+    // Only used on the scheduler thread, or under mLock while the task is queued.
+    private long mTick;
+    private long mNextDeadlineNanos;
+    private volatile long mSkippedTicks;
+    private volatile boolean mCancelled;
+
+    private Task(Runnable runnable, long periodNanos, long startNanos) {
+      mRunnable = runnable;
+      mPeriodNanos = periodNanos;
+      mStartNanos = startNanos;
+      mNextDeadlineNanos = startNanos;
+    }
+
+    /**
+     * Moves the deadline to the next tick, skipping the ticks whose following tick is already
+     * due, so a late tick runs at most once.
+     */
+    private void advance(long nowNanos) {
+      mTick++;
+      long lateNanos = nowNanos - (mStartNanos + mTick * mPeriodNanos);
+      if (lateNanos >= mPeriodNanos) {
+        long skipped = lateNanos / mPeriodNanos;
+        mTick += skipped;
+        mSkippedTicks += skipped;
+      }
+      mNextDeadlineNanos = mStartNanos + mTick * mPeriodNanos;
+    }
+
+    /**
+     * Stops the task. A tick that is running finishes, but no other tick starts. Can be called
+     * from any thread.
+     */
+    public void cancel() {
+      PeriodicScheduler.this.cancel(this);
+    }
+
+    public boolean isCancelled() {
+      return mCancelled;
+    }
+
+    public long getPeriodNanos() {
+      return mPeriodNanos;
+    }
+
+    /**
+     * @return How late each tick started, from its deadline to the start of the runnable.
+     */
+    public LatencyHistogram getJitter() {
+      return mJitter;
+    }
+
+    /**
+     * @return The number of ticks skipped because an earlier tick ran more than a period late.
+     */
+    public long getSkippedTicks() {
+      return mSkippedTicks;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      long difference = mNextDeadlineNanos - other.mNextDeadlineNanos;
+      return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+    }
+  }
+}
@@ -17,22 +17,19 @@
 package io.github.webbluetoothcg.bletestperipheral;
 
 import android.app.Activity;
+import android.app.FragmentTransaction;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattServerCallback;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -41,200 +38,187 @@ import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.Arrays;
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import io.github.webbluetoothcg.bletestperipheral.ServiceFragment.ServiceFragmentDelegate;
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.DeviceSession;
+import io.github.webbluetoothcg.bletestperipheral.gatt.NotificationQueue;
+import io.github.webbluetoothcg.bletestperipheral.gatt.Profile;
 
 public class Peripheral extends Activity implements ServiceFragmentDelegate {
 
+  /**
+   * Optional Intent extra with the maximum number of notifications waiting per device, e.g.
+   * {@code adb shell am start ... --ei NOTIFICATION_QUEUE_DEPTH 64}.
+   */
+  public final static String EXTRA_NOTIFICATION_QUEUE_DEPTH = "NOTIFICATION_QUEUE_DEPTH";
+
+  /**
+   * Intent action of {@link PeripheralService} that exports the statistics of the running
+   * peripheral to a JSON file without going through the menu, e.g.
+   * {@code adb shell am startservice
+   * -a io.github.webbluetoothcg.bletestperipheral.action.EXPORT_METRICS
+   * -n io.github.webbluetoothcg.bletestperipheral/.PeripheralService}. Callers need the DUMP
+   * permission, which adb has.
+   */
+  public final static String ACTION_EXPORT_METRICS =
+      "io.github.webbluetoothcg.bletestperipheral.action.EXPORT_METRICS";
+  /**
+   * Optional String extra of {@link #ACTION_EXPORT_METRICS} with the name of the file, which
+   * can't contain a path.
+   */
+  public final static String EXTRA_METRICS_FILE_NAME = "METRICS_FILE_NAME";
+  /**
+   * Optional boolean extra of {@link #ACTION_EXPORT_METRICS} that resets the statistics once they
+   * are exported, e.g. {@code --ez RESET_METRICS true}.
+   */
+  public final static String EXTRA_RESET_METRICS = "RESET_METRICS";
+
+  /**
+   * Intent action that restarts advertising of the running peripheral, with the settings of the
+   * ADVERTISE_ extras that are present, e.g.
+   * {@code adb shell am start -a io.github.webbluetoothcg.bletestperipheral.action.ADVERTISE
+   * -n io.github.webbluetoothcg.bletestperipheral/.Peripheral --ei ADVERTISE_MODE 2}. Without a
+   * peripheral to start, the settings go to the running one, if any, and the activity finishes.
+   * The extras also set how a peripheral advertises when starting it.
+   */
+  public final static String ACTION_ADVERTISE =
+      "io.github.webbluetoothcg.bletestperipheral.action.ADVERTISE";
+  /**
+   * Optional int extra with one of the ADVERTISE_MODE_ constants of {@link AdvertiseSettings}.
+   */
+  public final static String EXTRA_ADVERTISE_MODE = "ADVERTISE_MODE";
+  /**
+   * Optional int extra with one of the ADVERTISE_TX_POWER_ constants of
+   * {@link AdvertiseSettings}.
+   */
+  public final static String EXTRA_ADVERTISE_TX_POWER = "ADVERTISE_TX_POWER";
+  /**
+   * Optional boolean extra, true to accept connections.
+   */
+  public final static String EXTRA_ADVERTISE_CONNECTABLE = "ADVERTISE_CONNECTABLE";
+  /**
+   * Optional int extra with how many milliseconds to advertise for, up to
+   * {@link AdvertisingController#MAX_TIMEOUT_MILLIS}, or 0 to advertise until stopped.
+   */
+  public final static String EXTRA_ADVERTISE_TIMEOUT = "ADVERTISE_TIMEOUT";
+
+  /**
+   * Optional boolean Intent extra that serves the control protocol of
+   * {@link io.github.webbluetoothcg.bletestperipheral.gatt.ControlProtocol} on the local socket
+   * {@link #CONTROL_SOCKET_NAME}, e.g. {@code --ez CONTROL_SOCKET true}.
+   */
+  public final static String EXTRA_CONTROL_SOCKET = "CONTROL_SOCKET";
+  /**
+   * Name of the control socket in the abstract namespace, e.g.
+   * {@code adb forward tcp:8765 localabstract:bletestperipheral}.
+   */
+  public final static String CONTROL_SOCKET_NAME = "bletestperipheral";
+
+  /**
+   * Optional boolean Intent extra that adds a Generic Attribute service with the Database Hash and
+   * Service Changed characteristics, so centrals can cache the attributes they discover, e.g.
+   * {@code --ez GATT_CACHING true}. Off by default since Android already hosts a Generic Attribute
+   * service of its own.
+   */
+  public final static String EXTRA_GATT_CACHING = "GATT_CACHING";
+
+  /**
+   * ATT_MTU used until the device negotiates a bigger one.
+   */
+  public static final int DEFAULT_ATT_MTU = DeviceSession.DEFAULT_ATT_MTU;
+
   private static final int REQUEST_ENABLE_BT = 1;
   private static final String TAG = Peripheral.class.getCanonicalName();
-  private static final String CURRENT_FRAGMENT_TAG = "CURRENT_FRAGMENT";
+  private static final long METRICS_UPDATE_INTERVAL_MILLIS = 1000;
+  private static final String SERVICE_FRAGMENT_TAG = "SERVICE_FRAGMENT_";
+  static final AdvertisingController.Settings DEFAULT_ADVERTISE_SETTINGS =
+      new AdvertisingController.Settings(AdvertiseSettings.ADVERTISE_MODE_BALANCED,
+          AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM, /* connectable */ true,
+          /* timeout */ 0);
+  // Menu items and names of the advertising settings, indexed by the ADVERTISE_MODE_ and
+  // ADVERTISE_TX_POWER_ constants, and by ADVERTISE_TIMEOUTS_MILLIS.
+  private static final int[] ADVERTISE_MODE_ITEMS = {
+      R.id.action_advertise_mode_low_power,
+      R.id.action_advertise_mode_balanced,
+      R.id.action_advertise_mode_low_latency};
+  private static final int[] ADVERTISE_MODE_NAMES = {
+      R.string.menu_advertise_mode_low_power,
+      R.string.menu_advertise_mode_balanced,
+      R.string.menu_advertise_mode_low_latency};
+  private static final int[] ADVERTISE_TX_POWER_ITEMS = {
+      R.id.action_advertise_tx_power_ultra_low,
+      R.id.action_advertise_tx_power_low,
+      R.id.action_advertise_tx_power_medium,
+      R.id.action_advertise_tx_power_high};
+  private static final int[] ADVERTISE_TX_POWER_NAMES = {
+      R.string.menu_advertise_tx_power_ultra_low,
+      R.string.menu_advertise_tx_power_low,
+      R.string.menu_advertise_tx_power_medium,
+      R.string.menu_advertise_tx_power_high};
+  private static final int[] ADVERTISE_TIMEOUT_ITEMS = {
+      R.id.action_advertise_timeout_none,
+      R.id.action_advertise_timeout_10s,
+      R.id.action_advertise_timeout_30s,
+      R.id.action_advertise_timeout_60s,
+      R.id.action_advertise_timeout_180s};
+  private static final int[] ADVERTISE_TIMEOUTS_MILLIS = {0, 10000, 30000, 60000, 180000};
 
   private static final UUID CHARACTERISTIC_USER_DESCRIPTION_UUID = UUID
       .fromString("00002901-0000-1000-8000-00805f9b34fb");
-  private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID
-      .fromString("00002902-0000-1000-8000-00805f9b34fb");
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID =
+      Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID;
 
   private TextView mAdvStatus;
   private TextView mConnectionStatus;
-  private ServiceFragment mCurrentServiceFragment;
-  private BluetoothGattService mBluetoothGattService;
-  private HashSet<BluetoothDevice> mBluetoothDevices;
-  private BluetoothManager mBluetoothManager;
+  private TextView mNotificationStatus;
+  private TextView mMetricsStatus;
+  private UiUpdateBatcher mUiUpdateBatcher;
+  // Only refreshes the statistics while the activity is visible. The sources of the values run on
+  // the scheduler of PeripheralService.
+  private PeriodicScheduler mScheduler;
+  private PeriodicScheduler.Task mMetricsTask;
+  private final ArrayList<ServiceFragment> mServiceFragments = new ArrayList<>();
   private BluetoothAdapter mBluetoothAdapter;
-  private AdvertiseData mAdvData;
-  private AdvertiseData mAdvScanResponse;
-  private AdvertiseSettings mAdvSettings;
-  private BluetoothLeAdvertiser mAdvertiser;
-  private final AdvertiseCallback mAdvCallback = new AdvertiseCallback() {
+  // Owns the GATT server, so it outlives this activity. Null until bound, and read by the
+  // fragments from any thread.
+  private volatile PeripheralService mService;
+  private boolean mBound;
+  private final ServiceConnection mServiceConnection = new ServiceConnection() {
     @Override
-    public void onStartFailure(int errorCode) {
-      super.onStartFailure(errorCode);
-      Log.e(TAG, "Not broadcasting: " + errorCode);
-      int statusText;
-      switch (errorCode) {
-        case ADVERTISE_FAILED_ALREADY_STARTED:
-          statusText = R.string.status_advertising;
-          Log.w(TAG, "App was already advertising");
-          break;
-        case ADVERTISE_FAILED_DATA_TOO_LARGE:
-          statusText = R.string.status_advDataTooLarge;
-          break;
-        case ADVERTISE_FAILED_FEATURE_UNSUPPORTED:
-          statusText = R.string.status_advFeatureUnsupported;
-          break;
-        case ADVERTISE_FAILED_INTERNAL_ERROR:
-          statusText = R.string.status_advInternalError;
-          break;
-        case ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
-          statusText = R.string.status_advTooManyAdvertisers;
-          break;
-        default:
-          statusText = R.string.status_notAdvertising;
-          Log.wtf(TAG, "Unhandled error: " + errorCode);
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+      mService = ((PeripheralService.LocalBinder) binder).getService();
+      mService.attach(mServiceListener, mServiceFragments, getIntent());
+      if (!mService.start()) {
+        ensureBleFeaturesAvailable();
       }
-      mAdvStatus.setText(statusText);
+      updateStatusViews();
     }
 
     @Override
-    public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-      super.onStartSuccess(settingsInEffect);
-      Log.v(TAG, "Broadcasting");
-      mAdvStatus.setText(R.string.status_advertising);
+    public void onServiceDisconnected(ComponentName name) {
+      mService = null;
     }
   };
-
-  private BluetoothGattServer mGattServer;
-  private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
+  private final PeripheralService.Listener mServiceListener = new PeripheralService.Listener() {
     @Override
-    public void onConnectionStateChange(BluetoothDevice device, final int status, int newState) {
-      super.onConnectionStateChange(device, status, newState);
-      if (status == BluetoothGatt.GATT_SUCCESS) {
-        if (newState == BluetoothGatt.STATE_CONNECTED) {
-          mBluetoothDevices.add(device);
-          updateConnectedDevicesStatus();
-          Log.v(TAG, "Connected to device: " + device.getAddress());
-        } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-          mBluetoothDevices.remove(device);
-          updateConnectedDevicesStatus();
-          Log.v(TAG, "Disconnected from device");
-        }
-      } else {
-        mBluetoothDevices.remove(device);
-        updateConnectedDevicesStatus();
-        // There are too many gatt errors (some of them not even in the documentation) so we just
-        // show the error to the user.
-        final String errorMessage = getString(R.string.status_errorWhenConnecting) + ": " + status;
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            Toast.makeText(Peripheral.this, errorMessage, Toast.LENGTH_LONG).show();
-          }
-        });
-        Log.e(TAG, "Error when connecting: " + status);
-      }
+    public void onAdvertisingStatusChanged() {
+      updateAdvertisingStatus();
     }
 
     @Override
-    public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
-        BluetoothGattCharacteristic characteristic) {
-      super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-      Log.d(TAG, "Device tried to read characteristic: " + characteristic.getUuid());
-      Log.d(TAG, "Value: " + Arrays.toString(characteristic.getValue()));
-      if (offset != 0) {
-        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset,
-            /* value (optional) */ null);
-        return;
-      }
-      mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS,
-          offset, characteristic.getValue());
+    public void onConnectedDevicesChanged() {
+      updateConnectedDevicesStatus();
     }
 
     @Override
-    public void onNotificationSent(BluetoothDevice device, int status) {
-      super.onNotificationSent(device, status);
-      Log.v(TAG, "Notification sent. Status: " + status);
-    }
-
-    @Override
-    public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
-        BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded,
-        int offset, byte[] value) {
-      super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
-          responseNeeded, offset, value);
-      Log.v(TAG, "Characteristic Write request: " + Arrays.toString(value));
-      int status = mCurrentServiceFragment.writeCharacteristic(characteristic, offset, value);
-      if (responseNeeded) {
-        mGattServer.sendResponse(device, requestId, status,
-            /* No need to respond with an offset */ 0,
-            /* No need to respond with a value */ null);
-      }
-    }
-
-    @Override
-    public void onDescriptorReadRequest(BluetoothDevice device, int requestId,
-        int offset, BluetoothGattDescriptor descriptor) {
-      super.onDescriptorReadRequest(device, requestId, offset, descriptor);
-      Log.d(TAG, "Device tried to read descriptor: " + descriptor.getUuid());
-      Log.d(TAG, "Value: " + Arrays.toString(descriptor.getValue()));
-      if (offset != 0) {
-        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset,
-            /* value (optional) */ null);
-        return;
-      }
-      mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
-          descriptor.getValue());
-    }
-
-    @Override
-    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
-        BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
-        int offset,
-        byte[] value) {
-      super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded,
-          offset, value);
-      Log.v(TAG, "Descriptor Write Request " + descriptor.getUuid() + " " + Arrays.toString(value));
-      int status = BluetoothGatt.GATT_SUCCESS;
-      if (descriptor.getUuid() == CLIENT_CHARACTERISTIC_CONFIGURATION_UUID) {
-        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
-        boolean supportsNotifications = (characteristic.getProperties() &
-            BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
-        boolean supportsIndications = (characteristic.getProperties() &
-            BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
-
-        if (!(supportsNotifications || supportsIndications)) {
-          status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
-        } else if (value.length != 2) {
-          status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
-        } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
-          status = BluetoothGatt.GATT_SUCCESS;
-          mCurrentServiceFragment.notificationsDisabled(characteristic);
-          descriptor.setValue(value);
-        } else if (supportsNotifications &&
-            Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-          status = BluetoothGatt.GATT_SUCCESS;
-          mCurrentServiceFragment.notificationsEnabled(characteristic, false /* indicate */);
-          descriptor.setValue(value);
-        } else if (supportsIndications &&
-            Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) {
-          status = BluetoothGatt.GATT_SUCCESS;
-          mCurrentServiceFragment.notificationsEnabled(characteristic, true /* indicate */);
-          descriptor.setValue(value);
-        } else {
-          status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
-        }
-      } else {
-        status = BluetoothGatt.GATT_SUCCESS;
-        descriptor.setValue(value);
-      }
-      if (responseNeeded) {
-        mGattServer.sendResponse(device, requestId, status,
-            /* No need to respond with offset */ 0,
-            /* No need to respond with a value */ null);
-      }
+    public void onNotificationsChanged() {
+      updateNotificationStatus();
     }
   };
 
@@ -249,45 +233,85 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
     getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     mAdvStatus = (TextView) findViewById(R.id.textView_advertisingStatus);
     mConnectionStatus = (TextView) findViewById(R.id.textView_connectionStatus);
-    mBluetoothDevices = new HashSet<>();
-    mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-    mBluetoothAdapter = mBluetoothManager.getAdapter();
+    mNotificationStatus = (TextView) findViewById(R.id.textView_notificationStatus);
+    mMetricsStatus = (TextView) findViewById(R.id.textView_metrics);
+    mUiUpdateBatcher = new UiUpdateBatcher();
+    mScheduler = new PeriodicScheduler();
+    BluetoothManager bluetoothManager =
+        (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+    mBluetoothAdapter = bluetoothManager.getAdapter();
+
+    Profile profile = null;
+    String profileSource = getIntent().getStringExtra(Peripherals.EXTRA_PROFILE);
+    if (profileSource != null) {
+      try {
+        profile = ProfileLoader.load(this, profileSource);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to load profile " + profileSource, e);
+        Toast.makeText(this, getString(R.string.status_profileFailed, e.getMessage()),
+            Toast.LENGTH_LONG).show();
+        finish();
+        return;
+      }
+      Log.i(TAG, "Loaded profile " + profile);
+    }
 
-    // If we are not being restored from a previous state then create and add the fragment.
+    // If we are not being restored from a previous state then create and add the fragments.
+    // Otherwise they are the retained ones, whose services the GATT server is still serving.
     if (savedInstanceState == null) {
-      int peripheralIndex = getIntent().getIntExtra(Peripherals.EXTRA_PERIPHERAL_INDEX,
-          /* default */ -1);
-      if (peripheralIndex == 0) {
-        mCurrentServiceFragment = new BatteryServiceFragment();
-      } else if (peripheralIndex == 1) {
-        mCurrentServiceFragment = new HeartRateServiceFragment();
-      } else if (peripheralIndex == 2) {
-        mCurrentServiceFragment = new HealthThermometerServiceFragment();
+      if (profile != null) {
+        mServiceFragments.addAll(createServiceFragments(profile));
       } else {
-        Log.wtf(TAG, "Service doesn't exist");
+        int peripheralIndex = getIntent().getIntExtra(Peripherals.EXTRA_PERIPHERAL_INDEX,
+            /* default */ -1);
+        mServiceFragments.addAll(createServiceFragments(peripheralIndex));
+      }
+      if (mServiceFragments.isEmpty()) {
+        if (ACTION_ADVERTISE.equals(getIntent().getAction())) {
+          // Nothing to start, only the settings of the running peripheral to change.
+          startService(new Intent(getIntent()).setClass(this, PeripheralService.class));
+        } else {
+          Log.e(TAG, "No peripheral to start");
+        }
+        finish();
+        return;
       }
-      getFragmentManager()
-          .beginTransaction()
-          .add(R.id.fragment_container, mCurrentServiceFragment, CURRENT_FRAGMENT_TAG)
-          .commit();
+      FragmentTransaction transaction = getFragmentManager().beginTransaction();
+      for (int i = 0; i < mServiceFragments.size(); i++) {
+        transaction.add(R.id.fragment_container, mServiceFragments.get(i),
+            SERVICE_FRAGMENT_TAG + i);
+      }
+      transaction.commit();
     } else {
-      mCurrentServiceFragment = (ServiceFragment) getFragmentManager()
-          .findFragmentByTag(CURRENT_FRAGMENT_TAG);
-    }
-    mBluetoothGattService = mCurrentServiceFragment.getBluetoothGattService();
-
-    mAdvSettings = new AdvertiseSettings.Builder()
-        .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
-        .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-        .setConnectable(true)
-        .build();
-    mAdvData = new AdvertiseData.Builder()
-        .setIncludeTxPowerLevel(true)
-        .addServiceUuid(mCurrentServiceFragment.getServiceUUID())
-        .build();
-    mAdvScanResponse = new AdvertiseData.Builder()
-        .setIncludeDeviceName(true)
-        .build();
+      ServiceFragment serviceFragment;
+      while ((serviceFragment = (ServiceFragment) getFragmentManager()
+          .findFragmentByTag(SERVICE_FRAGMENT_TAG + mServiceFragments.size())) != null) {
+        mServiceFragments.add(serviceFragment);
+      }
+    }
+    for (ServiceFragment serviceFragment : mServiceFragments) {
+      if (serviceFragment instanceof ProfileServiceFragment) {
+        ((ProfileServiceFragment) serviceFragment).setProfile(profile);
+      }
+    }
+
+    // Started as well as bound, so the GATT server keeps running while no activity is bound.
+    Intent serviceIntent = new Intent(this, PeripheralService.class);
+    startService(serviceIntent);
+    mBound = bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
+  }
+
+  @Override
+  protected void onNewIntent(Intent intent) {
+    super.onNewIntent(intent);
+    if (mService == null) {
+      Log.w(TAG, "Peripheral not running, ignoring " + intent.getAction());
+      return;
+    }
+    if (ACTION_ADVERTISE.equals(intent.getAction())) {
+      mService.setAdvertiseSettings(getAdvertiseSettings(intent,
+          mService.getAdvertisingController().getSettings()));
+    }
   }
 
   @Override
@@ -297,6 +321,28 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
     return true /* show menu */;
   }
 
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    super.onPrepareOptionsMenu(menu);
+    if (mService == null) {
+      return true /* show menu */;
+    }
+    // The state is the service's, which may have changed since this activity was created.
+    menu.findItem(R.id.action_event_log).setChecked(
+        mService.getEventLog().getLevel() != EventLog.LEVEL_OFF);
+    menu.findItem(R.id.action_capture).setChecked(mService.isCapturing());
+    AdvertisingController.Settings settings = mService.getAdvertisingController().getSettings();
+    menu.findItem(ADVERTISE_MODE_ITEMS[settings.getMode()]).setChecked(true);
+    menu.findItem(ADVERTISE_TX_POWER_ITEMS[settings.getTxPowerLevel()]).setChecked(true);
+    menu.findItem(R.id.action_advertise_connectable).setChecked(settings.isConnectable());
+    for (int i = 0; i < ADVERTISE_TIMEOUTS_MILLIS.length; i++) {
+      if (ADVERTISE_TIMEOUTS_MILLIS[i] == settings.getTimeoutMillis()) {
+        menu.findItem(ADVERTISE_TIMEOUT_ITEMS[i]).setChecked(true);
+      }
+    }
+    return true /* show menu */;
+  }
+
   @Override
   protected void onActivityResult(int requestCode, int resultCode, Intent data) {
     super.onActivityResult(requestCode, resultCode, data);
@@ -320,69 +366,255 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
   @Override
   protected void onStart() {
     super.onStart();
-    resetStatusViews();
-    // If the user disabled Bluetooth when the app was in the background,
-    // openGattServer() will return null.
-    mGattServer = mBluetoothManager.openGattServer(this, mGattServerCallback);
-    if (mGattServer == null) {
-      ensureBleFeaturesAvailable();
-      return;
+    updateStatusViews();
+    // onActivityResult() calls onStart() again once Bluetooth is enabled.
+    if (mMetricsTask != null) {
+      mMetricsTask.cancel();
     }
-    // Add a service for a total of three services (Generic Attribute and Generic Access
-    // are present by default).
-    mGattServer.addService(mBluetoothGattService);
-
-    if (mBluetoothAdapter.isMultipleAdvertisementSupported()) {
-      mAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
-      mAdvertiser.startAdvertising(mAdvSettings, mAdvData, mAdvScanResponse, mAdvCallback);
-    } else {
-      mAdvStatus.setText(R.string.status_noLeAdv);
+    mMetricsTask = mScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        updateMetricsStatus();
+      }
+    }, METRICS_UPDATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    // The GATT server keeps running while the activity is stopped, but if the user disabled
+    // Bluetooth in the meantime it was closed and openGattServer() will return null.
+    if (mService != null && !mService.start()) {
+      ensureBleFeaturesAvailable();
     }
   }
 
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
+    if (mService == null) {
+      return false /* event_consumed */;
+    }
     if (item.getItemId() == R.id.action_disconnect_devices) {
-      disconnectFromDevices();
+      mService.disconnectFromDevices();
+      return true /* event_consumed */;
+    }
+    if (item.getItemId() == R.id.action_event_log) {
+      EventLog eventLog = mService.getEventLog();
+      if (eventLog.getLevel() == EventLog.LEVEL_OFF) {
+        eventLog.setLevel(Log.VERBOSE);
+      } else {
+        eventLog.setLevel(EventLog.LEVEL_OFF);
+        eventLog.dump();
+      }
+      item.setChecked(eventLog.getLevel() != EventLog.LEVEL_OFF);
+      return true /* event_consumed */;
+    }
+    if (item.getItemId() == R.id.action_capture) {
+      if (mService.isCapturing()) {
+        mService.stopCapture();
+      } else {
+        mService.startCapture();
+      }
+      item.setChecked(mService.isCapturing());
+      return true /* event_consumed */;
+    }
+    if (item.getItemId() == R.id.action_export_metrics) {
+      mService.exportMetrics(/* file name */ null);
       return true /* event_consumed */;
     }
+    AdvertisingController.Settings settings = mService.getAdvertisingController().getSettings();
+    if (item.getItemId() == R.id.action_advertise_connectable) {
+      mService.setAdvertiseSettings(settings.withConnectable(!settings.isConnectable()));
+      item.setChecked(!settings.isConnectable());
+      return true /* event_consumed */;
+    }
+    for (int mode = 0; mode < ADVERTISE_MODE_ITEMS.length; mode++) {
+      if (item.getItemId() == ADVERTISE_MODE_ITEMS[mode]) {
+        mService.setAdvertiseSettings(settings.withMode(mode));
+        item.setChecked(true);
+        return true /* event_consumed */;
+      }
+    }
+    for (int txPowerLevel = 0; txPowerLevel < ADVERTISE_TX_POWER_ITEMS.length; txPowerLevel++) {
+      if (item.getItemId() == ADVERTISE_TX_POWER_ITEMS[txPowerLevel]) {
+        mService.setAdvertiseSettings(settings.withTxPowerLevel(txPowerLevel));
+        item.setChecked(true);
+        return true /* event_consumed */;
+      }
+    }
+    for (int i = 0; i < ADVERTISE_TIMEOUT_ITEMS.length; i++) {
+      if (item.getItemId() == ADVERTISE_TIMEOUT_ITEMS[i]) {
+        mService.setAdvertiseSettings(settings.withTimeoutMillis(ADVERTISE_TIMEOUTS_MILLIS[i]));
+        item.setChecked(true);
+        return true /* event_consumed */;
+      }
+    }
     return false /* event_consumed */;
   }
 
   @Override
   protected void onStop() {
     super.onStop();
-    if (mGattServer != null) {
-      mGattServer.close();
+    // Only the UI stops; the service keeps the devices connected.
+    mMetricsTask.cancel();
+    mMetricsTask = null;
+  }
+
+  @Override
+  protected void onDestroy() {
+    // Detached before the fragments are, so the GATT callbacks never reach a detached fragment.
+    if (mService != null) {
+      mService.detach();
+      mService = null;
+    }
+    super.onDestroy();
+    if (mBound) {
+      unbindService(mServiceConnection);
+      mBound = false;
     }
-    if (mBluetoothAdapter.isEnabled() && mAdvertiser != null) {
-      // If stopAdvertising() gets called before close() a null
-      // pointer exception is raised.
-      mAdvertiser.stopAdvertising(mAdvCallback);
+    if (isFinishing()) {
+      // Leaving the peripheral, as opposed to rotating the screen, stops the GATT server.
+      stopService(new Intent(this, PeripheralService.class));
     }
-    resetStatusViews();
+    mScheduler.shutdown();
+    mUiUpdateBatcher.cancel();
   }
 
   @Override
   public void sendNotificationToDevices(BluetoothGattCharacteristic characteristic) {
-    boolean indicate = (characteristic.getProperties()
-        & BluetoothGattCharacteristic.PROPERTY_INDICATE)
-        == BluetoothGattCharacteristic.PROPERTY_INDICATE;
-    for (BluetoothDevice device : mBluetoothDevices) {
-      // true for indication (acknowledge) and false for notification (unacknowledge).
-      mGattServer.notifyCharacteristicChanged(device, characteristic, indicate);
+    PeripheralService service = mService;
+    if (service != null) {
+      service.sendNotificationToDevices(characteristic);
+    }
+  }
+
+  @Override
+  public int getMtu(BluetoothDevice device) {
+    PeripheralService service = mService;
+    return service == null ? DEFAULT_ATT_MTU : service.getMtu(device);
+  }
+
+  @Override
+  public int getMinimumMtu() {
+    PeripheralService service = mService;
+    return service == null ? DEFAULT_ATT_MTU : service.getMinimumMtu();
+  }
+
+  @Override
+  public void postUiUpdate(Object key, Runnable update) {
+    mUiUpdateBatcher.post(key, update);
+  }
+
+  private static List<ServiceFragment> createServiceFragments(Profile profile) {
+    ArrayList<ServiceFragment> serviceFragments = new ArrayList<>();
+    for (int i = 0; i < profile.getServices().size(); i++) {
+      serviceFragments.add(ProfileServiceFragment.newInstance(i));
+    }
+    return serviceFragments;
+  }
+
+  private static List<ServiceFragment> createServiceFragments(int peripheralIndex) {
+    ArrayList<ServiceFragment> serviceFragments = new ArrayList<>();
+    if (peripheralIndex == 0 || peripheralIndex == Peripherals.ALL_SERVICES_INDEX) {
+      serviceFragments.add(new BatteryServiceFragment());
+    }
+    if (peripheralIndex == 1 || peripheralIndex == Peripherals.ALL_SERVICES_INDEX) {
+      serviceFragments.add(new HeartRateServiceFragment());
     }
+    if (peripheralIndex == 2 || peripheralIndex == Peripherals.ALL_SERVICES_INDEX) {
+      serviceFragments.add(new HealthThermometerServiceFragment());
+    }
+    if (peripheralIndex == 3 || peripheralIndex == Peripherals.ALL_SERVICES_INDEX) {
+      serviceFragments.add(new ThroughputServiceFragment());
+    }
+    return serviceFragments;
   }
 
-  private void resetStatusViews() {
-    mAdvStatus.setText(R.string.status_notAdvertising);
+
+  private void updateStatusViews() {
+    updateAdvertisingStatus();
     updateConnectedDevicesStatus();
+    updateNotificationStatus();
+  }
+
+  private void updateAdvertisingStatus() {
+    // Devices connect on the GATT event loop.
+    mUiUpdateBatcher.post(mAdvStatus, new Runnable() {
+      @Override
+      public void run() {
+        PeripheralService service = mService;
+        if (service == null) {
+          mAdvStatus.setText(R.string.status_notAdvertising);
+          return;
+        }
+        AdvertisingController advertisingController = service.getAdvertisingController();
+        if (service.getAdvertisingStatus() != R.string.status_advertising
+            || !advertisingController.isAdvertising()) {
+          mAdvStatus.setText(service.getAdvertisingStatus());
+          return;
+        }
+        AdvertisingController.Settings settings = advertisingController.getSettings();
+        AdvertisingController.Stats stats = advertisingController.getCurrentStats();
+        LatencyHistogram connectLatency = stats.getConnectLatency();
+        mAdvStatus.setText(getString(R.string.status_advertising) + "\n"
+            + getString(R.string.status_advertisingStats,
+                getString(ADVERTISE_MODE_NAMES[settings.getMode()]),
+                getString(ADVERTISE_TX_POWER_NAMES[settings.getTxPowerLevel()]),
+                getString(settings.isConnectable() ? R.string.menu_advertise_connectable
+                    : R.string.advertise_not_connectable),
+                stats.getStartLatency().getPercentileMicros(50) / 1000,
+                connectLatency.getPercentileMicros(50) / 1000,
+                connectLatency.getPercentileMicros(99) / 1000,
+                connectLatency.getCount()));
+      }
+    });
+  }
+
+  private void updateNotificationStatus() {
+    // Notifications can be sent thousands of times per second, so the status is redrawn at most
+    // once per frame.
+    mUiUpdateBatcher.post(mNotificationStatus, new Runnable() {
+      @Override
+      public void run() {
+        PeripheralService service = mService;
+        if (service == null) {
+          return;
+        }
+        NotificationQueue<BluetoothDevice> queue = service.getNotificationQueue();
+        mNotificationStatus.setText(getString(R.string.status_notifications,
+            queue.getQueuedCount(),
+            queue.getSentCount(),
+            queue.getCoalescedCount(),
+            queue.getDroppedCount()));
+      }
+    });
+  }
+
+  private void updateMetricsStatus() {
+    PeripheralService service = mService;
+    if (service == null) {
+      return;
+    }
+    final GattMetrics.Counters total = service.getMetrics().getTotal();
+    final LatencyHistogram responseLatency = service.getMetrics().getResponseLatency();
+    final LatencyHistogram notificationLatency = service.getMetrics().getNotificationLatency();
+    mUiUpdateBatcher.post(mMetricsStatus, new Runnable() {
+      @Override
+      public void run() {
+        mMetricsStatus.setText(getString(R.string.status_metrics,
+            total.getReads(),
+            total.getWrites(),
+            total.getNotifications(),
+            total.getErrors(),
+            total.getBytes(),
+            responseLatency.getPercentileMicros(50),
+            responseLatency.getPercentileMicros(99),
+            notificationLatency.getPercentileMicros(50),
+            notificationLatency.getPercentileMicros(99)));
+      }
+    });
   }
 
   private void updateConnectedDevicesStatus() {
+    PeripheralService service = mService;
     final String message = getString(R.string.status_devicesConnected) + " "
-        + mBluetoothManager.getConnectedDevices(BluetoothGattServer.GATT).size();
-    runOnUiThread(new Runnable() {
+        + (service == null ? 0 : service.getConnectedDeviceCount());
+    mUiUpdateBatcher.post(mConnectionStatus, new Runnable() {
       @Override
       public void run() {
         mConnectionStatus.setText(message);
@@ -390,6 +622,24 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
     });
   }
 
+  /**
+   * @return The settings of the ADVERTISE_ extras of the intent, with the ones that are missing
+   * from defaults, or defaults if the extras are invalid.
+   */
+  static AdvertisingController.Settings getAdvertiseSettings(Intent intent,
+      AdvertisingController.Settings defaults) {
+    try {
+      return new AdvertisingController.Settings(
+          intent.getIntExtra(EXTRA_ADVERTISE_MODE, defaults.getMode()),
+          intent.getIntExtra(EXTRA_ADVERTISE_TX_POWER, defaults.getTxPowerLevel()),
+          intent.getBooleanExtra(EXTRA_ADVERTISE_CONNECTABLE, defaults.isConnectable()),
+          intent.getIntExtra(EXTRA_ADVERTISE_TIMEOUT, defaults.getTimeoutMillis()));
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Invalid advertising settings", e);
+      return defaults;
+    }
+  }
+
   ///////////////////////
   ////// Bluetooth //////
   ///////////////////////
@@ -423,12 +673,5 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
       startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
     }
   }
-  private void disconnectFromDevices() {
-    Log.d(TAG, "Disconnecting devices...");
-    for (BluetoothDevice device : mBluetoothManager.getConnectedDevices(
-        BluetoothGattServer.GATT)) {
-      Log.d(TAG, "Devices: " + device.getAddress() + " " + device.getName());
-      mGattServer.cancelConnection(device);
-    }
-  }
+
 }
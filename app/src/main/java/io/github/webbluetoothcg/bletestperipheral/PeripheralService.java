@@ -0,0 +1,1176 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.AdvertiseCallback;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.AdvertisingPacker;
+import io.github.webbluetoothcg.bletestperipheral.gatt.AttCapture;
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.AttributeDatabase;
+import io.github.webbluetoothcg.bletestperipheral.gatt.AttributeHandler;
+import io.github.webbluetoothcg.bletestperipheral.gatt.BtsnoopWriter;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ControlTarget;
+import io.github.webbluetoothcg.bletestperipheral.gatt.DatabaseHash;
+import io.github.webbluetoothcg.bletestperipheral.gatt.DeviceSession;
+import io.github.webbluetoothcg.bletestperipheral.gatt.GattRequestHandler;
+import io.github.webbluetoothcg.bletestperipheral.gatt.GattStatus;
+import io.github.webbluetoothcg.bletestperipheral.gatt.GattTransport;
+import io.github.webbluetoothcg.bletestperipheral.gatt.NotificationQueue;
+import io.github.webbluetoothcg.bletestperipheral.gatt.PacketRing;
+import io.github.webbluetoothcg.bletestperipheral.gatt.PreparedWriteQueue;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueFormat;
+
+/**
+ * Foreground service that owns the GATT server, the advertiser and the connected devices, so
+ * rotating the screen, turning it off or switching apps doesn't drop the centrals.
+ *
+ * The {@link Peripheral} activity binds to it for its UI and attaches the fragments of its
+ * services, which keep their values and validate writes. The fragments are retained across
+ * configuration changes, so a recreated activity attaches the same services and the GATT server
+ * keeps running; attaching other services restarts it. While no activity is attached, writes are
+ * stored as they are. The sources that update the values, such as the streams, run on
+ * {@link ValueSources} and keep running whatever happens to the activity.
+ *
+ * Everything but the methods that say otherwise must be called on the UI thread.
+ */
+public class PeripheralService extends Service {
+  private static final String TAG = PeripheralService.class.getCanonicalName();
+  private static final int NOTIFICATION_ID = 1;
+  private static final String CAPTURES_DIRECTORY = "captures";
+  private static final String METRICS_DIRECTORY = "metrics";
+  // isLoggable() only accepts tags of up to 23 characters.
+  private static final String EVENT_LOG_TAG = "GattEvents";
+  private static final int EVENT_LOG_CAPACITY = 1024;
+
+  public class LocalBinder extends Binder {
+    public PeripheralService getService() {
+      return PeripheralService.this;
+    }
+  }
+
+  /**
+   * Told when the status shown by the activity changes. Can be called from any thread.
+   */
+  public interface Listener {
+    void onAdvertisingStatusChanged();
+
+    void onConnectedDevicesChanged();
+
+    void onNotificationsChanged();
+  }
+
+  private final IBinder mBinder = new LocalBinder();
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private volatile Listener mListener;
+  // Routes the callbacks of an attribute to the fragment of the service that contains it. Keyed by
+  // the service itself, since a profile can have two services with the same UUID. Replaced when an
+  // activity attaches or detaches and only read on mGattEventLoop.
+  private volatile List<ServiceFragment> mServiceFragments = Collections.emptyList();
+  private volatile Map<BluetoothGattService, ServiceFragment> mServiceFragmentsByService =
+      Collections.emptyMap();
+  // The services of the GATT server, or null before the first activity attaches.
+  private List<BluetoothGattService> mServices;
+  // Generic Attribute service served before the services of the fragments when the activity asks
+  // for GATT caching, null otherwise.
+  private BluetoothGattService mGenericAttributeService;
+  private BluetoothGattCharacteristic mServiceChanged;
+  // Handles the GATT server gave the services, by attribute. Only used on the main thread.
+  private final HashMap<Attribute, Integer> mServiceHandles = new HashMap<>();
+  // Database Hash of the table with those handles, once every service was added.
+  private volatile byte[] mDatabaseHash;
+  // Database Hash of the table each device knew when it last subscribed to Service Changed or was
+  // told about a change, by address. Outlives the GATT servers, so a bonded device that comes back
+  // to other services is told they changed.
+  private final ConcurrentHashMap<String, byte[]> mServiceChangedSubscribers =
+      new ConcurrentHashMap<>();
+  // Opens the activity that attached the services from the notification.
+  private Intent mPeripheralIntent;
+  // Services waiting to be added to the GATT server.
+  private final ArrayDeque<BluetoothGattService> mPendingServices = new ArrayDeque<>();
+  private BluetoothGattService mServiceBeingAdded;
+  private BluetoothManager mBluetoothManager;
+  private BluetoothAdapter mBluetoothAdapter;
+  private AdvertisingController mAdvertisingController;
+  private int mAdvertisingStatus = R.string.status_notAdvertising;
+  private final AdvertisingController.Listener mAdvListener =
+      new AdvertisingController.Listener() {
+    @Override
+    public void onAdvertisingStarted(AdvertisingController.Settings settings) {
+      setAdvertisingStatus(R.string.status_advertising);
+    }
+
+    @Override
+    public void onAdvertisingFailed(int errorCode) {
+      int statusText;
+      switch (errorCode) {
+        case AdvertiseCallback.ADVERTISE_FAILED_ALREADY_STARTED:
+          statusText = R.string.status_advertising;
+          Log.w(TAG, "App was already advertising");
+          break;
+        case AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE:
+          statusText = R.string.status_advDataTooLarge;
+          break;
+        case AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED:
+          statusText = R.string.status_advFeatureUnsupported;
+          break;
+        case AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR:
+          statusText = R.string.status_advInternalError;
+          break;
+        case AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
+          statusText = R.string.status_advTooManyAdvertisers;
+          break;
+        default:
+          statusText = R.string.status_notAdvertising;
+          Log.wtf(TAG, "Unhandled error: " + errorCode);
+      }
+      setAdvertisingStatus(statusText);
+    }
+
+    @Override
+    public void onAdvertisingTimedOut() {
+      setAdvertisingStatus(R.string.status_advTimedOut);
+    }
+  };
+
+  private BluetoothGattServer mGattServer;
+  // Replaced with the rest of the server when other services attach, after the previous one quit.
+  private GattEventLoop mGattEventLoop;
+  private AndroidGattAdapter mGattAdapter;
+  private GattRequestHandler<BluetoothDevice> mGattRequestHandler;
+  // Events of the GATT callbacks. Off unless enabled from the menu or with
+  // adb shell setprop log.tag.GattEvents VERBOSE.
+  private final EventLog mEventLog = new EventLog(EVENT_LOG_TAG, EVENT_LOG_CAPACITY,
+      EventLog.getLoggableLevel(EVENT_LOG_TAG));
+  // Saves the ATT traffic while a capture is running.
+  private BtsnoopWriter mCaptureWriter;
+  private File mCaptureFile;
+  private final GattMetrics mMetrics = new GattMetrics();
+  // Runs the sources of the values of the fragments' services. Stopped when the server closes.
+  private ValueSources mValueSources;
+  private ControlSocketServer mControlSocketServer;
+  // Lets a test harness change and notify the characteristics through the control socket.
+  // Called from the control connection threads. The fragments don't show the values it sets.
+  private final ControlTarget mControlTarget = new ControlTarget() {
+    @Override
+    public AttributeDatabase getDatabase() {
+      return mGattAdapter.getDatabase();
+    }
+
+    @Override
+    public byte[] getValue(Attribute characteristic) {
+      return mGattAdapter.getCharacteristic(characteristic).getValue();
+    }
+
+    @Override
+    public int setValue(Attribute attribute, byte[] buffer, int offset, int length) {
+      if (length > PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH) {
+        return GattStatus.INVALID_ATTRIBUTE_LENGTH;
+      }
+      // Always a new array: the GATT event loop may be reading the current one.
+      mGattAdapter.getCharacteristic(attribute)
+          .setValue(Arrays.copyOfRange(buffer, offset, offset + length));
+      return GattStatus.SUCCESS;
+    }
+
+    @Override
+    public void notifyValueChanged(Attribute characteristic) {
+      sendNotificationToDevices(mGattAdapter.getCharacteristic(characteristic));
+    }
+
+    @Override
+    public int disconnectDevices() {
+      mMainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          disconnectFromDevices();
+        }
+      });
+      return mGattRequestHandler.getDeviceRegistry().getCount();
+    }
+
+    @Override
+    public String getMetrics() {
+      StringWriter metrics = new StringWriter();
+      try (JsonWriter writer = new JsonWriter(metrics)) {
+        writeMetrics(writer);
+      } catch (IOException e) {
+        // StringWriter doesn't throw.
+        throw new AssertionError(e);
+      }
+      return metrics.toString();
+    }
+  };
+  // Response to the request being handled, recorded by mMeteredTransport. Only used on
+  // mGattEventLoop.
+  private long mRequestStartNanos;
+  private boolean mResponseSent;
+  private int mResponseStatus;
+  private byte[] mResponseValue;
+  private long mResponseNanos;
+  // Sends through mGattAdapter and tells mMetrics about the responses and notifications.
+  private final GattTransport<BluetoothDevice> mMeteredTransport =
+      new GattTransport<BluetoothDevice>() {
+    @Override
+    public void sendResponse(BluetoothDevice device, int requestId, int status, int offset,
+        byte[] value) {
+      mGattAdapter.sendResponse(device, requestId, status, offset, value);
+      mResponseNanos = System.nanoTime();
+      mResponseSent = true;
+      mResponseStatus = status;
+      mResponseValue = value;
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(BluetoothDevice device, Attribute characteristic,
+        byte[] value, boolean confirm) {
+      mMetrics.onNotificationStarted(device.getAddress(), characteristic,
+          value == null ? 0 : value.length);
+      return mGattAdapter.notifyCharacteristicChanged(device, characteristic, value, confirm);
+    }
+  };
+  // Connects the platform independent request handling to the fragments.
+  private final AttributeHandler<BluetoothDevice> mAttributeHandler =
+      new AttributeHandler<BluetoothDevice>() {
+    @Override
+    public byte[] readCharacteristic(Attribute characteristic) {
+      return mGattAdapter.getCharacteristic(characteristic).getValue();
+    }
+
+    @Override
+    public int writeCharacteristic(BluetoothDevice device, Attribute attribute, int offset,
+        byte[] value) {
+      BluetoothGattCharacteristic characteristic = mGattAdapter.getCharacteristic(attribute);
+      if (mServiceFragments.isEmpty()) {
+        // No activity to validate the value; keep it so the central reads back what it wrote.
+        if (offset != 0) {
+          return BluetoothGatt.GATT_INVALID_OFFSET;
+        }
+        characteristic.setValue(value);
+        return BluetoothGatt.GATT_SUCCESS;
+      }
+      ServiceFragment serviceFragment = getServiceFragment(characteristic);
+      if (serviceFragment == null) {
+        Log.w(TAG, "Characteristic of an unknown service: " + attribute.getUuid());
+        return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+      }
+      return serviceFragment.writeCharacteristic(device, characteristic, offset, value);
+    }
+
+    @Override
+    public int checkCharacteristicWrite(BluetoothDevice device, Attribute attribute, int offset,
+        byte[] value) {
+      BluetoothGattCharacteristic characteristic = mGattAdapter.getCharacteristic(attribute);
+      if (mServiceFragments.isEmpty()) {
+        return offset == 0 ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_INVALID_OFFSET;
+      }
+      ServiceFragment serviceFragment = getServiceFragment(characteristic);
+      if (serviceFragment == null) {
+        return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+      }
+      return serviceFragment.checkCharacteristicWrite(device, characteristic, offset, value);
+    }
+
+    @Override
+    public void onSubscriptionChanged(BluetoothDevice device, Attribute attribute,
+        int configuration) {
+      BluetoothGattCharacteristic characteristic = mGattAdapter.getCharacteristic(attribute);
+      if (characteristic == mServiceChanged) {
+        if (configuration == 0) {
+          mServiceChangedSubscribers.remove(device.getAddress());
+        } else {
+          byte[] hash = mDatabaseHash;
+          if (hash != null) {
+            mServiceChangedSubscribers.put(device.getAddress(), hash);
+          }
+        }
+        return;
+      }
+      if (configuration != 0) {
+        mValueSources.onSubscribed(device, characteristic);
+      }
+      ServiceFragment serviceFragment = getServiceFragment(characteristic);
+      if (serviceFragment == null) {
+        return;
+      }
+      if (configuration == 0) {
+        serviceFragment.notificationsDisabled(characteristic);
+      } else {
+        serviceFragment.notificationsEnabled(characteristic,
+            configuration == DeviceSession.CONFIGURATION_INDICATE);
+      }
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, Attribute attribute, int status) {
+      BluetoothGattCharacteristic characteristic = mGattAdapter.getCharacteristic(attribute);
+      mValueSources.onNotificationSent(device, characteristic, status);
+      ServiceFragment serviceFragment = getServiceFragment(characteristic);
+      if (serviceFragment != null) {
+        serviceFragment.onNotificationSent(device, characteristic, status);
+      }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+      for (ServiceFragment serviceFragment : mServiceFragments) {
+        serviceFragment.onMtuChanged(device, mtu);
+      }
+    }
+  };
+  // Runs on mGattEventLoop, so the binder thread is never blocked and callbacks are handled one
+  // at a time. Translates the Android attributes and hands the requests to mGattRequestHandler.
+  private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
+    @Override
+    public void onConnectionStateChange(BluetoothDevice device, final int status, int newState) {
+      super.onConnectionStateChange(device, status, newState);
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        if (newState == BluetoothGatt.STATE_CONNECTED) {
+          DeviceSession<BluetoothDevice> session = mGattRequestHandler.onConnected(device);
+          mMetrics.onConnected(device.getAddress());
+          restoreServiceChanged(device, session);
+          mAdvertisingController.onConnected();
+          Listener listener = mListener;
+          if (listener != null) {
+            listener.onConnectedDevicesChanged();
+            listener.onAdvertisingStatusChanged();
+          }
+          mEventLog.log(Log.VERBOSE, EventLog.CONNECTED, device, /* attribute */ null, status,
+              /* value */ null);
+        } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+          removeDevice(device);
+          mEventLog.log(Log.VERBOSE, EventLog.DISCONNECTED, device, /* attribute */ null, status,
+              /* value */ null);
+        }
+      } else {
+        removeDevice(device);
+        // There are too many gatt errors (some of them not even in the documentation) so we just
+        // show the error to the user.
+        final String errorMessage = getString(R.string.status_errorWhenConnecting) + ": " + status;
+        mMainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(PeripheralService.this, errorMessage, Toast.LENGTH_LONG).show();
+          }
+        });
+        Log.e(TAG, "Error when connecting: " + status);
+      }
+    }
+
+    @Override
+    public void onServiceAdded(final int status, final BluetoothGattService service) {
+      super.onServiceAdded(status, service);
+      if (status != BluetoothGatt.GATT_SUCCESS) {
+        Log.e(TAG, "Error when adding service " + service.getUuid() + ": " + status);
+      } else {
+        mEventLog.log(Log.VERBOSE, EventLog.SERVICE_ADDED, /* device */ null, service.getUuid(),
+            status, /* value */ null);
+      }
+      mMainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          // Ignore services added by a GATT server that was closed since.
+          if (mServiceBeingAdded != null
+              && mServiceBeingAdded.getUuid().equals(service.getUuid())) {
+            // Since Android 7.0 the instance ID of an added service is its handle.
+            Attribute attribute = mGattAdapter.getAttribute(service);
+            if (status == BluetoothGatt.GATT_SUCCESS && attribute != null
+                && service.getInstanceId() != 0) {
+              mServiceHandles.put(attribute, service.getInstanceId());
+            }
+            addNextService();
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+        BluetoothGattCharacteristic characteristic) {
+      super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+      mEventLog.log(Log.DEBUG, EventLog.READ_CHARACTERISTIC, device, characteristic.getUuid(),
+          offset, characteristic.getValue());
+      Attribute attribute = mGattAdapter.getAttribute(characteristic);
+      if (attribute == null) {
+        sendUnknownAttributeResponse(device, requestId);
+        return;
+      }
+      handleReadRequest(device, requestId, offset, attribute);
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+      super.onNotificationSent(device, status);
+      mEventLog.log(Log.VERBOSE, EventLog.NOTIFICATION_SENT, device, /* attribute */ null, status,
+          /* value */ null);
+      mMetrics.onNotificationSent(device.getAddress(), status);
+      mGattRequestHandler.onNotificationSent(device, status);
+      Listener listener = mListener;
+      if (listener != null) {
+        listener.onNotificationsChanged();
+      }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+      super.onMtuChanged(device, mtu);
+      mEventLog.log(Log.VERBOSE, EventLog.MTU_CHANGED, device, /* attribute */ null, mtu,
+          /* value */ null);
+      mGattRequestHandler.onMtuChanged(device, mtu);
+      mMetrics.onMtuChanged(device.getAddress(), mtu);
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+        BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded,
+        int offset, byte[] value) {
+      super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
+          responseNeeded, offset, value);
+      mEventLog.log(Log.VERBOSE, EventLog.WRITE_CHARACTERISTIC, device, characteristic.getUuid(),
+          offset, value);
+      Attribute attribute = mGattAdapter.getAttribute(characteristic);
+      if (attribute == null) {
+        if (responseNeeded) {
+          sendUnknownAttributeResponse(device, requestId);
+        }
+        return;
+      }
+      handleWriteRequest(device, requestId, attribute, preparedWrite, responseNeeded, offset,
+          value);
+    }
+
+    @Override
+    public void onDescriptorReadRequest(BluetoothDevice device, int requestId,
+        int offset, BluetoothGattDescriptor descriptor) {
+      super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+      mEventLog.log(Log.DEBUG, EventLog.READ_DESCRIPTOR, device, descriptor.getUuid(), offset,
+          descriptor.getValue());
+      Attribute attribute = mGattAdapter.getAttribute(descriptor);
+      if (attribute == null) {
+        sendUnknownAttributeResponse(device, requestId);
+        return;
+      }
+      handleReadRequest(device, requestId, offset, attribute);
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+        BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
+        int offset,
+        byte[] value) {
+      super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded,
+          offset, value);
+      mEventLog.log(Log.VERBOSE, EventLog.WRITE_DESCRIPTOR, device, descriptor.getUuid(), offset,
+          value);
+      Attribute attribute = mGattAdapter.getAttribute(descriptor);
+      if (attribute == null) {
+        if (responseNeeded) {
+          sendUnknownAttributeResponse(device, requestId);
+        }
+        return;
+      }
+      handleWriteRequest(device, requestId, attribute, preparedWrite, responseNeeded, offset,
+          value);
+    }
+
+    @Override
+    public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+      super.onExecuteWrite(device, requestId, execute);
+      mEventLog.log(Log.VERBOSE, EventLog.EXECUTE_WRITE, device, /* attribute */ null,
+          execute ? 1 : 0, /* value */ null);
+      mGattRequestHandler.onExecuteWrite(device, requestId, execute);
+    }
+
+    private void handleReadRequest(BluetoothDevice device, int requestId, int offset,
+        Attribute attribute) {
+      mRequestStartNanos = System.nanoTime();
+      mMetrics.onRequest(device.getAddress(), attribute, mRequestStartNanos);
+      mResponseSent = false;
+      mGattRequestHandler.onReadRequest(device, requestId, offset, attribute);
+      if (mResponseSent) {
+        mMetrics.onRead(device.getAddress(), attribute, mResponseStatus, mResponseValue,
+            mResponseNanos - mRequestStartNanos);
+      }
+      mResponseValue = null;
+    }
+
+    private void handleWriteRequest(BluetoothDevice device, int requestId, Attribute attribute,
+        boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+      mRequestStartNanos = System.nanoTime();
+      mMetrics.onRequest(device.getAddress(), attribute, mRequestStartNanos);
+      mResponseSent = false;
+      mGattRequestHandler.onWriteRequest(device, requestId, attribute, preparedWrite,
+          responseNeeded, offset, value);
+      if (mResponseSent) {
+        mMetrics.onWrite(device.getAddress(), attribute, mResponseStatus, value,
+            mResponseNanos - mRequestStartNanos);
+      } else {
+        mMetrics.onWrite(device.getAddress(), attribute, GattStatus.SUCCESS, value,
+            /* no response */ -1);
+      }
+      mResponseValue = null;
+    }
+
+    /**
+     * Answers a read or write of an attribute that is not in the database, as if its handle did
+     * not exist.
+     */
+    private void sendUnknownAttributeResponse(BluetoothDevice device, int requestId) {
+      mGattAdapter.sendResponse(device, requestId, GattStatus.INVALID_HANDLE,
+          /* No need to respond with an offset */ 0,
+          /* No need to respond with a value */ null);
+    }
+  };
+
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+    mBluetoothAdapter = mBluetoothManager.getAdapter();
+    mValueSources = new ValueSources(this);
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    String action = intent == null ? null : intent.getAction();
+    if (Peripheral.ACTION_EXPORT_METRICS.equals(action)
+        || Peripheral.ACTION_ADVERTISE.equals(action)) {
+      // Handled here rather than by the activity, so it works whatever the activity is doing.
+      if (mServices == null) {
+        Log.w(TAG, "Peripheral not running, ignoring " + action);
+        // Don't keep running for an intent when nothing is served.
+        stopSelf(startId);
+        return START_NOT_STICKY;
+      }
+      if (Peripheral.ACTION_ADVERTISE.equals(action)) {
+        setAdvertiseSettings(Peripheral.getAdvertiseSettings(intent,
+            mAdvertisingController.getSettings()));
+      } else {
+        exportMetrics(intent.getStringExtra(Peripheral.EXTRA_METRICS_FILE_NAME));
+        if (intent.getBooleanExtra(Peripheral.EXTRA_RESET_METRICS, /* default */ false)) {
+          resetMetrics();
+        }
+      }
+    }
+    // Started by the activity so it outlives its bindings, and only stopped by it. There is
+    // nothing to serve once the process is gone, so it isn't restarted.
+    return START_NOT_STICKY;
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return mBinder;
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    closeServer();
+    mValueSources.shutdown();
+    stopForeground(/* remove notification */ true);
+  }
+
+  /**
+   * Shows the activity and routes the requests to its fragments. Opens a GATT server with their
+   * services, unless the server already serves them.
+   *
+   * @param intent The intent that started the activity, with its optional settings.
+   * @throws IllegalArgumentException If there are no fragments, before the running server, if
+   * any, is touched.
+   */
+  public void attach(Listener listener, List<ServiceFragment> serviceFragments, Intent intent) {
+    if (serviceFragments.isEmpty()) {
+      throw new IllegalArgumentException("No services to serve");
+    }
+    ArrayList<BluetoothGattService> services = new ArrayList<>();
+    IdentityHashMap<BluetoothGattService, ServiceFragment> serviceFragmentsByService =
+        new IdentityHashMap<>();
+    for (ServiceFragment serviceFragment : serviceFragments) {
+      services.add(serviceFragment.getBluetoothGattService());
+      serviceFragmentsByService.put(serviceFragment.getBluetoothGattService(), serviceFragment);
+    }
+    if (!isServing(services)) {
+      closeServer();
+      createServer(services, intent);
+    }
+    for (ServiceFragment serviceFragment : serviceFragments) {
+      serviceFragment.setValueSources(mValueSources);
+    }
+    mServiceFragments = new ArrayList<>(serviceFragments);
+    mServiceFragmentsByService = serviceFragmentsByService;
+    mListener = listener;
+  }
+
+  /**
+   * Stops routing requests to the fragments of the activity, which is going away. A request
+   * already being routed may still reach a fragment, which then finds no activity.
+   */
+  public void detach() {
+    mListener = null;
+    mServiceFragments = Collections.emptyList();
+    mServiceFragmentsByService = Collections.emptyMap();
+  }
+
+  /**
+   * Opens the GATT server, adds the services and starts advertising, unless that is already
+   * done.
+   *
+   * @return False if Bluetooth is off or not supported.
+   */
+  public boolean start() {
+    if (mGattServer != null) {
+      return true;
+    }
+    // If the user disabled Bluetooth, openGattServer() will return null.
+    mGattServer = mBluetoothManager.openGattServer(this, mGattEventLoop);
+    if (mGattServer == null) {
+      return false;
+    }
+    mGattAdapter.setGattServer(mGattServer);
+    startForeground(NOTIFICATION_ID, buildNotification());
+    // Add the services (Generic Attribute and Generic Access are present by default). The GATT
+    // server only adds one service at a time, so each service is added once the previous one is,
+    // and advertising starts once all of them are.
+    mPendingServices.clear();
+    mServiceHandles.clear();
+    mDatabaseHash = null;
+    if (mGenericAttributeService != null) {
+      mPendingServices.add(mGenericAttributeService);
+    }
+    mPendingServices.addAll(mServices);
+    addNextService();
+    return true;
+  }
+
+  public boolean isStarted() {
+    return mGattServer != null;
+  }
+
+  /**
+   * Stops advertising and closes the GATT server, which disconnects every device.
+   */
+  public void stop() {
+    mPendingServices.clear();
+    mServiceBeingAdded = null;
+    if (mGattServer != null) {
+      mGattAdapter.setGattServer(null);
+      mGattServer.close();
+      mGattServer = null;
+    }
+    if (mAdvertisingController != null) {
+      // If stopAdvertising() gets called before close() a null
+      // pointer exception is raised.
+      mAdvertisingController.stop();
+      setAdvertisingStatus(R.string.status_notAdvertising);
+    }
+    if (mGattRequestHandler != null) {
+      // Closing the server drops every connection and with them their subscriptions.
+      mGattRequestHandler.clear();
+      Listener listener = mListener;
+      if (listener != null) {
+        listener.onConnectedDevicesChanged();
+        listener.onNotificationsChanged();
+      }
+    }
+    stopForeground(/* remove notification */ true);
+  }
+
+  private boolean isServing(List<BluetoothGattService> services) {
+    if (mServices == null || mServices.size() != services.size()) {
+      return false;
+    }
+    for (int i = 0; i < services.size(); i++) {
+      // The GATT server holds on to the very objects whose values the fragments update.
+      if (mServices.get(i) != services.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void createServer(List<BluetoothGattService> services, Intent intent) {
+    if (services.isEmpty()) {
+      throw new IllegalArgumentException("No services to serve");
+    }
+    mServices = services;
+    mPeripheralIntent = new Intent(this, Peripheral.class).putExtras(intent);
+    mGattEventLoop = new GattEventLoop(mGattServerCallback);
+    ArrayList<BluetoothGattService> servedServices = new ArrayList<>();
+    if (intent.getBooleanExtra(Peripheral.EXTRA_GATT_CACHING, /* default */ false)) {
+      mGenericAttributeService = createGenericAttributeService();
+      mServiceChanged = mGenericAttributeService.getCharacteristic(
+          DatabaseHash.SERVICE_CHANGED_UUID);
+      servedServices.add(mGenericAttributeService);
+    } else {
+      mGenericAttributeService = null;
+      mServiceChanged = null;
+    }
+    servedServices.addAll(services);
+    mGattAdapter = new AndroidGattAdapter(servedServices);
+    mGattRequestHandler = new GattRequestHandler<>(mGattAdapter.getDatabase(), mAttributeHandler,
+        mMeteredTransport, getNotificationQueueDepth(intent));
+    mAdvertisingController = new AdvertisingController(Peripheral.getAdvertiseSettings(intent,
+        Peripheral.DEFAULT_ADVERTISE_SETTINGS), mAdvListener);
+    mMetrics.reset();
+    if (intent.getBooleanExtra(Peripheral.EXTRA_CONTROL_SOCKET, /* default */ false)) {
+      mControlSocketServer = new ControlSocketServer(Peripheral.CONTROL_SOCKET_NAME,
+          mControlTarget);
+      try {
+        mControlSocketServer.start();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to open the control socket " + Peripheral.CONTROL_SOCKET_NAME, e);
+        mControlSocketServer = null;
+      }
+    }
+  }
+
+  /**
+   * @return The NOTIFICATION_QUEUE_DEPTH extra of the intent, or the default depth if it is
+   * missing or invalid.
+   */
+  private static int getNotificationQueueDepth(Intent intent) {
+    int depth = intent.getIntExtra(Peripheral.EXTRA_NOTIFICATION_QUEUE_DEPTH,
+        NotificationQueue.DEFAULT_MAX_DEPTH);
+    if (depth < 1) {
+      Log.e(TAG, "Invalid notification queue depth " + depth + ", using "
+          + NotificationQueue.DEFAULT_MAX_DEPTH);
+      return NotificationQueue.DEFAULT_MAX_DEPTH;
+    }
+    return depth;
+  }
+
+  private void closeServer() {
+    if (mServices == null) {
+      return;
+    }
+    stop();
+    stopCapture();
+    mValueSources.stopAll();
+    if (mControlSocketServer != null) {
+      mControlSocketServer.stop();
+      mControlSocketServer = null;
+    }
+    mGattEventLoop.quit();
+    mServices = null;
+  }
+
+  private void addNextService() {
+    mServiceBeingAdded = mPendingServices.poll();
+    if (mServiceBeingAdded == null) {
+      if (mServiceChanged != null) {
+        updateDatabaseHash();
+        // Devices that connected while the services were being added may have discovered only
+        // some of them.
+        sendNotificationToDevices(mServiceChanged);
+      }
+      startAdvertising();
+    } else if (!mGattServer.addService(mServiceBeingAdded)) {
+      Log.e(TAG, "Couldn't add service: " + mServiceBeingAdded.getUuid());
+      addNextService();
+    }
+  }
+
+  private static BluetoothGattService createGenericAttributeService() {
+    BluetoothGattService service = new BluetoothGattService(
+        DatabaseHash.GENERIC_ATTRIBUTE_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    BluetoothGattCharacteristic serviceChanged = new BluetoothGattCharacteristic(
+        DatabaseHash.SERVICE_CHANGED_UUID, BluetoothGattCharacteristic.PROPERTY_INDICATE,
+        /* No permissions */ 0);
+    serviceChanged.addDescriptor(Peripheral.getClientCharacteristicConfigurationDescriptor());
+    // The handles of the table aren't the ones Android gives the attributes, so every handle
+    // is said to have changed.
+    serviceChanged.setValue(DatabaseHash.serviceChanged(AttributeDatabase.FIRST_HANDLE,
+        AttributeDatabase.MAX_HANDLE));
+    service.addCharacteristic(serviceChanged);
+    service.addCharacteristic(new BluetoothGattCharacteristic(DatabaseHash.DATABASE_HASH_UUID,
+        BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+    return service;
+  }
+
+  /**
+   * Serves the Database Hash of the table with the handles Android gave the services, so the hash
+   * changes whenever they do. Android before 7.0 doesn't tell them, and the handles of the table
+   * are used instead.
+   */
+  private void updateDatabaseHash() {
+    byte[] hash = DatabaseHash.compute(mGattAdapter.getDatabase(), mServiceHandles);
+    mGenericAttributeService.getCharacteristic(DatabaseHash.DATABASE_HASH_UUID).setValue(hash);
+    mDatabaseHash = hash;
+    Log.i(TAG, "Database Hash " + ValueFormat.HEX.toString(hash));
+  }
+
+  /**
+   * Subscribes a bonded device that was subscribed to Service Changed again, since its Client
+   * Characteristic Configuration outlives the connection, and indicates Service Changed if the
+   * services changed since it last knew them. Called on mGattEventLoop.
+   */
+  private void restoreServiceChanged(BluetoothDevice device,
+      DeviceSession<BluetoothDevice> session) {
+    if (mServiceChanged == null || device.getBondState() != BluetoothDevice.BOND_BONDED) {
+      return;
+    }
+    byte[] knownHash = mServiceChangedSubscribers.get(device.getAddress());
+    if (knownHash == null) {
+      return;
+    }
+    Attribute serviceChanged = mGattAdapter.getAttribute(mServiceChanged);
+    session.setConfiguration(serviceChanged, DeviceSession.CONFIGURATION_INDICATE);
+    byte[] hash = mDatabaseHash;
+    // Before the services are added, the indication once they are takes care of the device.
+    if (hash != null && !Arrays.equals(knownHash, hash)) {
+      Log.i(TAG, "Services changed since " + device.getAddress() + " last connected");
+      mServiceChangedSubscribers.put(device.getAddress(), hash);
+      mGattRequestHandler.notifyValueChanged(device, serviceChanged);
+    }
+  }
+
+  private void startAdvertising() {
+    if (mBluetoothAdapter.isMultipleAdvertisementSupported()) {
+      mAdvertisingController.start(mBluetoothAdapter.getBluetoothLeAdvertiser(),
+          getAdvertisedFields());
+    } else {
+      setAdvertisingStatus(R.string.status_noLeAdv);
+    }
+  }
+
+  /**
+   * @return What to advertise, most important first: the first service, which centrals filter
+   * on, the name, the TX power and the other services, as far as they fit.
+   */
+  private List<AdvertisingPacker.Field> getAdvertisedFields() {
+    ArrayList<AdvertisingPacker.Field> fields = new ArrayList<>();
+    if (!mServices.isEmpty()) {
+      fields.add(AdvertisingPacker.Field.serviceUuid(mServices.get(0).getUuid()));
+    }
+    // The name is read when advertising starts, since it can't be while Bluetooth is off.
+    String name = mBluetoothAdapter.getName();
+    if (name != null) {
+      fields.add(AdvertisingPacker.Field.deviceName(name));
+    }
+    fields.add(AdvertisingPacker.Field.txPowerLevel());
+    for (int i = 1; i < mServices.size(); i++) {
+      fields.add(AdvertisingPacker.Field.serviceUuid(mServices.get(i).getUuid()));
+    }
+    return fields;
+  }
+
+  private Notification buildNotification() {
+    // Brings back the running activity, which is singleTop, or starts the same peripheral again.
+    return new Notification.Builder(this)
+        .setContentTitle(getString(R.string.app_name))
+        .setContentText(getString(R.string.notification_peripheralRunning))
+        .setSmallIcon(R.mipmap.ic_launcher)
+        .setContentIntent(PendingIntent.getActivity(this, /* request code */ 0, mPeripheralIntent,
+            PendingIntent.FLAG_UPDATE_CURRENT))
+        .setOngoing(true)
+        .build();
+  }
+
+  private void setAdvertisingStatus(int advertisingStatus) {
+    mAdvertisingStatus = advertisingStatus;
+    Listener listener = mListener;
+    if (listener != null) {
+      listener.onAdvertisingStatusChanged();
+    }
+  }
+
+  /**
+   * @return The string resource of the advertising status, {@code R.string.status_advertising}
+   * while advertising.
+   */
+  public int getAdvertisingStatus() {
+    return mAdvertisingStatus;
+  }
+
+  public AdvertisingController getAdvertisingController() {
+    return mAdvertisingController;
+  }
+
+  /**
+   * Advertises with new settings, restarting advertising if the peripheral is advertising.
+   */
+  public void setAdvertiseSettings(AdvertisingController.Settings settings) {
+    Log.i(TAG, "Advertising with " + settings);
+    mAdvertisingController.setSettings(settings);
+  }
+
+  /**
+   * Sends the current value of the characteristic to every device subscribed to it. Can be called
+   * from any thread.
+   */
+  public void sendNotificationToDevices(BluetoothGattCharacteristic characteristic) {
+    Attribute attribute = mGattAdapter.getAttribute(characteristic);
+    if (attribute != null) {
+      mMetrics.onNotifyRequested(attribute);
+      mGattRequestHandler.notifyValueChanged(attribute);
+    }
+    Listener listener = mListener;
+    if (listener != null) {
+      listener.onNotificationsChanged();
+    }
+  }
+
+  /**
+   * Sends a value of the characteristic that is meant for the device only, if it is subscribed to
+   * the characteristic, without changing the value of the characteristic. Can be called from any
+   * thread.
+   */
+  public void sendNotification(BluetoothDevice device,
+      BluetoothGattCharacteristic characteristic, byte[] value) {
+    Attribute attribute = mGattAdapter.getAttribute(characteristic);
+    if (attribute != null) {
+      mMetrics.onNotifyRequested(attribute);
+      mGattRequestHandler.notifyValueChanged(device, attribute, value);
+    }
+    Listener listener = mListener;
+    if (listener != null) {
+      listener.onNotificationsChanged();
+    }
+  }
+
+  /**
+   * @return The devices connected when called. Can be called from any thread.
+   */
+  public List<BluetoothDevice> getConnectedDevices() {
+    ArrayList<BluetoothDevice> devices = new ArrayList<>();
+    for (DeviceSession<BluetoothDevice> session
+        : mGattRequestHandler.getDeviceRegistry().getSessions()) {
+      devices.add(session.getDevice());
+    }
+    return devices;
+  }
+
+  /**
+   * Can be called from any thread.
+   */
+  public int getMtu(BluetoothDevice device) {
+    return mGattRequestHandler.getMtu(device);
+  }
+
+  /**
+   * Can be called from any thread.
+   */
+  public int getMinimumMtu() {
+    return mGattRequestHandler.getMinimumMtu();
+  }
+
+  /**
+   * Can be called from any thread.
+   */
+  public NotificationQueue<BluetoothDevice> getNotificationQueue() {
+    return mGattRequestHandler.getNotificationQueue();
+  }
+
+  /**
+   * Can be called from any thread.
+   */
+  public int getConnectedDeviceCount() {
+    // The registry keeps the count so connection changes don't need an IPC to the Bluetooth
+    // service.
+    return mGattRequestHandler.getDeviceRegistry().getCount();
+  }
+
+  public void disconnectFromDevices() {
+    if (mGattServer == null) {
+      return;
+    }
+    Log.d(TAG, "Disconnecting devices...");
+    for (BluetoothDevice device : mBluetoothManager.getConnectedDevices(
+        BluetoothGattServer.GATT)) {
+      Log.d(TAG, "Devices: " + device.getAddress() + " " + device.getName());
+      mGattServer.cancelConnection(device);
+    }
+  }
+
+  public EventLog getEventLog() {
+    return mEventLog;
+  }
+
+  /**
+   * Can be called from any thread.
+   */
+  public GattMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  public void resetMetrics() {
+    mMetrics.reset();
+    mAdvertisingController.reset();
+  }
+
+  /**
+   * Writes the statistics of the GATT server and of advertising as a JSON object. Can be called
+   * from any thread.
+   */
+  public void writeMetrics(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    mMetrics.writeJsonFields(writer);
+    writer.name("advertising");
+    mAdvertisingController.writeJson(writer);
+    writer.endObject();
+  }
+
+  /**
+   * Writes a JSON snapshot of the statistics to the metrics directory of the app's external files.
+   *
+   * @param name Name of the file, or null for one with the current time. Names with a path are
+   * rejected, so the file can't end up outside the directory.
+   */
+  public void exportMetrics(String name) {
+    if (name == null || name.isEmpty()) {
+      name = "metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+          + ".json";
+    } else if (name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0
+        || name.contains("..")) {
+      Log.e(TAG, "Invalid metrics file name " + name);
+      Toast.makeText(this, getString(R.string.status_metricsFileNameInvalid, name),
+          Toast.LENGTH_LONG).show();
+      return;
+    }
+    File file = new File(getExternalFilesDir(METRICS_DIRECTORY), name);
+    try (JsonWriter writer = new JsonWriter(
+        new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+      writer.setIndent("  ");
+      writeMetrics(writer);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to export metrics to " + file, e);
+      Toast.makeText(this, getString(R.string.status_metricsExportFailed, file.getPath()),
+          Toast.LENGTH_LONG).show();
+      return;
+    }
+    Log.i(TAG, "Exported metrics to " + file);
+    Toast.makeText(this, getString(R.string.status_metricsExported, file.getPath()),
+        Toast.LENGTH_LONG).show();
+  }
+
+  public boolean isCapturing() {
+    return mCaptureWriter != null;
+  }
+
+  /**
+   * Starts saving the ATT traffic to a btsnoop file in the captures directory of the app's
+   * external files.
+   */
+  public void startCapture() {
+    File directory = getExternalFilesDir(CAPTURES_DIRECTORY);
+    String name = "att-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+        + ".btsnoop";
+    File file = new File(directory, name);
+    FileOutputStream output;
+    try {
+      output = new FileOutputStream(file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to create capture " + file, e);
+      Toast.makeText(this, getString(R.string.status_captureFailed, file.getPath()),
+          Toast.LENGTH_LONG).show();
+      return;
+    }
+    PacketRing ring = new PacketRing(AttCapture.DEFAULT_SLOT_COUNT, AttCapture.DEFAULT_SLOT_SIZE);
+    mCaptureWriter = new BtsnoopWriter(ring, output);
+    mCaptureFile = file;
+    mCaptureWriter.start();
+    mGattRequestHandler.setCapture(new AttCapture<BluetoothDevice>(ring));
+    Log.i(TAG, "Capturing ATT traffic to " + file);
+  }
+
+  public void stopCapture() {
+    if (mCaptureWriter == null) {
+      return;
+    }
+    mGattRequestHandler.setCapture(null);
+    try {
+      mCaptureWriter.stop();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    IOException error = mCaptureWriter.getError();
+    if (error != null) {
+      Log.e(TAG, "Failed to write capture " + mCaptureFile, error);
+      Toast.makeText(this, getString(R.string.status_captureFailed, mCaptureFile.getPath()),
+          Toast.LENGTH_LONG).show();
+    } else {
+      Toast.makeText(this, getString(R.string.status_captureSaved, mCaptureWriter.getPackets(),
+          mCaptureFile.getPath()), Toast.LENGTH_LONG).show();
+    }
+    mCaptureWriter = null;
+    mCaptureFile = null;
+  }
+
+  /**
+   * @return The fragment of the service that contains the characteristic, or null if the
+   * characteristic doesn't belong to a service of this peripheral or no activity is attached.
+   */
+  private ServiceFragment getServiceFragment(BluetoothGattCharacteristic characteristic) {
+    if (characteristic == null || characteristic.getService() == null) {
+      return null;
+    }
+    return mServiceFragmentsByService.get(characteristic.getService());
+  }
+
+  private void removeDevice(BluetoothDevice device) {
+    DeviceSession<BluetoothDevice> session = mGattRequestHandler.onDisconnected(device);
+    mMetrics.onDisconnected(device.getAddress());
+    if (session != null) {
+      Log.v(TAG, "Session ended: " + session);
+    }
+    Listener listener = mListener;
+    if (listener != null) {
+      listener.onConnectedDevicesChanged();
+    }
+  }
+}
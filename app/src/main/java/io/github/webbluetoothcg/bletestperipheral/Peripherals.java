@@ -23,20 +23,36 @@ import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Peripherals extends ListActivity {
 
-  private static final String[] PERIPHERALS_NAMES = new String[]{"Battery", "Heart Rate Monitor", "Health Thermometer"};
+  private static final String[] PERIPHERALS_NAMES = new String[]{"Battery", "Heart Rate Monitor",
+      "Health Thermometer", "Throughput", "All Services"};
   public final static String EXTRA_PERIPHERAL_INDEX = "PERIPHERAL_INDEX";
+  // Source of the profile to load instead of the built in services, see ProfileLoader.
+  public final static String EXTRA_PROFILE = "PROFILE";
+  // Index of the peripheral that hosts every service on the same GATT server.
+  public final static int ALL_SERVICES_INDEX = 4;
+
+  // Listed after the built in peripherals.
+  private List<String> mProfiles;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_peripherals_list);
+    mProfiles = ProfileLoader.listProfiles(this);
+    ArrayList<String> names = new ArrayList<>(Arrays.asList(PERIPHERALS_NAMES));
+    for (String profile : mProfiles) {
+      names.add(ProfileLoader.getDisplayName(profile));
+    }
     ArrayAdapter<String> adapter = new ArrayAdapter<>(this,
         /* layout for the list item */ android.R.layout.simple_list_item_1,
         /* id of the TextView to use */ android.R.id.text1,
-        /* values for the list */ PERIPHERALS_NAMES);
+        /* values for the list */ names);
     setListAdapter(adapter);
   }
 
@@ -45,7 +61,11 @@ public class Peripherals extends ListActivity {
     super.onListItemClick(l, v, position, id);
 
     Intent intent = new Intent(this, Peripheral.class);
-    intent.putExtra(EXTRA_PERIPHERAL_INDEX, position);
+    if (position < PERIPHERALS_NAMES.length) {
+      intent.putExtra(EXTRA_PERIPHERAL_INDEX, position);
+    } else {
+      intent.putExtra(EXTRA_PROFILE, mProfiles.get(position - PERIPHERALS_NAMES.length));
+    }
     startActivity(intent);
   }
 
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.content.Context;
+import android.util.JsonReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.Profile;
+import io.github.webbluetoothcg.bletestperipheral.gatt.StressProfile;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueFormat;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueGenerator;
+
+/**
+ * Loads the {@link Profile}s described by JSON files, either bundled in the assets/profiles
+ * directory or copied to the profiles directory of the app's external files, and the generated
+ * {@link StressProfile}s.
+ *
+ * A profile is compiled once and cached until its file changes, so opening it again, e.g. when the
+ * peripheral is recreated, doesn't parse it again.
+ */
+public class ProfileLoader {
+  public static final String PROFILES_DIRECTORY = "profiles";
+  private static final String ASSET_PREFIX = "asset:";
+  // Followed by the number of services, characteristics per service and descriptors per
+  // characteristic, e.g. stress:32x8x2.
+  private static final String STRESS_PREFIX = "stress:";
+  private static final String DEFAULT_STRESS_SOURCE = STRESS_PREFIX + "32x8x2";
+  private static final String JSON_EXTENSION = ".json";
+  // Base UUID of the 16 and 32 bit UUIDs of the Bluetooth SIG.
+  private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";
+
+  private static final long DEFAULT_INTERVAL_MILLIS = 1000;
+  private static final long DEFAULT_PERIOD_MILLIS = 60000;
+  private static final double DEFAULT_MAX = 100;
+
+  // Compiled profiles by source.
+  private static final HashMap<String, CachedProfile> sCache = new HashMap<>();
+
+  private static class CachedProfile {
+    final Profile profile;
+    // Of the file the profile was compiled from, 0 for assets.
+    final long lastModified;
+    final long length;
+
+    CachedProfile(Profile profile, long lastModified, long length) {
+      this.profile = profile;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+
+  private ProfileLoader() {
+  }
+
+  /**
+   * @return The sources of the bundled profiles followed by the ones in the app's external files,
+   * in alphabetical order of file name, and a stress profile. Sources are the argument of
+   * {@link #load}.
+   */
+  public static List<String> listProfiles(Context context) {
+    ArrayList<String> sources = new ArrayList<>();
+    try {
+      String[] assets = context.getAssets().list(PROFILES_DIRECTORY);
+      if (assets != null) {
+        Arrays.sort(assets);
+        for (String asset : assets) {
+          if (asset.endsWith(JSON_EXTENSION)) {
+            sources.add(ASSET_PREFIX + PROFILES_DIRECTORY + "/" + asset);
+          }
+        }
+      }
+    } catch (IOException e) {
+      // No bundled profiles.
+    }
+    File directory = context.getExternalFilesDir(PROFILES_DIRECTORY);
+    File[] files = directory == null ? null : directory.listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.getName().endsWith(JSON_EXTENSION)) {
+          sources.add(file.getPath());
+        }
+      }
+    }
+    sources.add(DEFAULT_STRESS_SOURCE);
+    return sources;
+  }
+
+  /**
+   * @return The name to list the profile under: its file name without the extension, or Stress
+   * and the counts of a stress profile.
+   */
+  public static String getDisplayName(String source) {
+    if (source.startsWith(STRESS_PREFIX)) {
+      return "Stress " + source.substring(STRESS_PREFIX.length());
+    }
+    String name = source.substring(source.lastIndexOf('/') + 1);
+    return name.endsWith(JSON_EXTENSION)
+        ? name.substring(0, name.length() - JSON_EXTENSION.length()) : name;
+  }
+
+  /**
+   * @param source One of {@link #listProfiles}, the path of a JSON file, or stress: followed by
+   * the number of services, characteristics per service and descriptors per characteristic, e.g.
+   * stress:200x10x2.
+   * @throws IOException If the profile can't be read or isn't valid.
+   */
+  public static Profile load(Context context, String source) throws IOException {
+    File file = null;
+    long lastModified = 0;
+    long length = 0;
+    if (!source.startsWith(ASSET_PREFIX) && !source.startsWith(STRESS_PREFIX)) {
+      file = new File(source);
+      lastModified = file.lastModified();
+      length = file.length();
+    }
+    synchronized (sCache) {
+      CachedProfile cached = sCache.get(source);
+      if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+        return cached.profile;
+      }
+    }
+    Profile profile;
+    if (source.startsWith(STRESS_PREFIX)) {
+      profile = buildStressProfile(source);
+    } else {
+      InputStream input = file == null
+          ? context.getAssets().open(source.substring(ASSET_PREFIX.length()))
+          : new FileInputStream(file);
+      try (JsonReader reader = new JsonReader(new InputStreamReader(input, "UTF-8"))) {
+        profile = readProfile(reader, getDisplayName(source));
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        // Thrown by the builders for values and attributes that aren't valid, and by JsonReader
+        // for values of the wrong type.
+        throw new IOException(source + ": " + e.getMessage(), e);
+      }
+    }
+    synchronized (sCache) {
+      sCache.put(source, new CachedProfile(profile, lastModified, length));
+    }
+    return profile;
+  }
+
+  private static Profile buildStressProfile(String source) throws IOException {
+    String[] counts = source.substring(STRESS_PREFIX.length()).split("x");
+    if (counts.length != 3) {
+      throw new IOException(source + ": expected " + STRESS_PREFIX
+          + "<services>x<characteristics>x<descriptors>");
+    }
+    try {
+      return StressProfile.build(Integer.parseInt(counts[0]), Integer.parseInt(counts[1]),
+          Integer.parseInt(counts[2]));
+    } catch (IllegalArgumentException e) {
+      // Also thrown by parseInt() for counts that aren't numbers.
+      throw new IOException(source + ": " + e.getMessage(), e);
+    }
+  }
+
+  private static Profile readProfile(JsonReader reader, String defaultName) throws IOException {
+    String name = defaultName;
+    Profile.Builder builder = new Profile.Builder();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "name":
+          name = reader.nextString();
+          break;
+        case "services":
+          reader.beginArray();
+          while (reader.hasNext()) {
+            readService(reader, builder);
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    Profile profile = builder.build(name);
+    if (profile.getServices().isEmpty()) {
+      throw new IOException("Profile " + name + " has no services");
+    }
+    return profile;
+  }
+
+  private static void readService(JsonReader reader, Profile.Builder builder) throws IOException {
+    UUID uuid = null;
+    String label = null;
+    // Set once the service was added, after which its own fields can't change anymore.
+    boolean added = false;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String key = reader.nextName();
+      switch (key) {
+        case "uuid":
+          checkNotAdded(added, "Service", label, key, "characteristics");
+          uuid = parseUuid(reader.nextString());
+          break;
+        case "name":
+          checkNotAdded(added, "Service", label, key, "characteristics");
+          label = reader.nextString();
+          break;
+        case "characteristics":
+          if (uuid == null) {
+            throw new IOException("Service " + label + ": uuid must come before characteristics");
+          }
+          if (added) {
+            throw new IOException("Service " + label + ": characteristics listed twice");
+          }
+          builder.addService(uuid, label);
+          added = true;
+          reader.beginArray();
+          while (reader.hasNext()) {
+            readCharacteristic(reader, builder);
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (!added) {
+      // A service without characteristics.
+      if (uuid == null) {
+        throw new IOException("Service " + label + " has no uuid");
+      }
+      builder.addService(uuid, label);
+    }
+  }
+
+  private static void readCharacteristic(JsonReader reader, Profile.Builder builder)
+      throws IOException {
+    UUID uuid = null;
+    String label = null;
+    int properties = 0;
+    ValueFormat format = ValueFormat.HEX;
+    String value = null;
+    ValueGenerator generator = null;
+    // Set once the characteristic was added, after which its own fields can't change anymore.
+    boolean added = false;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String key = reader.nextName();
+      switch (key) {
+        case "uuid":
+          checkNotAdded(added, "Characteristic", label, key, "descriptors");
+          uuid = parseUuid(reader.nextString());
+          break;
+        case "name":
+          checkNotAdded(added, "Characteristic", label, key, "descriptors");
+          label = reader.nextString();
+          break;
+        case "properties":
+          checkNotAdded(added, "Characteristic", label, key, "descriptors");
+          properties = readProperties(reader);
+          break;
+        case "format":
+          checkNotAdded(added, "Characteristic", label, key, "descriptors");
+          format = parseFormat(reader.nextString());
+          break;
+        case "value":
+          checkNotAdded(added, "Characteristic", label, key, "descriptors");
+          // Numbers are returned as written.
+          value = reader.nextString();
+          break;
+        case "generator":
+          checkNotAdded(added, "Characteristic", label, key, "descriptors");
+          generator = readGenerator(reader);
+          break;
+        case "descriptors":
+          if (uuid == null) {
+            throw new IOException("Characteristic " + label
+                + ": uuid, properties, format and value must come before descriptors");
+          }
+          if (added) {
+            throw new IOException("Characteristic " + label + ": descriptors listed twice");
+          }
+          builder.addCharacteristic(uuid, label, properties, format,
+              value == null ? null : format.parse(value), generator);
+          added = true;
+          reader.beginArray();
+          while (reader.hasNext()) {
+            readDescriptor(reader, builder);
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (!added) {
+      if (uuid == null) {
+        throw new IOException("Characteristic " + label + " has no uuid");
+      }
+      builder.addCharacteristic(uuid, label, properties, format,
+          value == null ? null : format.parse(value), generator);
+    }
+  }
+
+  private static void readDescriptor(JsonReader reader, Profile.Builder builder)
+      throws IOException {
+    UUID uuid = null;
+    String label = null;
+    ValueFormat format = ValueFormat.HEX;
+    String value = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "uuid":
+          uuid = parseUuid(reader.nextString());
+          break;
+        case "name":
+          label = reader.nextString();
+          break;
+        case "format":
+          format = parseFormat(reader.nextString());
+          break;
+        case "value":
+          // Numbers are returned as written.
+          value = reader.nextString();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (uuid == null) {
+      throw new IOException("Descriptor " + label + " has no uuid");
+    }
+    builder.addDescriptor(uuid, label, format, value == null ? null : format.parse(value));
+  }
+
+  /**
+   * Rejects a field that comes after the children of its attribute, as the attribute was already
+   * added without it.
+   */
+  private static void checkNotAdded(boolean added, String kind, String label, String key,
+      String children) throws IOException {
+    if (added) {
+      throw new IOException(kind + " " + label + ": " + key + " must come before " + children);
+    }
+  }
+
+  private static int readProperties(JsonReader reader) throws IOException {
+    int properties = 0;
+    reader.beginArray();
+    while (reader.hasNext()) {
+      String property = reader.nextString();
+      switch (property) {
+        case "read":
+          properties |= Attribute.PROPERTY_READ;
+          break;
+        case "write":
+          properties |= Attribute.PROPERTY_WRITE;
+          break;
+        case "writeWithoutResponse":
+          properties |= Attribute.PROPERTY_WRITE_NO_RESPONSE;
+          break;
+        case "notify":
+          properties |= Attribute.PROPERTY_NOTIFY;
+          break;
+        case "indicate":
+          properties |= Attribute.PROPERTY_INDICATE;
+          break;
+        default:
+          throw new IOException("Unknown property " + property);
+      }
+    }
+    reader.endArray();
+    return properties;
+  }
+
+  private static ValueGenerator readGenerator(JsonReader reader) throws IOException {
+    ValueGenerator.Type type = null;
+    long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    double min = 0;
+    double max = DEFAULT_MAX;
+    Double start = null;
+    double step = 1;
+    long periodMillis = DEFAULT_PERIOD_MILLIS;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "type":
+          String name = reader.nextString();
+          try {
+            type = ValueGenerator.Type.valueOf(name.toUpperCase(Locale.US));
+          } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown generator " + name);
+          }
+          break;
+        case "interval":
+          intervalMillis = reader.nextLong();
+          break;
+        case "min":
+          min = reader.nextDouble();
+          break;
+        case "max":
+          max = reader.nextDouble();
+          break;
+        case "start":
+          start = reader.nextDouble();
+          break;
+        case "step":
+          step = reader.nextDouble();
+          break;
+        case "period":
+          periodMillis = reader.nextLong();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (type == null) {
+      throw new IOException("Generator without a type");
+    }
+    return new ValueGenerator(type, intervalMillis, min, max, start == null ? min : start, step,
+        periodMillis);
+  }
+
+  private static ValueFormat parseFormat(String name) throws IOException {
+    ValueFormat format = ValueFormat.fromName(name);
+    if (format == null) {
+      throw new IOException("Unknown format " + name);
+    }
+    return format;
+  }
+
+  /**
+   * @param text A UUID, or the 16 or 32 bit UUID of the Bluetooth SIG in hexadecimal.
+   */
+  private static UUID parseUuid(String text) throws IOException {
+    try {
+      if (text.length() == 4) {
+        return UUID.fromString("0000" + text + BASE_UUID_SUFFIX);
+      } else if (text.length() == 8) {
+        return UUID.fromString(text + BASE_UUID_SUFFIX);
+      }
+      return UUID.fromString(text);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid UUID " + text);
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Bundle;
+import android.os.ParcelUuid;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.Profile;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueFormat;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueGenerator;
+
+/**
+ * Hosts a service of a {@link Profile}: shows the value of every characteristic, accepts the
+ * writes that match their format and updates the characteristics that have a generator,
+ * notifying them if they support it.
+ */
+public class ProfileServiceFragment extends ServiceFragment {
+  private static final String ARGUMENT_SERVICE_INDEX = "SERVICE_INDEX";
+
+  private ServiceFragmentDelegate mDelegate;
+  private Profile mProfile;
+  private Attribute mService;
+  private BluetoothGattService mGattService;
+  // Profile attribute of each characteristic of mGattService. Built in setProfile() and only read
+  // afterwards.
+  private final HashMap<BluetoothGattCharacteristic, Attribute> mAttributes = new HashMap<>();
+  // Rebuilt by onCreateView(), so it is only used on the UI thread.
+  private final HashMap<BluetoothGattCharacteristic, TextView> mValueViews = new HashMap<>();
+
+  /**
+   * @param serviceIndex Index of the service in {@link Profile#getServices()}.
+   */
+  public static ProfileServiceFragment newInstance(int serviceIndex) {
+    ProfileServiceFragment fragment = new ProfileServiceFragment();
+    Bundle arguments = new Bundle();
+    arguments.putInt(ARGUMENT_SERVICE_INDEX, serviceIndex);
+    fragment.setArguments(arguments);
+    return fragment;
+  }
+
+  /**
+   * Builds the service from the profile. Must be called before the service is used, including
+   * after the fragment is recreated.
+   */
+  public void setProfile(Profile profile) {
+    // A retained fragment already serves this profile; a new mGattService would not be the one
+    // the GATT server has.
+    if (profile == mProfile) {
+      return;
+    }
+    mProfile = profile;
+    mService = profile.getServices().get(
+        getArguments().getInt(ARGUMENT_SERVICE_INDEX, /* default */ 0));
+    mGattService = new BluetoothGattService(mService.getUuid(),
+        BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    mAttributes.clear();
+    for (Attribute attribute : profile.getDatabase().getChildren(mService)) {
+      int permissions = 0;
+      if (attribute.hasProperty(Attribute.PROPERTY_READ)) {
+        permissions |= BluetoothGattCharacteristic.PERMISSION_READ;
+      }
+      if (attribute.hasProperty(Attribute.PROPERTY_WRITE)
+          || attribute.hasProperty(Attribute.PROPERTY_WRITE_NO_RESPONSE)) {
+        permissions |= BluetoothGattCharacteristic.PERMISSION_WRITE;
+      }
+      // Attribute properties have the values of the BluetoothGattCharacteristic ones.
+      BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+          attribute.getUuid(), attribute.getProperties(), permissions);
+      characteristic.setValue(Profile.copyValue(attribute));
+      for (Attribute descriptorAttribute : profile.getDatabase().getChildren(attribute)) {
+        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
+            descriptorAttribute.getUuid(),
+            BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        descriptor.setValue(Profile.copyValue(descriptorAttribute));
+        characteristic.addDescriptor(descriptor);
+      }
+      mGattService.addCharacteristic(characteristic);
+      mAttributes.put(characteristic, attribute);
+    }
+  }
+
+  @Override
+  public View onCreateView(LayoutInflater inflater, ViewGroup container,
+      Bundle savedInstanceState) {
+    View view = inflater.inflate(R.layout.fragment_profile_service, container, false);
+    ((TextView) view.findViewById(R.id.textView_serviceName))
+        .setText(mProfile.getLabel(mService));
+    ViewGroup characteristicsLayout = (ViewGroup) view.findViewById(R.id.layout_characteristics);
+    mValueViews.clear();
+    for (BluetoothGattCharacteristic characteristic : mGattService.getCharacteristics()) {
+      View item = inflater.inflate(R.layout.item_profile_characteristic, characteristicsLayout,
+          false);
+      ((TextView) item.findViewById(R.id.textView_characteristicName))
+          .setText(mProfile.getLabel(mAttributes.get(characteristic)));
+      TextView valueView = (TextView) item.findViewById(R.id.textView_characteristicValue);
+      mValueViews.put(characteristic, valueView);
+      characteristicsLayout.addView(item);
+      updateValueView(characteristic);
+    }
+    return view;
+  }
+
+  @Override
+  public void onAttach(Activity activity) {
+    super.onAttach(activity);
+    try {
+      mDelegate = (ServiceFragmentDelegate) activity;
+    } catch (ClassCastException e) {
+      throw new ClassCastException(activity.toString()
+          + " must implement ServiceFragmentDelegate");
+    }
+  }
+
+  @Override
+  public void onDetach() {
+    super.onDetach();
+    mDelegate = null;
+  }
+
+  @Override
+  public void setValueSources(ValueSources valueSources) {
+    super.setValueSources(valueSources);
+    // The generators run from the first attachment until the service stops being served, so a
+    // recreated activity finds them running.
+    for (BluetoothGattCharacteristic characteristic : mGattService.getCharacteristics()) {
+      ValueGenerator generator = mProfile.getGenerator(mAttributes.get(characteristic));
+      if (generator != null && valueSources.get(characteristic) == null) {
+        valueSources.start(characteristic,
+            new Generate(valueSources, characteristic, generator),
+            generator.getIntervalMillis(), TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  @Override
+  public BluetoothGattService getBluetoothGattService() {
+    return mGattService;
+  }
+
+  @Override
+  public ParcelUuid getServiceUUID() {
+    return new ParcelUuid(mService.getUuid());
+  }
+
+  @Override
+  public int checkCharacteristicWrite(BluetoothGattCharacteristic characteristic, int offset,
+      byte[] value) {
+    ValueFormat format = mProfile.getFormat(mAttributes.get(characteristic));
+    if (offset > characteristic.getValue().length) {
+      return BluetoothGatt.GATT_INVALID_OFFSET;
+    }
+    if (format.isNumeric() && offset + value.length != format.getLength()) {
+      return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+    }
+    return BluetoothGatt.GATT_SUCCESS;
+  }
+
+  @Override
+  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset,
+      byte[] value) {
+    int status = checkCharacteristicWrite(characteristic, offset, value);
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      return status;
+    }
+    byte[] currentValue = characteristic.getValue();
+    byte[] newValue = Arrays.copyOf(currentValue, offset + value.length);
+    System.arraycopy(value, 0, newValue, offset, value.length);
+    characteristic.setValue(newValue);
+    updateValueView(characteristic);
+    return BluetoothGatt.GATT_SUCCESS;
+  }
+
+  @Override
+  public void notificationsEnabled(BluetoothGattCharacteristic characteristic, boolean indicate) {
+    // sendNotificationToDevices() only notifies the devices that subscribed.
+  }
+
+  @Override
+  public void notificationsDisabled(BluetoothGattCharacteristic characteristic) {
+  }
+
+  private void updateValueView(final BluetoothGattCharacteristic characteristic) {
+    ServiceFragmentDelegate delegate = mDelegate;
+    if (delegate == null) {
+      return;
+    }
+    final ValueFormat format = mProfile.getFormat(mAttributes.get(characteristic));
+    // Called from the GATT event loop and the value sources too, so the view is looked up once the
+    // update runs on the UI thread.
+    delegate.postUiUpdate(characteristic, new Runnable() {
+      @Override
+      public void run() {
+        TextView valueView = mValueViews.get(characteristic);
+        if (valueView != null) {
+          valueView.setText(format.toString(characteristic.getValue()));
+        }
+      }
+    });
+  }
+
+  /**
+   * Sets the next value of a characteristic, from the scheduler of the value sources.
+   */
+  private class Generate implements Runnable {
+    private final ValueSources mSources;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final ValueGenerator mGenerator;
+    private final ValueFormat mFormat;
+    private final boolean mNotify;
+    // Encoded here and published as a copy, as the GATT event loop may be reading the
+    // characteristic's current value.
+    private final byte[] mBuffer;
+    private long mTick;
+
+    Generate(ValueSources sources, BluetoothGattCharacteristic characteristic,
+        ValueGenerator generator) {
+      mSources = sources;
+      mCharacteristic = characteristic;
+      mGenerator = generator;
+      mFormat = mProfile.getFormat(mAttributes.get(characteristic));
+      mNotify = (characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_NOTIFY
+          | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
+      mBuffer = new byte[mFormat.getLength()];
+    }
+
+    @Override
+    public void run() {
+      mFormat.encode(mBuffer, /* offset */ 0, mGenerator.getValue(mTick++));
+      mCharacteristic.setValue(mBuffer.clone());
+      if (mNotify) {
+        mSources.sendNotificationToDevices(mCharacteristic);
+      }
+      updateValueView(mCharacteristic);
+    }
+  }
+}
@@ -16,16 +16,72 @@
 
 package io.github.webbluetoothcg.bletestperipheral;
 
+import android.app.Activity;
 import android.app.Fragment;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
+import android.os.Bundle;
 import android.os.ParcelUuid;
 
 public abstract class ServiceFragment extends Fragment{
+  // Runs the sources of the values of the service. Kept while the activity is recreated, as the
+  // fragment is retained. Null until the fragment is first attached to PeripheralService.
+  private volatile ValueSources mValueSources;
+
   public abstract BluetoothGattService getBluetoothGattService();
   public abstract ParcelUuid getServiceUUID();
 
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    // PeripheralService keeps serving the BluetoothGattService of the fragment across
+    // configuration changes, so the fragment, and with it the service, must not be recreated.
+    setRetainInstance(true);
+  }
+
+  /**
+   * Function to give the ServiceFragment the sources that update the values of its service, which
+   * keep running while the activity is stopped or recreated. Called on the UI thread every time
+   * the fragment is attached to PeripheralService, before any request reaches it.
+   *
+   * The ServiceFragment should start the sources that must always run, unless they already are.
+   * @param valueSources Sources of the service serving the fragment's BluetoothGattService
+   */
+  public void setValueSources(ValueSources valueSources) {
+    mValueSources = valueSources;
+  }
+
+  /**
+   * @return The sources set by {@link #setValueSources}, or null before the fragment is first
+   * attached.
+   */
+  protected ValueSources getValueSources() {
+    return mValueSources;
+  }
+
+  /**
+   * Runs the action on the UI thread, unless the fragment is not attached to an activity by then.
+   * Requests can still reach a fragment after PeripheralService detaches it, as its activity goes
+   * away.
+   */
+  protected void runOnUiThread(final Runnable action) {
+    Activity activity = getActivity();
+    if (activity == null) {
+      return;
+    }
+    activity.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        if (getActivity() != null) {
+          action.run();
+        }
+      }
+    });
+  }
+
   /**
    * Function to communicate to the ServiceFragment that a device wants to write to a
    * characteristic.
@@ -41,6 +97,41 @@ public abstract class ServiceFragment extends Fragment{
     throw new UnsupportedOperationException("Method writeCharacteristic not overridden");
   };
 
+  /**
+   * Function to communicate to the ServiceFragment that a device wants to write to a
+   * characteristic, for fragments that keep state per device.
+   *
+   * Calls {@link #writeCharacteristic(BluetoothGattCharacteristic, int, byte[])} by default.
+   * @param device Device that writes the value
+   */
+  public int writeCharacteristic(BluetoothDevice device,
+      BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+    return writeCharacteristic(characteristic, offset, value);
+  }
+
+  /**
+   * Function to check a value that a device wants to write to a characteristic, without writing
+   * it, so that a Reliable Write can be rejected before any of its characteristics is written.
+   *
+   * Fragments that can reject a write must override it and their writeCharacteristic must accept
+   * the values it accepts. Accepts every value by default.
+   * @return {@link android.bluetooth.BluetoothGatt#GATT_SUCCESS} if the value would be written, the
+   * error writeCharacteristic would return otherwise.
+   */
+  public int checkCharacteristicWrite(BluetoothGattCharacteristic characteristic, int offset,
+      byte[] value) {
+    return BluetoothGatt.GATT_SUCCESS;
+  }
+
+  /**
+   * Calls {@link #checkCharacteristicWrite(BluetoothGattCharacteristic, int, byte[])} by default.
+   * @param device Device that writes the value
+   */
+  public int checkCharacteristicWrite(BluetoothDevice device,
+      BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+    return checkCharacteristicWrite(characteristic, offset, value);
+  }
+
   /**
    * Function to notify to the ServiceFragment that a device has disabled notifications on a
    * CCC descriptor.
@@ -64,11 +155,57 @@ public abstract class ServiceFragment extends Fragment{
     throw new UnsupportedOperationException("Method notificationsEnabled not overridden");
   };
 
+  /**
+   * Function to notify to the ServiceFragment that the ATT_MTU of a device changed.
+   *
+   * Called from the GATT event loop. Does nothing by default.
+   * @param device Device whose ATT_MTU changed
+   * @param mtu New ATT_MTU
+   */
+  public void onMtuChanged(BluetoothDevice device, int mtu) {
+  }
+
+  /**
+   * Function to notify to the ServiceFragment that a notification or indication sent through
+   * {@link ServiceFragmentDelegate#sendNotificationToDevices} left the device.
+   *
+   * Called from the GATT event loop. Does nothing by default.
+   * @param device Device the notification was sent to
+   * @param characteristic Characteristic notified
+   * @param status {@link android.bluetooth.BluetoothGatt#GATT_SUCCESS} if it was sent successfully
+   */
+  public void onNotificationSent(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+      int status) {
+  }
+
   /**
    * This interface must be implemented by activities that contain a ServiceFragment to allow an
    * interaction in the fragment to be communicated to the activity.
    */
   public interface ServiceFragmentDelegate {
+    /**
+     * Sends the current value of the characteristic to every device subscribed to it. Can be
+     * called from any thread.
+     */
     void sendNotificationToDevices(BluetoothGattCharacteristic characteristic);
+
+    /**
+     * @return The ATT_MTU negotiated with the device, or the default ATT_MTU of 23 if it didn't
+     * negotiate one.
+     */
+    int getMtu(BluetoothDevice device);
+
+    /**
+     * @return The smallest ATT_MTU of the connected devices, or the default ATT_MTU of 23 if there
+     * are none. A notification of ATT_MTU - 3 bytes fits every connected device.
+     */
+    int getMinimumMtu();
+
+    /**
+     * Runs the update on the UI thread at the next display frame. An update that is still waiting
+     * is replaced by a new update with the same key, e.g. the View being updated, so only the
+     * latest one runs. Can be called from any thread.
+     */
+    void postUiUpdate(Object key, Runnable update);
   }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+/**
+ * Measures a stream of packets that start with a uint32 sequence number, e.g. the writes of one
+ * device.
+ *
+ * Counts bytes and packets, detects lost packets from gaps in the sequence numbers and keeps a
+ * histogram of the inter-arrival time, the time between consecutive packets. The sender's
+ * timestamps aren't known, so this is not a latency: it shows how evenly the packets arrive.
+ */
+public class ThroughputMeter {
+  private static final long UINT32_MASK = 0xffffffffL;
+  private static final long UINT32_HALF_RANGE = 1L << 31;
+
+  private final LatencyHistogram mInterArrivalHistogram = new LatencyHistogram();
+  private long mFirstPacketNanos;
+  private long mLastPacketNanos;
+  private long mBytes;
+  private long mPackets;
+  private long mLost;
+  private long mOutOfOrder;
+  // -1 until the first packet arrives.
+  private long mExpectedSequence = -1;
+
+  /**
+   * @param sequence uint32 sequence number of the packet.
+   * @param length Length of the packet in bytes.
+   */
+  public synchronized void onPacket(long nowNanos, long sequence, int length) {
+    sequence &= UINT32_MASK;
+    if (mExpectedSequence == -1) {
+      mFirstPacketNanos = nowNanos;
+    } else {
+      mInterArrivalHistogram.recordNanos(nowNanos - mLastPacketNanos);
+    }
+    mLastPacketNanos = nowNanos;
+    mBytes += length;
+    mPackets++;
+    if (mExpectedSequence == -1) {
+      mExpectedSequence = (sequence + 1) & UINT32_MASK;
+      return;
+    }
+    long gap = (sequence - mExpectedSequence) & UINT32_MASK;
+    if (gap < UINT32_HALF_RANGE) {
+      mLost += gap;
+      mExpectedSequence = (sequence + 1) & UINT32_MASK;
+    } else {
+      // Older than the expected sequence number: a duplicate or a reordered packet.
+      mOutOfOrder++;
+    }
+  }
+
+  public synchronized double getBytesPerSecond() {
+    long elapsedNanos = mLastPacketNanos - mFirstPacketNanos;
+    return elapsedNanos <= 0 ? 0 : mBytes * 1e9 / elapsedNanos;
+  }
+
+  public synchronized long getBytes() {
+    return mBytes;
+  }
+
+  public synchronized long getPackets() {
+    return mPackets;
+  }
+
+  public synchronized long getLost() {
+    return mLost;
+  }
+
+  public synchronized long getOutOfOrder() {
+    return mOutOfOrder;
+  }
+
+  public LatencyHistogram getInterArrivalHistogram() {
+    return mInterArrivalHistogram;
+  }
+
+  public synchronized void reset() {
+    mFirstPacketNanos = 0;
+    mLastPacketNanos = 0;
+    mBytes = 0;
+    mPackets = 0;
+    mLost = 0;
+    mOutOfOrder = 0;
+    mExpectedSequence = -1;
+    mInterArrivalHistogram.reset();
+  }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Bundle;
+import android.os.ParcelUuid;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.Switch;
+import android.widget.TextView;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class ThroughputServiceFragment extends ServiceFragment {
+  /**
+   * Custom service used to measure how fast a central can send and receive data.
+   *   - Source Characteristic:
+   *       - Read value to get the last payload.
+   *       - Subscribe to notifications to receive payloads as fast as the connection allows. A
+   *         new payload is sent to each central every time the previous one to that central
+   *         leaves the device. Every payload starts with a uint32 sequence number, counted per
+   *         central, so the central can detect lost notifications.
+   *     - CCCD Descriptor:
+   *       - Read/Write to get/set notifications.
+   *     - User Description Descriptor:
+   *       - Read/Write to get/set the description of the Characteristic.
+   *   - Sink Characteristic:
+   *       - Write Without Response payloads that start with a uint32 sequence number, counted
+   *         per central. The peripheral measures bytes/s, lost packets and the inter-arrival
+   *         time of the writes of each central.
+   *   - Control Point Characteristic:
+   *       - Write an opcode to start/stop the source, reset the measurements or set the length
+   *         of the source payloads. See the OPCODE constants.
+   *   - Results Characteristic:
+   *       - Read value to get the measurements as uint32 values: sink bytes/s, sink packets and
+   *         sink lost packets summed over the centrals, source notifications and median source
+   *         latency in microseconds.
+   */
+  private static final UUID THROUGHPUT_SERVICE_UUID = UUID
+      .fromString("7a6c0001-3d4e-4c8a-9a4f-5b1e8c2d9f30");
+
+  private static final UUID SOURCE_UUID = UUID
+      .fromString("7a6c0002-3d4e-4c8a-9a4f-5b1e8c2d9f30");
+  private static final String SOURCE_DESCRIPTION = "Notifies sequence numbered payloads " +
+      "while streaming.";
+
+  private static final UUID SINK_UUID = UUID
+      .fromString("7a6c0003-3d4e-4c8a-9a4f-5b1e8c2d9f30");
+
+  private static final UUID CONTROL_POINT_UUID = UUID
+      .fromString("7a6c0004-3d4e-4c8a-9a4f-5b1e8c2d9f30");
+  private static final int OPCODE_START_SOURCE = 0x01;
+  private static final int OPCODE_STOP_SOURCE = 0x02;
+  private static final int OPCODE_RESET = 0x03;
+  /**
+   * Followed by the payload length as a uint16. 0 sizes the payloads to each central to its
+   * ATT_MTU - 3, up to 512 bytes.
+   */
+  private static final int OPCODE_SET_PAYLOAD_LENGTH = 0x04;
+
+  private static final UUID RESULTS_UUID = UUID
+      .fromString("7a6c0005-3d4e-4c8a-9a4f-5b1e8c2d9f30");
+  private static final int RESULTS_LENGTH = 5 * 4;
+
+  private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private BluetoothGattService mThroughputService;
+  private BluetoothGattCharacteristic mSourceCharacteristic;
+  private BluetoothGattCharacteristic mSinkCharacteristic;
+  private BluetoothGattCharacteristic mControlPointCharacteristic;
+  private BluetoothGattCharacteristic mResultsCharacteristic;
+
+  private ServiceFragmentDelegate mDelegate;
+
+  // Streams on the value sources, whether an activity shows it or not.
+  private final ThroughputSource mSource;
+
+  // Sink, keyed by device address since each device numbers its writes.
+  private final ConcurrentHashMap<String, ThroughputMeter> mSinkMeters =
+      new ConcurrentHashMap<>();
+  // Guarded by this. Limits the updates of the results and the views, across devices.
+  private long mLastSinkReportNanos;
+
+  private TextView mTextViewPayloadLength;
+  private TextView mTextViewThroughput;
+  private TextView mTextViewSourceLatency;
+  private TextView mTextViewSink;
+  private TextView mTextViewSinkInterArrival;
+  private Switch mSwitchStream;
+  private final OnCheckedChangeListener mStreamSwitchListener = new OnCheckedChangeListener() {
+    @Override
+    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+      // The switch also follows the Control Point, in which case the state already matches.
+      if (isChecked && !mSource.isStreaming()) {
+        if (!startStreaming()) {
+          buttonView.setChecked(false);
+        }
+      } else if (!isChecked) {
+        mSource.stop();
+      }
+    }
+  };
+
+  private final OnClickListener mResetButtonListener = new OnClickListener() {
+    @Override
+    public void onClick(View v) {
+      resetMeasurements();
+    }
+  };
+
+  public ThroughputServiceFragment() {
+    mSourceCharacteristic =
+        new BluetoothGattCharacteristic(SOURCE_UUID,
+            BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+            BluetoothGattCharacteristic.PERMISSION_READ);
+
+    mSourceCharacteristic.addDescriptor(
+        Peripheral.getClientCharacteristicConfigurationDescriptor());
+
+    mSourceCharacteristic.addDescriptor(
+        Peripheral.getCharacteristicUserDescriptionDescriptor(SOURCE_DESCRIPTION));
+
+    mSinkCharacteristic =
+        new BluetoothGattCharacteristic(SINK_UUID,
+            BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+            BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+    mControlPointCharacteristic =
+        new BluetoothGattCharacteristic(CONTROL_POINT_UUID,
+            BluetoothGattCharacteristic.PROPERTY_WRITE,
+            BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+    mResultsCharacteristic =
+        new BluetoothGattCharacteristic(RESULTS_UUID,
+            BluetoothGattCharacteristic.PROPERTY_READ,
+            BluetoothGattCharacteristic.PERMISSION_READ);
+    mResultsCharacteristic.setValue(new byte[RESULTS_LENGTH]);
+
+    mThroughputService = new BluetoothGattService(THROUGHPUT_SERVICE_UUID,
+        BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    mThroughputService.addCharacteristic(mSourceCharacteristic);
+    mThroughputService.addCharacteristic(mSinkCharacteristic);
+    mThroughputService.addCharacteristic(mControlPointCharacteristic);
+    mThroughputService.addCharacteristic(mResultsCharacteristic);
+
+    mSource = new ThroughputSource(mSourceCharacteristic, new ThroughputSource.Listener() {
+      @Override
+      public void onReport(final double bytesPerSecond, final double notificationsPerSecond) {
+        updateResults();
+        ServiceFragmentDelegate delegate = mDelegate;
+        if (delegate == null) {
+          // The activity is being recreated.
+          return;
+        }
+        delegate.postUiUpdate(mTextViewThroughput, new Runnable() {
+          @Override
+          public void run() {
+            mTextViewThroughput.setText(getString(R.string.status_throughput, bytesPerSecond,
+                notificationsPerSecond));
+            mTextViewSourceLatency.setText(getHistogramString(mSource.getLatencyHistogram()));
+          }
+        });
+      }
+    });
+  }
+
+  @Override
+  public View onCreateView(LayoutInflater inflater, ViewGroup container,
+      Bundle savedInstanceState) {
+
+    View view = inflater.inflate(R.layout.fragment_throughput, container, false);
+    mTextViewPayloadLength = (TextView) view.findViewById(R.id.textView_payloadLength);
+    mTextViewThroughput = (TextView) view.findViewById(R.id.textView_throughput);
+    mTextViewSourceLatency = (TextView) view.findViewById(R.id.textView_sourceLatency);
+    mTextViewSink = (TextView) view.findViewById(R.id.textView_sink);
+    mTextViewSinkInterArrival = (TextView) view.findViewById(R.id.textView_sinkInterArrival);
+    mSwitchStream = (Switch) view.findViewById(R.id.switch_stream);
+    // The fragment is retained and the source keeps streaming while the activity is recreated.
+    mSwitchStream.setChecked(mSource.isStreaming());
+    mSwitchStream.setOnCheckedChangeListener(mStreamSwitchListener);
+    Button resetButton = (Button) view.findViewById(R.id.button_reset);
+    resetButton.setOnClickListener(mResetButtonListener);
+
+    updatePayloadLengthView();
+    return view;
+  }
+
+  @Override
+  public void onAttach(Activity activity) {
+    super.onAttach(activity);
+    try {
+      mDelegate = (ServiceFragmentDelegate) activity;
+    } catch (ClassCastException e) {
+      throw new ClassCastException(activity.toString()
+          + " must implement ServiceFragmentDelegate");
+    }
+  }
+
+  @Override
+  public void onDetach() {
+    super.onDetach();
+    mDelegate = null;
+  }
+
+  @Override
+  public void setValueSources(ValueSources valueSources) {
+    super.setValueSources(valueSources);
+    valueSources.register(mSourceCharacteristic, mSource);
+  }
+
+  @Override
+  public BluetoothGattService getBluetoothGattService() {
+    return mThroughputService;
+  }
+
+  @Override
+  public ParcelUuid getServiceUUID() {
+    return new ParcelUuid(THROUGHPUT_SERVICE_UUID);
+  }
+
+  /////////////////////
+  ////// Source ///////
+  /////////////////////
+
+  /**
+   * @return False if the fragment isn't attached to PeripheralService yet.
+   */
+  private boolean startStreaming() {
+    ValueSources sources = getValueSources();
+    if (sources == null) {
+      return false;
+    }
+    mSource.start(sources);
+    return true;
+  }
+
+  ///////////////////
+  ////// Sink ///////
+  ///////////////////
+
+  @Override
+  public int checkCharacteristicWrite(BluetoothDevice device,
+      BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+    if (offset != 0) {
+      return BluetoothGatt.GATT_INVALID_OFFSET;
+    }
+    if (characteristic == mSinkCharacteristic) {
+      return value.length < ThroughputSource.SEQUENCE_NUMBER_LENGTH
+          ? BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH : BluetoothGatt.GATT_SUCCESS;
+    }
+    if (characteristic == mControlPointCharacteristic) {
+      return checkControlPoint(value);
+    }
+    return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+  }
+
+  private static int checkControlPoint(byte[] value) {
+    if (value.length == 0) {
+      return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+    }
+    switch (value[0]) {
+      case OPCODE_START_SOURCE:
+      case OPCODE_STOP_SOURCE:
+      case OPCODE_RESET:
+        return BluetoothGatt.GATT_SUCCESS;
+      case OPCODE_SET_PAYLOAD_LENGTH:
+        if (value.length != 3) {
+          return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        int payloadLength = getPayloadLength(value);
+        if (payloadLength != 0 && (payloadLength < ThroughputSource.SEQUENCE_NUMBER_LENGTH
+            || payloadLength > ThroughputSource.MAX_PAYLOAD_LENGTH)) {
+          return BluetoothGatt.GATT_FAILURE;
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+      default:
+        return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+    }
+  }
+
+  private static int getPayloadLength(byte[] setPayloadLength) {
+    return (setPayloadLength[1] & 0xff) | ((setPayloadLength[2] & 0xff) << 8);
+  }
+
+  @Override
+  public int writeCharacteristic(BluetoothDevice device,
+      BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+    int status = checkCharacteristicWrite(device, characteristic, offset, value);
+    if (status != BluetoothGatt.GATT_SUCCESS) {
+      return status;
+    }
+    if (characteristic == mSinkCharacteristic) {
+      writeSink(device, value);
+    } else {
+      writeControlPoint(value);
+    }
+    return BluetoothGatt.GATT_SUCCESS;
+  }
+
+  private void writeSink(BluetoothDevice device, byte[] value) {
+    long now = System.nanoTime();
+    long sequenceNumber = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getInt()
+        & 0xffffffffL;
+    ThroughputMeter meter = mSinkMeters.get(device.getAddress());
+    if (meter == null) {
+      ThroughputMeter newMeter = new ThroughputMeter();
+      meter = mSinkMeters.putIfAbsent(device.getAddress(), newMeter);
+      if (meter == null) {
+        meter = newMeter;
+      }
+    }
+    meter.onPacket(now, sequenceNumber, value.length);
+    synchronized (this) {
+      if (now - mLastSinkReportNanos < REPORT_INTERVAL_NANOS) {
+        return;
+      }
+      mLastSinkReportNanos = now;
+    }
+    updateResults();
+    updateSinkViews();
+  }
+
+  private void writeControlPoint(byte[] value) {
+    switch (value[0]) {
+      case OPCODE_START_SOURCE:
+        if (!mSource.isStreaming()) {
+          startStreaming();
+        }
+        setStreamSwitchChecked(true);
+        break;
+      case OPCODE_STOP_SOURCE:
+        mSource.stop();
+        setStreamSwitchChecked(false);
+        break;
+      case OPCODE_RESET:
+        resetMeasurements();
+        break;
+      case OPCODE_SET_PAYLOAD_LENGTH:
+        mSource.setFixedPayloadLength(getPayloadLength(value));
+        postUpdatePayloadLengthView();
+        break;
+    }
+  }
+
+  private void resetMeasurements() {
+    mSinkMeters.clear();
+    mSource.reset();
+    updateResults();
+    updateSinkViews();
+  }
+
+  /**
+   * Stores the current measurements in the Results Characteristic.
+   */
+  private void updateResults() {
+    SinkTotals sink = getSinkTotals();
+    ByteBuffer results = ByteBuffer.allocate(RESULTS_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    results.putInt((int) sink.bytesPerSecond);
+    results.putInt((int) sink.packets);
+    results.putInt((int) sink.lost);
+    results.putInt((int) mSource.getNotifications());
+    results.putInt((int) mSource.getLatencyHistogram().getPercentileMicros(50));
+    mResultsCharacteristic.setValue(results.array());
+  }
+
+  private static class SinkTotals {
+    double bytesPerSecond;
+    long packets;
+    long lost;
+    final LatencyHistogram interArrivalHistogram = new LatencyHistogram();
+  }
+
+  /**
+   * @return The sink measurements summed over the devices that wrote to it since the last reset.
+   */
+  private SinkTotals getSinkTotals() {
+    SinkTotals totals = new SinkTotals();
+    for (ThroughputMeter meter : mSinkMeters.values()) {
+      totals.bytesPerSecond += meter.getBytesPerSecond();
+      totals.packets += meter.getPackets();
+      totals.lost += meter.getLost();
+      totals.interArrivalHistogram.add(meter.getInterArrivalHistogram());
+    }
+    return totals;
+  }
+
+  ////////////////
+  ////// UI //////
+  ////////////////
+
+  private void updateSinkViews() {
+    ServiceFragmentDelegate delegate = mDelegate;
+    if (delegate == null) {
+      return;
+    }
+    delegate.postUiUpdate(mTextViewSink, new Runnable() {
+      @Override
+      public void run() {
+        SinkTotals sink = getSinkTotals();
+        mTextViewSink.setText(getString(R.string.status_sink, sink.bytesPerSecond,
+            sink.packets, sink.lost));
+        mTextViewSinkInterArrival.setText(getHistogramString(sink.interArrivalHistogram));
+        mTextViewSourceLatency.setText(getHistogramString(mSource.getLatencyHistogram()));
+      }
+    });
+  }
+
+  private String getHistogramString(LatencyHistogram histogram) {
+    return getString(R.string.status_histogram,
+        histogram.getPercentileMicros(50) / 1000.0,
+        histogram.getPercentileMicros(99) / 1000.0,
+        histogram.getMaxMicros() / 1000.0);
+  }
+
+  private void setStreamSwitchChecked(final boolean checked) {
+    ServiceFragmentDelegate delegate = mDelegate;
+    if (delegate == null) {
+      return;
+    }
+    delegate.postUiUpdate(mSwitchStream, new Runnable() {
+      @Override
+      public void run() {
+        mSwitchStream.setChecked(checked);
+      }
+    });
+  }
+
+  @Override
+  public void onMtuChanged(BluetoothDevice device, int mtu) {
+    postUpdatePayloadLengthView();
+  }
+
+  private void postUpdatePayloadLengthView() {
+    ServiceFragmentDelegate delegate = mDelegate;
+    if (delegate == null) {
+      return;
+    }
+    delegate.postUiUpdate(mTextViewPayloadLength, new Runnable() {
+      @Override
+      public void run() {
+        updatePayloadLengthView();
+      }
+    });
+  }
+
+  /**
+   * Shows the length of the payloads to the device with the smallest ATT_MTU.
+   */
+  private void updatePayloadLengthView() {
+    ServiceFragmentDelegate delegate = mDelegate;
+    int mtu = delegate == null ? Peripheral.DEFAULT_ATT_MTU : delegate.getMinimumMtu();
+    int fixedPayloadLength = mSource.getFixedPayloadLength();
+    if (fixedPayloadLength != 0) {
+      mTextViewPayloadLength.setText(getString(R.string.status_fixedPayloadLength,
+          fixedPayloadLength, mtu));
+    } else {
+      mTextViewPayloadLength.setText(getString(R.string.status_payloadLength,
+          Math.min(mtu - ThroughputSource.NOTIFICATION_HEADER_LENGTH,
+              ThroughputSource.MAX_PAYLOAD_LENGTH),
+          mtu));
+    }
+  }
+
+  @Override
+  public void notificationsEnabled(BluetoothGattCharacteristic characteristic, boolean indicate) {
+    // The source starts the stream of the new subscriber.
+  }
+
+  @Override
+  public void notificationsDisabled(BluetoothGattCharacteristic characteristic) {
+  }
+}
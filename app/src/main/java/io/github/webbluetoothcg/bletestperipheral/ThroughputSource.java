@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.PreparedWriteQueue;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ValueCodec;
+
+/**
+ * Source Characteristic of the Throughput service. While streaming, each subscribed device has
+ * its own stream: a new payload is sent to a device every time the previous one left for that
+ * device, and every payload starts with a uint32 sequence number counted per device. Measures the
+ * notifications sent and how long they waited to leave.
+ *
+ * Registered with the {@link ValueSources}, so it keeps streaming while the activity is stopped
+ * or recreated; {@link ThroughputServiceFragment} starts and stops it and shows its measurements.
+ *
+ * Can be used from any thread.
+ */
+public class ThroughputSource implements ValueSources.Stream {
+  /**
+   * Opcode (1 byte) and Attribute Handle (2 bytes) of a Handle Value Notification.
+   */
+  public static final int NOTIFICATION_HEADER_LENGTH = 3;
+  public static final int SEQUENCE_NUMBER_LENGTH = 4;
+  public static final int MAX_PAYLOAD_LENGTH = PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH;
+  private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public interface Listener {
+    /**
+     * Called on the GATT event loop about once per second while notifications are sent.
+     */
+    void onReport(double bytesPerSecond, double notificationsPerSecond);
+  }
+
+  /**
+   * The stream to one device. Guarded by the ThroughputSource.
+   */
+  private static class DeviceStream {
+    long sequenceNumber;
+    int payloadLength;
+    long payloadQueuedNanos;
+  }
+
+  private final BluetoothGattCharacteristic mCharacteristic;
+  private final Listener mListener;
+  private volatile boolean mStreaming;
+  // Guarded by this. 0 to size the payloads to ATT_MTU - 3.
+  private int mFixedPayloadLength;
+  // Filled with a fixed pattern; each payload is a prefix of it with the sequence number in front.
+  private final byte[] mPayload = new byte[MAX_PAYLOAD_LENGTH];
+  // Keyed by device address.
+  private final HashMap<String, DeviceStream> mStreams = new HashMap<>();
+  private long mReportStartNanos;
+  private long mReportBytes;
+  private int mReportNotifications;
+  private long mNotifications;
+  private final LatencyHistogram mLatencyHistogram = new LatencyHistogram();
+
+  public ThroughputSource(BluetoothGattCharacteristic characteristic, Listener listener) {
+    mCharacteristic = characteristic;
+    mListener = listener;
+    for (int i = SEQUENCE_NUMBER_LENGTH; i < mPayload.length; i++) {
+      mPayload[i] = (byte) i;
+    }
+    mCharacteristic.setValue(
+        Arrays.copyOf(mPayload, Peripheral.DEFAULT_ATT_MTU - NOTIFICATION_HEADER_LENGTH));
+  }
+
+  /**
+   * Starts a stream to every connected device; the devices that aren't subscribed yet get theirs
+   * when they subscribe. Keeps streaming until stopped.
+   */
+  public void start(ValueSources sources) {
+    synchronized (this) {
+      mStreams.clear();
+      mReportStartNanos = System.nanoTime();
+      mReportBytes = 0;
+      mReportNotifications = 0;
+    }
+    mStreaming = true;
+    for (BluetoothDevice device : sources.getConnectedDevices()) {
+      sendNextPayload(sources, device);
+    }
+  }
+
+  /**
+   * Stops streaming. The payloads already queued are still sent.
+   */
+  public void stop() {
+    mStreaming = false;
+  }
+
+  public boolean isStreaming() {
+    return mStreaming;
+  }
+
+  /**
+   * @param length Length of the payloads, or 0 to size them to ATT_MTU - 3 of each device, up to
+   * {@link #MAX_PAYLOAD_LENGTH}.
+   */
+  public synchronized void setFixedPayloadLength(int length) {
+    mFixedPayloadLength = length;
+  }
+
+  public synchronized int getFixedPayloadLength() {
+    return mFixedPayloadLength;
+  }
+
+  /**
+   * @return The number of notifications sent successfully since the last reset.
+   */
+  public synchronized long getNotifications() {
+    return mNotifications;
+  }
+
+  /**
+   * @return How long the payloads waited, from being queued to leaving the device.
+   */
+  public LatencyHistogram getLatencyHistogram() {
+    return mLatencyHistogram;
+  }
+
+  public void reset() {
+    mLatencyHistogram.reset();
+    synchronized (this) {
+      mNotifications = 0;
+    }
+  }
+
+  @Override
+  public void onNotificationSent(ValueSources sources, BluetoothDevice device, int status) {
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      reportNotificationSent(device);
+    }
+    if (mStreaming) {
+      sendNextPayload(sources, device);
+    }
+  }
+
+  @Override
+  public void onSubscribed(ValueSources sources, BluetoothDevice device) {
+    synchronized (this) {
+      mStreams.remove(device.getAddress());
+    }
+    // Nothing is in flight to the new subscriber, so start its stream.
+    if (mStreaming) {
+      sendNextPayload(sources, device);
+    }
+  }
+
+  /**
+   * Writes the next sequence number of the device at the start of the payload, sized to fit in a
+   * notification to the device unless a fixed length was set, and sends it to that device only.
+   */
+  private void sendNextPayload(ValueSources sources, BluetoothDevice device) {
+    int mtu = sources.getMtu(device);
+    synchronized (this) {
+      DeviceStream stream = mStreams.get(device.getAddress());
+      if (stream == null) {
+        stream = new DeviceStream();
+        mStreams.put(device.getAddress(), stream);
+      }
+      stream.payloadLength = mFixedPayloadLength != 0 ? mFixedPayloadLength
+          : Math.min(mtu - NOTIFICATION_HEADER_LENGTH, MAX_PAYLOAD_LENGTH);
+      stream.payloadLength = Math.max(stream.payloadLength, SEQUENCE_NUMBER_LENGTH);
+      ValueCodec.setUint32(mPayload, /* offset */ 0, stream.sequenceNumber);
+      stream.sequenceNumber = (stream.sequenceNumber + 1) & 0xffffffffL;
+      stream.payloadQueuedNanos = System.nanoTime();
+      // A copy for this device only, which the notification carries until it goes out. Queued
+      // under the lock, so the payloads of a device are queued in the order of their numbers.
+      sources.sendNotification(device, mCharacteristic,
+          Arrays.copyOf(mPayload, stream.payloadLength));
+    }
+  }
+
+  private void reportNotificationSent(BluetoothDevice device) {
+    final double bytesPerSecond;
+    final double notificationsPerSecond;
+    synchronized (this) {
+      DeviceStream stream = mStreams.get(device.getAddress());
+      if (stream == null) {
+        // Restarted since the payload was queued.
+        return;
+      }
+      long now = System.nanoTime();
+      mLatencyHistogram.recordNanos(now - stream.payloadQueuedNanos);
+      mNotifications++;
+      mReportBytes += stream.payloadLength;
+      mReportNotifications++;
+      long elapsedNanos = now - mReportStartNanos;
+      if (elapsedNanos < REPORT_INTERVAL_NANOS) {
+        return;
+      }
+      bytesPerSecond = mReportBytes * 1e9 / elapsedNanos;
+      notificationsPerSecond = mReportNotifications * 1e9 / elapsedNanos;
+      mReportStartNanos = now;
+      mReportBytes = 0;
+      mReportNotifications = 0;
+    }
+    mListener.onReport(bytesPerSecond, notificationsPerSecond);
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the samples of a recorded trace one at a time, so traces of any length can be replayed
+ * without loading them in memory.
+ */
+public interface TraceReader extends Closeable {
+  /**
+   * Moves to the next sample.
+   *
+   * @return false at the end of the trace.
+   * @throws IOException if the trace can't be read or is malformed.
+   */
+  boolean next() throws IOException;
+
+  /**
+   * @return Timestamp of the current sample in microseconds. Only the differences between
+   * timestamps are meaningful.
+   */
+  long getTimestampMicros();
+
+  /**
+   * @return Value of the current sample.
+   */
+  double getValue();
+}
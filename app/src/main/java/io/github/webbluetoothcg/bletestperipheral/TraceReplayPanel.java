@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.app.Fragment;
+import android.view.View;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.EditText;
+import android.widget.Switch;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+
+import io.github.webbluetoothcg.bletestperipheral.ServiceFragment.ServiceFragmentDelegate;
+
+/**
+ * Controls of layout/trace_replay.xml, which replay a trace from the traces directory of the
+ * app's external files into a sink, usually a characteristic.
+ *
+ * Belongs to a retained fragment, so the replay keeps running while the activity is stopped or
+ * recreated, until it ends or is stopped.
+ *
+ * Only used on the UI thread.
+ */
+public class TraceReplayPanel {
+  public static final String TRACES_DIRECTORY = "traces";
+  private static final String INITIAL_SPEED = "1";
+
+  private final Fragment mFragment;
+  private final TraceReplayer.Sink mSink;
+  private EditText mEditTextFile;
+  private EditText mEditTextSpeed;
+  private Switch mSwitchReplay;
+  private TextView mTextViewStatus;
+  private TraceReplayer mReplayer;
+
+  private final OnCheckedChangeListener mReplaySwitchListener = new OnCheckedChangeListener() {
+    @Override
+    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+      if (!isChecked) {
+        stop();
+        return;
+      }
+      if (!start()) {
+        buttonView.setChecked(false);
+      }
+    }
+  };
+
+  public TraceReplayPanel(Fragment fragment, TraceReplayer.Sink sink) {
+    mFragment = fragment;
+    mSink = sink;
+  }
+
+  /**
+   * Binds the controls included in the fragment's view.
+   */
+  public void onCreateView(View view) {
+    mEditTextFile = (EditText) view.findViewById(R.id.editText_traceFile);
+    mEditTextSpeed = (EditText) view.findViewById(R.id.editText_traceSpeed);
+    mEditTextSpeed.setText(INITIAL_SPEED);
+    mSwitchReplay = (Switch) view.findViewById(R.id.switch_traceReplay);
+    mTextViewStatus = (TextView) view.findViewById(R.id.textView_traceReplay);
+    // The view is recreated with the activity, but the replay isn't.
+    if (mReplayer != null && mReplayer.isFinished()) {
+      mReplayer = null;
+    }
+    boolean replaying = mReplayer != null;
+    mEditTextFile.setEnabled(!replaying);
+    mEditTextSpeed.setEnabled(!replaying);
+    mSwitchReplay.setChecked(replaying);
+    mSwitchReplay.setOnCheckedChangeListener(mReplaySwitchListener);
+  }
+
+  /**
+   * Stops the replay, if any.
+   */
+  public void stop() {
+    if (mReplayer != null) {
+      mReplayer.stop();
+      mReplayer = null;
+    }
+    mEditTextFile.setEnabled(true);
+    mEditTextSpeed.setEnabled(true);
+  }
+
+  private boolean start() {
+    double speed;
+    try {
+      speed = Double.parseDouble(mEditTextSpeed.getText().toString());
+    } catch (NumberFormatException e) {
+      speed = -1;
+    }
+    if (speed < 0) {
+      Toast.makeText(mFragment.getActivity(), R.string.traceSpeedInvalid, Toast.LENGTH_SHORT)
+          .show();
+      return false;
+    }
+    File directory = mFragment.getActivity().getExternalFilesDir(TRACES_DIRECTORY);
+    File file = new File(directory, mEditTextFile.getText().toString().trim());
+    TraceReader reader;
+    try {
+      reader = TraceReplayer.open(file);
+    } catch (IOException e) {
+      Toast.makeText(mFragment.getActivity(),
+          mFragment.getString(R.string.traceOpenFailed, file.getPath()), Toast.LENGTH_LONG).show();
+      return false;
+    }
+    mReplayer = new TraceReplayer(reader, speed == 0 ? TraceReplayer.MAX_SPEED : speed, mSink,
+        new TraceReplayer.Listener() {
+          @Override
+          public void onProgress(TraceReplayer replayer) {
+            postStatus(replayer, /* finished */ false);
+          }
+
+          @Override
+          public void onFinished(TraceReplayer replayer, IOException error) {
+            postStatus(replayer, /* finished */ true);
+          }
+        });
+    mEditTextFile.setEnabled(false);
+    mEditTextSpeed.setEnabled(false);
+    mTextViewStatus.setText(null);
+    mReplayer.start();
+    return true;
+  }
+
+  private void postStatus(final TraceReplayer replayer, final boolean finished) {
+    // The activity of the fragment may have been recreated since the replay started.
+    ServiceFragmentDelegate delegate = (ServiceFragmentDelegate) mFragment.getActivity();
+    if (delegate == null) {
+      return;
+    }
+    final long samples = replayer.getSamples();
+    final double achievedSpeed = replayer.getAchievedSpeed();
+    final long latenessP99Micros = replayer.getLateness().getPercentileMicros(99);
+    final long latenessMaxMicros = replayer.getLateness().getMaxMicros();
+    delegate.postUiUpdate(mTextViewStatus, new Runnable() {
+      @Override
+      public void run() {
+        if (replayer != mReplayer) {
+          // Stopped or replaced since.
+          return;
+        }
+        String requestedSpeed = replayer.getSpeed() == TraceReplayer.MAX_SPEED
+            ? mFragment.getString(R.string.traceMaxSpeed)
+            : mFragment.getString(R.string.traceSpeed, replayer.getSpeed());
+        mTextViewStatus.setText(mFragment.getString(R.string.status_traceReplay, samples,
+            achievedSpeed, requestedSpeed, latenessP99Micros, latenessMaxMicros));
+        if (finished) {
+          mSwitchReplay.setChecked(false);
+        }
+      }
+    });
+  }
+}
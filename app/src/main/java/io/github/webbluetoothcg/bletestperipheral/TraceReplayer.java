@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace on its own thread, handing each sample to a sink at the time it was recorded,
+ * scaled by the speed.
+ *
+ * Sample times are computed from the start of the replay on the monotonic clock, so a sample
+ * that is handed late doesn't delay the following ones. How late each sample is handed is
+ * recorded, and with the achieved speed tells how faithful the replay is to the trace.
+ */
+public class TraceReplayer {
+  private static final String TAG = TraceReplayer.class.getCanonicalName();
+  /**
+   * Replays the samples one after the other, without waiting.
+   */
+  public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+  private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public interface Sink {
+    /**
+     * Called on the replay thread for every sample.
+     */
+    void onSample(double value);
+  }
+
+  public interface Listener {
+    /**
+     * Called on the replay thread at most once per second.
+     */
+    void onProgress(TraceReplayer replayer);
+
+    /**
+     * Called on the replay thread when the replay ends or is stopped.
+     *
+     * @param error Why the trace couldn't be read, or null.
+     */
+    void onFinished(TraceReplayer replayer, IOException error);
+  }
+
+  private final TraceReader mReader;
+  private final double mSpeed;
+  private final Sink mSink;
+  private final Listener mListener;
+  private final Thread mThread;
+  private final LatencyHistogram mLateness = new LatencyHistogram();
+  private volatile boolean mStopped;
+  private volatile boolean mFinished;
+  private volatile long mSamples;
+  private volatile long mTraceElapsedMicros;
+  private volatile long mElapsedNanos;
+
+  /**
+   * @param speed How many times faster than recorded to replay, or MAX_SPEED.
+   */
+  public TraceReplayer(TraceReader reader, double speed, Sink sink, Listener listener) {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("Speed must be positive: " + speed);
+    }
+    mReader = reader;
+    mSpeed = speed;
+    mSink = sink;
+    mListener = listener;
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+        replay();
+      }
+    }, "TraceReplayer");
+  }
+
+  /**
+   * Opens a CSV or binary trace, depending on whether it starts with the magic of binary
+   * traces. The file is streamed, not loaded in memory.
+   */
+  public static TraceReader open(File file) throws IOException {
+    InputStream input = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    try {
+      byte[] magic = new byte[BinaryTraceReader.MAGIC.length];
+      input.mark(magic.length);
+      int length = input.read(magic);
+      input.reset();
+      if (length == magic.length && BinaryTraceReader.isBinaryTrace(magic)) {
+        return new BinaryTraceReader(input);
+      }
+      return new CsvTraceReader(new InputStreamReader(input, Charset.forName("UTF-8")));
+    } catch (IOException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  public void start() {
+    mThread.start();
+  }
+
+  /**
+   * Stops the replay. The sample being handed to the sink, if any, is the last one. Can be called
+   * from any thread.
+   */
+  public void stop() {
+    mStopped = true;
+    mThread.interrupt();
+  }
+
+  /**
+   * @return True once the replay ended or was stopped and the trace is closed.
+   */
+  public boolean isFinished() {
+    return mFinished;
+  }
+
+  public double getSpeed() {
+    return mSpeed;
+  }
+
+  public long getSamples() {
+    return mSamples;
+  }
+
+  /**
+   * @return How late each sample was handed to the sink. Empty at MAX_SPEED.
+   */
+  public LatencyHistogram getLateness() {
+    return mLateness;
+  }
+
+  /**
+   * @return Trace time replayed per unit of real time. Equal to the speed for a perfect replay.
+   */
+  public double getAchievedSpeed() {
+    long elapsedNanos = mElapsedNanos;
+    return elapsedNanos <= 0 ? 0 : mTraceElapsedMicros * 1000.0 / elapsedNanos;
+  }
+
+  private void replay() {
+    IOException error = null;
+    try {
+      long startNanos = System.nanoTime();
+      long lastProgressNanos = startNanos;
+      boolean first = true;
+      long firstTimestampMicros = 0;
+      while (!mStopped && mReader.next()) {
+        if (first) {
+          firstTimestampMicros = mReader.getTimestampMicros();
+          first = false;
+        }
+        // Timestamps that go back in time are replayed immediately.
+        long traceMicros = Math.max(mTraceElapsedMicros,
+            mReader.getTimestampMicros() - firstTimestampMicros);
+        if (mSpeed != MAX_SPEED) {
+          long dueNanos = startNanos + (long) (traceMicros * 1000 / mSpeed);
+          long waitNanos;
+          while (!mStopped && (waitNanos = dueNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(waitNanos);
+          }
+          if (mStopped) {
+            break;
+          }
+          mLateness.recordNanos(System.nanoTime() - dueNanos);
+        }
+        mSink.onSample(mReader.getValue());
+        mSamples++;
+        mTraceElapsedMicros = traceMicros;
+        long nowNanos = System.nanoTime();
+        mElapsedNanos = nowNanos - startNanos;
+        if (nowNanos - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+          lastProgressNanos = nowNanos;
+          mListener.onProgress(this);
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to replay trace", e);
+      error = e;
+    } finally {
+      try {
+        mReader.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close trace", e);
+      }
+    }
+    mFinished = true;
+    mListener.onFinished(this, error);
+  }
+}
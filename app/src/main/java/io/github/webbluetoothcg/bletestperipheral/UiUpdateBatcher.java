@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Runs UI updates posted from any thread at most once per display frame.
+ *
+ * Updates are keyed, usually by the View they update. Posting an update replaces the update
+ * with the same key that is still waiting for the next frame, so a status updated thousands of
+ * times per second is only redrawn once per frame.
+ */
+public class UiUpdateBatcher {
+  private final Choreographer mChoreographer;
+  private final LinkedHashMap<Object, Runnable> mPendingUpdates = new LinkedHashMap<>();
+  private boolean mFrameScheduled;
+
+  private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      ArrayList<Runnable> updates;
+      synchronized (UiUpdateBatcher.this) {
+        updates = new ArrayList<>(mPendingUpdates.values());
+        mPendingUpdates.clear();
+        mFrameScheduled = false;
+      }
+      for (Runnable update : updates) {
+        update.run();
+      }
+    }
+  };
+
+  /**
+   * Must be created on the UI thread.
+   */
+  public UiUpdateBatcher() {
+    mChoreographer = Choreographer.getInstance();
+  }
+
+  public void post(Object key, Runnable update) {
+    synchronized (this) {
+      mPendingUpdates.put(key, update);
+      if (mFrameScheduled) {
+        return;
+      }
+      mFrameScheduled = true;
+    }
+    mChoreographer.postFrameCallback(mFrameCallback);
+  }
+
+  /**
+   * Drops the updates waiting for the next frame.
+   */
+  public synchronized void cancel() {
+    mPendingUpdates.clear();
+    mChoreographer.removeFrameCallback(mFrameCallback);
+    mFrameScheduled = false;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the sources of characteristic values: periodic ones, such as the streams and generators
+ * of the services, on a PeriodicScheduler, and streams that send a new value whenever the
+ * previous one left the device.
+ *
+ * Owned by PeripheralService, so the sources keep running while the activity is stopped or
+ * recreated, until they are stopped or the GATT server stops serving their services. The
+ * fragments start and stop them and only show their state.
+ *
+ * Can be used from any thread.
+ */
+public class ValueSources {
+
+  /**
+   * A source paced by its own notifications rather than by a period.
+   */
+  public interface Stream {
+    /**
+     * Called on the GATT event loop when a notification of the characteristic of the stream left
+     * the device, or failed.
+     *
+     * @param status {@link android.bluetooth.BluetoothGatt#GATT_SUCCESS} if it was sent
+     * successfully
+     */
+    void onNotificationSent(ValueSources sources, BluetoothDevice device, int status);
+
+    /**
+     * Called on the GATT event loop when a device subscribes to the characteristic of the stream.
+     */
+    void onSubscribed(ValueSources sources, BluetoothDevice device);
+  }
+
+  private final PeripheralService mService;
+  private final PeriodicScheduler mScheduler = new PeriodicScheduler();
+  private final ConcurrentHashMap<Object, PeriodicScheduler.Task> mTasks =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<BluetoothGattCharacteristic, Stream> mStreams =
+      new ConcurrentHashMap<>();
+
+  ValueSources(PeripheralService service) {
+    mService = service;
+  }
+
+  /**
+   * Runs the source every period, starting now, in place of the source with the same key.
+   *
+   * @param key Identifies the source, usually the characteristic it updates.
+   * @return The scheduled task, to read its jitter.
+   */
+  public PeriodicScheduler.Task start(Object key, Runnable source, long period, TimeUnit unit) {
+    PeriodicScheduler.Task task = mScheduler.schedule(source, period, unit);
+    PeriodicScheduler.Task previous = mTasks.put(key, task);
+    if (previous != null) {
+      previous.cancel();
+    }
+    return task;
+  }
+
+  /**
+   * Stops the source with the key. A tick that is running finishes.
+   *
+   * @return The task of the source, or null if it wasn't running.
+   */
+  public PeriodicScheduler.Task stop(Object key) {
+    PeriodicScheduler.Task task = mTasks.remove(key);
+    if (task != null) {
+      task.cancel();
+    }
+    return task;
+  }
+
+  /**
+   * @return The task of the source with the key, or null if it isn't running.
+   */
+  public PeriodicScheduler.Task get(Object key) {
+    PeriodicScheduler.Task task = mTasks.get(key);
+    // The scheduler cancels a source that throws.
+    return task == null || task.isCancelled() ? null : task;
+  }
+
+  /**
+   * Tells the stream about the notifications of the characteristic, in place of the stream it
+   * had, if any.
+   */
+  public void register(BluetoothGattCharacteristic characteristic, Stream stream) {
+    mStreams.put(characteristic, stream);
+  }
+
+  /**
+   * Sends the current value of the characteristic to every device subscribed to it, whether an
+   * activity is attached or not.
+   */
+  public void sendNotificationToDevices(BluetoothGattCharacteristic characteristic) {
+    mService.sendNotificationToDevices(characteristic);
+  }
+
+  /**
+   * Sends a value of the characteristic that is meant for the device only, if it is subscribed to
+   * the characteristic, whether an activity is attached or not. The value of the characteristic
+   * doesn't change, so the streams of different devices don't overwrite each other's values.
+   */
+  public void sendNotification(BluetoothDevice device,
+      BluetoothGattCharacteristic characteristic, byte[] value) {
+    mService.sendNotification(device, characteristic, value);
+  }
+
+  /**
+   * @return The devices connected when called.
+   */
+  public List<BluetoothDevice> getConnectedDevices() {
+    return mService.getConnectedDevices();
+  }
+
+  /**
+   * @return The ATT_MTU negotiated with the device, or the default ATT_MTU if it didn't negotiate
+   * one.
+   */
+  public int getMtu(BluetoothDevice device) {
+    return mService.getMtu(device);
+  }
+
+  void onNotificationSent(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+      int status) {
+    Stream stream = mStreams.get(characteristic);
+    if (stream != null) {
+      stream.onNotificationSent(this, device, status);
+    }
+  }
+
+  void onSubscribed(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
+    Stream stream = mStreams.get(characteristic);
+    if (stream != null) {
+      stream.onSubscribed(this, device);
+    }
+  }
+
+  /**
+   * Stops every source, e.g. because the services they feed are no longer served.
+   */
+  void stopAll() {
+    for (Object key : mTasks.keySet()) {
+      stop(key);
+    }
+    mStreams.clear();
+  }
+
+  /**
+   * Stops every source for good.
+   */
+  void shutdown() {
+    stopAll();
+    mScheduler.shutdown();
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.AttributeDatabase;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ControlProtocol;
+import io.github.webbluetoothcg.bletestperipheral.gatt.ControlSession;
+import io.github.webbluetoothcg.bletestperipheral.gatt.FakeControlTarget;
+import io.github.webbluetoothcg.bletestperipheral.gatt.FakeGattServer;
+import io.github.webbluetoothcg.bletestperipheral.gatt.InMemoryAttributeHandler;
+import io.github.webbluetoothcg.bletestperipheral.gatt.NotificationQueue;
+
+/**
+ * A test harness updating a characteristic through the control protocol: a pipelined batch of
+ * SET_VALUE_AND_NOTIFY requests without response followed by a SYNC, served by a
+ * {@link ControlSession} on a {@link FakeGattServer}. Scores are requests per second.
+ */
+@State(Scope.Thread)
+public class ControlSessionBenchmark {
+  private static final String DEVICE = "00:11:22:33:44:55";
+  private static final int BATCH_SIZE = 1000;
+
+  private FakeGattServer mServer;
+  private FakeControlTarget mTarget;
+  private byte[] mBatch;
+  private int mBatchLength;
+  private final OutputStream mDiscardOutput = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  @Setup
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb"));
+    Attribute characteristic = builder.addCharacteristic(
+        UUID.fromString("00002A37-0000-1000-8000-00805f9b34fb"),
+        Attribute.PROPERTY_READ | Attribute.PROPERTY_NOTIFY, new byte[]{0, 60});
+    Attribute clientCharacteristicConfiguration = builder.addDescriptor(
+        Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, new byte[]{0, 0});
+    mServer = new FakeGattServer(builder.build(), new InMemoryAttributeHandler<String>(),
+        NotificationQueue.DEFAULT_MAX_DEPTH);
+    mServer.connect(DEVICE);
+    mServer.write(DEVICE, clientCharacteristicConfiguration.getHandle(), new byte[]{1, 0});
+    mTarget = new FakeControlTarget(mServer);
+
+    byte[] value = {0, 0};
+    mBatch = new byte[(BATCH_SIZE + 1) * (ControlProtocol.REQUEST_HEADER_LENGTH + 4)];
+    int offset = 0;
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      value[1] = (byte) i;
+      offset = ControlProtocol.putRequest(mBatch, offset,
+          ControlProtocol.SET_VALUE_AND_NOTIFY | ControlProtocol.FLAG_NO_RESPONSE,
+          characteristic.getHandle(), value);
+    }
+    mBatchLength = ControlProtocol.putRequest(mBatch, offset, ControlProtocol.SYNC);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public int setValueAndNotifyBatch() throws IOException {
+    new ControlSession(mTarget, new ByteArrayInputStream(mBatch, 0, mBatchLength),
+        mDiscardOutput).serve();
+    return mServer.acknowledgeNotifications();
+  }
+}
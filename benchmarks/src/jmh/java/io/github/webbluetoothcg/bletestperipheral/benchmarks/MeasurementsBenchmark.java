@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Measurements;
+
+/**
+ * Encoding of the values sent on every Heart Rate and Temperature Measurement.
+ */
+@State(Scope.Thread)
+public class MeasurementsBenchmark {
+  // Varies the input so the encoding can't be constant folded.
+  private int mHeartRate = 60;
+  private float mTemperature = 37.0f;
+  // Reused like the characteristic value the fragments encode into.
+  private final byte[] mHeartRateMeasurement =
+      new byte[Measurements.HEART_RATE_MEASUREMENT_LENGTH];
+  private final byte[] mTemperatureMeasurement =
+      new byte[Measurements.TEMPERATURE_MEASUREMENT_LENGTH];
+
+  @Benchmark
+  public byte[] heartRateMeasurement() {
+    mHeartRate = mHeartRate == 200 ? 60 : mHeartRate + 1;
+    return Measurements.heartRateMeasurement(mHeartRateMeasurement, mHeartRate,
+        /* energyExpended */ mHeartRate * 3);
+  }
+
+  @Benchmark
+  public byte[] temperatureMeasurement() {
+    mTemperature = mTemperature > 42.0f ? 35.0f : mTemperature + 0.1f;
+    return Measurements.temperatureMeasurement(mTemperatureMeasurement, mTemperature);
+  }
+}
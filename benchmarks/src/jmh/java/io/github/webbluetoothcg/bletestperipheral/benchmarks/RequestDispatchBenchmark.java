@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+
+import io.github.webbluetoothcg.bletestperipheral.gatt.Attribute;
+import io.github.webbluetoothcg.bletestperipheral.gatt.AttributeDatabase;
+import io.github.webbluetoothcg.bletestperipheral.gatt.FakeGattServer;
+import io.github.webbluetoothcg.bletestperipheral.gatt.InMemoryAttributeHandler;
+import io.github.webbluetoothcg.bletestperipheral.gatt.NotificationQueue;
+
+/**
+ * Requests going through the whole server path: {@link FakeGattServer} in place of the radio,
+ * the request handler, and an in-memory application in place of the fragments.
+ */
+@State(Scope.Thread)
+public class RequestDispatchBenchmark {
+  private static final String DEVICE = "00:11:22:33:44:55";
+  private static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+  private static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+  /**
+   * Number of devices subscribed to the characteristic in {@link #notifySubscribers()}.
+   */
+  @Param({"1", "8"})
+  public int subscribers;
+
+  private FakeGattServer mServer;
+  private Attribute mCharacteristic;
+  private Attribute mClientCharacteristicConfiguration;
+  private Attribute mUserDescription;
+  private byte[] mWriteValue;
+  private boolean mNotificationsEnabled;
+
+  @Setup
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb"));
+    mCharacteristic = builder.addCharacteristic(
+        UUID.fromString("00002A37-0000-1000-8000-00805f9b34fb"),
+        Attribute.PROPERTY_READ | Attribute.PROPERTY_WRITE | Attribute.PROPERTY_NOTIFY,
+        new byte[]{0b00001000, 60, 0, 0});
+    mClientCharacteristicConfiguration = builder.addDescriptor(
+        Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, new byte[]{0, 0});
+    mUserDescription = builder.addDescriptor(
+        UUID.fromString("00002901-0000-1000-8000-00805f9b34fb"),
+        "Used to send a heart rate measurement".getBytes());
+    mServer = new FakeGattServer(builder.build(), new InMemoryAttributeHandler<String>(),
+        NotificationQueue.DEFAULT_MAX_DEPTH);
+    mServer.connect(DEVICE);
+    for (int i = 1; i < subscribers; i++) {
+      String device = DEVICE + "/" + i;
+      mServer.connect(device);
+      mServer.write(device, mClientCharacteristicConfiguration.getHandle(),
+          ENABLE_NOTIFICATION_VALUE);
+    }
+    mServer.write(DEVICE, mClientCharacteristicConfiguration.getHandle(),
+        ENABLE_NOTIFICATION_VALUE);
+    mNotificationsEnabled = true;
+    mWriteValue = new byte[]{0b00001000, 70, 0, 0};
+  }
+
+  @Benchmark
+  public FakeGattServer.Response readCharacteristic() {
+    return mServer.read(DEVICE, mCharacteristic.getValueHandle(), /* offset */ 0);
+  }
+
+  @Benchmark
+  public FakeGattServer.Response writeCharacteristic() {
+    return mServer.write(DEVICE, mCharacteristic.getValueHandle(), mWriteValue);
+  }
+
+  @Benchmark
+  public FakeGattServer.Response readDescriptor() {
+    return mServer.read(DEVICE, mUserDescription.getHandle(), /* offset */ 0);
+  }
+
+  /**
+   * Parses a CCCD write and updates the subscription of the device.
+   */
+  @Benchmark
+  public FakeGattServer.Response writeClientCharacteristicConfiguration() {
+    mNotificationsEnabled = !mNotificationsEnabled;
+    return mServer.write(DEVICE, mClientCharacteristicConfiguration.getHandle(),
+        mNotificationsEnabled ? ENABLE_NOTIFICATION_VALUE : DISABLE_NOTIFICATION_VALUE);
+  }
+
+  /**
+   * Fans a value change out to the subscribed devices and acknowledges the notifications.
+   */
+  @Benchmark
+  public int notifySubscribers() {
+    if (!mNotificationsEnabled) {
+      mServer.write(DEVICE, mClientCharacteristicConfiguration.getHandle(),
+          ENABLE_NOTIFICATION_VALUE);
+      mNotificationsEnabled = true;
+    }
+    mServer.getRequestHandler().notifyValueChanged(mCharacteristic);
+    return mServer.acknowledgeNotifications();
+  }
+}
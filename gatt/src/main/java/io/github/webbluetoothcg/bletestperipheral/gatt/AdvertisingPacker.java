@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Fits the fields of an advertisement into the 31 bytes of the advertising data and the 31 bytes
+ * of the scan response, so advertising never fails with ADVERTISE_FAILED_DATA_TOO_LARGE.
+ *
+ * Fields are placed in priority order, each one in its preferred packet if it fits there and in
+ * the other one otherwise. Fields that fit in neither are dropped, so a list of service UUIDs is
+ * shortened by giving each UUID its own field. Sizes are computed the way the Android advertiser
+ * checks them: UUIDs of the same size share one AD structure, and connectable advertising data
+ * starts with a 3 byte Flags structure.
+ *
+ * Layouts are cached, so packing the fields of a peripheral again is a map lookup.
+ */
+public class AdvertisingPacker {
+  public static final int MAX_PAYLOAD_LENGTH = 31;
+  // Length and AD type.
+  public static final int FIELD_HEADER_LENGTH = 2;
+  public static final int FLAGS_LENGTH = FIELD_HEADER_LENGTH + 1;
+  public static final int TX_POWER_LEVEL_LENGTH = FIELD_HEADER_LENGTH + 1;
+  public static final int MANUFACTURER_ID_LENGTH = 2;
+  public static final int DEFAULT_MAX_CACHED_LAYOUTS = 16;
+
+  private static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805f9b34fbL;
+  private static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x1000L;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Something to advertise.
+   */
+  public static final class Field {
+    public enum Type {
+      TX_POWER_LEVEL,
+      SERVICE_UUID,
+      SERVICE_DATA,
+      MANUFACTURER_DATA,
+      DEVICE_NAME
+    }
+
+    private final Type mType;
+    private final UUID mUuid;
+    private final int mManufacturerId;
+    private final byte[] mData;
+    private final String mDeviceName;
+    private final boolean mPrefersScanResponse;
+
+    private Field(Type type, UUID uuid, int manufacturerId, byte[] data, String deviceName,
+        boolean prefersScanResponse) {
+      mType = type;
+      mUuid = uuid;
+      mManufacturerId = manufacturerId;
+      mData = data;
+      mDeviceName = deviceName;
+      mPrefersScanResponse = prefersScanResponse;
+    }
+
+    public static Field txPowerLevel() {
+      return new Field(Type.TX_POWER_LEVEL, null, 0, null, null, false);
+    }
+
+    public static Field serviceUuid(UUID uuid) {
+      return new Field(Type.SERVICE_UUID, uuid, 0, null, null, false);
+    }
+
+    public static Field serviceData(UUID uuid, byte[] data) {
+      return new Field(Type.SERVICE_DATA, uuid, 0, data.clone(), null, false);
+    }
+
+    public static Field manufacturerData(int manufacturerId, byte[] data) {
+      return new Field(Type.MANUFACTURER_DATA, null, manufacturerId, data.clone(), null, false);
+    }
+
+    /**
+     * The name is only used to compute the size of the field; the advertiser sends the name of the
+     * adapter. It goes in the scan response unless it only fits in the advertising data.
+     */
+    public static Field deviceName(String name) {
+      return new Field(Type.DEVICE_NAME, null, 0, null, name, true);
+    }
+
+    public Type getType() {
+      return mType;
+    }
+
+    public UUID getUuid() {
+      return mUuid;
+    }
+
+    public int getManufacturerId() {
+      return mManufacturerId;
+    }
+
+    public byte[] getData() {
+      return mData == null ? null : mData.clone();
+    }
+
+    public String getDeviceName() {
+      return mDeviceName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Field)) {
+        return false;
+      }
+      Field field = (Field) o;
+      return mType == field.mType
+          && (mUuid == null ? field.mUuid == null : mUuid.equals(field.mUuid))
+          && mManufacturerId == field.mManufacturerId
+          && Arrays.equals(mData, field.mData)
+          && (mDeviceName == null ? field.mDeviceName == null
+              : mDeviceName.equals(field.mDeviceName))
+          && mPrefersScanResponse == field.mPrefersScanResponse;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(new Object[]{mType, mUuid, mManufacturerId, mDeviceName,
+          mPrefersScanResponse}) * 31 + Arrays.hashCode(mData);
+    }
+
+    @Override
+    public String toString() {
+      switch (mType) {
+        case SERVICE_UUID:
+          return mType + " " + mUuid;
+        case SERVICE_DATA:
+          return mType + " " + mUuid + " " + mData.length + " bytes";
+        case MANUFACTURER_DATA:
+          return mType + " " + mManufacturerId + " " + mData.length + " bytes";
+        case DEVICE_NAME:
+          return mType + " " + mDeviceName;
+        default:
+          return mType.toString();
+      }
+    }
+  }
+
+  /**
+   * Where the fields of an advertisement go.
+   */
+  public static final class Layout {
+    private final List<Field> mAdvertisement;
+    private final List<Field> mScanResponse;
+    private final List<Field> mDropped;
+    private final int mAdvertisementLength;
+    private final int mScanResponseLength;
+
+    private Layout(List<Field> advertisement, List<Field> scanResponse, List<Field> dropped,
+        int advertisementLength, int scanResponseLength) {
+      mAdvertisement = Collections.unmodifiableList(advertisement);
+      mScanResponse = Collections.unmodifiableList(scanResponse);
+      mDropped = Collections.unmodifiableList(dropped);
+      mAdvertisementLength = advertisementLength;
+      mScanResponseLength = scanResponseLength;
+    }
+
+    public List<Field> getAdvertisement() {
+      return mAdvertisement;
+    }
+
+    public List<Field> getScanResponse() {
+      return mScanResponse;
+    }
+
+    /**
+     * @return The fields that fit in neither packet, in priority order.
+     */
+    public List<Field> getDropped() {
+      return mDropped;
+    }
+
+    /**
+     * @return Bytes of the advertising data, including the Flags of connectable advertising.
+     */
+    public int getAdvertisementLength() {
+      return mAdvertisementLength;
+    }
+
+    public int getScanResponseLength() {
+      return mScanResponseLength;
+    }
+
+    @Override
+    public String toString() {
+      return "advertisement " + mAdvertisementLength + " bytes " + mAdvertisement
+          + ", scan response " + mScanResponseLength + " bytes " + mScanResponse
+          + ", dropped " + mDropped;
+    }
+  }
+
+  private final Map<Key, Layout> mCache;
+
+  public AdvertisingPacker() {
+    this(DEFAULT_MAX_CACHED_LAYOUTS);
+  }
+
+  public AdvertisingPacker(final int maxCachedLayouts) {
+    mCache = new LinkedHashMap<Key, Layout>(16, 0.75f, /* accessOrder */ true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Layout> eldest) {
+        return size() > maxCachedLayouts;
+      }
+    };
+  }
+
+  /**
+   * @param fields In priority order, highest first.
+   * @param connectable Whether the advertising data has to make room for the Flags.
+   */
+  public synchronized Layout pack(List<Field> fields, boolean connectable) {
+    Key key = new Key(fields, connectable);
+    Layout layout = mCache.get(key);
+    if (layout == null) {
+      layout = layOut(key.mFields, connectable);
+      mCache.put(key, layout);
+    }
+    return layout;
+  }
+
+  /**
+   * @return The number of bytes the fields take in one packet, including the Flags if flags.
+   */
+  public static int getLength(List<Field> fields, boolean flags) {
+    int length = flags ? FLAGS_LENGTH : 0;
+    int uuid16Count = 0;
+    int uuid32Count = 0;
+    int uuid128Count = 0;
+    for (Field field : fields) {
+      switch (field.mType) {
+        case TX_POWER_LEVEL:
+          length += TX_POWER_LEVEL_LENGTH;
+          break;
+        case SERVICE_UUID:
+          switch (getUuidLength(field.mUuid)) {
+            case 2:
+              uuid16Count++;
+              break;
+            case 4:
+              uuid32Count++;
+              break;
+            default:
+              uuid128Count++;
+          }
+          break;
+        case SERVICE_DATA:
+          length += FIELD_HEADER_LENGTH + getUuidLength(field.mUuid) + field.mData.length;
+          break;
+        case MANUFACTURER_DATA:
+          length += FIELD_HEADER_LENGTH + MANUFACTURER_ID_LENGTH + field.mData.length;
+          break;
+        case DEVICE_NAME:
+          length += FIELD_HEADER_LENGTH + field.mDeviceName.getBytes(UTF_8).length;
+          break;
+      }
+    }
+    // UUIDs of the same size are listed in one AD structure.
+    if (uuid16Count > 0) {
+      length += FIELD_HEADER_LENGTH + uuid16Count * 2;
+    }
+    if (uuid32Count > 0) {
+      length += FIELD_HEADER_LENGTH + uuid32Count * 4;
+    }
+    if (uuid128Count > 0) {
+      length += FIELD_HEADER_LENGTH + uuid128Count * 16;
+    }
+    return length;
+  }
+
+  /**
+   * @return 2 or 4 for UUIDs based on the Bluetooth Base UUID, 16 for the others.
+   */
+  public static int getUuidLength(UUID uuid) {
+    if (uuid.getLeastSignificantBits() != BASE_UUID_LEAST_SIGNIFICANT_BITS
+        || (uuid.getMostSignificantBits() & 0xffffffffL) != BASE_UUID_MOST_SIGNIFICANT_BITS) {
+      return 16;
+    }
+    return (uuid.getMostSignificantBits() >>> 32) <= 0xffff ? 2 : 4;
+  }
+
+  private static Layout layOut(List<Field> fields, boolean connectable) {
+    ArrayList<Field> advertisement = new ArrayList<>();
+    ArrayList<Field> scanResponse = new ArrayList<>();
+    ArrayList<Field> dropped = new ArrayList<>();
+    for (Field field : fields) {
+      List<Field> preferred = field.mPrefersScanResponse ? scanResponse : advertisement;
+      List<Field> other = field.mPrefersScanResponse ? advertisement : scanResponse;
+      if (!tryAdd(preferred, field, preferred == advertisement && connectable)
+          && !tryAdd(other, field, other == advertisement && connectable)) {
+        dropped.add(field);
+      }
+    }
+    return new Layout(advertisement, scanResponse, dropped,
+        getLength(advertisement, connectable), getLength(scanResponse, /* flags */ false));
+  }
+
+  /**
+   * Adds field to packet if the packet still fits in {@link #MAX_PAYLOAD_LENGTH} with it.
+   */
+  private static boolean tryAdd(List<Field> packet, Field field, boolean flags) {
+    packet.add(field);
+    if (getLength(packet, flags) <= MAX_PAYLOAD_LENGTH) {
+      return true;
+    }
+    packet.remove(packet.size() - 1);
+    return false;
+  }
+
+  private static final class Key {
+    private final List<Field> mFields;
+    private final boolean mConnectable;
+
+    private Key(List<Field> fields, boolean connectable) {
+      // Copied so later changes to the caller's list don't change the key.
+      mFields = new ArrayList<>(fields);
+      mConnectable = connectable;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return mConnectable == key.mConnectable && mFields.equals(key.mFields);
+    }
+
+    @Override
+    public int hashCode() {
+      return mFields.hashCode() * 2 + (mConnectable ? 1 : 0);
+    }
+  }
+}
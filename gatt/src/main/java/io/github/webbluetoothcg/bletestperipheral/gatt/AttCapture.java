@@ -0,0 +1,354 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the ATT traffic of a GATT server into a {@link PacketRing}, as the HCI packets a
+ * controller would exchange with the host, so {@link BtsnoopWriter} can save it for Wireshark.
+ *
+ * ATT PDUs are rebuilt from the requests and responses of the server and wrapped in HCI ACL data
+ * packets on the ATT L2CAP channel. Connections are recorded as HCI LE Connection Complete and
+ * Disconnection Complete events. Devices get made up connection handles and addresses, and
+ * attributes the handles of the {@link AttributeDatabase}.
+ *
+ * Recording doesn't lock or allocate, except the first time a device is seen, and can be done
+ * from any thread.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class AttCapture<D> {
+  public static final int DEFAULT_SLOT_COUNT = 4096;
+  // Fits an ATT_MTU of 247, the largest that fits one LE data packet.
+  public static final int DEFAULT_SLOT_SIZE = 256;
+
+  // btsnoop flags.
+  public static final int FLAG_RECEIVED = 1;
+  public static final int FLAG_COMMAND_OR_EVENT = 1 << 1;
+
+  // H4 packet types.
+  private static final int H4_ACL_DATA = 0x02;
+  private static final int H4_EVENT = 0x04;
+  // H4 packet type + ACL header + L2CAP header.
+  private static final int ATT_PDU_OFFSET = 1 + 4 + 4;
+  // Packet Boundary Flag: first automatically flushable packet.
+  private static final int ACL_FIRST_FLUSHABLE = 0x2 << 12;
+  private static final int L2CAP_CID_ATT = 0x0004;
+  private static final int FIRST_CONNECTION_HANDLE = 0x0040;
+  private static final int MAX_CONNECTION_HANDLE = 0x0eff;
+
+  // HCI events.
+  private static final int EVENT_DISCONNECTION_COMPLETE = 0x05;
+  private static final int EVENT_LE_META = 0x3e;
+  private static final int LE_CONNECTION_COMPLETE = 0x01;
+  private static final int ROLE_PERIPHERAL = 0x01;
+  private static final int REASON_REMOTE_USER_TERMINATED = 0x13;
+
+  // ATT opcodes.
+  private static final int ERROR_RESPONSE = 0x01;
+  private static final int EXCHANGE_MTU_REQUEST = 0x02;
+  private static final int EXCHANGE_MTU_RESPONSE = 0x03;
+  private static final int READ_REQUEST = 0x0a;
+  private static final int READ_RESPONSE = 0x0b;
+  private static final int READ_BLOB_REQUEST = 0x0c;
+  private static final int READ_BLOB_RESPONSE = 0x0d;
+  private static final int WRITE_REQUEST = 0x12;
+  private static final int WRITE_RESPONSE = 0x13;
+  private static final int PREPARE_WRITE_REQUEST = 0x16;
+  private static final int PREPARE_WRITE_RESPONSE = 0x17;
+  private static final int EXECUTE_WRITE_REQUEST = 0x18;
+  private static final int EXECUTE_WRITE_RESPONSE = 0x19;
+  private static final int HANDLE_VALUE_NOTIFICATION = 0x1b;
+  private static final int HANDLE_VALUE_INDICATION = 0x1d;
+  private static final int HANDLE_VALUE_CONFIRMATION = 0x1e;
+  private static final int WRITE_COMMAND = 0x52;
+  // Error code for statuses that aren't ATT error codes.
+  private static final int UNLIKELY_ERROR = 0x0e;
+
+  private final PacketRing mRing;
+  private final ConcurrentHashMap<D, Integer> mConnectionHandles = new ConcurrentHashMap<>();
+  private final AtomicInteger mNextConnectionHandle = new AtomicInteger(FIRST_CONNECTION_HANDLE);
+  // Converts System.nanoTime() to microseconds since the epoch.
+  private final long mStartEpochMicros = System.currentTimeMillis() * 1000;
+  private final long mStartNanos = System.nanoTime();
+
+  public AttCapture(PacketRing ring) {
+    mRing = ring;
+  }
+
+  public PacketRing getRing() {
+    return mRing;
+  }
+
+  public void onConnected(D device) {
+    long sequence = mRing.claim();
+    if (sequence < 0) {
+      return;
+    }
+    byte[] buffer = mRing.getBuffer();
+    int offset = mRing.getOffset(sequence);
+    int position = ValueCodec.setUint8(buffer, offset, H4_EVENT);
+    position = ValueCodec.setUint8(buffer, position, EVENT_LE_META);
+    position = ValueCodec.setUint8(buffer, position, /* parameters length */ 19);
+    position = ValueCodec.setUint8(buffer, position, LE_CONNECTION_COMPLETE);
+    position = ValueCodec.setUint8(buffer, position, GattStatus.SUCCESS);
+    position = ValueCodec.setUint16(buffer, position, getConnectionHandle(device));
+    position = ValueCodec.setUint8(buffer, position, ROLE_PERIPHERAL);
+    position = ValueCodec.setUint8(buffer, position, /* public address */ 0);
+    // Made up address, derived from the connection handle.
+    position = ValueCodec.setUint32(buffer, position, getConnectionHandle(device));
+    position = ValueCodec.setUint16(buffer, position, 0);
+    position = ValueCodec.setUint16(buffer, position, /* interval, 1.25ms units */ 24);
+    position = ValueCodec.setUint16(buffer, position, /* latency */ 0);
+    position = ValueCodec.setUint16(buffer, position, /* supervision timeout, 10ms units */ 500);
+    position = ValueCodec.setUint8(buffer, position, /* clock accuracy */ 0);
+    publish(sequence, position - offset, FLAG_RECEIVED | FLAG_COMMAND_OR_EVENT);
+  }
+
+  public void onDisconnected(D device) {
+    long sequence = mRing.claim();
+    if (sequence >= 0) {
+      byte[] buffer = mRing.getBuffer();
+      int offset = mRing.getOffset(sequence);
+      int position = ValueCodec.setUint8(buffer, offset, H4_EVENT);
+      position = ValueCodec.setUint8(buffer, position, EVENT_DISCONNECTION_COMPLETE);
+      position = ValueCodec.setUint8(buffer, position, /* parameters length */ 4);
+      position = ValueCodec.setUint8(buffer, position, GattStatus.SUCCESS);
+      position = ValueCodec.setUint16(buffer, position, getConnectionHandle(device));
+      position = ValueCodec.setUint8(buffer, position, REASON_REMOTE_USER_TERMINATED);
+      publish(sequence, position - offset, FLAG_RECEIVED | FLAG_COMMAND_OR_EVENT);
+    }
+    mConnectionHandles.remove(device);
+  }
+
+  /**
+   * Records the exchange that led to the ATT_MTU. Only the resulting ATT_MTU is known, so it is
+   * used for both the request and the response.
+   */
+  public void onMtuChanged(D device, int mtu) {
+    long sequence = startAttPdu(EXCHANGE_MTU_REQUEST);
+    if (sequence >= 0) {
+      int position = ValueCodec.setUint16(mRing.getBuffer(), attParameters(sequence), mtu);
+      finishAttPdu(sequence, device, position, FLAG_RECEIVED);
+    }
+    sequence = startAttPdu(EXCHANGE_MTU_RESPONSE);
+    if (sequence >= 0) {
+      int position = ValueCodec.setUint16(mRing.getBuffer(), attParameters(sequence), mtu);
+      finishAttPdu(sequence, device, position, /* sent */ 0);
+    }
+  }
+
+  public void onReadRequest(D device, Attribute attribute, int offset) {
+    long sequence = startAttPdu(offset == 0 ? READ_REQUEST : READ_BLOB_REQUEST);
+    if (sequence < 0) {
+      return;
+    }
+    byte[] buffer = mRing.getBuffer();
+    int position = ValueCodec.setUint16(buffer, attParameters(sequence),
+        attribute.getValueHandle());
+    if (offset != 0) {
+      position = ValueCodec.setUint16(buffer, position, offset);
+    }
+    finishAttPdu(sequence, device, position, FLAG_RECEIVED);
+  }
+
+  /**
+   * @param value The part of the value sent, starting at offset.
+   */
+  public void onReadResponse(D device, Attribute attribute, int offset, int status,
+      byte[] value) {
+    int requestOpcode = offset == 0 ? READ_REQUEST : READ_BLOB_REQUEST;
+    if (status != GattStatus.SUCCESS) {
+      onErrorResponse(device, requestOpcode, attribute.getValueHandle(), status);
+      return;
+    }
+    long sequence = startAttPdu(offset == 0 ? READ_RESPONSE : READ_BLOB_RESPONSE);
+    if (sequence >= 0) {
+      finishAttPdu(sequence, device, putValue(sequence, attParameters(sequence), value),
+          /* sent */ 0);
+    }
+  }
+
+  public void onWriteRequest(D device, Attribute attribute, boolean preparedWrite,
+      boolean responseNeeded, int offset, byte[] value) {
+    int opcode = preparedWrite ? PREPARE_WRITE_REQUEST
+        : (responseNeeded ? WRITE_REQUEST : WRITE_COMMAND);
+    long sequence = startAttPdu(opcode);
+    if (sequence < 0) {
+      return;
+    }
+    byte[] buffer = mRing.getBuffer();
+    int position = ValueCodec.setUint16(buffer, attParameters(sequence),
+        attribute.getValueHandle());
+    if (preparedWrite) {
+      position = ValueCodec.setUint16(buffer, position, offset);
+    }
+    finishAttPdu(sequence, device, putValue(sequence, position, value), FLAG_RECEIVED);
+  }
+
+  /**
+   * @param value Value echoed by the Prepare Write Response. Ignored otherwise.
+   */
+  public void onWriteResponse(D device, Attribute attribute, boolean preparedWrite, int offset,
+      int status, byte[] value) {
+    if (status != GattStatus.SUCCESS) {
+      onErrorResponse(device, preparedWrite ? PREPARE_WRITE_REQUEST : WRITE_REQUEST,
+          attribute.getValueHandle(), status);
+      return;
+    }
+    long sequence = startAttPdu(preparedWrite ? PREPARE_WRITE_RESPONSE : WRITE_RESPONSE);
+    if (sequence < 0) {
+      return;
+    }
+    int position = attParameters(sequence);
+    if (preparedWrite) {
+      byte[] buffer = mRing.getBuffer();
+      position = ValueCodec.setUint16(buffer, position, attribute.getValueHandle());
+      position = ValueCodec.setUint16(buffer, position, offset);
+      position = putValue(sequence, position, value);
+    }
+    finishAttPdu(sequence, device, position, /* sent */ 0);
+  }
+
+  public void onExecuteWriteRequest(D device, boolean execute) {
+    long sequence = startAttPdu(EXECUTE_WRITE_REQUEST);
+    if (sequence >= 0) {
+      int position = ValueCodec.setUint8(mRing.getBuffer(), attParameters(sequence),
+          execute ? 1 : 0);
+      finishAttPdu(sequence, device, position, FLAG_RECEIVED);
+    }
+  }
+
+  public void onExecuteWriteResponse(D device, int status) {
+    if (status != GattStatus.SUCCESS) {
+      onErrorResponse(device, EXECUTE_WRITE_REQUEST, /* handle */ 0, status);
+      return;
+    }
+    long sequence = startAttPdu(EXECUTE_WRITE_RESPONSE);
+    if (sequence >= 0) {
+      finishAttPdu(sequence, device, attParameters(sequence), /* sent */ 0);
+    }
+  }
+
+  public void onNotification(D device, Attribute characteristic, boolean confirm,
+      byte[] value) {
+    long sequence = startAttPdu(confirm ? HANDLE_VALUE_INDICATION : HANDLE_VALUE_NOTIFICATION);
+    if (sequence < 0) {
+      return;
+    }
+    int position = ValueCodec.setUint16(mRing.getBuffer(), attParameters(sequence),
+        characteristic.getValueHandle());
+    finishAttPdu(sequence, device, putValue(sequence, position, value), /* sent */ 0);
+  }
+
+  /**
+   * @param status Status the indication was reported as sent with. A failed indication wasn't
+   * confirmed, so only successful ones are recorded.
+   */
+  public void onConfirmation(D device, int status) {
+    if (status != GattStatus.SUCCESS) {
+      return;
+    }
+    long sequence = startAttPdu(HANDLE_VALUE_CONFIRMATION);
+    if (sequence >= 0) {
+      finishAttPdu(sequence, device, attParameters(sequence), FLAG_RECEIVED);
+    }
+  }
+
+  private void onErrorResponse(D device, int requestOpcode, int handle, int status) {
+    long sequence = startAttPdu(ERROR_RESPONSE);
+    if (sequence < 0) {
+      return;
+    }
+    byte[] buffer = mRing.getBuffer();
+    int position = ValueCodec.setUint8(buffer, attParameters(sequence), requestOpcode);
+    position = ValueCodec.setUint16(buffer, position, handle);
+    // ATT error codes are a single byte, the other statuses are local failures.
+    position = ValueCodec.setUint8(buffer, position, status > 0xff ? UNLIKELY_ERROR : status);
+    finishAttPdu(sequence, device, position, /* sent */ 0);
+  }
+
+  /**
+   * Claims a slot and writes the opcode of the ATT PDU.
+   * @return The sequence number of the slot, or -1 if the ring is full.
+   */
+  private long startAttPdu(int opcode) {
+    long sequence = mRing.claim();
+    if (sequence >= 0) {
+      ValueCodec.setUint8(mRing.getBuffer(), mRing.getOffset(sequence) + ATT_PDU_OFFSET, opcode);
+    }
+    return sequence;
+  }
+
+  /**
+   * @return The position of the parameters of the ATT PDU, after the opcode.
+   */
+  private int attParameters(long sequence) {
+    return mRing.getOffset(sequence) + ATT_PDU_OFFSET + 1;
+  }
+
+  /**
+   * Copies as much of the value as fits the slot.
+   * @return The position after the whole value, as if it had been copied entirely.
+   */
+  private int putValue(long sequence, int position, byte[] value) {
+    if (value == null) {
+      return position;
+    }
+    int slotEnd = mRing.getOffset(sequence) + mRing.getSlotSize();
+    int length = Math.max(0, Math.min(value.length, slotEnd - position));
+    System.arraycopy(value, 0, mRing.getBuffer(), position, length);
+    return position + value.length;
+  }
+
+  /**
+   * Writes the H4, ACL and L2CAP headers in front of the ATT PDU that ends at end, and publishes
+   * the packet.
+   */
+  private void finishAttPdu(long sequence, D device, int end, int flags) {
+    byte[] buffer = mRing.getBuffer();
+    int offset = mRing.getOffset(sequence);
+    int attLength = end - (offset + ATT_PDU_OFFSET);
+    int position = ValueCodec.setUint8(buffer, offset, H4_ACL_DATA);
+    position = ValueCodec.setUint16(buffer, position,
+        getConnectionHandle(device) | ACL_FIRST_FLUSHABLE);
+    position = ValueCodec.setUint16(buffer, position, /* L2CAP header */ 4 + attLength);
+    position = ValueCodec.setUint16(buffer, position, attLength);
+    ValueCodec.setUint16(buffer, position, L2CAP_CID_ATT);
+    publish(sequence, end - offset, flags);
+  }
+
+  private void publish(long sequence, int length, int flags) {
+    mRing.publish(sequence, length, flags,
+        mStartEpochMicros + (System.nanoTime() - mStartNanos) / 1000);
+  }
+
+  private int getConnectionHandle(D device) {
+    Integer handle = mConnectionHandles.get(device);
+    if (handle == null) {
+      int next = mNextConnectionHandle.getAndIncrement();
+      // Wraps around within the valid connection handles.
+      next = FIRST_CONNECTION_HANDLE + (next - FIRST_CONNECTION_HANDLE)
+          % (MAX_CONNECTION_HANDLE - FIRST_CONNECTION_HANDLE + 1);
+      Integer existing = mConnectionHandles.putIfAbsent(device, next);
+      handle = existing == null ? next : existing;
+    }
+    return handle;
+  }
+}
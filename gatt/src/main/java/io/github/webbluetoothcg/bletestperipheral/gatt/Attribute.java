@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.UUID;
+
+/**
+ * A service, characteristic or descriptor of an {@link AttributeDatabase}.
+ *
+ * Characteristics take two handles: the declaration, returned by {@link #getHandle()}, and the
+ * value, returned by {@link #getValueHandle()}. Services and descriptors take one.
+ *
+ * The value of descriptors is stored here. The value of characteristics belongs to the
+ * {@link AttributeHandler}, which may store it here too.
+ */
+public class Attribute {
+  public enum Type {
+    SERVICE, CHARACTERISTIC, DESCRIPTOR
+  }
+
+  // Characteristic properties. Same values as in android.bluetooth.BluetoothGattCharacteristic.
+  public static final int PROPERTY_READ = 0x02;
+  public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+  public static final int PROPERTY_WRITE = 0x08;
+  public static final int PROPERTY_NOTIFY = 0x10;
+  public static final int PROPERTY_INDICATE = 0x20;
+
+  public static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID
+      .fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  private final int mHandle;
+  private final Type mType;
+  private final UUID mUuid;
+  private final int mProperties;
+  private final Attribute mParent;
+  private volatile byte[] mValue;
+
+  Attribute(int handle, Type type, UUID uuid, int properties, Attribute parent, byte[] value) {
+    mHandle = handle;
+    mType = type;
+    mUuid = uuid;
+    mProperties = properties;
+    mParent = parent;
+    mValue = value;
+  }
+
+  public int getHandle() {
+    return mHandle;
+  }
+
+  /**
+   * @return The handle of the value of a characteristic. The handle of the attribute otherwise.
+   */
+  public int getValueHandle() {
+    return mType == Type.CHARACTERISTIC ? mHandle + 1 : mHandle;
+  }
+
+  public Type getType() {
+    return mType;
+  }
+
+  public UUID getUuid() {
+    return mUuid;
+  }
+
+  /**
+   * @return The properties of a characteristic, 0 otherwise.
+   */
+  public int getProperties() {
+    return mProperties;
+  }
+
+  public boolean hasProperty(int property) {
+    return (mProperties & property) != 0;
+  }
+
+  /**
+   * @return The service of a characteristic, the characteristic of a descriptor or null for a
+   * service.
+   */
+  public Attribute getParent() {
+    return mParent;
+  }
+
+  public byte[] getValue() {
+    return mValue;
+  }
+
+  public void setValue(byte[] value) {
+    mValue = value;
+  }
+
+  public boolean isClientCharacteristicConfiguration() {
+    return mType == Type.DESCRIPTOR && CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(mUuid);
+  }
+
+  @Override
+  public String toString() {
+    return mType + " " + mUuid + " (0x" + Integer.toHexString(mHandle) + ")";
+  }
+}
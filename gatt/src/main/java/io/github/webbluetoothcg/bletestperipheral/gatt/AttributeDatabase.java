@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable table of the attributes of a GATT server in handle order.
+ *
+ * Built with a {@link Builder} that assigns handles the way a GATT server lays out its services:
+ * a service, then each characteristic followed by its descriptors. The lookup indexes are built
+ * once with the table, so finding an attribute doesn't depend on the number of attributes.
+ */
+public class AttributeDatabase {
+  // 0x0000 is reserved.
+  public static final int FIRST_HANDLE = 0x0001;
+  public static final int MAX_HANDLE = 0xffff;
+
+  private final List<Attribute> mAttributes;
+  // Attribute by handle. The value handle of a characteristic maps to the characteristic, its
+  // declaration handle to nothing.
+  private final Attribute[] mAttributesByHandle;
+  // Client Characteristic Configuration Descriptor by handle of its characteristic.
+  private final Attribute[] mClientCharacteristicConfigurations;
+  private final List<Attribute> mServices;
+  // First service and first characteristic with a UUID.
+  private final HashMap<UUID, Attribute> mServicesByUuid = new HashMap<>();
+  private final HashMap<UUID, Attribute> mCharacteristicsByUuid = new HashMap<>();
+  // Characteristics of a service and descriptors of a characteristic, in handle order.
+  private final HashMap<Attribute, List<Attribute>> mChildren = new HashMap<>();
+
+  private AttributeDatabase(ArrayList<Attribute> attributes, int nextHandle) {
+    mAttributes = Collections.unmodifiableList(attributes);
+    mAttributesByHandle = new Attribute[nextHandle];
+    mClientCharacteristicConfigurations = new Attribute[nextHandle];
+    ArrayList<Attribute> services = new ArrayList<>();
+    HashMap<Attribute, ArrayList<Attribute>> children = new HashMap<>();
+    for (Attribute attribute : attributes) {
+      mAttributesByHandle[attribute.getValueHandle()] = attribute;
+      Attribute parent = attribute.getParent();
+      switch (attribute.getType()) {
+        case SERVICE:
+          services.add(attribute);
+          putIfAbsent(mServicesByUuid, attribute.getUuid(), attribute);
+          break;
+        case CHARACTERISTIC:
+          putIfAbsent(mCharacteristicsByUuid, attribute.getUuid(), attribute);
+          break;
+        case DESCRIPTOR:
+          if (attribute.isClientCharacteristicConfiguration()
+              && mClientCharacteristicConfigurations[parent.getHandle()] == null) {
+            mClientCharacteristicConfigurations[parent.getHandle()] = attribute;
+          }
+          break;
+      }
+      if (parent != null) {
+        ArrayList<Attribute> siblings = children.get(parent);
+        if (siblings == null) {
+          siblings = new ArrayList<>();
+          children.put(parent, siblings);
+        }
+        siblings.add(attribute);
+      }
+    }
+    mServices = Collections.unmodifiableList(services);
+    for (Map.Entry<Attribute, ArrayList<Attribute>> entry : children.entrySet()) {
+      mChildren.put(entry.getKey(), Collections.<Attribute>unmodifiableList(entry.getValue()));
+    }
+  }
+
+  private static void putIfAbsent(HashMap<UUID, Attribute> map, UUID uuid, Attribute attribute) {
+    if (!map.containsKey(uuid)) {
+      map.put(uuid, attribute);
+    }
+  }
+
+  /**
+   * @return The attributes in handle order.
+   */
+  public List<Attribute> getAttributes() {
+    return mAttributes;
+  }
+
+  /**
+   * @return The attribute whose value has the handle, or null if there is none. The value handle
+   * of a characteristic returns the characteristic, its declaration handle null.
+   */
+  public Attribute get(int handle) {
+    if (handle < 0 || handle >= mAttributesByHandle.length) {
+      return null;
+    }
+    return mAttributesByHandle[handle];
+  }
+
+  /**
+   * @return The characteristic whose declaration or value has the handle, or null if there is
+   * none.
+   */
+  public Attribute getCharacteristic(int handle) {
+    Attribute attribute = get(handle);
+    if (attribute == null || attribute.getType() != Attribute.Type.CHARACTERISTIC) {
+      // Not the value handle, maybe the declaration handle.
+      attribute = get(handle + 1);
+    }
+    return attribute != null && attribute.getType() == Attribute.Type.CHARACTERISTIC
+        && (attribute.getHandle() == handle || attribute.getValueHandle() == handle)
+        ? attribute : null;
+  }
+
+  /**
+   * @return The services in handle order.
+   */
+  public List<Attribute> getServices() {
+    return mServices;
+  }
+
+  /**
+   * @return The characteristics of a service or the descriptors of a characteristic, in handle
+   * order.
+   */
+  public List<Attribute> getChildren(Attribute attribute) {
+    List<Attribute> children = mChildren.get(attribute);
+    return children == null ? Collections.<Attribute>emptyList() : children;
+  }
+
+  /**
+   * @return The first service with the UUID, or null if there is none.
+   */
+  public Attribute findService(UUID uuid) {
+    return mServicesByUuid.get(uuid);
+  }
+
+  /**
+   * @return The first characteristic with the UUID, or null if there is none.
+   */
+  public Attribute findCharacteristic(UUID uuid) {
+    return mCharacteristicsByUuid.get(uuid);
+  }
+
+  /**
+   * @return The Client Characteristic Configuration Descriptor of the characteristic, or null if
+   * it has none.
+   */
+  public Attribute findClientCharacteristicConfiguration(Attribute characteristic) {
+    int handle = characteristic.getHandle();
+    if (handle < 0 || handle >= mClientCharacteristicConfigurations.length) {
+      return null;
+    }
+    return mClientCharacteristicConfigurations[handle];
+  }
+
+  public int size() {
+    return mAttributes.size();
+  }
+
+  public static class Builder {
+    private final ArrayList<Attribute> mAttributes = new ArrayList<>();
+    private int mNextHandle = FIRST_HANDLE;
+    private Attribute mService;
+    private Attribute mCharacteristic;
+
+    public Attribute addService(UUID uuid) {
+      mService = add(Attribute.Type.SERVICE, uuid, 0, null, null, 1);
+      mCharacteristic = null;
+      return mService;
+    }
+
+    /**
+     * Adds a characteristic to the last service added.
+     */
+    public Attribute addCharacteristic(UUID uuid, int properties, byte[] value) {
+      if (mService == null) {
+        throw new IllegalStateException("Characteristic " + uuid + " added before a service");
+      }
+      mCharacteristic = add(Attribute.Type.CHARACTERISTIC, uuid, properties, mService, value, 2);
+      return mCharacteristic;
+    }
+
+    /**
+     * Adds a descriptor to the last characteristic added.
+     */
+    public Attribute addDescriptor(UUID uuid, byte[] value) {
+      if (mCharacteristic == null) {
+        throw new IllegalStateException("Descriptor " + uuid + " added before a characteristic");
+      }
+      return add(Attribute.Type.DESCRIPTOR, uuid, 0, mCharacteristic, value, 1);
+    }
+
+    public AttributeDatabase build() {
+      return new AttributeDatabase(new ArrayList<>(mAttributes), mNextHandle);
+    }
+
+    private Attribute add(Attribute.Type type, UUID uuid, int properties, Attribute parent,
+        byte[] value, int handles) {
+      if (mNextHandle + handles - 1 > MAX_HANDLE) {
+        throw new IllegalStateException("No handles left for " + uuid);
+      }
+      Attribute attribute = new Attribute(mNextHandle, type, uuid, properties, parent, value);
+      mNextHandle += handles;
+      mAttributes.add(attribute);
+      return attribute;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * The application behind the GATT server: owns the value of the characteristics and reacts to
+ * writes and subscriptions. Called by {@link GattRequestHandler}.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public interface AttributeHandler<D> {
+  /**
+   * @return The current value of the characteristic.
+   */
+  byte[] readCharacteristic(Attribute characteristic);
+
+  /**
+   * The handler should check that the value being written is valid and store it.
+   * @param device Device that wrote the value.
+   * @return {@link GattStatus#SUCCESS} if the value was written, a {@link GattStatus} error
+   * otherwise.
+   */
+  int writeCharacteristic(D device, Attribute characteristic, int offset, byte[] value);
+
+  /**
+   * Checks a value without storing it, so the writes of an Execute Write Request can all be
+   * checked before any of them is applied.
+   * @return {@link GattStatus#SUCCESS} if {@link #writeCharacteristic} will accept the value, the
+   * {@link GattStatus} error it would return otherwise.
+   */
+  int checkCharacteristicWrite(D device, Attribute characteristic, int offset, byte[] value);
+
+  /**
+   * Called when a device writes the Client Characteristic Configuration Descriptor of a
+   * characteristic.
+   * @param configuration 0, {@link DeviceSession#CONFIGURATION_NOTIFY} or
+   * {@link DeviceSession#CONFIGURATION_INDICATE}.
+   */
+  void onSubscriptionChanged(D device, Attribute characteristic, int configuration);
+
+  /**
+   * Called when a notification or indication of the characteristic left the server.
+   */
+  void onNotificationSent(D device, Attribute characteristic, int status);
+
+  void onMtuChanged(D device, int mtu);
+}
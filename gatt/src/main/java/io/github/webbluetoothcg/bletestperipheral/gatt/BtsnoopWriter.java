@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Saves the packets of a {@link PacketRing} filled by an {@link AttCapture} to a btsnoop file,
+ * the format of the Android HCI snoop log, which Wireshark opens.
+ *
+ * The file is written on a background thread that drains the ring and flushes when it is empty,
+ * so recording never waits for the disk.
+ */
+public class BtsnoopWriter {
+  private static final byte[] MAGIC = {'b', 't', 's', 'n', 'o', 'o', 'p', 0};
+  private static final int VERSION = 1;
+  // HCI UART (H4): every packet starts with its packet type.
+  private static final int DATALINK_H4 = 1002;
+  // Microseconds from midnight January 1st, 0 AD to the epoch.
+  private static final long EPOCH_OFFSET_MICROS = 0x00dcddb30f2f8000L;
+  private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final PacketRing mRing;
+  private final DataOutputStream mOutput;
+  private final Thread mThread;
+  private volatile boolean mStopped;
+  private volatile IOException mError;
+  private volatile long mPackets;
+
+  private final PacketRing.Reader<IOException> mRecordWriter =
+      new PacketRing.Reader<IOException>() {
+    @Override
+    public void onPacket(byte[] buffer, int offset, int length, int originalLength, int flags,
+        long timestampMicros, long drops) throws IOException {
+      mOutput.writeInt(originalLength);
+      mOutput.writeInt(length);
+      mOutput.writeInt(flags);
+      mOutput.writeInt((int) Math.min(drops, Integer.MAX_VALUE));
+      mOutput.writeLong(timestampMicros + EPOCH_OFFSET_MICROS);
+      mOutput.write(buffer, offset, length);
+      mPackets++;
+    }
+  };
+
+  /**
+   * @param output Closed when the writer stops.
+   */
+  public BtsnoopWriter(PacketRing ring, OutputStream output) {
+    mRing = ring;
+    mOutput = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write();
+      }
+    }, "BtsnoopWriter");
+  }
+
+  public void start() {
+    mThread.start();
+  }
+
+  /**
+   * Writes the packets left in the ring, closes the file and waits for the writer thread to
+   * end.
+   */
+  public void stop() throws InterruptedException {
+    mStopped = true;
+    LockSupport.unpark(mThread);
+    mThread.join();
+  }
+
+  /**
+   * @return Why the file couldn't be written, or null.
+   */
+  public IOException getError() {
+    return mError;
+  }
+
+  public long getPackets() {
+    return mPackets;
+  }
+
+  private void write() {
+    try {
+      try {
+        // btsnoop is big endian, like DataOutputStream.
+        mOutput.write(MAGIC);
+        mOutput.writeInt(VERSION);
+        mOutput.writeInt(DATALINK_H4);
+        while (!mStopped) {
+          if (mRing.drain(mRecordWriter) == 0) {
+            mOutput.flush();
+            LockSupport.parkNanos(POLL_INTERVAL_NANOS);
+          }
+        }
+        mRing.drain(mRecordWriter);
+      } finally {
+        mOutput.close();
+      }
+    } catch (IOException e) {
+      mError = e;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * Binary protocol of the control connection served by {@link ControlSession}, meant for test
+ * harnesses that drive the peripheral faster than its UI allows.
+ *
+ * Requests are an opcode (uint8), the length of the parameters (uint16) and the parameters.
+ * Responses are a {@link GattStatus} (uint16), the length of the result (uint32) and the result.
+ * Integers are little endian and handles are the ones listed by {@link #LIST_ATTRIBUTES}. A
+ * characteristic can be given by its handle or its value handle.
+ *
+ * Requests can be pipelined: a client may send any number of requests without waiting, responses
+ * come back in the same order and are written once the requests received so far are handled.
+ * Requests with {@link #FLAG_NO_RESPONSE} have no response at all, so a batch of them followed by
+ * a {@link #SYNC} costs one round trip; SYNC reports how many of them failed.
+ */
+public final class ControlProtocol {
+  /**
+   * No parameters. Result: number of requests without response that failed since the last SYNC
+   * (uint32).
+   */
+  public static final int SYNC = 0x01;
+  /**
+   * No parameters. Result: for each attribute in handle order its handle (uint16), value handle
+   * (uint16), type (uint8, the ordinal of {@link Attribute.Type}), properties (uint8) and UUID (16
+   * bytes, big endian).
+   */
+  public static final int LIST_ATTRIBUTES = 0x02;
+  /**
+   * Parameters: handle of a characteristic (uint16). Result: its value.
+   */
+  public static final int GET_VALUE = 0x03;
+  /**
+   * Parameters: handle of a characteristic (uint16) and the new value.
+   */
+  public static final int SET_VALUE = 0x04;
+  /**
+   * Parameters: handle of a characteristic (uint16). Notifies its current value.
+   */
+  public static final int NOTIFY = 0x05;
+  /**
+   * Parameters: handle of a characteristic (uint16) and the new value, which is notified.
+   */
+  public static final int SET_VALUE_AND_NOTIFY = 0x06;
+  /**
+   * No parameters. Result: number of devices disconnected (uint16).
+   */
+  public static final int DISCONNECT = 0x07;
+  /**
+   * No parameters. Result: the statistics of the peripheral as UTF-8 JSON.
+   */
+  public static final int GET_METRICS = 0x08;
+
+  /**
+   * Added to the opcode of a request that has no response.
+   */
+  public static final int FLAG_NO_RESPONSE = 0x80;
+
+  public static final int REQUEST_HEADER_LENGTH = 3;
+  public static final int RESPONSE_HEADER_LENGTH = 6;
+  public static final int MAX_PARAMETERS_LENGTH = 0xffff;
+  public static final int ATTRIBUTE_RECORD_LENGTH = 22;
+
+  private ControlProtocol() {
+  }
+
+  /**
+   * Writes a request without parameters into the buffer.
+   *
+   * @return The offset that follows the request.
+   */
+  public static int putRequest(byte[] buffer, int offset, int opcode) {
+    offset = ValueCodec.setUint8(buffer, offset, opcode);
+    return ValueCodec.setUint16(buffer, offset, 0);
+  }
+
+  /**
+   * Writes a request on a characteristic into the buffer.
+   *
+   * @param value New value, or null for requests without one.
+   * @return The offset that follows the request.
+   */
+  public static int putRequest(byte[] buffer, int offset, int opcode, int handle, byte[] value) {
+    int valueLength = value == null ? 0 : value.length;
+    offset = ValueCodec.setUint8(buffer, offset, opcode);
+    offset = ValueCodec.setUint16(buffer, offset, ValueCodec.UINT16_LENGTH + valueLength);
+    offset = ValueCodec.setUint16(buffer, offset, handle);
+    if (value != null) {
+      System.arraycopy(value, 0, buffer, offset, valueLength);
+    }
+    return offset + valueLength;
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Serves one control connection: reads the {@link ControlProtocol} requests from the input,
+ * applies them to a {@link ControlTarget} and writes the responses to the output.
+ *
+ * Responses are buffered while more requests are already waiting in the input, so a pipelined
+ * batch of requests is answered with one write. Handling a request doesn't allocate besides the
+ * results of GET_VALUE, LIST_ATTRIBUTES and GET_METRICS.
+ */
+public class ControlSession {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] EMPTY_VALUE = new byte[0];
+
+  private final ControlTarget mTarget;
+  private final BufferedInputStream mInput;
+  private final OutputStream mOutput;
+  private final byte[] mRequest = new byte[ControlProtocol.MAX_PARAMETERS_LENGTH];
+  private final byte[] mResponse = new byte[BUFFER_SIZE];
+  private int mResponseLength;
+  private long mRequestCount;
+  private long mFailedSinceSync;
+
+  public ControlSession(ControlTarget target, InputStream input, OutputStream output) {
+    mTarget = target;
+    mInput = new BufferedInputStream(input, BUFFER_SIZE);
+    mOutput = output;
+  }
+
+  /**
+   * Handles requests until the input ends. Doesn't close the streams.
+   *
+   * @throws IOException If reading or writing fails, or the input ends in the middle of a
+   * request.
+   */
+  public void serve() throws IOException {
+    while (true) {
+      if (mInput.available() == 0) {
+        // Every request received so far is handled; answer them before waiting for more.
+        flush();
+      }
+      int opcode = mInput.read();
+      if (opcode < 0) {
+        flush();
+        return;
+      }
+      int length = readByte() | (readByte() << 8);
+      readFully(mRequest, length);
+      mRequestCount++;
+      handle(opcode, length);
+    }
+  }
+
+  /**
+   * @return The number of requests handled.
+   */
+  public long getRequestCount() {
+    return mRequestCount;
+  }
+
+  private void handle(int opcode, int length) throws IOException {
+    boolean respond = (opcode & ControlProtocol.FLAG_NO_RESPONSE) == 0;
+    int command = opcode & ~ControlProtocol.FLAG_NO_RESPONSE;
+    Attribute characteristic;
+    int status;
+    switch (command) {
+      case ControlProtocol.SYNC:
+        if (respond) {
+          int offset = startResponse(GattStatus.SUCCESS, ValueCodec.UINT32_LENGTH);
+          ValueCodec.setUint32(mResponse, offset, mFailedSinceSync);
+          mFailedSinceSync = 0;
+        }
+        return;
+      case ControlProtocol.LIST_ATTRIBUTES:
+        if (respond) {
+          listAttributes();
+        }
+        return;
+      case ControlProtocol.GET_VALUE:
+        characteristic = getCharacteristic(length);
+        if (characteristic == null) {
+          status = getLookupFailure(length);
+          break;
+        }
+        if (respond) {
+          byte[] value = mTarget.getValue(characteristic);
+          writeResponse(GattStatus.SUCCESS, value == null ? EMPTY_VALUE : value);
+        }
+        return;
+      case ControlProtocol.SET_VALUE:
+      case ControlProtocol.SET_VALUE_AND_NOTIFY:
+        characteristic = getCharacteristic(length);
+        if (characteristic == null) {
+          status = getLookupFailure(length);
+          break;
+        }
+        status = mTarget.setValue(characteristic, mRequest, ValueCodec.UINT16_LENGTH,
+            length - ValueCodec.UINT16_LENGTH);
+        if (status == GattStatus.SUCCESS && command == ControlProtocol.SET_VALUE_AND_NOTIFY) {
+          mTarget.notifyValueChanged(characteristic);
+        }
+        break;
+      case ControlProtocol.NOTIFY:
+        characteristic = getCharacteristic(length);
+        if (characteristic == null) {
+          status = getLookupFailure(length);
+          break;
+        }
+        mTarget.notifyValueChanged(characteristic);
+        status = GattStatus.SUCCESS;
+        break;
+      case ControlProtocol.DISCONNECT:
+        int devices = mTarget.disconnectDevices();
+        if (respond) {
+          int offset = startResponse(GattStatus.SUCCESS, ValueCodec.UINT16_LENGTH);
+          ValueCodec.setUint16(mResponse, offset, devices);
+        }
+        return;
+      case ControlProtocol.GET_METRICS:
+        if (respond) {
+          writeResponse(GattStatus.SUCCESS, mTarget.getMetrics().getBytes(UTF_8));
+        }
+        return;
+      default:
+        status = GattStatus.REQUEST_NOT_SUPPORTED;
+    }
+    if (respond) {
+      startResponse(status, 0);
+    } else if (status != GattStatus.SUCCESS) {
+      mFailedSinceSync++;
+    }
+  }
+
+  /**
+   * @return The status of a request whose characteristic wasn't found.
+   */
+  private static int getLookupFailure(int length) {
+    return length < ValueCodec.UINT16_LENGTH
+        ? GattStatus.INVALID_PDU : GattStatus.ATTRIBUTE_NOT_FOUND;
+  }
+
+  /**
+   * @return The characteristic whose handle starts the parameters, or null if there is none.
+   */
+  private Attribute getCharacteristic(int length) {
+    if (length < ValueCodec.UINT16_LENGTH) {
+      return null;
+    }
+    return mTarget.getDatabase().getCharacteristic(ValueCodec.getUint16(mRequest, 0));
+  }
+
+  private void listAttributes() throws IOException {
+    List<Attribute> attributes = mTarget.getDatabase().getAttributes();
+    byte[] result = new byte[attributes.size() * ControlProtocol.ATTRIBUTE_RECORD_LENGTH];
+    int offset = 0;
+    for (Attribute attribute : attributes) {
+      offset = ValueCodec.setUint16(result, offset, attribute.getHandle());
+      offset = ValueCodec.setUint16(result, offset, attribute.getValueHandle());
+      offset = ValueCodec.setUint8(result, offset, attribute.getType().ordinal());
+      offset = ValueCodec.setUint8(result, offset, attribute.getProperties());
+      offset = putBigEndian(result, offset, attribute.getUuid().getMostSignificantBits());
+      offset = putBigEndian(result, offset, attribute.getUuid().getLeastSignificantBits());
+    }
+    writeResponse(GattStatus.SUCCESS, result);
+  }
+
+  private static int putBigEndian(byte[] buffer, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      buffer[offset++] = (byte) (value >> (8 * i));
+    }
+    return offset;
+  }
+
+  /**
+   * Appends the header of a response whose result is written by the caller.
+   *
+   * @return The offset of the result in mResponse.
+   */
+  private int startResponse(int status, int resultLength) throws IOException {
+    if (mResponseLength + ControlProtocol.RESPONSE_HEADER_LENGTH + resultLength
+        > mResponse.length) {
+      flush();
+    }
+    int offset = ValueCodec.setUint16(mResponse, mResponseLength, status);
+    offset = ValueCodec.setUint32(mResponse, offset, resultLength);
+    mResponseLength = offset + resultLength;
+    return offset;
+  }
+
+  private void writeResponse(int status, byte[] result) throws IOException {
+    if (ControlProtocol.RESPONSE_HEADER_LENGTH + result.length <= mResponse.length) {
+      int offset = startResponse(status, result.length);
+      System.arraycopy(result, 0, mResponse, offset, result.length);
+      return;
+    }
+    // Too big for the buffer, e.g. the attributes of a large table.
+    startResponse(status, 0);
+    ValueCodec.setUint32(mResponse, mResponseLength - ValueCodec.UINT32_LENGTH, result.length);
+    flush();
+    mOutput.write(result);
+  }
+
+  private void flush() throws IOException {
+    if (mResponseLength > 0) {
+      mOutput.write(mResponse, 0, mResponseLength);
+      mResponseLength = 0;
+    }
+    mOutput.flush();
+  }
+
+  private int readByte() throws IOException {
+    int b = mInput.read();
+    if (b < 0) {
+      throw new EOFException("Request header truncated");
+    }
+    return b;
+  }
+
+  private void readFully(byte[] buffer, int length) throws IOException {
+    int offset = 0;
+    while (offset < length) {
+      int read = mInput.read(buffer, offset, length - offset);
+      if (read < 0) {
+        throw new EOFException("Request truncated after " + offset + " of " + length + " bytes");
+      }
+      offset += read;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * What a {@link ControlSession} acts on: the peripheral on a phone, or a {@link FakeGattServer}
+ * on a JVM through {@link FakeControlTarget}.
+ *
+ * Called from the thread of the control connection, so every method must be safe to call from
+ * any thread.
+ */
+public interface ControlTarget {
+  AttributeDatabase getDatabase();
+
+  /**
+   * @return The current value of the characteristic.
+   */
+  byte[] getValue(Attribute characteristic);
+
+  /**
+   * Sets the value of the characteristic to length bytes of the buffer. The buffer is reused for
+   * the next commands, so the bytes must be copied.
+   *
+   * @return A {@link GattStatus}: {@link GattStatus#INVALID_ATTRIBUTE_LENGTH} if the value is
+   * longer than {@link PreparedWriteQueue#MAX_ATTRIBUTE_LENGTH}, like a write from a device.
+   */
+  int setValue(Attribute characteristic, byte[] buffer, int offset, int length);
+
+  /**
+   * Sends the current value of the characteristic to every device subscribed to it.
+   */
+  void notifyValueChanged(Attribute characteristic);
+
+  /**
+   * Disconnects every connected device.
+   *
+   * @return The number of devices that were connected.
+   */
+  int disconnectDevices();
+
+  /**
+   * @return A snapshot of the statistics of the peripheral as a JSON object.
+   */
+  String getMetrics();
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Database Hash and Service Changed values of the Generic Attribute service, which let a central
+ * cache the attributes it discovered instead of discovering them on every connection.
+ *
+ * The hash is the AES-CMAC, with a key of zeros, of the handle, type and value of every service,
+ * include and characteristic declaration and of the handle and type of the standard descriptors,
+ * in handle order, as in the Core Specification 5.1, Vol 3, Part G, 7.3. It only changes when the
+ * attribute table does.
+ *
+ * A GATT server may not give the services the handles of the table, so the handles it actually
+ * gave them can be folded into the hash.
+ */
+public final class DatabaseHash {
+  public static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID = UUID
+      .fromString("00001801-0000-1000-8000-00805f9b34fb");
+  public static final UUID SERVICE_CHANGED_UUID = UUID
+      .fromString("00002a05-0000-1000-8000-00805f9b34fb");
+  public static final UUID DATABASE_HASH_UUID = UUID
+      .fromString("00002b2a-0000-1000-8000-00805f9b34fb");
+  public static final int HASH_LENGTH = 16;
+  public static final int SERVICE_CHANGED_LENGTH = 2 * ValueCodec.UINT16_LENGTH;
+
+  private static final int PRIMARY_SERVICE_TYPE = 0x2800;
+  private static final int CHARACTERISTIC_TYPE = 0x2803;
+  private static final int EXTENDED_PROPERTIES_TYPE = 0x2900;
+  // Characteristic User Description up to Characteristic Aggregate Format. Only their handle and
+  // type are hashed, since their value can change without the table changing.
+  private static final int FIRST_DESCRIPTOR_TYPE = 0x2901;
+  private static final int LAST_DESCRIPTOR_TYPE = 0x2905;
+  private static final int BLOCK_LENGTH = 16;
+  // Rb of RFC 4493, for the subkeys.
+  private static final int CMAC_RB = 0x87;
+
+  private DatabaseHash() {
+  }
+
+  /**
+   * @return The Database Hash of the attribute table, HASH_LENGTH bytes in the order they are
+   * sent.
+   */
+  public static byte[] compute(AttributeDatabase database) {
+    return compute(database, Collections.<Attribute, Integer>emptyMap());
+  }
+
+  /**
+   * @param serviceHandles Handle the GATT server gave each service, for the services it didn't
+   * give the handle of the table. The attributes of a service keep their place after it.
+   * @return The Database Hash of the attribute table with those handles, HASH_LENGTH bytes in the
+   * order they are sent.
+   */
+  public static byte[] compute(AttributeDatabase database,
+      Map<Attribute, Integer> serviceHandles) {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    // Difference between the handles given by the server and the ones of the table, for the
+    // attributes of the current service.
+    int shift = 0;
+    for (Attribute attribute : database.getAttributes()) {
+      switch (attribute.getType()) {
+        case SERVICE:
+          Integer serviceHandle = serviceHandles.get(attribute);
+          shift = serviceHandle == null ? 0 : serviceHandle - attribute.getHandle();
+          writeUint16(message, attribute.getHandle() + shift);
+          writeUint16(message, PRIMARY_SERVICE_TYPE);
+          writeUuid(message, attribute.getUuid());
+          break;
+        case CHARACTERISTIC:
+          writeUint16(message, attribute.getHandle() + shift);
+          writeUint16(message, CHARACTERISTIC_TYPE);
+          message.write(attribute.getProperties());
+          writeUint16(message, attribute.getValueHandle() + shift);
+          writeUuid(message, attribute.getUuid());
+          break;
+        case DESCRIPTOR:
+          int type = getUuid16(attribute.getUuid());
+          if (type == EXTENDED_PROPERTIES_TYPE) {
+            writeUint16(message, attribute.getHandle() + shift);
+            writeUint16(message, type);
+            byte[] value = attribute.getValue();
+            if (value != null) {
+              message.write(value, 0, value.length);
+            }
+          } else if (type >= FIRST_DESCRIPTOR_TYPE && type <= LAST_DESCRIPTOR_TYPE) {
+            writeUint16(message, attribute.getHandle() + shift);
+            writeUint16(message, type);
+          }
+          break;
+      }
+    }
+    // The hash is sent least significant byte first, like every other value.
+    byte[] hash = cmac(new byte[BLOCK_LENGTH], message.toByteArray());
+    reverse(hash);
+    return hash;
+  }
+
+  /**
+   * @return The value of the Service Changed characteristic that tells a central the attributes
+   * from startHandle to endHandle changed.
+   */
+  public static byte[] serviceChanged(int startHandle, int endHandle) {
+    byte[] value = new byte[SERVICE_CHANGED_LENGTH];
+    int offset = ValueCodec.setUint16(value, 0, startHandle);
+    ValueCodec.setUint16(value, offset, endHandle);
+    return value;
+  }
+
+  /**
+   * AES-CMAC of RFC 4493. Both the key and the result are in the byte order of the RFC, most
+   * significant byte first.
+   */
+  static byte[] cmac(byte[] key, byte[] message) {
+    Cipher cipher;
+    try {
+      cipher = Cipher.getInstance("AES/ECB/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+    } catch (GeneralSecurityException e) {
+      // Every Java platform has AES.
+      throw new AssertionError(e);
+    }
+    byte[] k1 = shiftLeft(encrypt(cipher, new byte[BLOCK_LENGTH]));
+    byte[] k2 = shiftLeft(k1);
+    int blocks = Math.max(1, (message.length + BLOCK_LENGTH - 1) / BLOCK_LENGTH);
+    boolean complete = message.length > 0 && message.length % BLOCK_LENGTH == 0;
+    byte[] block = new byte[BLOCK_LENGTH];
+    for (int i = 0; i < blocks; i++) {
+      int start = i * BLOCK_LENGTH;
+      int length = Math.min(BLOCK_LENGTH, message.length - start);
+      for (int j = 0; j < length; j++) {
+        block[j] ^= message[start + j];
+      }
+      if (i == blocks - 1) {
+        // The last block is padded with 10...0 unless it is complete, and masked with a subkey.
+        if (!complete) {
+          block[length] ^= (byte) 0x80;
+        }
+        byte[] subkey = complete ? k1 : k2;
+        for (int j = 0; j < BLOCK_LENGTH; j++) {
+          block[j] ^= subkey[j];
+        }
+      }
+      block = encrypt(cipher, block);
+    }
+    return block;
+  }
+
+  private static byte[] encrypt(Cipher cipher, byte[] block) {
+    try {
+      return cipher.doFinal(block);
+    } catch (GeneralSecurityException e) {
+      // A single block without padding can't fail.
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return The block shifted left by one bit, xored with Rb if its most significant bit was set.
+   */
+  private static byte[] shiftLeft(byte[] block) {
+    byte[] shifted = new byte[BLOCK_LENGTH];
+    for (int i = 0; i < BLOCK_LENGTH; i++) {
+      int next = i + 1 < BLOCK_LENGTH ? (block[i + 1] & 0xff) >>> 7 : 0;
+      shifted[i] = (byte) ((block[i] << 1) | next);
+    }
+    if ((block[0] & 0x80) != 0) {
+      shifted[BLOCK_LENGTH - 1] ^= (byte) CMAC_RB;
+    }
+    return shifted;
+  }
+
+  private static void writeUint16(ByteArrayOutputStream output, int value) {
+    output.write(value & 0xff);
+    output.write((value >>> 8) & 0xff);
+  }
+
+  /**
+   * Writes 16 bit UUIDs as 2 bytes and the others as 16, least significant byte first.
+   */
+  private static void writeUuid(ByteArrayOutputStream output, UUID uuid) {
+    int uuid16 = getUuid16(uuid);
+    if (uuid16 >= 0) {
+      writeUint16(output, uuid16);
+      return;
+    }
+    long leastSignificantBits = uuid.getLeastSignificantBits();
+    long mostSignificantBits = uuid.getMostSignificantBits();
+    for (int i = 0; i < 8; i++) {
+      output.write((int) (leastSignificantBits >>> (8 * i)) & 0xff);
+    }
+    for (int i = 0; i < 8; i++) {
+      output.write((int) (mostSignificantBits >>> (8 * i)) & 0xff);
+    }
+  }
+
+  /**
+   * @return The 16 bit UUID of a UUID based on the Bluetooth Base UUID, -1 for the others.
+   */
+  private static int getUuid16(UUID uuid) {
+    if (AdvertisingPacker.getUuidLength(uuid) != 2) {
+      return -1;
+    }
+    return (int) (uuid.getMostSignificantBits() >>> 32);
+  }
+
+  private static void reverse(byte[] bytes) {
+    for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+      byte b = bytes[i];
+      bytes[i] = bytes[j];
+      bytes[j] = b;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The devices connected to the GATT server and their {@link DeviceSession}.
+ *
+ * Devices connect and disconnect on the GATT event loop while notifications are sent from any
+ * thread, and connections change far less often than notifications are sent. So lookups go to a
+ * concurrent map and every change publishes a new immutable array of sessions that can be
+ * iterated without locking or allocating.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class DeviceRegistry<D> {
+  private static final DeviceSession<?>[] NO_SESSIONS = new DeviceSession<?>[0];
+
+  private final ConcurrentHashMap<D, DeviceSession<D>> mSessions = new ConcurrentHashMap<>();
+  private volatile DeviceSession<D>[] mSnapshot = noSessions();
+
+  /**
+   * @return The session of the device, which is created if the device wasn't connected.
+   */
+  public synchronized DeviceSession<D> add(D device) {
+    DeviceSession<D> session = mSessions.get(device);
+    if (session == null) {
+      session = new DeviceSession<>(device);
+      mSessions.put(device, session);
+      mSnapshot = mSessions.values().toArray(DeviceRegistry.<D>noSessions());
+    }
+    return session;
+  }
+
+  /**
+   * @return The session of the device or null if it wasn't connected.
+   */
+  public synchronized DeviceSession<D> remove(D device) {
+    DeviceSession<D> session = mSessions.remove(device);
+    if (session != null) {
+      mSnapshot = mSessions.values().toArray(DeviceRegistry.<D>noSessions());
+    }
+    return session;
+  }
+
+  /**
+   * @return The session of the device or null if it isn't connected.
+   */
+  public DeviceSession<D> get(D device) {
+    return mSessions.get(device);
+  }
+
+  /**
+   * @return The sessions of the devices connected when called. The array must not be modified.
+   */
+  public DeviceSession<D>[] getSessions() {
+    return mSnapshot;
+  }
+
+  public int getCount() {
+    return mSnapshot.length;
+  }
+
+  public synchronized void clear() {
+    mSessions.clear();
+    mSnapshot = noSessions();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <D> DeviceSession<D>[] noSessions() {
+    return (DeviceSession<D>[]) NO_SESSIONS;
+  }
+}
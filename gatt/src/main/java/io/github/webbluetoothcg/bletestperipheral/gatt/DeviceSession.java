@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of the connection with a device: when it connected, its ATT_MTU, the characteristics it
+ * subscribed to and request counters.
+ *
+ * The Client Characteristic Configuration Descriptor value is per connection, so it is kept here
+ * instead of in the descriptor shared by all devices.
+ * Notifications and indications are tracked separately since a device may subscribe to either of
+ * them.
+ *
+ * Updated from the GATT event loop and read from any thread, so every field is thread safe.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class DeviceSession<D> {
+  /**
+   * ATT_MTU used until the device negotiates a bigger one.
+   */
+  public static final int DEFAULT_ATT_MTU = 23;
+  /**
+   * Opcode and handle of a Handle Value Notification or Indication, the rest of the ATT_MTU is
+   * the value.
+   */
+  public static final int NOTIFICATION_HEADER_LENGTH = 3;
+
+  /**
+   * See <a href="https://developer.bluetooth.org/gatt/descriptors/Pages/DescriptorViewer.aspx?u=org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml">
+   * Client Characteristic Configuration</a>
+   */
+  public static final int CONFIGURATION_NOTIFY = 0x01;
+  public static final int CONFIGURATION_INDICATE = 0x02;
+
+  private final D mDevice;
+  private final long mConnectedAtNanos = System.nanoTime();
+  private volatile int mMtu = DEFAULT_ATT_MTU;
+  private final ConcurrentHashMap<Attribute, Integer> mConfigurations =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong mReads = new AtomicLong();
+  private final AtomicLong mWrites = new AtomicLong();
+  private final AtomicLong mNotifications = new AtomicLong();
+
+  public DeviceSession(D device) {
+    mDevice = device;
+  }
+
+  public D getDevice() {
+    return mDevice;
+  }
+
+  /**
+   * @return {@link System#nanoTime()} when the device connected.
+   */
+  public long getConnectedAtNanos() {
+    return mConnectedAtNanos;
+  }
+
+  public int getMtu() {
+    return mMtu;
+  }
+
+  public void setMtu(int mtu) {
+    mMtu = mtu;
+  }
+
+  /**
+   * Sets the Client Characteristic Configuration of a characteristic.
+   * @param configuration Bitmask of {@link #CONFIGURATION_NOTIFY} and
+   * {@link #CONFIGURATION_INDICATE}. 0 removes the subscription.
+   */
+  public void setConfiguration(Attribute characteristic, int configuration) {
+    if (configuration == 0) {
+      mConfigurations.remove(characteristic);
+    } else {
+      mConfigurations.put(characteristic, configuration);
+    }
+  }
+
+  public int getConfiguration(Attribute characteristic) {
+    Integer configuration = mConfigurations.get(characteristic);
+    return configuration == null ? 0 : configuration;
+  }
+
+  /**
+   * @return The value of the CCC Descriptor as seen by the device, i.e. the configuration as a
+   * little endian uint16.
+   */
+  public byte[] getDescriptorValue(Attribute characteristic) {
+    return new byte[]{(byte) getConfiguration(characteristic), 0};
+  }
+
+  public boolean isNotifying(Attribute characteristic) {
+    return (getConfiguration(characteristic) & CONFIGURATION_NOTIFY) != 0;
+  }
+
+  public boolean isIndicating(Attribute characteristic) {
+    return (getConfiguration(characteristic) & CONFIGURATION_INDICATE) != 0;
+  }
+
+  public void onRead() {
+    mReads.incrementAndGet();
+  }
+
+  public void onWrite() {
+    mWrites.incrementAndGet();
+  }
+
+  public void onNotificationSent() {
+    mNotifications.incrementAndGet();
+  }
+
+  public long getReads() {
+    return mReads.get();
+  }
+
+  public long getWrites() {
+    return mWrites.get();
+  }
+
+  public long getNotifications() {
+    return mNotifications.get();
+  }
+
+  @Override
+  public String toString() {
+    return mDevice + " MTU: " + mMtu + " Reads: " + getReads()
+        + " Writes: " + getWrites() + " Notifications: " + getNotifications()
+        + " Connected for: "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mConnectedAtNanos) + "ms";
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.Arrays;
+
+/**
+ * {@link ControlTarget} on a {@link FakeGattServer} whose characteristics keep their value in the
+ * {@link AttributeDatabase}, e.g. with an {@link InMemoryAttributeHandler}, so the control
+ * protocol can be exercised on a JVM.
+ *
+ * Like the requests of the FakeGattServer, the control requests must come from one thread at a
+ * time.
+ */
+public class FakeControlTarget implements ControlTarget {
+  private final FakeGattServer mServer;
+
+  public FakeControlTarget(FakeGattServer server) {
+    mServer = server;
+  }
+
+  @Override
+  public AttributeDatabase getDatabase() {
+    return mServer.getRequestHandler().getDatabase();
+  }
+
+  @Override
+  public byte[] getValue(Attribute characteristic) {
+    return characteristic.getValue();
+  }
+
+  @Override
+  public int setValue(Attribute characteristic, byte[] buffer, int offset, int length) {
+    if (length > PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH) {
+      return GattStatus.INVALID_ATTRIBUTE_LENGTH;
+    }
+    characteristic.setValue(Arrays.copyOfRange(buffer, offset, offset + length));
+    return GattStatus.SUCCESS;
+  }
+
+  @Override
+  public void notifyValueChanged(Attribute characteristic) {
+    mServer.getRequestHandler().notifyValueChanged(characteristic);
+  }
+
+  @Override
+  public int disconnectDevices() {
+    DeviceSession<String>[] sessions = mServer.getRequestHandler().getDeviceRegistry()
+        .getSessions();
+    for (DeviceSession<String> session : sessions) {
+      mServer.disconnect(session.getDevice());
+    }
+    return sessions.length;
+  }
+
+  @Override
+  public String getMetrics() {
+    return "{\"devices\":" + mServer.getRequestHandler().getDeviceRegistry().getCount()
+        + ",\"notifications\":" + mServer.getNotificationCount() + "}";
+  }
+}
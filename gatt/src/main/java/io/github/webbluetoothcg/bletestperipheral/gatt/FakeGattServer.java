@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.ArrayDeque;
+
+/**
+ * In-memory GATT server to drive a {@link GattRequestHandler} on a JVM, without a phone or a
+ * radio. Devices are identified by their address.
+ *
+ * Requests are handled synchronously and return the response the server sent. Like the
+ * callbacks of a real server they must all be made from the same thread. Notifications are
+ * counted and stay in flight until {@link #acknowledgeNotifications()} is called, as if the
+ * radio sent them at that moment.
+ */
+public class FakeGattServer implements GattTransport<String> {
+  /**
+   * Response to a request.
+   */
+  public static class Response {
+    public final int status;
+    public final int offset;
+    public final byte[] value;
+
+    Response(int status, int offset, byte[] value) {
+      this.status = status;
+      this.offset = offset;
+      this.value = value;
+    }
+  }
+
+  private static final Response INVALID_HANDLE =
+      new Response(GattStatus.INVALID_HANDLE, 0, null);
+
+  private final AttributeDatabase mDatabase;
+  private final GattRequestHandler<String> mRequestHandler;
+  // Devices with a notification in flight, in the order they were sent.
+  private final ArrayDeque<String> mNotificationsInFlight = new ArrayDeque<>();
+  private long mNotificationCount;
+  private byte[] mLastNotificationValue;
+  private int mNextRequestId;
+  private Response mResponse;
+
+  public FakeGattServer(AttributeDatabase database, AttributeHandler<String> handler,
+      int notificationQueueDepth) {
+    mDatabase = database;
+    mRequestHandler = new GattRequestHandler<>(database, handler, this, notificationQueueDepth);
+  }
+
+  public GattRequestHandler<String> getRequestHandler() {
+    return mRequestHandler;
+  }
+
+  public void connect(String device) {
+    mRequestHandler.onConnected(device);
+  }
+
+  public void disconnect(String device) {
+    mRequestHandler.onDisconnected(device);
+    synchronized (this) {
+      while (mNotificationsInFlight.remove(device)) {
+        // Notifications to a device that disconnected are never sent.
+      }
+    }
+  }
+
+  public void exchangeMtu(String device, int mtu) {
+    mRequestHandler.onMtuChanged(device, mtu);
+  }
+
+  /**
+   * Read Request (offset 0) or Read Blob Request.
+   */
+  public Response read(String device, int handle, int offset) {
+    Attribute attribute = mDatabase.get(handle);
+    if (attribute == null) {
+      return INVALID_HANDLE;
+    }
+    mRequestHandler.onReadRequest(device, mNextRequestId++, offset, attribute);
+    return takeResponse();
+  }
+
+  /**
+   * Write Request.
+   */
+  public Response write(String device, int handle, byte[] value) {
+    Attribute attribute = mDatabase.get(handle);
+    if (attribute == null) {
+      return INVALID_HANDLE;
+    }
+    mRequestHandler.onWriteRequest(device, mNextRequestId++, attribute,
+        /* preparedWrite */ false, /* responseNeeded */ true, /* offset */ 0, value);
+    return takeResponse();
+  }
+
+  /**
+   * Write Command, which has no response.
+   */
+  public void writeCommand(String device, int handle, byte[] value) {
+    Attribute attribute = mDatabase.get(handle);
+    if (attribute != null) {
+      mRequestHandler.onWriteRequest(device, mNextRequestId++, attribute,
+          /* preparedWrite */ false, /* responseNeeded */ false, /* offset */ 0, value);
+    }
+  }
+
+  public Response prepareWrite(String device, int handle, int offset, byte[] value) {
+    Attribute attribute = mDatabase.get(handle);
+    if (attribute == null) {
+      return INVALID_HANDLE;
+    }
+    mRequestHandler.onWriteRequest(device, mNextRequestId++, attribute,
+        /* preparedWrite */ true, /* responseNeeded */ true, offset, value);
+    return takeResponse();
+  }
+
+  public Response executeWrite(String device, boolean execute) {
+    mRequestHandler.onExecuteWrite(device, mNextRequestId++, execute);
+    return takeResponse();
+  }
+
+  /**
+   * Completes the notifications in flight, and the ones they release from the notification
+   * queue, until none is left.
+   * @return The number of notifications completed.
+   */
+  public int acknowledgeNotifications() {
+    int acknowledged = 0;
+    while (true) {
+      String device;
+      synchronized (this) {
+        device = mNotificationsInFlight.poll();
+      }
+      if (device == null) {
+        return acknowledged;
+      }
+      mRequestHandler.onNotificationSent(device, GattStatus.SUCCESS);
+      acknowledged++;
+    }
+  }
+
+  /**
+   * @return The number of notifications and indications handed to this server.
+   */
+  public synchronized long getNotificationCount() {
+    return mNotificationCount;
+  }
+
+  /**
+   * @return The value of the last notification or indication handed to this server.
+   */
+  public synchronized byte[] getLastNotificationValue() {
+    return mLastNotificationValue;
+  }
+
+  @Override
+  public void sendResponse(String device, int requestId, int status, int offset, byte[] value) {
+    mResponse = new Response(status, offset, value);
+  }
+
+  @Override
+  public synchronized boolean notifyCharacteristicChanged(String device, Attribute characteristic,
+      byte[] value, boolean confirm) {
+    mNotificationCount++;
+    mLastNotificationValue = value;
+    mNotificationsInFlight.add(device);
+    return true;
+  }
+
+  private Response takeResponse() {
+    Response response = mResponse;
+    mResponse = null;
+    return response;
+  }
+}
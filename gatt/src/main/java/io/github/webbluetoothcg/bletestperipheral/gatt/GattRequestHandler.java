@@ -0,0 +1,470 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Handles the ATT requests of a GATT server independently of the platform.
+ *
+ * Reads and writes of characteristics go to the {@link AttributeHandler}. Descriptors are served
+ * from the {@link AttributeDatabase}, except the Client Characteristic Configuration Descriptor
+ * whose value is kept per device. Also takes care of long reads, prepared writes and of sending
+ * notifications to the subscribed devices through a {@link NotificationQueue}.
+ *
+ * The request callbacks must be called from a single thread, e.g. the GATT event loop.
+ * {@link #notifyValueChanged}, {@link #setCapture} and the getters can be called from any
+ * thread.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class GattRequestHandler<D> {
+  private final AttributeDatabase mDatabase;
+  private final AttributeHandler<D> mHandler;
+  private final GattTransport<D> mTransport;
+  private final DeviceRegistry<D> mDeviceRegistry = new DeviceRegistry<>();
+  private final NotificationQueue<D> mNotificationQueue;
+  private final LongReadSnapshots<D> mLongReadSnapshots = new LongReadSnapshots<>();
+  private final PreparedWriteQueue<D> mPreparedWriteQueue =
+      new PreparedWriteQueue<>(PreparedWriteQueue.DEFAULT_MAX_BYTES_PER_DEVICE);
+  private volatile AttCapture<D> mCapture;
+
+  /**
+   * @param notificationQueueDepth Maximum number of notifications waiting per device.
+   */
+  public GattRequestHandler(AttributeDatabase database, AttributeHandler<D> handler,
+      GattTransport<D> transport, int notificationQueueDepth) {
+    mDatabase = database;
+    mHandler = handler;
+    mTransport = transport;
+    // Reads the value as the queue sends the notification, and records exactly what was sent.
+    mNotificationQueue = new NotificationQueue<>(new NotificationQueue.Sender<D>() {
+      @Override
+      public boolean send(D device, Attribute characteristic, byte[] value, boolean confirm) {
+        if (value == null) {
+          value = mHandler.readCharacteristic(characteristic);
+        }
+        // Like the stack, only sends the beginning of a value that doesn't fit.
+        int maxLength = getMtu(device) - DeviceSession.NOTIFICATION_HEADER_LENGTH;
+        if (value != null && value.length > maxLength) {
+          value = Arrays.copyOf(value, maxLength);
+        }
+        boolean sent = mTransport.notifyCharacteristicChanged(device, characteristic, value,
+            confirm);
+        AttCapture<D> capture = mCapture;
+        if (sent && capture != null) {
+          capture.onNotification(device, characteristic, confirm, value);
+        }
+        return sent;
+      }
+    }, notificationQueueDepth);
+  }
+
+  public AttributeDatabase getDatabase() {
+    return mDatabase;
+  }
+
+  public DeviceRegistry<D> getDeviceRegistry() {
+    return mDeviceRegistry;
+  }
+
+  public NotificationQueue<D> getNotificationQueue() {
+    return mNotificationQueue;
+  }
+
+  /**
+   * Starts recording the ATT traffic into capture, or stops if null.
+   */
+  public void setCapture(AttCapture<D> capture) {
+    mCapture = capture;
+  }
+
+  public AttCapture<D> getCapture() {
+    return mCapture;
+  }
+
+  public DeviceSession<D> onConnected(D device) {
+    AttCapture<D> capture = mCapture;
+    if (capture != null) {
+      capture.onConnected(device);
+    }
+    return mDeviceRegistry.add(device);
+  }
+
+  /**
+   * Drops everything kept for the device.
+   * @return The session of the device or null if it wasn't connected.
+   */
+  public DeviceSession<D> onDisconnected(D device) {
+    AttCapture<D> capture = mCapture;
+    if (capture != null) {
+      capture.onDisconnected(device);
+    }
+    DeviceSession<D> session = mDeviceRegistry.remove(device);
+    mNotificationQueue.removeDevice(device);
+    mLongReadSnapshots.removeDevice(device);
+    mPreparedWriteQueue.cancel(device);
+    return session;
+  }
+
+  /**
+   * Responds to a Read Request or Read Blob Request. Reads with a non-zero offset are served from
+   * the value pinned by the read with offset 0 so all the parts belong to the same value.
+   */
+  public void onReadRequest(D device, int requestId, int offset, Attribute attribute) {
+    AttCapture<D> capture = mCapture;
+    if (capture != null) {
+      capture.onReadRequest(device, attribute, offset);
+    }
+    DeviceSession<D> session = getSession(device);
+    session.onRead();
+    byte[] response = null;
+    int status;
+    if (attribute.getType() == Attribute.Type.CHARACTERISTIC
+        && !attribute.hasProperty(Attribute.PROPERTY_READ)) {
+      status = GattStatus.READ_NOT_PERMITTED;
+    } else {
+      byte[] value;
+      if (attribute.getType() == Attribute.Type.CHARACTERISTIC) {
+        value = mHandler.readCharacteristic(attribute);
+      } else if (attribute.isClientCharacteristicConfiguration()) {
+        // The CCC Descriptor value is different for every device.
+        value = session.getDescriptorValue(attribute.getParent());
+      } else {
+        value = attribute.getValue();
+      }
+      response = mLongReadSnapshots.read(device, attribute, value, offset);
+      status = response == null ? GattStatus.INVALID_OFFSET : GattStatus.SUCCESS;
+    }
+    if (capture != null) {
+      capture.onReadResponse(device, attribute, offset, status, response);
+    }
+    mTransport.sendResponse(device, requestId, status, offset, /* value (optional) */ response);
+  }
+
+  /**
+   * Handles a Write Request, Write Command or Prepare Write Request.
+   */
+  public void onWriteRequest(D device, int requestId, Attribute attribute, boolean preparedWrite,
+      boolean responseNeeded, int offset, byte[] value) {
+    AttCapture<D> capture = mCapture;
+    if (capture != null) {
+      capture.onWriteRequest(device, attribute, preparedWrite, responseNeeded, offset, value);
+    }
+    getSession(device).onWrite();
+    if (!isWritePermitted(attribute, responseNeeded || preparedWrite)) {
+      if (responseNeeded) {
+        if (capture != null) {
+          capture.onWriteResponse(device, attribute, preparedWrite, offset,
+              GattStatus.WRITE_NOT_PERMITTED, /* value */ null);
+        }
+        mTransport.sendResponse(device, requestId, GattStatus.WRITE_NOT_PERMITTED,
+            /* No need to respond with an offset */ 0,
+            /* No need to respond with a value */ null);
+      }
+      return;
+    }
+    if (preparedWrite) {
+      // Buffered until the Execute Write Request arrives. The response echoes the offset and
+      // value so the device can check them.
+      int status = mPreparedWriteQueue.prepare(device, attribute, offset, value);
+      if (responseNeeded) {
+        if (capture != null) {
+          capture.onWriteResponse(device, attribute, /* preparedWrite */ true, offset, status,
+              value);
+        }
+        mTransport.sendResponse(device, requestId, status, offset, value);
+      }
+      return;
+    }
+    int status = write(device, attribute, offset, value);
+    if (responseNeeded) {
+      if (capture != null) {
+        capture.onWriteResponse(device, attribute, /* preparedWrite */ false, offset, status,
+            /* value */ null);
+      }
+      mTransport.sendResponse(device, requestId, status,
+          /* No need to respond with an offset */ 0,
+          /* No need to respond with a value */ null);
+    }
+  }
+
+  public void onExecuteWrite(D device, int requestId, boolean execute) {
+    AttCapture<D> capture = mCapture;
+    if (capture != null) {
+      capture.onExecuteWriteRequest(device, execute);
+    }
+    int status = GattStatus.SUCCESS;
+    if (!execute) {
+      mPreparedWriteQueue.cancel(device);
+    } else {
+      PreparedWriteQueue.Execution execution = mPreparedWriteQueue.execute(device);
+      status = execution.status;
+      if (status == GattStatus.SUCCESS) {
+        status = executeWrites(device, execution.writes);
+      }
+    }
+    if (capture != null) {
+      capture.onExecuteWriteResponse(device, status);
+    }
+    mTransport.sendResponse(device, requestId, status,
+        /* No need to respond with offset */ 0,
+        /* No need to respond with a value */ null);
+  }
+
+  public void onMtuChanged(D device, int mtu) {
+    AttCapture<D> capture = mCapture;
+    if (capture != null) {
+      capture.onMtuChanged(device, mtu);
+    }
+    getSession(device).setMtu(mtu);
+    mHandler.onMtuChanged(device, mtu);
+  }
+
+  /**
+   * Must be called when the transport reports a notification as sent.
+   */
+  public void onNotificationSent(D device, int status) {
+    DeviceSession<D> session = mDeviceRegistry.get(device);
+    if (session != null) {
+      session.onNotificationSent();
+    }
+    Attribute characteristic = mNotificationQueue.onNotificationSent(device, status);
+    AttCapture<D> capture = mCapture;
+    if (capture != null && characteristic != null && session != null
+        && session.isIndicating(characteristic)) {
+      // Indications are only reported as sent once the device confirms them, or failed.
+      capture.onConfirmation(device, status);
+    }
+    if (characteristic != null) {
+      mHandler.onNotificationSent(device, characteristic, status);
+    }
+  }
+
+  /**
+   * Sends the current value of the characteristic to every device subscribed to it.
+   */
+  public void notifyValueChanged(Attribute characteristic) {
+    // Iterates the devices connected when called; devices that connect or disconnect meanwhile
+    // don't affect the loop.
+    for (DeviceSession<D> session : mDeviceRegistry.getSessions()) {
+      notifyValueChanged(session, characteristic, /* value */ null);
+    }
+  }
+
+  /**
+   * Sends the current value of the characteristic to the device if it is subscribed to it.
+   */
+  public void notifyValueChanged(D device, Attribute characteristic) {
+    notifyValueChanged(device, characteristic, /* value */ null);
+  }
+
+  /**
+   * Sends a value of the characteristic that is meant for the device only, if it is subscribed to
+   * the characteristic. The value of the characteristic itself doesn't change.
+   */
+  public void notifyValueChanged(D device, Attribute characteristic, byte[] value) {
+    DeviceSession<D> session = mDeviceRegistry.get(device);
+    if (session != null) {
+      notifyValueChanged(session, characteristic, value);
+    }
+  }
+
+  /**
+   * @param value The value to send, or null for the value of the characteristic.
+   */
+  private void notifyValueChanged(DeviceSession<D> session, Attribute characteristic,
+      byte[] value) {
+    // Only send to devices that wrote the CCC Descriptor of this characteristic.
+    if (session.isIndicating(characteristic)) {
+      // true for indication (acknowledge) and false for notification (unacknowledge).
+      mNotificationQueue.enqueue(session.getDevice(), characteristic, value, true /* confirm */);
+    } else if (session.isNotifying(characteristic)) {
+      mNotificationQueue.enqueue(session.getDevice(), characteristic, value, false /* confirm */);
+    }
+  }
+
+  /**
+   * @return The ATT_MTU negotiated with the device, or the default ATT_MTU if it didn't negotiate
+   * one.
+   */
+  public int getMtu(D device) {
+    DeviceSession<D> session = mDeviceRegistry.get(device);
+    return session == null ? DeviceSession.DEFAULT_ATT_MTU : session.getMtu();
+  }
+
+  /**
+   * @return The smallest ATT_MTU of the connected devices, or the default ATT_MTU if there are
+   * none.
+   */
+  public int getMinimumMtu() {
+    int minimumMtu = Integer.MAX_VALUE;
+    for (DeviceSession<D> session : mDeviceRegistry.getSessions()) {
+      minimumMtu = Math.min(minimumMtu, session.getMtu());
+    }
+    return minimumMtu == Integer.MAX_VALUE ? DeviceSession.DEFAULT_ATT_MTU : minimumMtu;
+  }
+
+  /**
+   * Forgets every device, e.g. because the server was closed.
+   */
+  public void clear() {
+    mDeviceRegistry.clear();
+    mNotificationQueue.clear();
+    mLongReadSnapshots.clear();
+    mPreparedWriteQueue.clear();
+  }
+
+  private DeviceSession<D> getSession(D device) {
+    // Requests only arrive from connected devices, so a missing session means the connection
+    // callback hasn't been handled yet.
+    return mDeviceRegistry.add(device);
+  }
+
+  /**
+   * @param request Whether the write is a Write Request or Prepare Write Request, rather than a
+   * Write Command.
+   * @return Whether the properties of a characteristic allow the write. Descriptors can always be
+   * written.
+   */
+  private static boolean isWritePermitted(Attribute attribute, boolean request) {
+    if (attribute.getType() != Attribute.Type.CHARACTERISTIC) {
+      return true;
+    }
+    return attribute.hasProperty(
+        request ? Attribute.PROPERTY_WRITE : Attribute.PROPERTY_WRITE_NO_RESPONSE);
+  }
+
+  /**
+   * Applies the writes of an Execute Write Request all or nothing: either every attribute gets
+   * its new value or none does.
+   */
+  private int executeWrites(D device, List<PreparedWriteQueue.PreparedWrite> writes) {
+    // Every write is checked before any is applied, so a rejected one leaves every attribute as
+    // it was and each assembled value reaches the handler once.
+    for (PreparedWriteQueue.PreparedWrite write : writes) {
+      int status = checkWrite(device, write.attribute, write.offset, write.value);
+      if (status != GattStatus.SUCCESS) {
+        return status;
+      }
+    }
+    for (PreparedWriteQueue.PreparedWrite write : writes) {
+      int status = write(device, write.attribute, write.offset, write.value);
+      if (status != GattStatus.SUCCESS) {
+        // Only a handler that accepts a value when checking it and rejects it when writing it
+        // gets here; the writes before it stay applied.
+        return status;
+      }
+    }
+    return GattStatus.SUCCESS;
+  }
+
+  /**
+   * Checks a write without applying it.
+   */
+  private int checkWrite(D device, Attribute attribute, int offset, byte[] value) {
+    if (attribute.getType() == Attribute.Type.CHARACTERISTIC) {
+      return mHandler.checkCharacteristicWrite(device, attribute, offset, value);
+    }
+    if (attribute.getType() != Attribute.Type.DESCRIPTOR) {
+      return GattStatus.WRITE_NOT_PERMITTED;
+    }
+    if (attribute.isClientCharacteristicConfiguration()) {
+      return checkClientCharacteristicConfiguration(attribute.getParent(), value);
+    }
+    return checkDescriptorOffset(attribute, offset);
+  }
+
+  private int write(D device, Attribute attribute, int offset, byte[] value) {
+    if (value == null) {
+      value = new byte[0];
+    }
+    switch (attribute.getType()) {
+      case CHARACTERISTIC:
+        return mHandler.writeCharacteristic(device, attribute, offset, value);
+      case DESCRIPTOR:
+        if (attribute.isClientCharacteristicConfiguration()) {
+          return writeClientCharacteristicConfiguration(device, attribute.getParent(), value);
+        }
+        return writeDescriptor(attribute, offset, value);
+      default:
+        return GattStatus.WRITE_NOT_PERMITTED;
+    }
+  }
+
+  private int writeClientCharacteristicConfiguration(D device, Attribute characteristic,
+      byte[] value) {
+    int status = checkClientCharacteristicConfiguration(characteristic, value);
+    if (status != GattStatus.SUCCESS) {
+      return status;
+    }
+    // Little endian uint16.
+    int configuration = (value[0] & 0xff) | ((value[1] & 0xff) << 8);
+    getSession(device).setConfiguration(characteristic, configuration);
+    mHandler.onSubscriptionChanged(device, characteristic, configuration);
+    return GattStatus.SUCCESS;
+  }
+
+  private int checkClientCharacteristicConfiguration(Attribute characteristic, byte[] value) {
+    boolean supportsNotifications = characteristic.hasProperty(Attribute.PROPERTY_NOTIFY);
+    boolean supportsIndications = characteristic.hasProperty(Attribute.PROPERTY_INDICATE);
+    if (!(supportsNotifications || supportsIndications)) {
+      return GattStatus.REQUEST_NOT_SUPPORTED;
+    }
+    if (value.length != 2) {
+      return GattStatus.INVALID_ATTRIBUTE_LENGTH;
+    }
+    // Little endian uint16.
+    int configuration = (value[0] & 0xff) | ((value[1] & 0xff) << 8);
+    if (!(configuration == 0
+        || (supportsNotifications && configuration == DeviceSession.CONFIGURATION_NOTIFY)
+        || (supportsIndications && configuration == DeviceSession.CONFIGURATION_INDICATE))) {
+      return GattStatus.REQUEST_NOT_SUPPORTED;
+    }
+    return GattStatus.SUCCESS;
+  }
+
+  private int writeDescriptor(Attribute descriptor, int offset, byte[] value) {
+    if (offset == 0) {
+      descriptor.setValue(value);
+      return GattStatus.SUCCESS;
+    }
+    int status = checkDescriptorOffset(descriptor, offset);
+    if (status != GattStatus.SUCCESS) {
+      return status;
+    }
+    // Keep the beginning of the current value and replace the rest.
+    byte[] currentValue = descriptor.getValue();
+    byte[] newValue = new byte[offset + value.length];
+    System.arraycopy(currentValue, 0, newValue, 0, offset);
+    System.arraycopy(value, 0, newValue, offset, value.length);
+    descriptor.setValue(newValue);
+    return GattStatus.SUCCESS;
+  }
+
+  private int checkDescriptorOffset(Attribute descriptor, int offset) {
+    if (offset == 0) {
+      return GattStatus.SUCCESS;
+    }
+    byte[] currentValue = descriptor.getValue();
+    if (currentValue == null || offset > currentValue.length) {
+      return GattStatus.INVALID_OFFSET;
+    }
+    return GattStatus.SUCCESS;
+  }
+}
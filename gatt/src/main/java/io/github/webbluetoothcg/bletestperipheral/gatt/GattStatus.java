@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * ATT error codes returned in responses. The values match the constants of
+ * {@code android.bluetooth.BluetoothGatt} so they can be passed to the Android stack unchanged.
+ */
+public final class GattStatus {
+  public static final int SUCCESS = 0x00;
+  public static final int INVALID_HANDLE = 0x01;
+  public static final int READ_NOT_PERMITTED = 0x02;
+  public static final int WRITE_NOT_PERMITTED = 0x03;
+  public static final int INVALID_PDU = 0x04;
+  public static final int REQUEST_NOT_SUPPORTED = 0x06;
+  public static final int INVALID_OFFSET = 0x07;
+  public static final int PREPARE_QUEUE_FULL = 0x09;
+  public static final int ATTRIBUTE_NOT_FOUND = 0x0a;
+  public static final int INVALID_ATTRIBUTE_LENGTH = 0x0d;
+  public static final int FAILURE = 0x101;
+
+  private GattStatus() {
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * What {@link GattRequestHandler} needs from the platform GATT server: sending responses and
+ * notifications. Implemented on top of {@code android.bluetooth.BluetoothGattServer} on a phone
+ * and by {@link FakeGattServer} on a JVM.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public interface GattTransport<D> {
+  /**
+   * Responds to the request with the id.
+   * @param value Value of a read response, or the echoed value of a prepared write. May be null.
+   */
+  void sendResponse(D device, int requestId, int status, int offset, byte[] value);
+
+  /**
+   * Sends a notification or indication of the characteristic.
+   * @param value The value to send, already cut to what fits in the ATT_MTU of the device. May be
+   * null. Transports that can only send the current value of the characteristic send that.
+   * @param confirm true for indication (acknowledge) and false for notification (unacknowledge).
+   * @return true if the notification was handed to the stack, in which case
+   * {@link GattRequestHandler#onNotificationSent} must follow.
+   */
+  boolean notifyCharacteristicChanged(D device, Attribute characteristic, byte[] value,
+      boolean confirm);
+}
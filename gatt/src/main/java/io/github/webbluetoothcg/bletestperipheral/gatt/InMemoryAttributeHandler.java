@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.Arrays;
+
+/**
+ * {@link AttributeHandler} that keeps the value of the characteristics in the
+ * {@link AttributeDatabase} and accepts every write. Used to drive a {@link GattRequestHandler}
+ * without an application behind it.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class InMemoryAttributeHandler<D> implements AttributeHandler<D> {
+  @Override
+  public byte[] readCharacteristic(Attribute characteristic) {
+    return characteristic.getValue();
+  }
+
+  @Override
+  public int writeCharacteristic(D device, Attribute characteristic, int offset, byte[] value) {
+    int status = checkCharacteristicWrite(device, characteristic, offset, value);
+    if (status != GattStatus.SUCCESS) {
+      return status;
+    }
+    if (offset == 0) {
+      characteristic.setValue(value);
+      return GattStatus.SUCCESS;
+    }
+    byte[] currentValue = characteristic.getValue();
+    byte[] newValue = Arrays.copyOf(currentValue, offset + value.length);
+    System.arraycopy(value, 0, newValue, offset, value.length);
+    characteristic.setValue(newValue);
+    return GattStatus.SUCCESS;
+  }
+
+  @Override
+  public int checkCharacteristicWrite(D device, Attribute characteristic, int offset,
+      byte[] value) {
+    if (offset == 0) {
+      return GattStatus.SUCCESS;
+    }
+    byte[] currentValue = characteristic.getValue();
+    if (currentValue == null || offset > currentValue.length) {
+      return GattStatus.INVALID_OFFSET;
+    }
+    return GattStatus.SUCCESS;
+  }
+
+  @Override
+  public void onSubscriptionChanged(D device, Attribute characteristic, int configuration) {
+  }
+
+  @Override
+  public void onNotificationSent(D device, Attribute characteristic, int status) {
+  }
+
+  @Override
+  public void onMtuChanged(D device, int mtu) {
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Serves long reads (Read Request followed by Read Blob Requests).
+ *
+ * A value longer than ATT_MTU - 1 is read in several requests with increasing offsets. To return
+ * a consistent value even if it changes in the middle of the sequence, a copy of the value is
+ * pinned per device and attribute when a read with offset 0 arrives, and the following reads with
+ * a non-zero offset are served from that copy.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class LongReadSnapshots<D> {
+  /**
+   * Values that fit in a Read Response with the minimum ATT_MTU of 23 never need a Read Blob
+   * Request, so they are not pinned.
+   */
+  private static final int MAX_SINGLE_READ_LENGTH = 22;
+
+  private final HashMap<D, HashMap<Attribute, byte[]>> mSnapshots = new HashMap<>();
+
+  /**
+   * @param attribute Characteristic or descriptor being read.
+   * @param value Current value of the attribute.
+   * @param offset Offset of the read request.
+   * @return The part of the value starting at offset, or null if the offset is past the end of
+   * the value.
+   */
+  public synchronized byte[] read(D device, Attribute attribute, byte[] value, int offset) {
+    if (value == null) {
+      value = new byte[0];
+    }
+    HashMap<Attribute, byte[]> deviceSnapshots = mSnapshots.get(device);
+    if (offset == 0) {
+      if (value.length <= MAX_SINGLE_READ_LENGTH) {
+        if (deviceSnapshots != null) {
+          deviceSnapshots.remove(attribute);
+        }
+        return value;
+      }
+      if (deviceSnapshots == null) {
+        deviceSnapshots = new HashMap<>();
+        mSnapshots.put(device, deviceSnapshots);
+      }
+      deviceSnapshots.put(attribute, Arrays.copyOf(value, value.length));
+      return value;
+    }
+    if (deviceSnapshots != null && deviceSnapshots.containsKey(attribute)) {
+      value = deviceSnapshots.get(attribute);
+    }
+    // An offset equal to the length of the value is valid and returns an empty value.
+    if (offset > value.length) {
+      return null;
+    }
+    return Arrays.copyOfRange(value, offset, value.length);
+  }
+
+  public synchronized void removeDevice(D device) {
+    mSnapshots.remove(device);
+  }
+
+  public synchronized void clear() {
+    mSnapshots.clear();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * Encodes the values of the measurement characteristics of the standard services.
+ *
+ * Kept out of the fragments so the work done for every measurement can be benchmarked on a JVM.
+ * Values are encoded into the buffer passed in, so a measurement sent thousands of times doesn't
+ * allocate. The buffer must not be the characteristic's current value: the GATT event loop may
+ * be reading it, so callers encode into a buffer of their own and publish a copy.
+ */
+public final class Measurements {
+  public static final int HEART_RATE_FLAG_ENERGY_EXPENDED = 1 << 3;
+  public static final int HEART_RATE_MEASUREMENT_LENGTH = ValueCodec.UINT8_LENGTH
+      + ValueCodec.UINT8_LENGTH + ValueCodec.UINT16_LENGTH;
+  public static final int TEMPERATURE_MEASUREMENT_LENGTH = ValueCodec.UINT8_LENGTH
+      + ValueCodec.FLOAT_LENGTH;
+
+  private Measurements() {
+  }
+
+  /**
+   * Heart Rate Measurement with a uint8 heart rate and the Energy Expended field.
+   *
+   * Flags (8bit) + Heart Rate Measurement Value (uint8) + Energy Expended (uint16) = 4 bytes
+   *
+   * Flags = 1 << 3:
+   *   Heart Rate Format (0) -> UINT8
+   *   Sensor Contact Status (00) -> Not Supported
+   *   Energy Expended (1) -> Field Present
+   *   RR-Interval (0) -> Field not pressent
+   *   Unused (000)
+   *
+   * @param buffer Buffer to encode into. A new one is allocated if it is null or not
+   * HEART_RATE_MEASUREMENT_LENGTH long.
+   * @return The encoded value, buffer if it was reused.
+   */
+  public static byte[] heartRateMeasurement(byte[] buffer, int heartRate, int energyExpended) {
+    byte[] value = reuse(buffer, HEART_RATE_MEASUREMENT_LENGTH);
+    int offset = ValueCodec.setUint8(value, 0, HEART_RATE_FLAG_ENERGY_EXPENDED);
+    offset = ValueCodec.setUint8(value, offset, heartRate);
+    ValueCodec.setUint16(value, offset, energyExpended);
+    // Characteristic Value: [flags, heart rate value, energy expended (LSB), energy expended (MSB)]
+    return value;
+  }
+
+  /**
+   * Temperature Measurement in Celsius without Time Stamp or Temperature Type.
+   *
+   * Flags (8bit) + Temperature Measurement Value (FLOAT) = 5 bytes
+   *
+   * Flags:
+   *   Temperature Units Flag (0) -> Celsius
+   *   Time Stamp Flag (0) -> Time Stamp field not present
+   *   Temperature Type Flag (0) -> Temperature Type field not present
+   *   Unused (00000)
+   *
+   * @param buffer Buffer to encode into. A new one is allocated if it is null or not
+   * TEMPERATURE_MEASUREMENT_LENGTH long.
+   * @return The encoded value, buffer if it was reused.
+   */
+  public static byte[] temperatureMeasurement(byte[] buffer, float temperature) {
+    byte[] value = reuse(buffer, TEMPERATURE_MEASUREMENT_LENGTH);
+    int offset = ValueCodec.setUint8(value, 0, /* flags */ 0);
+    // Rounding to the 7 digits of the mantissa drops the binary error of the float, so 37.1f is
+    // sent as 371e-1.
+    ValueCodec.setFloat(value, offset, temperature);
+    // Characteristic Value: [flags, temperature measurement value]
+    return value;
+  }
+
+  private static byte[] reuse(byte[] buffer, int length) {
+    return buffer != null && buffer.length == length ? buffer : new byte[length];
+  }
+}
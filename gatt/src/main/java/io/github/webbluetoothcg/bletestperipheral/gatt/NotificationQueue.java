@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Per device outbound queue of notifications and indications.
+ *
+ * The Android stack only allows one outstanding notification per device; any other
+ * notification sent before {@code BluetoothGattServerCallback#onNotificationSent} arrives is
+ * dropped. This queue keeps at most one notification in flight per device and releases
+ * the next one when the stack reports the previous one as sent.
+ *
+ * Sending calls into the stack, so it happens outside the lock of the queue: the notification
+ * taken from the queue holds the in-flight slot of the device while it is being sent.
+ *
+ * Unless it is given a value for the device, the value sent is the value of the characteristic
+ * at the time the notification leaves the queue. Either way a characteristic that is already
+ * waiting in the queue is not queued again: its stale value is coalesced with the new one.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class NotificationQueue<D> {
+  public static final int DEFAULT_MAX_DEPTH = 16;
+
+  /**
+   * Sends a single notification or indication.
+   */
+  public interface Sender<D> {
+    /**
+     * Sends the value of the characteristic.
+     * @param value The value to send, or null to send the current value of the characteristic.
+     * @param confirm true for indication (acknowledge) and false for notification (unacknowledge).
+     * @return true if the notification was handed to the stack, in which case
+     * {@link #onNotificationSent} must follow.
+     */
+    boolean send(D device, Attribute characteristic, byte[] value, boolean confirm);
+  }
+
+  private static class Entry {
+    final Attribute characteristic;
+    byte[] value;
+    boolean confirm;
+
+    Entry(Attribute characteristic, byte[] value, boolean confirm) {
+      this.characteristic = characteristic;
+      this.value = value;
+      this.confirm = confirm;
+    }
+  }
+
+  private static class DeviceQueue {
+    final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    Entry inFlight;
+  }
+
+  private final Sender<D> mSender;
+  private final HashMap<D, DeviceQueue> mQueues = new HashMap<>();
+  private int mMaxDepth;
+
+  private long mQueued;
+  private long mSent;
+  private long mCoalesced;
+  private long mDropped;
+
+  public NotificationQueue(Sender<D> sender, int maxDepth) {
+    mSender = sender;
+    setMaxDepth(maxDepth);
+  }
+
+  /**
+   * @param maxDepth Maximum number of notifications waiting per device, not counting the one in
+   * flight. When the queue is full the oldest notification is dropped.
+   */
+  public synchronized void setMaxDepth(int maxDepth) {
+    if (maxDepth < 1) {
+      throw new IllegalArgumentException("Queue depth must be at least 1: " + maxDepth);
+    }
+    mMaxDepth = maxDepth;
+  }
+
+  public synchronized int getMaxDepth() {
+    return mMaxDepth;
+  }
+
+  /**
+   * Queues a notification of the current value of the characteristic to the device and sends it
+   * right away if nothing is in flight.
+   * @param confirm true for indication (acknowledge) and false for notification (unacknowledge).
+   */
+  public void enqueue(D device, Attribute characteristic, boolean confirm) {
+    enqueue(device, characteristic, /* value */ null, confirm);
+  }
+
+  /**
+   * Queues a notification of the value to the device and sends it right away if nothing is in
+   * flight.
+   * @param value The value for this device, which the queue keeps, or null to send the value of
+   * the characteristic at the time the notification leaves the queue.
+   * @param confirm true for indication (acknowledge) and false for notification (unacknowledge).
+   */
+  public void enqueue(D device, Attribute characteristic, byte[] value, boolean confirm) {
+    Entry next;
+    synchronized (this) {
+      DeviceQueue queue = mQueues.get(device);
+      if (queue == null) {
+        queue = new DeviceQueue();
+        mQueues.put(device, queue);
+      }
+      mQueued++;
+      for (Entry entry : queue.pending) {
+        if (entry.characteristic == characteristic) {
+          // The notification that is already waiting will carry the new value.
+          entry.value = value;
+          entry.confirm = entry.confirm || confirm;
+          mCoalesced++;
+          return;
+        }
+      }
+      if (queue.pending.size() >= mMaxDepth) {
+        queue.pending.poll();
+        mDropped++;
+      }
+      queue.pending.add(new Entry(characteristic, value, confirm));
+      next = takeNext(queue);
+    }
+    send(device, next);
+  }
+
+  /**
+   * Must be called when the transport reports a notification as sent. Releases the next
+   * notification for the device.
+   * @return The characteristic whose notification was in flight or null if there was none.
+   */
+  public Attribute onNotificationSent(D device, int status) {
+    Attribute characteristic;
+    Entry next;
+    synchronized (this) {
+      DeviceQueue queue = mQueues.get(device);
+      if (queue == null || queue.inFlight == null) {
+        return null;
+      }
+      characteristic = queue.inFlight.characteristic;
+      queue.inFlight = null;
+      if (status == GattStatus.SUCCESS) {
+        mSent++;
+      } else {
+        mDropped++;
+      }
+      next = takeNext(queue);
+    }
+    send(device, next);
+    return characteristic;
+  }
+
+  /**
+   * Drops every notification waiting for the device, e.g. because it disconnected.
+   */
+  public synchronized void removeDevice(D device) {
+    DeviceQueue queue = mQueues.remove(device);
+    if (queue != null) {
+      mDropped += queue.pending.size();
+    }
+  }
+
+  public synchronized void clear() {
+    for (DeviceQueue queue : mQueues.values()) {
+      mDropped += queue.pending.size();
+    }
+    mQueues.clear();
+  }
+
+  public synchronized long getQueuedCount() {
+    return mQueued;
+  }
+
+  public synchronized long getSentCount() {
+    return mSent;
+  }
+
+  public synchronized long getCoalescedCount() {
+    return mCoalesced;
+  }
+
+  public synchronized long getDroppedCount() {
+    return mDropped;
+  }
+
+  public synchronized void resetCounters() {
+    mQueued = 0;
+    mSent = 0;
+    mCoalesced = 0;
+    mDropped = 0;
+  }
+
+  /**
+   * Takes the next notification to send, if the device has none in flight, and puts it in
+   * flight. Must be called with the lock held.
+   */
+  private Entry takeNext(DeviceQueue queue) {
+    if (queue.inFlight != null || queue.pending.isEmpty()) {
+      return null;
+    }
+    queue.inFlight = queue.pending.poll();
+    return queue.inFlight;
+  }
+
+  /**
+   * Sends the notification taken from the queue without holding the lock. Takes the next one each
+   * time the stack refuses one, until one is accepted or none is left.
+   */
+  private void send(D device, Entry entry) {
+    while (entry != null) {
+      if (mSender.send(device, entry.characteristic, entry.value, entry.confirm)) {
+        return;
+      }
+      synchronized (this) {
+        mDropped++;
+        DeviceQueue queue = mQueues.get(device);
+        if (queue == null || queue.inFlight != entry) {
+          // The device was removed while sending.
+          return;
+        }
+        queue.inFlight = null;
+        entry = takeNext(queue);
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring of packets, preallocated, that any number of threads write without locks and one
+ * thread reads.
+ *
+ * Every packet takes a slot of fixed size. A writer claims the next slot, writes the packet in
+ * place with {@link #getBuffer()} and {@link #getOffset(long)} and publishes it. Packets longer
+ * than a slot are truncated, keeping their original length. When the ring is full packets are
+ * dropped and counted rather than making the writers wait.
+ */
+public class PacketRing {
+  /**
+   * Receives the packets read from the ring.
+   */
+  public interface Reader<E extends Exception> {
+    /**
+     * @param length Bytes of the packet in the buffer.
+     * @param originalLength Length of the packet before it was truncated to the slot.
+     * @param drops Packets dropped since the ring was created, when this one was read.
+     */
+    void onPacket(byte[] buffer, int offset, int length, int originalLength, int flags,
+        long timestampMicros, long drops) throws E;
+  }
+
+  private final int mSlotSize;
+  private final int mMask;
+  private final byte[] mBuffer;
+  private final int[] mLengths;
+  private final int[] mOriginalLengths;
+  private final int[] mFlags;
+  private final long[] mTimestampsMicros;
+  // Sequence number of the packet published in each slot plus one, 0 if none was.
+  private final AtomicLongArray mPublished;
+  // Next sequence number to claim.
+  private final AtomicLong mHead = new AtomicLong();
+  // Next sequence number to read. Only written by the reader.
+  private final AtomicLong mTail = new AtomicLong();
+  private final AtomicLong mDrops = new AtomicLong();
+
+  /**
+   * @param slotCount Number of packets the ring holds, a power of two.
+   * @param slotSize Maximum length of a packet, longer ones are truncated.
+   */
+  public PacketRing(int slotCount, int slotSize) {
+    if (slotCount <= 0 || Integer.bitCount(slotCount) != 1) {
+      throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+    }
+    mSlotSize = slotSize;
+    mMask = slotCount - 1;
+    mBuffer = new byte[slotCount * slotSize];
+    mLengths = new int[slotCount];
+    mOriginalLengths = new int[slotCount];
+    mFlags = new int[slotCount];
+    mTimestampsMicros = new long[slotCount];
+    mPublished = new AtomicLongArray(slotCount);
+  }
+
+  public int getSlotSize() {
+    return mSlotSize;
+  }
+
+  /**
+   * Claims the next slot.
+   *
+   * @return Sequence number of the slot, to write and publish the packet, or -1 if the ring is
+   * full and the packet is dropped.
+   */
+  public long claim() {
+    while (true) {
+      long head = mHead.get();
+      if (head - mTail.get() > mMask) {
+        mDrops.incrementAndGet();
+        return -1;
+      }
+      if (mHead.compareAndSet(head, head + 1)) {
+        return head;
+      }
+    }
+  }
+
+  public byte[] getBuffer() {
+    return mBuffer;
+  }
+
+  /**
+   * @return Offset in the buffer of the slot claimed with sequence.
+   */
+  public int getOffset(long sequence) {
+    return (int) (sequence & mMask) * mSlotSize;
+  }
+
+  /**
+   * Makes the packet written in the slot visible to the reader.
+   *
+   * @param originalLength Length of the packet, possibly more than the slot size.
+   */
+  public void publish(long sequence, int originalLength, int flags, long timestampMicros) {
+    int slot = (int) (sequence & mMask);
+    mLengths[slot] = Math.min(originalLength, mSlotSize);
+    mOriginalLengths[slot] = originalLength;
+    mFlags[slot] = flags;
+    mTimestampsMicros[slot] = timestampMicros;
+    // Orders the writes above before the reader sees the slot as published.
+    mPublished.lazySet(slot, sequence + 1);
+  }
+
+  /**
+   * Reads the published packets in order, up to the first slot that is claimed but not yet
+   * published. Must only be called from one thread at a time.
+   *
+   * @return Number of packets read.
+   */
+  public <E extends Exception> int drain(Reader<E> reader) throws E {
+    long tail = mTail.get();
+    int count = 0;
+    while (true) {
+      int slot = (int) (tail & mMask);
+      if (mPublished.get(slot) != tail + 1) {
+        break;
+      }
+      reader.onPacket(mBuffer, slot * mSlotSize, mLengths[slot], mOriginalLengths[slot],
+          mFlags[slot], mTimestampsMicros[slot], mDrops.get());
+      tail++;
+      count++;
+      // Frees the slot for the writers.
+      mTail.lazySet(tail);
+    }
+    return count;
+  }
+
+  public long getDrops() {
+    return mDrops.get();
+  }
+}
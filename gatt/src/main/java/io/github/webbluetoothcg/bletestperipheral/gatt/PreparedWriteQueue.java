@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers Prepare Write Requests per device until an Execute Write Request commits or cancels
+ * them.
+ *
+ * On execution the segments written to the same attribute are assembled into a single value so
+ * the attribute sees one write with the whole value. Every attribute is assembled and checked
+ * before anything is handed back, so a malformed queue is rejected as a whole.
+ *
+ * @param <D> Type that identifies a connected device.
+ */
+public class PreparedWriteQueue<D> {
+  /**
+   * Maximum length of an attribute value.
+   */
+  public static final int MAX_ATTRIBUTE_LENGTH = 512;
+  public static final int DEFAULT_MAX_BYTES_PER_DEVICE = 4 * MAX_ATTRIBUTE_LENGTH;
+
+  /**
+   * The assembled value of one attribute.
+   */
+  public static class PreparedWrite {
+    public final Attribute attribute;
+    public final int offset;
+    public final byte[] value;
+
+    PreparedWrite(Attribute attribute, int offset, byte[] value) {
+      this.attribute = attribute;
+      this.offset = offset;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Result of an Execute Write Request.
+   */
+  public static class Execution {
+    /**
+     * {@link GattStatus#SUCCESS} if every attribute could be assembled.
+     */
+    public final int status;
+    public final List<PreparedWrite> writes;
+
+    Execution(int status, List<PreparedWrite> writes) {
+      this.status = status;
+      this.writes = writes;
+    }
+  }
+
+  private static class Segment {
+    final int offset;
+    final byte[] value;
+
+    Segment(int offset, byte[] value) {
+      this.offset = offset;
+      this.value = value;
+    }
+  }
+
+  private static class DeviceQueue {
+    // Keeps the attributes in the order they were first written to.
+    final LinkedHashMap<Attribute, ArrayList<Segment>> segments = new LinkedHashMap<>();
+    int length;
+  }
+
+  private final HashMap<D, DeviceQueue> mQueues = new HashMap<>();
+  private final int mMaxBytesPerDevice;
+
+  public PreparedWriteQueue(int maxBytesPerDevice) {
+    mMaxBytesPerDevice = maxBytesPerDevice;
+  }
+
+  /**
+   * Buffers a Prepare Write Request.
+   * @return {@link GattStatus#SUCCESS} or {@link GattStatus#PREPARE_QUEUE_FULL}.
+   */
+  public synchronized int prepare(D device, Attribute attribute, int offset, byte[] value) {
+    if (value == null) {
+      value = new byte[0];
+    }
+    DeviceQueue queue = mQueues.get(device);
+    if (queue == null) {
+      queue = new DeviceQueue();
+      mQueues.put(device, queue);
+    }
+    if (queue.length + value.length > mMaxBytesPerDevice) {
+      return GattStatus.PREPARE_QUEUE_FULL;
+    }
+    ArrayList<Segment> attributeSegments = queue.segments.get(attribute);
+    if (attributeSegments == null) {
+      attributeSegments = new ArrayList<>();
+      queue.segments.put(attribute, attributeSegments);
+    }
+    attributeSegments.add(new Segment(offset, value));
+    queue.length += value.length;
+    return GattStatus.SUCCESS;
+  }
+
+  /**
+   * Removes the buffered segments of the device and assembles them into one value per attribute.
+   */
+  public synchronized Execution execute(D device) {
+    DeviceQueue queue = mQueues.remove(device);
+    ArrayList<PreparedWrite> writes = new ArrayList<>();
+    if (queue == null) {
+      return new Execution(GattStatus.SUCCESS, writes);
+    }
+    for (Map.Entry<Attribute, ArrayList<Segment>> entry : queue.segments.entrySet()) {
+      ArrayList<Segment> attributeSegments = entry.getValue();
+      int start = Integer.MAX_VALUE;
+      int end = 0;
+      for (Segment segment : attributeSegments) {
+        start = Math.min(start, segment.offset);
+        end = Math.max(end, segment.offset + segment.value.length);
+      }
+      if (end > MAX_ATTRIBUTE_LENGTH) {
+        return new Execution(GattStatus.INVALID_ATTRIBUTE_LENGTH,
+            new ArrayList<PreparedWrite>());
+      }
+      byte[] value = new byte[end - start];
+      boolean[] written = new boolean[value.length];
+      // Later segments overwrite earlier ones, as if they were applied in order.
+      for (Segment segment : attributeSegments) {
+        System.arraycopy(segment.value, 0, value, segment.offset - start, segment.value.length);
+        for (int i = 0; i < segment.value.length; i++) {
+          written[segment.offset - start + i] = true;
+        }
+      }
+      for (boolean byteWritten : written) {
+        if (!byteWritten) {
+          // The segments don't form a single value.
+          return new Execution(GattStatus.INVALID_OFFSET,
+              new ArrayList<PreparedWrite>());
+        }
+      }
+      writes.add(new PreparedWrite(entry.getKey(), start, value));
+    }
+    return new Execution(GattStatus.SUCCESS, writes);
+  }
+
+  /**
+   * Drops the buffered segments of the device.
+   */
+  public synchronized void cancel(D device) {
+    mQueues.remove(device);
+  }
+
+  public synchronized void clear() {
+    mQueues.clear();
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Services of a peripheral declared as data instead of code, compiled into an
+ * {@link AttributeDatabase} with the format, label and generator of every attribute.
+ *
+ * A profile is immutable once built, so one compiled profile can be cached and used by every
+ * peripheral started from it. The values of its attributes are the initial values; a peripheral
+ * copies them instead of changing them.
+ */
+public final class Profile {
+  private final String mName;
+  private final AttributeDatabase mDatabase;
+  // By handle, like the attributes of mDatabase.
+  private final String[] mLabels;
+  private final ValueFormat[] mFormats;
+  private final ValueGenerator[] mGenerators;
+  private final List<Attribute> mGeneratedCharacteristics;
+
+  private Profile(String name, AttributeDatabase database, HashMap<Attribute, String> labels,
+      HashMap<Attribute, ValueFormat> formats, HashMap<Attribute, ValueGenerator> generators) {
+    mName = name;
+    mDatabase = database;
+    int handles = AttributeDatabase.FIRST_HANDLE;
+    if (database.size() > 0) {
+      handles += database.getAttributes().get(database.size() - 1).getValueHandle();
+    }
+    mLabels = new String[handles];
+    mFormats = new ValueFormat[handles];
+    mGenerators = new ValueGenerator[handles];
+    ArrayList<Attribute> generatedCharacteristics = new ArrayList<>();
+    for (Attribute attribute : database.getAttributes()) {
+      int handle = attribute.getHandle();
+      String label = labels.get(attribute);
+      mLabels[handle] = label != null ? label : attribute.getUuid().toString();
+      mFormats[handle] = formats.get(attribute);
+      mGenerators[handle] = generators.get(attribute);
+      if (mGenerators[handle] != null) {
+        generatedCharacteristics.add(attribute);
+      }
+    }
+    mGeneratedCharacteristics = Collections.unmodifiableList(generatedCharacteristics);
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  public AttributeDatabase getDatabase() {
+    return mDatabase;
+  }
+
+  public List<Attribute> getServices() {
+    return mDatabase.getServices();
+  }
+
+  /**
+   * @return The name the profile gives the attribute, or its UUID if it has none.
+   */
+  public String getLabel(Attribute attribute) {
+    return mLabels[attribute.getHandle()];
+  }
+
+  /**
+   * @return The format of the value of a characteristic or descriptor, or null for a service.
+   */
+  public ValueFormat getFormat(Attribute attribute) {
+    return mFormats[attribute.getHandle()];
+  }
+
+  /**
+   * @return The generator of the values of a characteristic, or null if its value only changes
+   * when written.
+   */
+  public ValueGenerator getGenerator(Attribute attribute) {
+    return mGenerators[attribute.getHandle()];
+  }
+
+  /**
+   * @return The characteristics with a generator, in handle order.
+   */
+  public List<Attribute> getGeneratedCharacteristics() {
+    return mGeneratedCharacteristics;
+  }
+
+  /**
+   * @return A copy of the initial value of a characteristic or descriptor, or null if it has none.
+   */
+  public static byte[] copyValue(Attribute attribute) {
+    byte[] value = attribute.getValue();
+    return value == null ? null : value.clone();
+  }
+
+  @Override
+  public String toString() {
+    return mName + " (" + mDatabase.getServices().size() + " services, " + mDatabase.size()
+        + " attributes)";
+  }
+
+  /**
+   * Compiles a profile. Characteristics that notify or indicate get a Client Characteristic
+   * Configuration Descriptor without declaring one.
+   */
+  public static class Builder {
+    private final AttributeDatabase.Builder mDatabaseBuilder = new AttributeDatabase.Builder();
+    private final HashMap<Attribute, String> mLabels = new HashMap<>();
+    private final HashMap<Attribute, ValueFormat> mFormats = new HashMap<>();
+    private final HashMap<Attribute, ValueGenerator> mGenerators = new HashMap<>();
+    private Attribute mClientCharacteristicConfiguration;
+
+    /**
+     * @param label Name of the service, or null.
+     */
+    public Attribute addService(UUID uuid, String label) {
+      Attribute service = mDatabaseBuilder.addService(uuid);
+      putIfNotNull(mLabels, service, label);
+      return service;
+    }
+
+    /**
+     * Adds a characteristic to the last service added.
+     *
+     * @param label Name of the characteristic, or null.
+     * @param value Initial value, or null for an empty one.
+     * @param generator Generator of the values, or null if the value only changes when written.
+     * @throws IllegalArgumentException If the value doesn't have the length of the format or the
+     * generator needs a numeric format.
+     */
+    public Attribute addCharacteristic(UUID uuid, String label, int properties,
+        ValueFormat format, byte[] value, ValueGenerator generator) {
+      if (generator != null && !format.isNumeric()) {
+        throw new IllegalArgumentException("Characteristic " + uuid + " has a generator but "
+            + format.getName() + " values aren't numbers");
+      }
+      if (value == null) {
+        value = format.isNumeric() ? new byte[format.getLength()] : new byte[0];
+      }
+      checkLength(uuid, format, value);
+      Attribute characteristic = mDatabaseBuilder.addCharacteristic(uuid, properties, value);
+      putIfNotNull(mLabels, characteristic, label);
+      mFormats.put(characteristic, format);
+      putIfNotNull(mGenerators, characteristic, generator);
+      mClientCharacteristicConfiguration = null;
+      if (characteristic.hasProperty(Attribute.PROPERTY_NOTIFY)
+          || characteristic.hasProperty(Attribute.PROPERTY_INDICATE)) {
+        mClientCharacteristicConfiguration = mDatabaseBuilder.addDescriptor(
+            Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, new byte[]{0, 0});
+        mFormats.put(mClientCharacteristicConfiguration, ValueFormat.UINT16);
+      }
+      return characteristic;
+    }
+
+    /**
+     * Adds a descriptor to the last characteristic added. A Client Characteristic Configuration
+     * Descriptor that was added with the characteristic isn't added again.
+     *
+     * @param label Name of the descriptor, or null.
+     * @param value Value, or null for an empty one.
+     * @throws IllegalArgumentException If the value doesn't have the length of the format.
+     */
+    public Attribute addDescriptor(UUID uuid, String label, ValueFormat format, byte[] value) {
+      if (mClientCharacteristicConfiguration != null
+          && mClientCharacteristicConfiguration.getUuid().equals(uuid)) {
+        return mClientCharacteristicConfiguration;
+      }
+      if (value == null) {
+        value = format.isNumeric() ? new byte[format.getLength()] : new byte[0];
+      }
+      checkLength(uuid, format, value);
+      Attribute descriptor = mDatabaseBuilder.addDescriptor(uuid, value);
+      putIfNotNull(mLabels, descriptor, label);
+      mFormats.put(descriptor, format);
+      return descriptor;
+    }
+
+    public Profile build(String name) {
+      return new Profile(name, mDatabaseBuilder.build(), mLabels, mFormats, mGenerators);
+    }
+
+    private static void checkLength(UUID uuid, ValueFormat format, byte[] value) {
+      if (format.isNumeric() && value.length != format.getLength()) {
+        throw new IllegalArgumentException("Value of " + uuid + " has " + value.length
+            + " bytes instead of the " + format.getLength() + " of " + format.getName());
+      }
+    }
+
+    private static <V> void putIfNotNull(HashMap<Attribute, V> map, Attribute attribute,
+        V value) {
+      if (value != null) {
+        map.put(attribute, value);
+      }
+    }
+  }
+}
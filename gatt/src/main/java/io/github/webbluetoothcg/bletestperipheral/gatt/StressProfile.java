@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.util.UUID;
+
+/**
+ * Generates profiles with as many services, characteristics and descriptors as asked for, to
+ * measure how the discovery of a central scales with the size of the attribute table.
+ *
+ * The layout only depends on the counts, so the same counts give the same table, handles and
+ * Database Hash every time. Service s, its characteristic c and the descriptor d of that
+ * characteristic, counting from 1, have the UUIDs {@code 0000ssss-0000-0000-8b3c-5e2f6a7d9e01},
+ * {@code 0000ssss-cccc-0000-8b3c-5e2f6a7d9e01} and {@code 0000ssss-cccc-dddd-8b3c-5e2f6a7d9e01},
+ * in hexadecimal. Characteristics can be read and written and hold their number as a uint16. The
+ * first characteristic of every service also notifies, so it has a Client Characteristic
+ * Configuration Descriptor. The first descriptor of every characteristic is a Characteristic User
+ * Description and the others hold their number as a uint16, like the characteristics.
+ */
+public final class StressProfile {
+  public static final int MAX_COUNT = 0xffff;
+
+  private static final long UUID_LEAST_SIGNIFICANT_BITS = 0x8b3c5e2f6a7d9e01L;
+  private static final UUID CHARACTERISTIC_USER_DESCRIPTION_UUID = UUID
+      .fromString("00002901-0000-1000-8000-00805f9b34fb");
+  private static final int PROPERTIES = Attribute.PROPERTY_READ | Attribute.PROPERTY_WRITE;
+
+  private StressProfile() {
+  }
+
+  /**
+   * @return The number of handles of a profile with these counts.
+   */
+  public static long getHandleCount(int services, int characteristicsPerService,
+      int descriptorsPerCharacteristic) {
+    long handlesPerService = 1 + characteristicsPerService * (2L + descriptorsPerCharacteristic);
+    if (characteristicsPerService > 0) {
+      // Client Characteristic Configuration Descriptor of the first characteristic.
+      handlesPerService++;
+    }
+    return services * handlesPerService;
+  }
+
+  /**
+   * @throws IllegalArgumentException If there are no services, a count is negative or larger
+   * than MAX_COUNT, or the attributes don't fit in the handles of a GATT server.
+   */
+  public static Profile build(int services, int characteristicsPerService,
+      int descriptorsPerCharacteristic) {
+    checkCount("services", services, 1);
+    checkCount("characteristics", characteristicsPerService, 0);
+    checkCount("descriptors", descriptorsPerCharacteristic, 0);
+    long handles = getHandleCount(services, characteristicsPerService,
+        descriptorsPerCharacteristic);
+    if (handles > AttributeDatabase.MAX_HANDLE - AttributeDatabase.FIRST_HANDLE + 1) {
+      throw new IllegalArgumentException(handles + " handles don't fit in a GATT server");
+    }
+    Profile.Builder builder = new Profile.Builder();
+    byte[] value = new byte[ValueCodec.UINT16_LENGTH];
+    for (int s = 1; s <= services; s++) {
+      builder.addService(getUuid(s, 0, 0), "Service " + s);
+      for (int c = 1; c <= characteristicsPerService; c++) {
+        String label = "Characteristic " + s + "." + c;
+        ValueCodec.setUint16(value, 0, c);
+        builder.addCharacteristic(getUuid(s, c, 0), label,
+            c == 1 ? PROPERTIES | Attribute.PROPERTY_NOTIFY : PROPERTIES, ValueFormat.UINT16,
+            value.clone(), /* generator */ null);
+        for (int d = 1; d <= descriptorsPerCharacteristic; d++) {
+          if (d == 1) {
+            builder.addDescriptor(CHARACTERISTIC_USER_DESCRIPTION_UUID, /* label */ null,
+                ValueFormat.UTF8, ValueFormat.UTF8.parse(label));
+          } else {
+            ValueCodec.setUint16(value, 0, d);
+            builder.addDescriptor(getUuid(s, c, d), "Descriptor " + s + "." + c + "." + d,
+                ValueFormat.UINT16, value.clone());
+          }
+        }
+      }
+    }
+    return builder.build("Stress " + services + "x" + characteristicsPerService + "x"
+        + descriptorsPerCharacteristic);
+  }
+
+  /**
+   * @param characteristic 0 for the UUID of the service.
+   * @param descriptor 0 for the UUID of a service or characteristic.
+   */
+  public static UUID getUuid(int service, int characteristic, int descriptor) {
+    return new UUID(((long) service << 32) | ((long) characteristic << 16) | descriptor,
+        UUID_LEAST_SIGNIFICANT_BITS);
+  }
+
+  private static void checkCount(String name, int count, int min) {
+    if (count < min || count > MAX_COUNT) {
+      throw new IllegalArgumentException("Number of " + name + " must be between " + min
+          + " and " + MAX_COUNT + ": " + count);
+    }
+  }
+}
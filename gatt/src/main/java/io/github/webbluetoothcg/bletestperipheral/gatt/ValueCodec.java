@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * Encodes and decodes the formats of the Bluetooth SIG characteristics in place, little endian,
+ * without allocating.
+ *
+ * The set methods write a field into an existing buffer and return the offset that follows it,
+ * so a characteristic value made of several fields is built with one call per field into a
+ * buffer that is reused for every update.
+ *
+ * FLOAT and SFLOAT are the IEEE-11073 base 10 formats: a signed mantissa and a signed exponent,
+ * value = mantissa * 10^exponent. Values are rounded to the closest representable value with as
+ * many significant digits as the mantissa holds.
+ */
+public final class ValueCodec {
+  public static final int UINT8_LENGTH = 1;
+  public static final int UINT16_LENGTH = 2;
+  public static final int UINT24_LENGTH = 3;
+  public static final int UINT32_LENGTH = 4;
+  public static final int SFLOAT_LENGTH = 2;
+  public static final int FLOAT_LENGTH = 4;
+
+  // Special values of the 32 bit FLOAT.
+  public static final int FLOAT_NAN = 0x007fffff;
+  public static final int FLOAT_NRES = 0x00800000;
+  public static final int FLOAT_POSITIVE_INFINITY = 0x007ffffe;
+  public static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+  private static final int FLOAT_MANTISSA_MAX = 0x007ffffd;
+  private static final int FLOAT_EXPONENT_MIN = -128;
+  private static final int FLOAT_EXPONENT_MAX = 127;
+  // Significant digits a FLOAT is encoded with. Every 7 digit mantissa up to 8,388,605
+  // (0x007ffffd) fits; larger ones are rounded to 6 digits.
+  private static final int FLOAT_DIGITS = 7;
+
+  // Special values of the 16 bit SFLOAT.
+  public static final int SFLOAT_NAN = 0x07ff;
+  public static final int SFLOAT_NRES = 0x0800;
+  public static final int SFLOAT_POSITIVE_INFINITY = 0x07fe;
+  public static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+  private static final int SFLOAT_MANTISSA_MAX = 0x07fd;
+  private static final int SFLOAT_EXPONENT_MIN = -8;
+  private static final int SFLOAT_EXPONENT_MAX = 7;
+  private static final int SFLOAT_DIGITS = 4;
+
+  // 10^0 to 10^(FLOAT_EXPONENT_MAX + FLOAT_DIGITS), parsed so each one is the closest double.
+  private static final double[] POWERS_OF_TEN = new double[FLOAT_EXPONENT_MAX + FLOAT_DIGITS + 1];
+
+  static {
+    for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = Double.parseDouble("1e" + i);
+    }
+  }
+
+  private ValueCodec() {
+  }
+
+  public static int setUint8(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) value;
+    return offset + UINT8_LENGTH;
+  }
+
+  public static int setUint16(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >> 8);
+    return offset + UINT16_LENGTH;
+  }
+
+  public static int setUint24(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >> 8);
+    buffer[offset + 2] = (byte) (value >> 16);
+    return offset + UINT24_LENGTH;
+  }
+
+  /**
+   * @param value uint32 value. Only the low 32 bits are written.
+   */
+  public static int setUint32(byte[] buffer, int offset, long value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >> 8);
+    buffer[offset + 2] = (byte) (value >> 16);
+    buffer[offset + 3] = (byte) (value >> 24);
+    return offset + UINT32_LENGTH;
+  }
+
+  public static int getUint8(byte[] buffer, int offset) {
+    return buffer[offset] & 0xff;
+  }
+
+  public static int getUint16(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8);
+  }
+
+  public static int getUint24(byte[] buffer, int offset) {
+    return getUint16(buffer, offset) | ((buffer[offset + 2] & 0xff) << 16);
+  }
+
+  public static long getUint32(byte[] buffer, int offset) {
+    return (getUint24(buffer, offset) | ((buffer[offset + 3] & 0xff) << 24)) & 0xffffffffL;
+  }
+
+  /**
+   * @return flags with flag set or cleared.
+   */
+  public static int setFlag(int flags, int flag, boolean set) {
+    return set ? flags | flag : flags & ~flag;
+  }
+
+  public static boolean isFlagSet(int flags, int flag) {
+    return (flags & flag) != 0;
+  }
+
+  /**
+   * Writes an IEEE-11073 32 bit FLOAT: 24 bit mantissa followed by an 8 bit exponent. NaN and
+   * infinities are written as the FLOAT special values, and values too big for a FLOAT as
+   * infinities.
+   */
+  public static int setFloat(byte[] buffer, int offset, double value) {
+    return setUint32(buffer, offset, encodeFloat(value) & 0xffffffffL);
+  }
+
+  /**
+   * Writes an IEEE-11073 16 bit SFLOAT: 12 bit mantissa followed by a 4 bit exponent. NaN and
+   * infinities are written as the SFLOAT special values, and values too big for an SFLOAT as
+   * infinities.
+   */
+  public static int setSfloat(byte[] buffer, int offset, double value) {
+    return setUint16(buffer, offset, encodeSfloat(value));
+  }
+
+  /**
+   * @return The value of the FLOAT. NaN for NaN, NRes and reserved values.
+   */
+  public static double getFloat(byte[] buffer, int offset) {
+    int bits = (int) getUint32(buffer, offset);
+    int mantissa = bits & 0x00ffffff;
+    switch (mantissa) {
+      case FLOAT_POSITIVE_INFINITY:
+        return Double.POSITIVE_INFINITY;
+      case FLOAT_NEGATIVE_INFINITY:
+        return Double.NEGATIVE_INFINITY;
+      case FLOAT_NAN:
+      case FLOAT_NRES:
+      case FLOAT_NRES + 1:
+        return Double.NaN;
+      default:
+        // Sign extend the 24 bit mantissa and the 8 bit exponent.
+        return scale((mantissa << 8) >> 8, bits >> 24);
+    }
+  }
+
+  /**
+   * @return The value of the SFLOAT. NaN for NaN, NRes and reserved values.
+   */
+  public static double getSfloat(byte[] buffer, int offset) {
+    int bits = getUint16(buffer, offset);
+    int mantissa = bits & 0x0fff;
+    switch (mantissa) {
+      case SFLOAT_POSITIVE_INFINITY:
+        return Double.POSITIVE_INFINITY;
+      case SFLOAT_NEGATIVE_INFINITY:
+        return Double.NEGATIVE_INFINITY;
+      case SFLOAT_NAN:
+      case SFLOAT_NRES:
+      case SFLOAT_NRES + 1:
+        return Double.NaN;
+      default:
+        // Sign extend the 12 bit mantissa and the 4 bit exponent.
+        return scale((mantissa << 20) >> 20, (bits << 16) >> 28);
+    }
+  }
+
+  /**
+   * @return The 32 bits of the FLOAT closest to value.
+   */
+  public static int encodeFloat(double value) {
+    if (Double.isNaN(value)) {
+      return FLOAT_NAN;
+    }
+    long mantissaAndExponent = encode(value, FLOAT_MANTISSA_MAX, FLOAT_EXPONENT_MIN,
+        FLOAT_EXPONENT_MAX, FLOAT_DIGITS);
+    if (mantissaAndExponent == Long.MAX_VALUE) {
+      return value > 0 ? FLOAT_POSITIVE_INFINITY : FLOAT_NEGATIVE_INFINITY;
+    }
+    int mantissa = (int) (mantissaAndExponent >> 32);
+    int exponent = (int) mantissaAndExponent;
+    return (exponent << 24) | (mantissa & 0x00ffffff);
+  }
+
+  /**
+   * @return The 16 bits of the SFLOAT closest to value.
+   */
+  public static int encodeSfloat(double value) {
+    if (Double.isNaN(value)) {
+      return SFLOAT_NAN;
+    }
+    long mantissaAndExponent = encode(value, SFLOAT_MANTISSA_MAX, SFLOAT_EXPONENT_MIN,
+        SFLOAT_EXPONENT_MAX, SFLOAT_DIGITS);
+    if (mantissaAndExponent == Long.MAX_VALUE) {
+      return value > 0 ? SFLOAT_POSITIVE_INFINITY : SFLOAT_NEGATIVE_INFINITY;
+    }
+    int mantissa = (int) (mantissaAndExponent >> 32);
+    int exponent = (int) mantissaAndExponent;
+    return ((exponent & 0x0f) << 12) | (mantissa & 0x0fff);
+  }
+
+  /**
+   * Finds the mantissa and exponent closest to value: the smallest exponent whose rounded
+   * mantissa fits, with trailing zeros of the mantissa moved to the exponent.
+   * @return The mantissa in the high 32 bits and the exponent in the low 32 bits, or
+   * Long.MAX_VALUE if value is too big.
+   */
+  private static long encode(double value, int mantissaMax, int exponentMin, int exponentMax,
+      int digits) {
+    if (Double.isInfinite(value)) {
+      return Long.MAX_VALUE;
+    }
+    if (value == 0) {
+      return 0;
+    }
+    // The exponent that leaves digits significant digits in the mantissa.
+    int exponent = (int) Math.floor(Math.log10(Math.abs(value))) - (digits - 1);
+    exponent = Math.max(exponentMin, Math.min(exponentMax, exponent));
+    long mantissa = Math.round(unscale(value, exponent));
+    while (mantissa > mantissaMax || mantissa < -mantissaMax) {
+      if (exponent == exponentMax) {
+        return Long.MAX_VALUE;
+      }
+      exponent++;
+      mantissa = Math.round(unscale(value, exponent));
+    }
+    while (mantissa != 0 && mantissa % 10 == 0 && exponent < exponentMax) {
+      mantissa /= 10;
+      exponent++;
+    }
+    if (mantissa == 0) {
+      exponent = 0;
+    }
+    return (mantissa << 32) | (exponent & 0xffffffffL);
+  }
+
+  /**
+   * @return value / 10^exponent
+   */
+  private static double unscale(double value, int exponent) {
+    return exponent < 0 ? value * POWERS_OF_TEN[-exponent] : value / POWERS_OF_TEN[exponent];
+  }
+
+  /**
+   * @return mantissa * 10^exponent
+   */
+  private static double scale(int mantissa, int exponent) {
+    return exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+  }
+}
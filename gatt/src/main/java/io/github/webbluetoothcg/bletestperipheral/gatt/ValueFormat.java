@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Format of the value of a characteristic or descriptor of a {@link Profile}. Numeric formats are
+ * little endian and encoded with {@link ValueCodec}.
+ */
+public enum ValueFormat {
+  UINT8(ValueCodec.UINT8_LENGTH, 0, 0xff),
+  UINT16(ValueCodec.UINT16_LENGTH, 0, 0xffff),
+  UINT24(ValueCodec.UINT24_LENGTH, 0, 0xffffff),
+  UINT32(ValueCodec.UINT32_LENGTH, 0, 0xffffffffL),
+  SINT8(ValueCodec.UINT8_LENGTH, Byte.MIN_VALUE, Byte.MAX_VALUE),
+  SINT16(ValueCodec.UINT16_LENGTH, Short.MIN_VALUE, Short.MAX_VALUE),
+  SINT32(ValueCodec.UINT32_LENGTH, Integer.MIN_VALUE, Integer.MAX_VALUE),
+  /** IEEE-11073 32 bit FLOAT. */
+  FLOAT(ValueCodec.FLOAT_LENGTH, 0, 0),
+  /** IEEE-11073 16 bit SFLOAT. */
+  SFLOAT(ValueCodec.SFLOAT_LENGTH, 0, 0),
+  /** Text of any length. */
+  UTF8(ValueFormat.VARIABLE_LENGTH, 0, 0),
+  /** Bytes of any length, written as hexadecimal digits. */
+  HEX(ValueFormat.VARIABLE_LENGTH, 0, 0);
+
+  public static final int VARIABLE_LENGTH = -1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final int mLength;
+  private final long mMin;
+  private final long mMax;
+
+  ValueFormat(int length, long min, long max) {
+    mLength = length;
+    mMin = min;
+    mMax = max;
+  }
+
+  /**
+   * @return The format with the name, e.g. "uint16", or null if there is none.
+   */
+  public static ValueFormat fromName(String name) {
+    for (ValueFormat format : values()) {
+      if (format.getName().equals(name)) {
+        return format;
+      }
+    }
+    return null;
+  }
+
+  public String getName() {
+    return name().toLowerCase(Locale.US);
+  }
+
+  /**
+   * @return The length of the values in bytes, or {@link #VARIABLE_LENGTH}.
+   */
+  public int getLength() {
+    return mLength;
+  }
+
+  /**
+   * @return true if the values are numbers, which {@link #encode} and {@link #decode} convert.
+   */
+  public boolean isNumeric() {
+    return mLength != VARIABLE_LENGTH;
+  }
+
+  /**
+   * Writes the value into the buffer. Integer formats round the value and clamp it to their
+   * range.
+   *
+   * @return The offset that follows the value.
+   */
+  public int encode(byte[] buffer, int offset, double value) {
+    switch (this) {
+      case FLOAT:
+        return ValueCodec.setFloat(buffer, offset, value);
+      case SFLOAT:
+        return ValueCodec.setSfloat(buffer, offset, value);
+      case UTF8:
+      case HEX:
+        throw new UnsupportedOperationException(getName() + " values aren't numbers");
+      default:
+        long integer = Math.max(mMin, Math.min(mMax, Math.round(value)));
+        switch (mLength) {
+          case ValueCodec.UINT8_LENGTH:
+            return ValueCodec.setUint8(buffer, offset, (int) integer);
+          case ValueCodec.UINT16_LENGTH:
+            return ValueCodec.setUint16(buffer, offset, (int) integer);
+          case ValueCodec.UINT24_LENGTH:
+            return ValueCodec.setUint24(buffer, offset, (int) integer);
+          default:
+            return ValueCodec.setUint32(buffer, offset, integer);
+        }
+    }
+  }
+
+  public double decode(byte[] buffer, int offset) {
+    switch (this) {
+      case UINT8:
+        return ValueCodec.getUint8(buffer, offset);
+      case UINT16:
+        return ValueCodec.getUint16(buffer, offset);
+      case UINT24:
+        return ValueCodec.getUint24(buffer, offset);
+      case UINT32:
+        return ValueCodec.getUint32(buffer, offset);
+      case SINT8:
+        return (byte) ValueCodec.getUint8(buffer, offset);
+      case SINT16:
+        return (short) ValueCodec.getUint16(buffer, offset);
+      case SINT32:
+        return (int) ValueCodec.getUint32(buffer, offset);
+      case FLOAT:
+        return ValueCodec.getFloat(buffer, offset);
+      case SFLOAT:
+        return ValueCodec.getSfloat(buffer, offset);
+      default:
+        throw new UnsupportedOperationException(getName() + " values aren't numbers");
+    }
+  }
+
+  /**
+   * @param text A number for numeric formats, the text for UTF8 and hexadecimal digits for HEX.
+   * @throws IllegalArgumentException If the text isn't a value of the format.
+   */
+  public byte[] parse(String text) {
+    switch (this) {
+      case UTF8:
+        return text.getBytes(UTF_8);
+      case HEX:
+        return parseHex(text);
+      default:
+        byte[] value = new byte[mLength];
+        encode(value, /* offset */ 0, Double.parseDouble(text));
+        return value;
+    }
+  }
+
+  /**
+   * @return The value as {@link #parse} reads it, or as hexadecimal digits if it doesn't have the
+   * length of the format.
+   */
+  public String toString(byte[] value) {
+    if (value == null) {
+      return "";
+    }
+    if (this == UTF8) {
+      return new String(value, UTF_8);
+    }
+    if (this == HEX || value.length != mLength) {
+      return toHex(value);
+    }
+    double number = decode(value, /* offset */ 0);
+    if (this == FLOAT || this == SFLOAT) {
+      return Double.toString(number);
+    }
+    return Long.toString((long) number);
+  }
+
+  private static byte[] parseHex(String text) {
+    String digits = text.replace(" ", "").replace(":", "");
+    if (digits.length() % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of hexadecimal digits: " + text);
+    }
+    byte[] value = new byte[digits.length() / 2];
+    for (int i = 0; i < value.length; i++) {
+      int high = Character.digit(digits.charAt(2 * i), 16);
+      int low = Character.digit(digits.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Not hexadecimal: " + text);
+      }
+      value[i] = (byte) ((high << 4) | low);
+    }
+    return value;
+  }
+
+  private static String toHex(byte[] value) {
+    StringBuilder builder = new StringBuilder(value.length * 2);
+    for (byte b : value) {
+      builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+/**
+ * Produces the values a characteristic of a {@link Profile} takes over time, one value every
+ * interval.
+ *
+ * Values are a function of the tick number only, so a generator is immutable and can be shared by
+ * every peripheral started from the same profile.
+ */
+public final class ValueGenerator {
+  public enum Type {
+    /** Counts from start by step, wrapping from max back to min. */
+    COUNTER,
+    /** Oscillates between min and max once per period. */
+    SINE,
+    /** Uniformly distributed between min and max. */
+    RANDOM
+  }
+
+  private final Type mType;
+  private final long mIntervalMillis;
+  private final double mMin;
+  private final double mMax;
+  private final double mStart;
+  private final double mStep;
+  private final long mPeriodMillis;
+
+  /**
+   * @param start First value of a COUNTER. Ignored by the other types.
+   * @param step Increment of a COUNTER. Ignored by the other types.
+   * @param periodMillis Period of a SINE. Ignored by the other types.
+   * @throws IllegalArgumentException If the interval or the period isn't positive or min is bigger
+   * than max.
+   */
+  public ValueGenerator(Type type, long intervalMillis, double min, double max, double start,
+      double step, long periodMillis) {
+    if (intervalMillis <= 0) {
+      throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+    }
+    if (!(min <= max)) {
+      throw new IllegalArgumentException("min " + min + " is bigger than max " + max);
+    }
+    if (type == Type.SINE && periodMillis <= 0) {
+      throw new IllegalArgumentException("Period must be positive: " + periodMillis);
+    }
+    mType = type;
+    mIntervalMillis = intervalMillis;
+    mMin = min;
+    mMax = max;
+    mStart = Math.max(min, Math.min(max, start));
+    mStep = step;
+    mPeriodMillis = periodMillis;
+  }
+
+  public Type getType() {
+    return mType;
+  }
+
+  public long getIntervalMillis() {
+    return mIntervalMillis;
+  }
+
+  /**
+   * @return The value at the tick, the number of intervals since the generator started.
+   */
+  public double getValue(long tick) {
+    switch (mType) {
+      case COUNTER:
+        // Counters hold integers, so min to max inclusive is max - min + 1 values.
+        double range = mMax - mMin + 1;
+        double offset = (mStart - mMin + tick * mStep) % range;
+        return mMin + (offset < 0 ? offset + range : offset);
+      case SINE:
+        double phase = 2 * Math.PI * (tick * mIntervalMillis % mPeriodMillis) / mPeriodMillis;
+        return mMin + (mMax - mMin) * (1 - Math.cos(phase)) / 2;
+      default:
+        return mMin + (mMax - mMin) * random(tick);
+    }
+  }
+
+  /**
+   * @return A number between 0 (inclusive) and 1 (exclusive) that looks random but only depends
+   * on the tick, from the SplitMix64 mixing function.
+   */
+  private static double random(long tick) {
+    long z = (tick + 1) * 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    z ^= z >>> 31;
+    return (z >>> 11) * 0x1.0p-53;
+  }
+
+  @Override
+  public String toString() {
+    return mType + " every " + mIntervalMillis + "ms between " + mMin + " and " + mMax;
+  }
+}
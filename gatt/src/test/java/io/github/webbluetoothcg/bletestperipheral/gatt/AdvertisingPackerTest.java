@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class AdvertisingPackerTest {
+  private static final UUID UUID16 = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final UUID OTHER_UUID16 = UUID
+      .fromString("0000180f-0000-1000-8000-00805f9b34fb");
+  private static final UUID UUID32 = UUID.fromString("1234180d-0000-1000-8000-00805f9b34fb");
+  private static final UUID UUID128 = UUID.fromString("a0b1c2d3-e4f5-0617-2839-4a5b6c7d8e9f");
+  private static final UUID OTHER_UUID128 = UUID
+      .fromString("a0b1c2d3-e4f5-0617-2839-4a5b6c7d8ea0");
+
+  private AdvertisingPacker mPacker;
+
+  @Before
+  public void setUp() {
+    mPacker = new AdvertisingPacker();
+  }
+
+  @Test
+  public void uuidLengthDependsOnTheBaseUuid() {
+    assertEquals(2, AdvertisingPacker.getUuidLength(UUID16));
+    assertEquals(4, AdvertisingPacker.getUuidLength(UUID32));
+    assertEquals(16, AdvertisingPacker.getUuidLength(UUID128));
+  }
+
+  @Test
+  public void uuidsOfTheSameSizeShareOneStructure() {
+    List<AdvertisingPacker.Field> fields = Arrays.asList(
+        AdvertisingPacker.Field.serviceUuid(UUID16),
+        AdvertisingPacker.Field.serviceUuid(UUID128),
+        AdvertisingPacker.Field.serviceUuid(OTHER_UUID16),
+        AdvertisingPacker.Field.serviceUuid(UUID32));
+
+    // (2 + 2 * 2) + (2 + 4) + (2 + 16)
+    assertEquals(30, AdvertisingPacker.getLength(fields, /* flags */ false));
+    assertEquals(33, AdvertisingPacker.getLength(fields, /* flags */ true));
+  }
+
+  @Test
+  public void flagsAreOnlyCountedWhenConnectable() {
+    List<AdvertisingPacker.Field> fields = Arrays.asList(
+        AdvertisingPacker.Field.serviceUuid(UUID128));
+
+    assertEquals(AdvertisingPacker.FLAGS_LENGTH + 18,
+        mPacker.pack(fields, /* connectable */ true).getAdvertisementLength());
+    assertEquals(18, mPacker.pack(fields, /* connectable */ false).getAdvertisementLength());
+  }
+
+  @Test
+  public void nameGoesInTheScanResponseAndTheRestInTheAdvertisement() {
+    AdvertisingPacker.Field service = AdvertisingPacker.Field.serviceUuid(UUID16);
+    AdvertisingPacker.Field name = AdvertisingPacker.Field.deviceName("Peripheral");
+    AdvertisingPacker.Field txPower = AdvertisingPacker.Field.txPowerLevel();
+
+    AdvertisingPacker.Layout layout = mPacker.pack(Arrays.asList(service, name, txPower),
+        /* connectable */ true);
+
+    assertEquals(Arrays.asList(service, txPower), layout.getAdvertisement());
+    assertEquals(Arrays.asList(name), layout.getScanResponse());
+    assertTrue(layout.getDropped().isEmpty());
+    assertEquals(AdvertisingPacker.FLAGS_LENGTH + 4 + AdvertisingPacker.TX_POWER_LEVEL_LENGTH,
+        layout.getAdvertisementLength());
+    // The Flags are never in the scan response.
+    assertEquals(2 + "Peripheral".length(), layout.getScanResponseLength());
+  }
+
+  @Test
+  public void fieldGoesInTheOtherPacketWhenItsOwnIsFull() {
+    AdvertisingPacker.Field data1 = AdvertisingPacker.Field.manufacturerData(0x00e0,
+        new byte[20]);
+    AdvertisingPacker.Field data2 = AdvertisingPacker.Field.manufacturerData(0x00e0,
+        new byte[25]);
+    AdvertisingPacker.Field name = AdvertisingPacker.Field.deviceName("N");
+
+    AdvertisingPacker.Layout layout = mPacker.pack(Arrays.asList(data1, data2, name),
+        /* connectable */ false);
+
+    assertEquals(Arrays.asList(data1, name), layout.getAdvertisement());
+    assertEquals(Arrays.asList(data2), layout.getScanResponse());
+    assertEquals(24 + 3, layout.getAdvertisementLength());
+    assertEquals(29, layout.getScanResponseLength());
+  }
+
+  @Test
+  public void fieldsThatFitNowhereAreDropped() {
+    ArrayList<AdvertisingPacker.Field> fields = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      fields.add(AdvertisingPacker.Field.serviceUuid(
+          UUID.fromString(String.format("0000%04x-0000-1000-8000-00805f9b34fb", 0x1800 + i))));
+    }
+
+    AdvertisingPacker.Layout layout = mPacker.pack(fields, /* connectable */ false);
+
+    // 14 UUIDs of 2 bytes and the header fill 30 of the 31 bytes of each packet.
+    assertEquals(fields.subList(0, 14), layout.getAdvertisement());
+    assertEquals(fields.subList(14, 28), layout.getScanResponse());
+    assertEquals(fields.subList(28, 30), layout.getDropped());
+    assertEquals(30, layout.getAdvertisementLength());
+    assertEquals(30, layout.getScanResponseLength());
+  }
+
+  @Test
+  public void uuid16JoinsTheAdvertisementNextToAUuid128() {
+    AdvertisingPacker.Field uuid128 = AdvertisingPacker.Field.serviceUuid(UUID128);
+    AdvertisingPacker.Field otherUuid128 = AdvertisingPacker.Field.serviceUuid(OTHER_UUID128);
+    AdvertisingPacker.Field uuid16 = AdvertisingPacker.Field.serviceUuid(UUID16);
+    AdvertisingPacker.Field otherUuid16 = AdvertisingPacker.Field.serviceUuid(OTHER_UUID16);
+
+    AdvertisingPacker.Layout layout = mPacker.pack(
+        Arrays.asList(uuid128, otherUuid128, uuid16, otherUuid16), /* connectable */ true);
+
+    // A second 128 bit UUID doesn't fit next to the first one; the 16 bit ones share a structure.
+    assertEquals(Arrays.asList(uuid128, uuid16, otherUuid16), layout.getAdvertisement());
+    assertEquals(Arrays.asList(otherUuid128), layout.getScanResponse());
+    assertEquals(3 + 18 + 6, layout.getAdvertisementLength());
+  }
+
+  @Test
+  public void longNameFitsUpToTheLastByte() {
+    AdvertisingPacker.Field longestName = AdvertisingPacker.Field.deviceName(
+        "abcdefghijklmnopqrstuvwxyz012");
+    AdvertisingPacker.Field tooLongName = AdvertisingPacker.Field.deviceName(
+        "abcdefghijklmnopqrstuvwxyz0123");
+
+    AdvertisingPacker.Layout layout = mPacker.pack(Arrays.asList(longestName),
+        /* connectable */ true);
+    assertEquals(Arrays.asList(longestName), layout.getScanResponse());
+    assertEquals(AdvertisingPacker.MAX_PAYLOAD_LENGTH, layout.getScanResponseLength());
+
+    // 32 bytes: too long for either packet, even without the Flags.
+    layout = mPacker.pack(Arrays.asList(tooLongName), /* connectable */ false);
+    assertEquals(Arrays.asList(tooLongName), layout.getDropped());
+  }
+
+  @Test
+  public void nameLengthIsCountedInUtf8Bytes() {
+    // 14 characters of 2 bytes each.
+    AdvertisingPacker.Field name = AdvertisingPacker.Field.deviceName(
+        "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9"
+        + "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9");
+
+    assertEquals(30, mPacker.pack(Arrays.asList(name), /* connectable */ true)
+        .getScanResponseLength());
+  }
+
+  @Test
+  public void layoutsAreCached() {
+    ArrayList<AdvertisingPacker.Field> fields = new ArrayList<>();
+    fields.add(AdvertisingPacker.Field.serviceUuid(UUID16));
+    AdvertisingPacker.Layout layout = mPacker.pack(fields, /* connectable */ true);
+
+    assertSame(layout, mPacker.pack(Arrays.asList(AdvertisingPacker.Field.serviceUuid(UUID16)),
+        /* connectable */ true));
+    assertNotSame(layout, mPacker.pack(fields, /* connectable */ false));
+    // The cache keeps its own copy of the fields.
+    fields.add(AdvertisingPacker.Field.txPowerLevel());
+    assertSame(layout, mPacker.pack(Arrays.asList(AdvertisingPacker.Field.serviceUuid(UUID16)),
+        /* connectable */ true));
+  }
+
+  @Test
+  public void leastRecentlyUsedLayoutIsEvicted() {
+    AdvertisingPacker packer = new AdvertisingPacker(/* maxCachedLayouts */ 1);
+    List<AdvertisingPacker.Field> fields = Arrays.asList(
+        AdvertisingPacker.Field.serviceUuid(UUID16));
+    AdvertisingPacker.Layout layout = packer.pack(fields, /* connectable */ true);
+
+    packer.pack(fields, /* connectable */ false);
+
+    assertNotSame(layout, packer.pack(fields, /* connectable */ true));
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+public class AttCaptureTest {
+  private static final String DEVICE1 = "00:11:22:33:44:55";
+  private static final String DEVICE2 = "66:77:88:99:aa:bb";
+
+  /**
+   * Copies the packets drained from the ring along with their flags.
+   */
+  private static class RecordingReader implements PacketRing.Reader<RuntimeException> {
+    final ArrayList<byte[]> packets = new ArrayList<>();
+    final ArrayList<Integer> flags = new ArrayList<>();
+
+    @Override
+    public void onPacket(byte[] buffer, int offset, int length, int originalLength, int flags,
+        long timestampMicros, long drops) {
+      packets.add(Arrays.copyOfRange(buffer, offset, offset + length));
+      this.flags.add(flags);
+    }
+  }
+
+  private Attribute mCharacteristic;
+  private AttCapture<String> mCapture;
+  private RecordingReader mReader;
+
+  @Before
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(UUID.randomUUID());
+    mCharacteristic = builder.addCharacteristic(UUID.randomUUID(),
+        Attribute.PROPERTY_READ | Attribute.PROPERTY_WRITE, new byte[] {0});
+    builder.build();
+    mCapture = new AttCapture<>(new PacketRing(/* slot count */ 16,
+        AttCapture.DEFAULT_SLOT_SIZE));
+    mReader = new RecordingReader();
+  }
+
+  @Test
+  public void connectionIsAnLeConnectionCompleteEvent() {
+    mCapture.onConnected(DEVICE1);
+
+    drain();
+
+    byte[] packet = mReader.packets.get(0);
+    assertEquals(1 + 2 + 19, packet.length);
+    assertArrayEquals(new byte[] {
+        // HCI event, LE Meta, parameters length, LE Connection Complete.
+        0x04, 0x3e, 19, 0x01,
+        // Status, connection handle and peripheral role.
+        0x00, 0x40, 0x00, 0x01}, Arrays.copyOf(packet, 8));
+    assertEquals(Integer.valueOf(AttCapture.FLAG_RECEIVED | AttCapture.FLAG_COMMAND_OR_EVENT),
+        mReader.flags.get(0));
+  }
+
+  @Test
+  public void devicesHaveTheirOwnConnectionHandle() {
+    mCapture.onConnected(DEVICE1);
+    mCapture.onConnected(DEVICE2);
+    mCapture.onReadRequest(DEVICE2, mCharacteristic, /* offset */ 0);
+    mCapture.onReadRequest(DEVICE1, mCharacteristic, /* offset */ 0);
+
+    drain();
+
+    assertEquals(0x41, mReader.packets.get(2)[1]);
+    assertEquals(0x40, mReader.packets.get(3)[1]);
+    assertEquals(Integer.valueOf(AttCapture.FLAG_RECEIVED), mReader.flags.get(2));
+  }
+
+  @Test
+  public void failedReadBlobIsAnErrorResponse() {
+    mCapture.onReadResponse(DEVICE1, mCharacteristic, /* offset */ 4,
+        GattStatus.INVALID_OFFSET, null);
+    // Android's GATT_FAILURE is not an ATT error code.
+    mCapture.onReadResponse(DEVICE1, mCharacteristic, /* offset */ 0, GattStatus.FAILURE, null);
+
+    drain();
+
+    int handle = mCharacteristic.getValueHandle();
+    assertArrayEquals(new byte[] {
+        // Error Response to a Read Blob Request, handle in error and the error code.
+        0x01, 0x0c, (byte) handle, 0, GattStatus.INVALID_OFFSET},
+        Arrays.copyOfRange(mReader.packets.get(0), 9, 14));
+    assertArrayEquals(new byte[] {
+        // Unlikely Error to a Read Request.
+        0x01, 0x0a, (byte) handle, 0, 0x0e},
+        Arrays.copyOfRange(mReader.packets.get(1), 9, 14));
+    assertEquals(Integer.valueOf(0), mReader.flags.get(0));
+  }
+
+  private void drain() {
+    mCapture.getRing().drain(mReader);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+public class AttributeDatabaseTest {
+  private static final UUID SERVICE_UUID = UUID
+      .fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final UUID OTHER_SERVICE_UUID = UUID
+      .fromString("0000180f-0000-1000-8000-00805f9b34fb");
+  private static final UUID CHARACTERISTIC_UUID = UUID
+      .fromString("00002a37-0000-1000-8000-00805f9b34fb");
+  private static final UUID OTHER_CHARACTERISTIC_UUID = UUID
+      .fromString("00002a38-0000-1000-8000-00805f9b34fb");
+  private static final UUID USER_DESCRIPTION_UUID = UUID
+      .fromString("00002901-0000-1000-8000-00805f9b34fb");
+
+  private Attribute mService;
+  private Attribute mCharacteristic;
+  private Attribute mClientCharacteristicConfiguration;
+  private Attribute mUserDescription;
+  private Attribute mOtherCharacteristic;
+  private Attribute mOtherService;
+  private AttributeDatabase mDatabase;
+
+  @Before
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    mService = builder.addService(SERVICE_UUID);
+    mCharacteristic = builder.addCharacteristic(CHARACTERISTIC_UUID,
+        Attribute.PROPERTY_NOTIFY, null);
+    mClientCharacteristicConfiguration = builder.addDescriptor(
+        Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, new byte[] {0, 0});
+    mUserDescription = builder.addDescriptor(USER_DESCRIPTION_UUID, null);
+    mOtherCharacteristic = builder.addCharacteristic(OTHER_CHARACTERISTIC_UUID,
+        Attribute.PROPERTY_READ, null);
+    mOtherService = builder.addService(OTHER_SERVICE_UUID);
+    mDatabase = builder.build();
+  }
+
+  @Test
+  public void assignsHandlesLikeAGattServer() {
+    assertEquals(1, mService.getHandle());
+    // A characteristic takes a declaration handle and a value handle.
+    assertEquals(2, mCharacteristic.getHandle());
+    assertEquals(3, mCharacteristic.getValueHandle());
+    assertEquals(4, mClientCharacteristicConfiguration.getHandle());
+    assertEquals(5, mUserDescription.getHandle());
+    assertEquals(6, mOtherCharacteristic.getHandle());
+    assertEquals(8, mOtherService.getHandle());
+    assertEquals(Arrays.asList(mService, mCharacteristic, mClientCharacteristicConfiguration,
+        mUserDescription, mOtherCharacteristic, mOtherService), mDatabase.getAttributes());
+  }
+
+  @Test
+  public void getFindsAttributesByTheHandleOfTheirValue() {
+    assertSame(mService, mDatabase.get(1));
+    assertSame(mCharacteristic, mDatabase.get(3));
+    assertSame(mUserDescription, mDatabase.get(5));
+    assertNull(mDatabase.get(AttributeDatabase.MAX_HANDLE));
+    assertNull(mDatabase.get(-1));
+  }
+
+  @Test
+  public void declarationHandleHasNoValue() {
+    assertNull(mDatabase.get(mCharacteristic.getHandle()));
+    assertNull(mDatabase.get(mOtherCharacteristic.getHandle()));
+  }
+
+  @Test
+  public void getCharacteristicAcceptsBothHandles() {
+    assertSame(mCharacteristic, mDatabase.getCharacteristic(2));
+    assertSame(mCharacteristic, mDatabase.getCharacteristic(3));
+    assertSame(mOtherCharacteristic, mDatabase.getCharacteristic(6));
+    assertSame(mOtherCharacteristic, mDatabase.getCharacteristic(7));
+  }
+
+  @Test
+  public void getCharacteristicIgnoresOtherAttributes() {
+    // Services, descriptors and the handles in between aren't characteristics.
+    assertNull(mDatabase.getCharacteristic(1));
+    assertNull(mDatabase.getCharacteristic(4));
+    assertNull(mDatabase.getCharacteristic(5));
+    assertNull(mDatabase.getCharacteristic(8));
+    assertNull(mDatabase.getCharacteristic(AttributeDatabase.MAX_HANDLE));
+  }
+
+  @Test
+  public void findsChildrenAndClientCharacteristicConfiguration() {
+    assertEquals(Arrays.asList(mCharacteristic, mOtherCharacteristic),
+        mDatabase.getChildren(mService));
+    assertEquals(Arrays.asList(mClientCharacteristicConfiguration, mUserDescription),
+        mDatabase.getChildren(mCharacteristic));
+    assertEquals(0, mDatabase.getChildren(mOtherService).size());
+    assertSame(mClientCharacteristicConfiguration,
+        mDatabase.findClientCharacteristicConfiguration(mCharacteristic));
+    assertNull(mDatabase.findClientCharacteristicConfiguration(mOtherCharacteristic));
+  }
+
+  @Test
+  public void findsByUuid() {
+    assertSame(mOtherService, mDatabase.findService(OTHER_SERVICE_UUID));
+    assertSame(mOtherCharacteristic, mDatabase.findCharacteristic(OTHER_CHARACTERISTIC_UUID));
+    assertNull(mDatabase.findCharacteristic(USER_DESCRIPTION_UUID));
+    assertEquals(Arrays.asList(mService, mOtherService), mDatabase.getServices());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void characteristicNeedsAService() {
+    new AttributeDatabase.Builder().addCharacteristic(CHARACTERISTIC_UUID,
+        Attribute.PROPERTY_READ, null);
+  }
+}
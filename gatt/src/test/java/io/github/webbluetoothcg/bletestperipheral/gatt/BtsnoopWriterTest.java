@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+public class BtsnoopWriterTest {
+  // Microseconds from midnight January 1st, 0 AD to the epoch.
+  private static final long EPOCH_OFFSET_MICROS = 0x00dcddb30f2f8000L;
+  private static final int SLOT_SIZE = 32;
+  private static final int RECORD_HEADER_LENGTH = 24;
+
+  @Test
+  public void writesTheHeaderAndARecordPerPacket() throws IOException, InterruptedException {
+    PacketRing ring = new PacketRing(/* slot count */ 4, SLOT_SIZE);
+    long sequence = ring.claim();
+    ring.getBuffer()[ring.getOffset(sequence)] = 0x04;
+    ring.getBuffer()[ring.getOffset(sequence) + 1] = 0x05;
+    ring.publish(sequence, /* original length */ 2, AttCapture.FLAG_COMMAND_OR_EVENT,
+        /* timestamp */ 0);
+
+    DataInputStream input = write(ring, 1);
+
+    byte[] header = new byte[16];
+    input.readFully(header);
+    assertArrayEquals(new byte[] {'b', 't', 's', 'n', 'o', 'o', 'p', 0,
+        // Version 1.
+        0, 0, 0, 1,
+        // Datalink 1002, HCI UART.
+        0, 0, 0x03, (byte) 0xea}, header);
+    byte[] record = new byte[RECORD_HEADER_LENGTH + 2];
+    input.readFully(record);
+    assertArrayEquals(new byte[] {
+        // Original and included length.
+        0, 0, 0, 2, 0, 0, 0, 2,
+        // Flags.
+        0, 0, 0, 2,
+        // Cumulative drops.
+        0, 0, 0, 0,
+        // A timestamp of 0 is the epoch, 0x00dcddb30f2f8000 microseconds after year 0.
+        0x00, (byte) 0xdc, (byte) 0xdd, (byte) 0xb3, 0x0f, 0x2f, (byte) 0x80, 0x00,
+        0x04, 0x05}, record);
+    assertEquals(-1, input.read());
+  }
+
+  @Test
+  public void truncatedAttPacketKeepsItsLengths() throws IOException, InterruptedException {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(UUID.randomUUID());
+    Attribute characteristic = builder.addCharacteristic(UUID.randomUUID(),
+        Attribute.PROPERTY_NOTIFY, null);
+    builder.build();
+    AttCapture<String> capture = new AttCapture<>(new PacketRing(/* slot count */ 4, SLOT_SIZE));
+    long startMicros = System.currentTimeMillis() * 1000;
+    capture.onNotification("00:11:22:33:44:55", characteristic, /* confirm */ false,
+        new byte[100]);
+
+    DataInputStream input = write(capture.getRing(), 1);
+
+    input.skipBytes(16);
+    // Opcode, handle and value.
+    int attLength = 1 + 2 + 100;
+    // H4 type, ACL header, L2CAP header and the ATT PDU.
+    assertEquals(1 + 4 + 4 + attLength, input.readInt());
+    assertEquals(SLOT_SIZE, input.readInt());
+    // Sent, so not FLAG_RECEIVED.
+    assertEquals(0, input.readInt());
+    assertEquals(0, input.readInt());
+    long timestampMicros = input.readLong() - EPOCH_OFFSET_MICROS;
+    assertTrue(timestampMicros >= startMicros);
+    assertTrue(timestampMicros - startMicros < 60 * 1000 * 1000);
+    byte[] packet = new byte[SLOT_SIZE];
+    input.readFully(packet);
+    assertArrayEquals(new byte[] {
+        // ACL data.
+        0x02,
+        // First connection handle with the first automatically flushable packet flag.
+        0x40, 0x20,
+        // ACL length, little endian: the L2CAP header and the whole ATT PDU.
+        (byte) (4 + attLength), 0,
+        // L2CAP length and the ATT channel.
+        (byte) attLength, 0, 0x04, 0x00,
+        // Handle Value Notification of the value handle.
+        0x1b, (byte) characteristic.getValueHandle(), 0}, Arrays.copyOf(packet, 12));
+    assertEquals(-1, input.read());
+  }
+
+  /**
+   * Writes the packets of the ring to a file in memory.
+   */
+  private static DataInputStream write(PacketRing ring, int expectedPackets)
+      throws InterruptedException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BtsnoopWriter writer = new BtsnoopWriter(ring, output);
+    writer.start();
+    writer.stop();
+    assertNull(writer.getError());
+    assertEquals(expectedPackets, writer.getPackets());
+    return new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.UUID;
+
+public class ControlSessionTest {
+  private static final UUID SERVICE_UUID = UUID
+      .fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final UUID CHARACTERISTIC_UUID = UUID
+      .fromString("00002a37-0000-1000-8000-00805f9b34fb");
+  private static final String DEVICE = "00:11:22:33:44:55";
+
+  /**
+   * Counts the writes so the tests can check that pipelined responses are batched.
+   */
+  private static class CountingOutputStream extends ByteArrayOutputStream {
+    int writes;
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) {
+      writes++;
+      super.write(buffer, offset, length);
+    }
+  }
+
+  private FakeGattServer mServer;
+  private Attribute mCharacteristic;
+  private byte[] mRequests;
+  private int mRequestsLength;
+
+  @Before
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(SERVICE_UUID);
+    mCharacteristic = builder.addCharacteristic(CHARACTERISTIC_UUID,
+        Attribute.PROPERTY_READ | Attribute.PROPERTY_NOTIFY, new byte[] {0});
+    builder.addDescriptor(Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, new byte[] {0, 0});
+    mServer = new FakeGattServer(builder.build(), new InMemoryAttributeHandler<String>(),
+        NotificationQueue.DEFAULT_MAX_DEPTH);
+    mRequests = new byte[ControlProtocol.MAX_PARAMETERS_LENGTH];
+    mRequestsLength = 0;
+  }
+
+  @Test
+  public void pipelinedRequestsAreAnsweredInOrderWithOneWrite() throws IOException {
+    putRequest(ControlProtocol.SET_VALUE, mCharacteristic.getValueHandle(), new byte[] {1, 2});
+    putRequest(ControlProtocol.GET_VALUE, mCharacteristic.getValueHandle(), null);
+    putRequest(ControlProtocol.SET_VALUE, mCharacteristic.getValueHandle(), new byte[] {3});
+    putRequest(ControlProtocol.GET_VALUE, mCharacteristic.getValueHandle(), null);
+
+    CountingOutputStream output = serve();
+
+    assertEquals(1, output.writes);
+    byte[] responses = output.toByteArray();
+    int offset = checkResponse(responses, 0, GattStatus.SUCCESS, new byte[0]);
+    offset = checkResponse(responses, offset, GattStatus.SUCCESS, new byte[] {1, 2});
+    offset = checkResponse(responses, offset, GattStatus.SUCCESS, new byte[0]);
+    offset = checkResponse(responses, offset, GattStatus.SUCCESS, new byte[] {3});
+    assertEquals(responses.length, offset);
+  }
+
+  @Test
+  public void characteristicCanBeGivenByItsDeclarationHandle() throws IOException {
+    putRequest(ControlProtocol.SET_VALUE, mCharacteristic.getHandle(), new byte[] {7});
+
+    checkSingleResponse(serve(), GattStatus.SUCCESS, new byte[0]);
+    assertArrayEquals(new byte[] {7}, mCharacteristic.getValue());
+  }
+
+  @Test
+  public void syncCountsTheFailedRequestsWithoutResponse() throws IOException {
+    int noResponse = ControlProtocol.FLAG_NO_RESPONSE;
+    putRequest(ControlProtocol.SET_VALUE | noResponse, mCharacteristic.getValueHandle(),
+        new byte[] {1});
+    // Unknown handle.
+    putRequest(ControlProtocol.SET_VALUE | noResponse, 0x0100, new byte[] {1});
+    // Unknown opcode.
+    putRequest(0x7f | noResponse);
+    putRequest(ControlProtocol.SYNC);
+    // The count starts over after a SYNC.
+    putRequest(ControlProtocol.SYNC);
+
+    byte[] responses = serve().toByteArray();
+
+    int offset = checkResponse(responses, 0, GattStatus.SUCCESS, uint32(2));
+    offset = checkResponse(responses, offset, GattStatus.SUCCESS, uint32(0));
+    assertEquals(responses.length, offset);
+    assertArrayEquals(new byte[] {1}, mCharacteristic.getValue());
+  }
+
+  @Test
+  public void notifyWithoutResponseSendsToSubscribers() throws IOException {
+    mServer.connect(DEVICE);
+    mServer.write(DEVICE, mCharacteristic.getValueHandle() + 1, new byte[] {1, 0});
+    putRequest(ControlProtocol.SET_VALUE_AND_NOTIFY | ControlProtocol.FLAG_NO_RESPONSE,
+        mCharacteristic.getValueHandle(), new byte[] {9});
+    putRequest(ControlProtocol.SYNC);
+
+    checkSingleResponse(serve(), GattStatus.SUCCESS, uint32(0));
+    assertEquals(1, mServer.getNotificationCount());
+    assertArrayEquals(new byte[] {9}, mServer.getLastNotificationValue());
+  }
+
+  @Test
+  public void handleMissingFromTheParametersIsAnInvalidPdu() throws IOException {
+    // One byte of parameters, where a uint16 handle is expected.
+    mRequestsLength = ValueCodec.setUint8(mRequests, mRequestsLength, ControlProtocol.GET_VALUE);
+    mRequestsLength = ValueCodec.setUint16(mRequests, mRequestsLength, 1);
+    mRequestsLength = ValueCodec.setUint8(mRequests, mRequestsLength, 0);
+
+    checkSingleResponse(serve(), GattStatus.INVALID_PDU, new byte[0]);
+  }
+
+  @Test
+  public void unknownHandleIsNotFound() throws IOException {
+    putRequest(ControlProtocol.GET_VALUE, 0x0100, null);
+
+    checkSingleResponse(serve(), GattStatus.ATTRIBUTE_NOT_FOUND, new byte[0]);
+  }
+
+  @Test
+  public void unknownOpcodeIsNotSupported() throws IOException {
+    putRequest(0x7f);
+
+    checkSingleResponse(serve(), GattStatus.REQUEST_NOT_SUPPORTED, new byte[0]);
+  }
+
+  @Test
+  public void valueLongerThanAnAttributeIsRejected() throws IOException {
+    putRequest(ControlProtocol.SET_VALUE, mCharacteristic.getValueHandle(),
+        new byte[PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH + 1]);
+    putRequest(ControlProtocol.SET_VALUE, mCharacteristic.getValueHandle(),
+        new byte[PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH]);
+
+    byte[] responses = serve().toByteArray();
+
+    int offset = checkResponse(responses, 0, GattStatus.INVALID_ATTRIBUTE_LENGTH, new byte[0]);
+    offset = checkResponse(responses, offset, GattStatus.SUCCESS, new byte[0]);
+    assertEquals(responses.length, offset);
+    assertEquals(PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH, mCharacteristic.getValue().length);
+  }
+
+  @Test
+  public void truncatedHeaderEndsTheSession() throws IOException {
+    putRequest(ControlProtocol.SYNC);
+    // Half of the length of the parameters.
+    mRequestsLength = ValueCodec.setUint8(mRequests, mRequestsLength, ControlProtocol.SYNC);
+    mRequestsLength = ValueCodec.setUint8(mRequests, mRequestsLength, 0);
+
+    ControlSession session = newSession(new CountingOutputStream());
+    try {
+      session.serve();
+      fail("Truncated header accepted");
+    } catch (EOFException expected) {
+    }
+    assertEquals(1, session.getRequestCount());
+  }
+
+  @Test
+  public void truncatedParametersEndTheSession() throws IOException {
+    mRequestsLength = ValueCodec.setUint8(mRequests, mRequestsLength, ControlProtocol.SET_VALUE);
+    mRequestsLength = ValueCodec.setUint16(mRequests, mRequestsLength, 10);
+    mRequestsLength = ValueCodec.setUint16(mRequests, mRequestsLength,
+        mCharacteristic.getValueHandle());
+
+    ControlSession session = newSession(new CountingOutputStream());
+    try {
+      session.serve();
+      fail("Truncated parameters accepted");
+    } catch (EOFException expected) {
+    }
+    assertEquals(0, session.getRequestCount());
+    assertArrayEquals(new byte[] {0}, mCharacteristic.getValue());
+  }
+
+  private void putRequest(int opcode) {
+    mRequestsLength = ControlProtocol.putRequest(mRequests, mRequestsLength, opcode);
+  }
+
+  private void putRequest(int opcode, int handle, byte[] value) {
+    mRequestsLength = ControlProtocol.putRequest(mRequests, mRequestsLength, opcode, handle,
+        value);
+  }
+
+  private ControlSession newSession(CountingOutputStream output) {
+    return new ControlSession(new FakeControlTarget(mServer),
+        new ByteArrayInputStream(mRequests, 0, mRequestsLength), output);
+  }
+
+  private CountingOutputStream serve() throws IOException {
+    CountingOutputStream output = new CountingOutputStream();
+    newSession(output).serve();
+    return output;
+  }
+
+  /**
+   * Checks the response at the offset.
+   *
+   * @return The offset of the next response.
+   */
+  private static int checkResponse(byte[] responses, int offset, int status, byte[] result) {
+    assertEquals(status, ValueCodec.getUint16(responses, offset));
+    offset += ValueCodec.UINT16_LENGTH;
+    assertEquals(result.length, ValueCodec.getUint32(responses, offset));
+    offset += ValueCodec.UINT32_LENGTH;
+    byte[] actualResult = new byte[result.length];
+    System.arraycopy(responses, offset, actualResult, 0, result.length);
+    assertArrayEquals(result, actualResult);
+    return offset + result.length;
+  }
+
+  private static void checkSingleResponse(ByteArrayOutputStream output, int status,
+      byte[] result) {
+    byte[] responses = output.toByteArray();
+    assertEquals(responses.length, checkResponse(responses, 0, status, result));
+  }
+
+  private static byte[] uint32(long value) {
+    byte[] buffer = new byte[ValueCodec.UINT32_LENGTH];
+    ValueCodec.setUint32(buffer, 0, value);
+    return buffer;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+
+public class DatabaseHashTest {
+  // Key and messages of the AES-CMAC examples of RFC 4493, which the Core Specification, Vol 3,
+  // Part H, D.1 uses as well.
+  private static final byte[] CMAC_KEY = bytes("2b7e151628aed2a6abf7158809cf4f3c");
+  private static final String CMAC_MESSAGE = "6bc1bee22e409f96e93d7e117393172a"
+      + "ae2d8a571e03ac9c9eb76fac45af8e51" + "30c81c46a35ce411e5fbc1191a0a52ef"
+      + "f69f2445df4f9b17ad2b417be66c3710";
+
+  private static final UUID HEART_RATE_SERVICE_UUID = UUID
+      .fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final UUID HEART_RATE_MEASUREMENT_UUID = UUID
+      .fromString("00002a37-0000-1000-8000-00805f9b34fb");
+  private static final UUID BODY_SENSOR_LOCATION_UUID = UUID
+      .fromString("00002a38-0000-1000-8000-00805f9b34fb");
+  private static final UUID CUSTOM_SERVICE_UUID = UUID
+      .fromString("a0b1c2d3-e4f5-0617-2839-4a5b6c7d8e9f");
+  private static final UUID CUSTOM_CHARACTERISTIC_UUID = UUID
+      .fromString("a0b1c2d3-e4f5-0617-2839-4a5b6c7d8ea0");
+  private static final UUID USER_DESCRIPTION_UUID = UUID
+      .fromString("00002901-0000-1000-8000-00805f9b34fb");
+
+  private AttributeDatabase mDatabase;
+  private Attribute mCustomService;
+
+  @Before
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(HEART_RATE_SERVICE_UUID);
+    builder.addCharacteristic(HEART_RATE_MEASUREMENT_UUID, Attribute.PROPERTY_NOTIFY, null);
+    builder.addDescriptor(Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, new byte[] {0, 0});
+    builder.addCharacteristic(BODY_SENSOR_LOCATION_UUID, Attribute.PROPERTY_READ,
+        new byte[] {1});
+    mCustomService = builder.addService(CUSTOM_SERVICE_UUID);
+    builder.addCharacteristic(CUSTOM_CHARACTERISTIC_UUID, Attribute.PROPERTY_WRITE, null);
+    builder.addDescriptor(USER_DESCRIPTION_UUID, "Custom".getBytes());
+    mDatabase = builder.build();
+  }
+
+  @Test
+  public void cmacMatchesTheSpecificationExamples() {
+    assertArrayEquals(bytes("bb1d6929e95937287fa37d129b756746"),
+        DatabaseHash.cmac(CMAC_KEY, new byte[0]));
+    assertArrayEquals(bytes("070a16b46b4d4144f79bdd9dd04a287c"),
+        DatabaseHash.cmac(CMAC_KEY, bytes(CMAC_MESSAGE.substring(0, 2 * 16))));
+    assertArrayEquals(bytes("dfa66747de9ae63030ca32611497c827"),
+        DatabaseHash.cmac(CMAC_KEY, bytes(CMAC_MESSAGE.substring(0, 2 * 40))));
+    assertArrayEquals(bytes("51f0bebf7e3b9d92fc49741779363cfe"),
+        DatabaseHash.cmac(CMAC_KEY, bytes(CMAC_MESSAGE)));
+  }
+
+  @Test
+  public void hashesTheDeclarationsAndDescriptorTypesInHandleOrder() {
+    byte[] message = bytes(
+        // Primary service, handle 1.
+        "0100" + "0028" + "0d18"
+        // Characteristic declaration, handle 2: properties, value handle 3 and UUID.
+        + "0200" + "0328" + "10" + "0300" + "372a"
+        // Client Characteristic Configuration, handle 4: only the handle and type.
+        + "0400" + "0229"
+        + "0500" + "0328" + "02" + "0600" + "382a"
+        // 128 bit UUIDs are hashed least significant byte first.
+        + "0700" + "0028" + "9f8e7d6c5b4a39281706f5e4d3c2b1a0"
+        + "0800" + "0328" + "08" + "0900" + "a08e7d6c5b4a39281706f5e4d3c2b1a0"
+        // Characteristic User Description, handle 10: only the handle and type.
+        + "0a00" + "0129");
+
+    assertArrayEquals(reversed(DatabaseHash.cmac(new byte[16], message)),
+        DatabaseHash.compute(mDatabase));
+  }
+
+  @Test
+  public void hashOfAKnownTableIsPinned() {
+    // Catches any change to the hash, which would make every central rediscover the table.
+    assertArrayEquals(bytes("62a6d4abd8088f76ffe8a1959781bc65"),
+        DatabaseHash.compute(mDatabase));
+  }
+
+  @Test
+  public void serviceHandlesGivenByTheServerShiftTheirAttributes() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    Attribute service = builder.addService(HEART_RATE_SERVICE_UUID);
+    builder.addCharacteristic(BODY_SENSOR_LOCATION_UUID, Attribute.PROPERTY_READ,
+        new byte[] {1});
+    byte[] message = bytes("2000" + "0028" + "0d18" + "2100" + "0328" + "02" + "2200" + "382a");
+
+    assertArrayEquals(reversed(DatabaseHash.cmac(new byte[16], message)),
+        DatabaseHash.compute(builder.build(), Collections.singletonMap(service, 0x20)));
+  }
+
+  @Test
+  public void serviceChangedHasTheRangeLittleEndian() {
+    assertArrayEquals(bytes("0100ffff"), DatabaseHash.serviceChanged(0x0001, 0xffff));
+  }
+
+  private static byte[] bytes(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  private static byte[] reversed(byte[] bytes) {
+    byte[] reversed = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      reversed[i] = bytes[bytes.length - 1 - i];
+    }
+    return reversed;
+  }
+}
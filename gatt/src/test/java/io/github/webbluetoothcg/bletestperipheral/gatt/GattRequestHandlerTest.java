@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class GattRequestHandlerTest {
+  private static final UUID SERVICE_UUID = UUID
+      .fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final String DEVICE = "00:11:22:33:44:55";
+  private static final byte REJECTED_BYTE = (byte) 0xff;
+
+  /**
+   * Rejects the values that start with REJECTED_BYTE, like an application validating its writes,
+   * and counts the values written.
+   */
+  private static class ValidatingHandler extends InMemoryAttributeHandler<String> {
+    int writes;
+
+    @Override
+    public int checkCharacteristicWrite(String device, Attribute characteristic, int offset,
+        byte[] value) {
+      if (value.length > 0 && value[0] == REJECTED_BYTE) {
+        return GattStatus.FAILURE;
+      }
+      return super.checkCharacteristicWrite(device, characteristic, offset, value);
+    }
+
+    @Override
+    public int writeCharacteristic(String device, Attribute characteristic, int offset,
+        byte[] value) {
+      int status = super.writeCharacteristic(device, characteristic, offset, value);
+      if (status == GattStatus.SUCCESS) {
+        writes++;
+      }
+      return status;
+    }
+  }
+
+  private Attribute mWritable1;
+  private Attribute mWritable2;
+  private Attribute mReadOnly;
+  private Attribute mWriteCommandOnly;
+  private Attribute mNotifying;
+  private Attribute mClientCharacteristicConfiguration;
+  private ValidatingHandler mHandler;
+  private FakeGattServer mServer;
+
+  @Before
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(SERVICE_UUID);
+    mWritable1 = builder.addCharacteristic(UUID.randomUUID(),
+        Attribute.PROPERTY_READ | Attribute.PROPERTY_WRITE, new byte[] {1});
+    mWritable2 = builder.addCharacteristic(UUID.randomUUID(),
+        Attribute.PROPERTY_READ | Attribute.PROPERTY_WRITE, new byte[] {2});
+    mReadOnly = builder.addCharacteristic(UUID.randomUUID(), Attribute.PROPERTY_READ,
+        new byte[] {3});
+    mWriteCommandOnly = builder.addCharacteristic(UUID.randomUUID(),
+        Attribute.PROPERTY_WRITE_NO_RESPONSE, new byte[] {4});
+    mNotifying = builder.addCharacteristic(UUID.randomUUID(), Attribute.PROPERTY_NOTIFY, null);
+    mClientCharacteristicConfiguration = builder.addDescriptor(
+        Attribute.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID, new byte[] {0, 0});
+    mHandler = new ValidatingHandler();
+    mServer = new FakeGattServer(builder.build(), mHandler, NotificationQueue.DEFAULT_MAX_DEPTH);
+    mServer.connect(DEVICE);
+  }
+
+  @Test
+  public void executeWriteAppliesEveryPreparedWrite() {
+    FakeGattServer.Response response = mServer.prepareWrite(DEVICE,
+        mWritable1.getValueHandle(), 0, new byte[] {10, 11});
+    // The response echoes the segment so the device can check it.
+    assertEquals(GattStatus.SUCCESS, response.status);
+    assertArrayEquals(new byte[] {10, 11}, response.value);
+    mServer.prepareWrite(DEVICE, mWritable1.getValueHandle(), 2, new byte[] {12});
+    mServer.prepareWrite(DEVICE, mWritable2.getValueHandle(), 0, new byte[] {20});
+
+    assertEquals(GattStatus.SUCCESS, mServer.executeWrite(DEVICE, /* execute */ true).status);
+
+    assertArrayEquals(new byte[] {10, 11, 12}, mWritable1.getValue());
+    assertArrayEquals(new byte[] {20}, mWritable2.getValue());
+    // Each attribute gets its assembled value in one write.
+    assertEquals(2, mHandler.writes);
+  }
+
+  @Test
+  public void rejectedCharacteristicLeavesTheOnesBeforeItUnwritten() {
+    mServer.prepareWrite(DEVICE, mWritable1.getValueHandle(), 0, new byte[] {10});
+    mServer.prepareWrite(DEVICE, mWritable2.getValueHandle(), 0, new byte[] {REJECTED_BYTE});
+
+    assertEquals(GattStatus.FAILURE, mServer.executeWrite(DEVICE, /* execute */ true).status);
+
+    assertArrayEquals(new byte[] {1}, mWritable1.getValue());
+    assertArrayEquals(new byte[] {2}, mWritable2.getValue());
+    assertEquals(0, mHandler.writes);
+  }
+
+  @Test
+  public void rejectedDescriptorLeavesTheCharacteristicsUnwritten() {
+    mServer.prepareWrite(DEVICE, mWritable1.getValueHandle(), 0, new byte[] {10});
+    // A Client Characteristic Configuration value is 2 bytes long.
+    mServer.prepareWrite(DEVICE, mClientCharacteristicConfiguration.getHandle(), 0,
+        new byte[] {1});
+
+    assertEquals(GattStatus.INVALID_ATTRIBUTE_LENGTH,
+        mServer.executeWrite(DEVICE, /* execute */ true).status);
+
+    assertArrayEquals(new byte[] {1}, mWritable1.getValue());
+    assertFalse(mServer.getRequestHandler().getDeviceRegistry().get(DEVICE)
+        .isNotifying(mNotifying));
+  }
+
+  @Test
+  public void cancelledExecuteWriteWritesNothing() {
+    mServer.prepareWrite(DEVICE, mWritable1.getValueHandle(), 0, new byte[] {10});
+
+    assertEquals(GattStatus.SUCCESS, mServer.executeWrite(DEVICE, /* execute */ false).status);
+    assertEquals(GattStatus.SUCCESS, mServer.executeWrite(DEVICE, /* execute */ true).status);
+
+    assertArrayEquals(new byte[] {1}, mWritable1.getValue());
+  }
+
+  @Test
+  public void disconnectingDropsThePreparedWrites() {
+    mServer.prepareWrite(DEVICE, mWritable1.getValueHandle(), 0, new byte[] {10});
+
+    mServer.disconnect(DEVICE);
+    mServer.connect(DEVICE);
+    mServer.executeWrite(DEVICE, /* execute */ true);
+
+    assertArrayEquals(new byte[] {1}, mWritable1.getValue());
+  }
+
+  @Test
+  public void requestsAreCheckedAgainstTheProperties() {
+    assertEquals(GattStatus.READ_NOT_PERMITTED,
+        mServer.read(DEVICE, mWriteCommandOnly.getValueHandle(), 0).status);
+    assertEquals(GattStatus.WRITE_NOT_PERMITTED,
+        mServer.write(DEVICE, mReadOnly.getValueHandle(), new byte[] {5}).status);
+    assertEquals(GattStatus.WRITE_NOT_PERMITTED,
+        mServer.write(DEVICE, mWriteCommandOnly.getValueHandle(), new byte[] {5}).status);
+    assertEquals(GattStatus.WRITE_NOT_PERMITTED,
+        mServer.prepareWrite(DEVICE, mReadOnly.getValueHandle(), 0, new byte[] {5}).status);
+    mServer.writeCommand(DEVICE, mReadOnly.getValueHandle(), new byte[] {5});
+    mServer.writeCommand(DEVICE, mWriteCommandOnly.getValueHandle(), new byte[] {5});
+
+    assertArrayEquals(new byte[] {3}, mReadOnly.getValue());
+    assertArrayEquals(new byte[] {5}, mWriteCommandOnly.getValue());
+  }
+
+  @Test
+  public void declarationHandleIsNotServedAsTheValue() {
+    assertEquals(GattStatus.INVALID_HANDLE,
+        mServer.read(DEVICE, mWritable1.getHandle(), 0).status);
+    FakeGattServer.Response response = mServer.read(DEVICE, mWritable1.getValueHandle(), 0);
+    assertEquals(GattStatus.SUCCESS, response.status);
+    assertArrayEquals(new byte[] {1}, response.value);
+  }
+
+  @Test
+  public void notifiesSubscribersOneAtATime() {
+    assertEquals(GattStatus.SUCCESS, mServer.write(DEVICE,
+        mClientCharacteristicConfiguration.getHandle(), new byte[] {1, 0}).status);
+    assertTrue(mServer.getRequestHandler().getDeviceRegistry().get(DEVICE)
+        .isNotifying(mNotifying));
+
+    mNotifying.setValue(new byte[] {1});
+    mServer.getRequestHandler().notifyValueChanged(mNotifying);
+    mNotifying.setValue(new byte[] {2});
+    mServer.getRequestHandler().notifyValueChanged(mNotifying);
+
+    // The second notification waits for the first and carries the value at the time it leaves.
+    assertEquals(1, mServer.getNotificationCount());
+    assertEquals(2, mServer.acknowledgeNotifications());
+    assertArrayEquals(new byte[] {2}, mServer.getLastNotificationValue());
+  }
+
+  @Test
+  public void valueForTheDeviceIsSentWithoutChangingTheCharacteristic() {
+    mServer.write(DEVICE, mClientCharacteristicConfiguration.getHandle(), new byte[] {1, 0});
+    mNotifying.setValue(new byte[] {1});
+
+    mServer.getRequestHandler().notifyValueChanged(DEVICE, mNotifying, new byte[] {2});
+    mNotifying.setValue(new byte[] {3});
+
+    assertEquals(1, mServer.getNotificationCount());
+    assertArrayEquals(new byte[] {2}, mServer.getLastNotificationValue());
+    assertArrayEquals(new byte[] {3}, mNotifying.getValue());
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class MeasurementsTest {
+  @Test
+  public void heartRateMeasurementHasTheEnergyExpended() {
+    byte[] value = Measurements.heartRateMeasurement(null, 72, 0x1234);
+
+    assertArrayEquals(new byte[] {Measurements.HEART_RATE_FLAG_ENERGY_EXPENDED, 72, 0x34, 0x12},
+        value);
+  }
+
+  @Test
+  public void temperatureMeasurementIsAFloatInCelsius() {
+    byte[] value = Measurements.temperatureMeasurement(null, 37.1f);
+
+    // Flags, then 371e-1.
+    assertArrayEquals(new byte[] {0, 0x73, 0x01, 0x00, (byte) 0xff}, value);
+    assertEquals(37.1, ValueCodec.getFloat(value, ValueCodec.UINT8_LENGTH), 0);
+  }
+
+  @Test
+  public void bufferIsReusedOnlyWhenItHasTheRightLength() {
+    byte[] buffer = new byte[Measurements.HEART_RATE_MEASUREMENT_LENGTH];
+    assertSame(buffer, Measurements.heartRateMeasurement(buffer, 60, 0));
+
+    byte[] shortBuffer = new byte[Measurements.TEMPERATURE_MEASUREMENT_LENGTH - 1];
+    byte[] value = Measurements.temperatureMeasurement(shortBuffer, 36.6f);
+    assertNotSame(shortBuffer, value);
+    assertEquals(Measurements.TEMPERATURE_MEASUREMENT_LENGTH, value.length);
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+public class NotificationQueueTest {
+  private static final UUID SERVICE_UUID = UUID
+      .fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final String DEVICE_1 = "00:11:22:33:44:55";
+  private static final String DEVICE_2 = "66:77:88:99:AA:BB";
+  private static final int MAX_DEPTH = 2;
+
+  /**
+   * Records what the queue sends.
+   */
+  private static class RecordingSender implements NotificationQueue.Sender<String> {
+    final ArrayList<String> devices = new ArrayList<>();
+    final ArrayList<Attribute> characteristics = new ArrayList<>();
+    final ArrayList<byte[]> values = new ArrayList<>();
+    final ArrayList<Boolean> confirms = new ArrayList<>();
+    boolean accept = true;
+    NotificationQueue<String> queue;
+    boolean sentWithLockHeld;
+
+    @Override
+    public boolean send(String device, Attribute characteristic, byte[] value,
+        boolean confirm) {
+      sentWithLockHeld = sentWithLockHeld || Thread.holdsLock(queue);
+      devices.add(device);
+      characteristics.add(characteristic);
+      values.add(value);
+      confirms.add(confirm);
+      return accept;
+    }
+  }
+
+  private Attribute mCharacteristic1;
+  private Attribute mCharacteristic2;
+  private Attribute mCharacteristic3;
+  private RecordingSender mSender;
+  private NotificationQueue<String> mQueue;
+
+  @Before
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(SERVICE_UUID);
+    mCharacteristic1 = builder.addCharacteristic(UUID.randomUUID(), Attribute.PROPERTY_NOTIFY,
+        null);
+    mCharacteristic2 = builder.addCharacteristic(UUID.randomUUID(), Attribute.PROPERTY_NOTIFY,
+        null);
+    mCharacteristic3 = builder.addCharacteristic(UUID.randomUUID(), Attribute.PROPERTY_NOTIFY,
+        null);
+    mSender = new RecordingSender();
+    mQueue = new NotificationQueue<>(mSender, MAX_DEPTH);
+    mSender.queue = mQueue;
+  }
+
+  @Test
+  public void sendsRightAwayWhenNothingIsInFlight() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+
+    assertEquals(1, mSender.characteristics.size());
+    assertSame(mCharacteristic1, mSender.characteristics.get(0));
+  }
+
+  @Test
+  public void keepsOneNotificationInFlightPerDevice() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic2, /* confirm */ false);
+    // Another device has its own queue.
+    mQueue.enqueue(DEVICE_2, mCharacteristic2, /* confirm */ false);
+
+    assertEquals(2, mSender.characteristics.size());
+    assertEquals(DEVICE_2, mSender.devices.get(1));
+
+    assertSame(mCharacteristic1, mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS));
+
+    assertEquals(3, mSender.characteristics.size());
+    assertEquals(DEVICE_1, mSender.devices.get(2));
+    assertSame(mCharacteristic2, mSender.characteristics.get(2));
+    assertEquals(1, mQueue.getSentCount());
+  }
+
+  @Test
+  public void coalescesACharacteristicThatIsAlreadyWaiting() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic2, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic2, /* confirm */ true);
+
+    assertEquals(3, mQueue.getQueuedCount());
+    assertEquals(1, mQueue.getCoalescedCount());
+
+    mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS);
+
+    // One notification carries both values, as an indication since one of them asked for it.
+    assertEquals(2, mSender.characteristics.size());
+    assertEquals(Boolean.TRUE, mSender.confirms.get(1));
+    assertSame(mCharacteristic2, mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS));
+    assertEquals(2, mSender.characteristics.size());
+  }
+
+  @Test
+  public void carriesTheValueForTheDeviceAndCoalescesItWithTheNewOne() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, new byte[] {1}, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, new byte[] {2}, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, new byte[] {3}, /* confirm */ false);
+    // Another device gets its own value.
+    mQueue.enqueue(DEVICE_2, mCharacteristic1, new byte[] {4}, /* confirm */ false);
+
+    mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS);
+
+    assertEquals(3, mSender.values.size());
+    assertArrayEquals(new byte[] {1}, mSender.values.get(0));
+    assertArrayEquals(new byte[] {4}, mSender.values.get(1));
+    assertArrayEquals(new byte[] {3}, mSender.values.get(2));
+  }
+
+  @Test
+  public void dropsTheOldestWaitingNotificationWhenFull() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic2, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic3, /* confirm */ false);
+    // Full: MAX_DEPTH waiting besides the one in flight.
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+
+    assertEquals(1, mQueue.getDroppedCount());
+
+    mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS);
+    mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS);
+
+    assertSame(mCharacteristic3, mSender.characteristics.get(1));
+    assertSame(mCharacteristic1, mSender.characteristics.get(2));
+  }
+
+  @Test
+  public void countsFailedAndRefusedNotificationsAsDropped() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+    mQueue.onNotificationSent(DEVICE_1, GattStatus.FAILURE);
+
+    mSender.accept = false;
+    mQueue.enqueue(DEVICE_1, mCharacteristic2, /* confirm */ false);
+
+    assertEquals(0, mQueue.getSentCount());
+    assertEquals(2, mQueue.getDroppedCount());
+    // The refused notification isn't in flight, so the next one goes right away.
+    mSender.accept = true;
+    mQueue.enqueue(DEVICE_1, mCharacteristic3, /* confirm */ false);
+    assertEquals(3, mSender.characteristics.size());
+  }
+
+  @Test
+  public void sendsWithoutHoldingTheLock() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic2, /* confirm */ false);
+    mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS);
+    mSender.accept = false;
+    mQueue.enqueue(DEVICE_2, mCharacteristic1, /* confirm */ false);
+
+    assertEquals(3, mSender.characteristics.size());
+    assertFalse(mSender.sentWithLockHeld);
+  }
+
+  @Test
+  public void sentWithoutNotificationInFlightIsIgnored() {
+    assertNull(mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS));
+    assertEquals(0, mQueue.getSentCount());
+  }
+
+  @Test
+  public void removeDeviceDropsItsWaitingNotifications() {
+    mQueue.enqueue(DEVICE_1, mCharacteristic1, /* confirm */ false);
+    mQueue.enqueue(DEVICE_1, mCharacteristic2, /* confirm */ false);
+    mQueue.enqueue(DEVICE_2, mCharacteristic1, /* confirm */ false);
+
+    mQueue.removeDevice(DEVICE_1);
+
+    assertEquals(1, mQueue.getDroppedCount());
+    assertNull(mQueue.onNotificationSent(DEVICE_1, GattStatus.SUCCESS));
+    assertSame(mCharacteristic1, mQueue.onNotificationSent(DEVICE_2, GattStatus.SUCCESS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsADepthBelowOne() {
+    mQueue.setMaxDepth(0);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class PacketRingTest {
+  private static final int SLOT_COUNT = 4;
+  private static final int SLOT_SIZE = 8;
+
+  /**
+   * Records the packets drained from the ring: their first byte, lengths and drops.
+   */
+  private static class RecordingReader implements PacketRing.Reader<RuntimeException> {
+    final ArrayList<Integer> firstBytes = new ArrayList<>();
+    final ArrayList<Integer> lengths = new ArrayList<>();
+    final ArrayList<Integer> originalLengths = new ArrayList<>();
+    final ArrayList<Long> drops = new ArrayList<>();
+
+    @Override
+    public void onPacket(byte[] buffer, int offset, int length, int originalLength, int flags,
+        long timestampMicros, long drops) {
+      firstBytes.add(buffer[offset] & 0xff);
+      lengths.add(length);
+      originalLengths.add(originalLength);
+      this.drops.add(drops);
+    }
+  }
+
+  private PacketRing mRing;
+  private RecordingReader mReader;
+
+  @Before
+  public void setUp() {
+    mRing = new PacketRing(SLOT_COUNT, SLOT_SIZE);
+    mReader = new RecordingReader();
+  }
+
+  @Test
+  public void wrapsAroundOnceSlotsAreDrained() {
+    for (int i = 0; i < 3 * SLOT_COUNT; i++) {
+      long sequence = write(i, 1);
+
+      assertEquals(i, sequence);
+      assertEquals((i % SLOT_COUNT) * SLOT_SIZE, mRing.getOffset(sequence));
+      assertEquals(1, mRing.drain(mReader));
+    }
+    assertEquals(3 * SLOT_COUNT, mReader.firstBytes.size());
+    assertEquals(Integer.valueOf(3 * SLOT_COUNT - 1),
+        mReader.firstBytes.get(3 * SLOT_COUNT - 1));
+    assertEquals(0, mRing.getDrops());
+  }
+
+  @Test
+  public void dropsPacketsWhenFull() {
+    for (int i = 0; i < SLOT_COUNT; i++) {
+      write(i, 1);
+    }
+
+    assertEquals(-1, mRing.claim());
+    assertEquals(-1, mRing.claim());
+    assertEquals(2, mRing.getDrops());
+
+    assertEquals(SLOT_COUNT, mRing.drain(mReader));
+    // Each packet carries the drops counted when it was read.
+    assertEquals(Long.valueOf(2), mReader.drops.get(0));
+    // Draining frees the slots.
+    write(SLOT_COUNT, 1);
+    assertEquals(1, mRing.drain(mReader));
+    assertEquals(Integer.valueOf(SLOT_COUNT), mReader.firstBytes.get(SLOT_COUNT));
+  }
+
+  @Test
+  public void drainStopsAtAClaimedSlotThatIsNotPublished() {
+    long first = mRing.claim();
+    long second = write(2, 1);
+
+    // The second packet waits for the first, so they are read in order.
+    assertEquals(0, mRing.drain(mReader));
+
+    mRing.getBuffer()[mRing.getOffset(first)] = 1;
+    mRing.publish(first, 1, /* flags */ 0, /* timestamp */ 0);
+
+    assertEquals(2, mRing.drain(mReader));
+    assertEquals(Integer.valueOf(1), mReader.firstBytes.get(0));
+    assertEquals(Integer.valueOf(2), mReader.firstBytes.get(1));
+    assertEquals(first + 1, second);
+  }
+
+  @Test
+  public void longPacketIsTruncatedToTheSlotKeepingItsLength() {
+    write(1, SLOT_SIZE + 5);
+
+    mRing.drain(mReader);
+
+    assertEquals(Integer.valueOf(SLOT_SIZE), mReader.lengths.get(0));
+    assertEquals(Integer.valueOf(SLOT_SIZE + 5), mReader.originalLengths.get(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsASlotCountThatIsNotAPowerOfTwo() {
+    new PacketRing(3, SLOT_SIZE);
+  }
+
+  /**
+   * Claims a slot, writes firstByte at its start and publishes it.
+   */
+  private long write(int firstByte, int originalLength) {
+    long sequence = mRing.claim();
+    mRing.getBuffer()[mRing.getOffset(sequence)] = (byte) firstByte;
+    mRing.publish(sequence, originalLength, /* flags */ 0, /* timestamp */ 0);
+    return sequence;
+  }
+}
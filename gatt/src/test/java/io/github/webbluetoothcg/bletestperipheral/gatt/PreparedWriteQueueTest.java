@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class PreparedWriteQueueTest {
+  private static final UUID SERVICE_UUID = UUID
+      .fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final String DEVICE_1 = "00:11:22:33:44:55";
+  private static final String DEVICE_2 = "66:77:88:99:AA:BB";
+  private static final int MAX_BYTES_PER_DEVICE = 8;
+
+  private Attribute mCharacteristic1;
+  private Attribute mCharacteristic2;
+  private PreparedWriteQueue<String> mQueue;
+
+  @Before
+  public void setUp() {
+    AttributeDatabase.Builder builder = new AttributeDatabase.Builder();
+    builder.addService(SERVICE_UUID);
+    mCharacteristic1 = builder.addCharacteristic(UUID.randomUUID(), Attribute.PROPERTY_WRITE,
+        null);
+    mCharacteristic2 = builder.addCharacteristic(UUID.randomUUID(), Attribute.PROPERTY_WRITE,
+        null);
+    mQueue = new PreparedWriteQueue<>(MAX_BYTES_PER_DEVICE);
+  }
+
+  @Test
+  public void assemblesTheSegmentsOfEachAttribute() {
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 0, new byte[] {1, 2});
+    mQueue.prepare(DEVICE_1, mCharacteristic2, 0, new byte[] {9});
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 2, new byte[] {3});
+
+    PreparedWriteQueue.Execution execution = mQueue.execute(DEVICE_1);
+
+    assertEquals(GattStatus.SUCCESS, execution.status);
+    // In the order the attributes were first written to.
+    assertEquals(2, execution.writes.size());
+    assertSame(mCharacteristic1, execution.writes.get(0).attribute);
+    assertEquals(0, execution.writes.get(0).offset);
+    assertArrayEquals(new byte[] {1, 2, 3}, execution.writes.get(0).value);
+    assertSame(mCharacteristic2, execution.writes.get(1).attribute);
+    assertArrayEquals(new byte[] {9}, execution.writes.get(1).value);
+  }
+
+  @Test
+  public void laterSegmentsOverwriteEarlierOnes() {
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 0, new byte[] {1, 2, 3});
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 1, new byte[] {5});
+
+    PreparedWriteQueue.Execution execution = mQueue.execute(DEVICE_1);
+
+    assertArrayEquals(new byte[] {1, 5, 3}, execution.writes.get(0).value);
+  }
+
+  @Test
+  public void valueMayStartAtAnOffset() {
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 2, new byte[] {3, 4});
+
+    PreparedWriteQueue.Execution execution = mQueue.execute(DEVICE_1);
+
+    assertEquals(GattStatus.SUCCESS, execution.status);
+    assertEquals(2, execution.writes.get(0).offset);
+    assertArrayEquals(new byte[] {3, 4}, execution.writes.get(0).value);
+  }
+
+  @Test
+  public void gapBetweenSegmentsRejectsTheWholeQueue() {
+    mQueue.prepare(DEVICE_1, mCharacteristic2, 0, new byte[] {9});
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 0, new byte[] {1});
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 2, new byte[] {3});
+
+    PreparedWriteQueue.Execution execution = mQueue.execute(DEVICE_1);
+
+    assertEquals(GattStatus.INVALID_OFFSET, execution.status);
+    assertEquals(0, execution.writes.size());
+  }
+
+  @Test
+  public void valueLongerThanAnAttributeIsRejected() {
+    PreparedWriteQueue<String> queue = new PreparedWriteQueue<>(
+        PreparedWriteQueue.DEFAULT_MAX_BYTES_PER_DEVICE);
+    queue.prepare(DEVICE_1, mCharacteristic1, 0,
+        new byte[PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH]);
+    queue.prepare(DEVICE_1, mCharacteristic1, PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH,
+        new byte[1]);
+
+    PreparedWriteQueue.Execution execution = queue.execute(DEVICE_1);
+
+    assertEquals(GattStatus.INVALID_ATTRIBUTE_LENGTH, execution.status);
+    assertEquals(0, execution.writes.size());
+  }
+
+  @Test
+  public void queueIsBoundedPerDevice() {
+    assertEquals(GattStatus.SUCCESS,
+        mQueue.prepare(DEVICE_1, mCharacteristic1, 0, new byte[MAX_BYTES_PER_DEVICE - 1]));
+    assertEquals(GattStatus.PREPARE_QUEUE_FULL,
+        mQueue.prepare(DEVICE_1, mCharacteristic1, MAX_BYTES_PER_DEVICE - 1, new byte[2]));
+    // Other devices have their own budget.
+    assertEquals(GattStatus.SUCCESS,
+        mQueue.prepare(DEVICE_2, mCharacteristic1, 0, new byte[MAX_BYTES_PER_DEVICE]));
+  }
+
+  @Test
+  public void executeAndCancelEmptyTheQueueOfTheDevice() {
+    mQueue.prepare(DEVICE_1, mCharacteristic1, 0, new byte[] {1});
+    mQueue.prepare(DEVICE_2, mCharacteristic1, 0, new byte[] {2});
+
+    mQueue.cancel(DEVICE_1);
+
+    assertEquals(0, mQueue.execute(DEVICE_1).writes.size());
+    assertEquals(1, mQueue.execute(DEVICE_2).writes.size());
+    assertEquals(0, mQueue.execute(DEVICE_2).writes.size());
+  }
+}
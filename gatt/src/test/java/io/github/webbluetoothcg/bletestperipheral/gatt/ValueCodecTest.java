@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.gatt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ValueCodecTest {
+  @Test
+  public void uintsRoundTripLittleEndian() {
+    byte[] buffer = new byte[ValueCodec.UINT8_LENGTH + ValueCodec.UINT16_LENGTH
+        + ValueCodec.UINT24_LENGTH + ValueCodec.UINT32_LENGTH];
+    int offset = ValueCodec.setUint8(buffer, 0, 0xfe);
+    offset = ValueCodec.setUint16(buffer, offset, 0xfedc);
+    offset = ValueCodec.setUint24(buffer, offset, 0xfedcba);
+    offset = ValueCodec.setUint32(buffer, offset, 0xfedcba98L);
+
+    assertEquals(buffer.length, offset);
+    assertArrayEquals(new byte[] {(byte) 0xfe, (byte) 0xdc, (byte) 0xfe, (byte) 0xba,
+        (byte) 0xdc, (byte) 0xfe, (byte) 0x98, (byte) 0xba, (byte) 0xdc, (byte) 0xfe}, buffer);
+    assertEquals(0xfe, ValueCodec.getUint8(buffer, 0));
+    assertEquals(0xfedc, ValueCodec.getUint16(buffer, 1));
+    assertEquals(0xfedcba, ValueCodec.getUint24(buffer, 3));
+    // Unsigned, even with the top bit set.
+    assertEquals(0xfedcba98L, ValueCodec.getUint32(buffer, 6));
+  }
+
+  @Test
+  public void uintsOnlyKeepTheirLowBits() {
+    byte[] buffer = new byte[ValueCodec.UINT32_LENGTH];
+
+    ValueCodec.setUint8(buffer, 0, 0x1ff);
+    assertEquals(0xff, ValueCodec.getUint8(buffer, 0));
+    ValueCodec.setUint16(buffer, 0, 0x1ffff);
+    assertEquals(0xffff, ValueCodec.getUint16(buffer, 0));
+    ValueCodec.setUint32(buffer, 0, 0x1ffffffffL);
+    assertEquals(0xffffffffL, ValueCodec.getUint32(buffer, 0));
+  }
+
+  @Test
+  public void floatIsRoundedToTheShortestMantissa() {
+    // 37.1 isn't exact in binary; rounding to 7 digits gives 3710000e-5, which is 371e-1.
+    assertEquals(0xff000173, ValueCodec.encodeFloat(37.1));
+    assertEquals(0xff000173, ValueCodec.encodeFloat(37.1f));
+    assertEquals(0xfffffe8d, ValueCodec.encodeFloat(-37.1));
+    assertEquals(0, ValueCodec.encodeFloat(0));
+  }
+
+  @Test
+  public void floatRoundTrips() {
+    byte[] buffer = new byte[ValueCodec.FLOAT_LENGTH];
+
+    assertEquals(ValueCodec.FLOAT_LENGTH, ValueCodec.setFloat(buffer, 0, 37.1));
+    assertArrayEquals(new byte[] {0x73, 0x01, 0x00, (byte) 0xff}, buffer);
+    assertEquals(37.1, ValueCodec.getFloat(buffer, 0), 0);
+    ValueCodec.setFloat(buffer, 0, -0.000125);
+    assertEquals(-0.000125, ValueCodec.getFloat(buffer, 0), 0);
+  }
+
+  @Test
+  public void floatMantissaThatOverflowsMovesToTheExponent() {
+    // 9,999,999 has 7 digits but is over the largest mantissa, so it is rounded to 6 digits.
+    assertEquals(0x07000001, ValueCodec.encodeFloat(9999999));
+    // 8,388,605 is the largest mantissa and is kept as it is.
+    assertEquals(0x007ffffd, ValueCodec.encodeFloat(8388605));
+  }
+
+  @Test
+  public void sfloatIsRoundedToTheShortestMantissa() {
+    assertEquals(0xf173, ValueCodec.encodeSfloat(37.1));
+    // 2046 is over the largest mantissa, 2045.
+    assertEquals(0x10cd, ValueCodec.encodeSfloat(2046));
+    assertEquals(0x07fd, ValueCodec.encodeSfloat(2045));
+  }
+
+  @Test
+  public void sfloatRoundTrips() {
+    byte[] buffer = new byte[ValueCodec.SFLOAT_LENGTH];
+
+    assertEquals(ValueCodec.SFLOAT_LENGTH, ValueCodec.setSfloat(buffer, 0, -37.1));
+    assertEquals(-37.1, ValueCodec.getSfloat(buffer, 0), 0);
+    ValueCodec.setSfloat(buffer, 0, 2050);
+    assertEquals(2050, ValueCodec.getSfloat(buffer, 0), 0);
+  }
+
+  @Test
+  public void exponentIsClampedToItsRange() {
+    // 1.23456e-6 wants an exponent of -9; the smallest SFLOAT exponent, -8, leaves 3 digits.
+    assertEquals(0x807b, ValueCodec.encodeSfloat(1.23456e-6));
+    // Too small for any mantissa at the smallest exponent.
+    assertEquals(0, ValueCodec.encodeSfloat(1e-12));
+    // Too big for the largest exponent.
+    assertEquals(ValueCodec.SFLOAT_POSITIVE_INFINITY, ValueCodec.encodeSfloat(1e12));
+    assertEquals(ValueCodec.SFLOAT_NEGATIVE_INFINITY, ValueCodec.encodeSfloat(-1e12));
+    assertEquals(ValueCodec.FLOAT_POSITIVE_INFINITY, ValueCodec.encodeFloat(Double.MAX_VALUE));
+  }
+
+  @Test
+  public void specialValuesAreEncoded() {
+    assertEquals(ValueCodec.FLOAT_NAN, ValueCodec.encodeFloat(Double.NaN));
+    assertEquals(ValueCodec.FLOAT_POSITIVE_INFINITY,
+        ValueCodec.encodeFloat(Double.POSITIVE_INFINITY));
+    assertEquals(ValueCodec.FLOAT_NEGATIVE_INFINITY,
+        ValueCodec.encodeFloat(Double.NEGATIVE_INFINITY));
+    assertEquals(ValueCodec.SFLOAT_NAN, ValueCodec.encodeSfloat(Double.NaN));
+    assertEquals(ValueCodec.SFLOAT_POSITIVE_INFINITY,
+        ValueCodec.encodeSfloat(Double.POSITIVE_INFINITY));
+    assertEquals(ValueCodec.SFLOAT_NEGATIVE_INFINITY,
+        ValueCodec.encodeSfloat(Double.NEGATIVE_INFINITY));
+  }
+
+  @Test
+  public void specialValuesAreDecoded() {
+    byte[] buffer = new byte[ValueCodec.FLOAT_LENGTH];
+
+    ValueCodec.setUint32(buffer, 0, ValueCodec.FLOAT_POSITIVE_INFINITY);
+    assertEquals(Double.POSITIVE_INFINITY, ValueCodec.getFloat(buffer, 0), 0);
+    ValueCodec.setUint32(buffer, 0, ValueCodec.FLOAT_NEGATIVE_INFINITY);
+    assertEquals(Double.NEGATIVE_INFINITY, ValueCodec.getFloat(buffer, 0), 0);
+    ValueCodec.setUint32(buffer, 0, ValueCodec.FLOAT_NAN);
+    assertTrue(Double.isNaN(ValueCodec.getFloat(buffer, 0)));
+    ValueCodec.setUint32(buffer, 0, ValueCodec.FLOAT_NRES);
+    assertTrue(Double.isNaN(ValueCodec.getFloat(buffer, 0)));
+
+    ValueCodec.setUint16(buffer, 0, ValueCodec.SFLOAT_POSITIVE_INFINITY);
+    assertEquals(Double.POSITIVE_INFINITY, ValueCodec.getSfloat(buffer, 0), 0);
+    ValueCodec.setUint16(buffer, 0, ValueCodec.SFLOAT_NEGATIVE_INFINITY);
+    assertEquals(Double.NEGATIVE_INFINITY, ValueCodec.getSfloat(buffer, 0), 0);
+    ValueCodec.setUint16(buffer, 0, ValueCodec.SFLOAT_NAN);
+    assertTrue(Double.isNaN(ValueCodec.getSfloat(buffer, 0)));
+    ValueCodec.setUint16(buffer, 0, ValueCodec.SFLOAT_NRES);
+    assertTrue(Double.isNaN(ValueCodec.getSfloat(buffer, 0)));
+  }
+
+  @Test
+  public void flagsAreSetAndCleared() {
+    int flags = ValueCodec.setFlag(0, 1 << 3, /* set */ true);
+    assertTrue(ValueCodec.isFlagSet(flags, 1 << 3));
+    assertEquals(0, ValueCodec.setFlag(flags, 1 << 3, /* set */ false));
+  }
+}